@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.benchmarks;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, which reports allocation rates
+ * (<code>gc.alloc.rate.norm</code> is the number of bytes allocated per
+ * operation) and collections, and writes the results as JSON so runs of
+ * different releases can be compared, e.g. with the JMH visualizer.
+ * <p>
+ * Build the main project and this module, then run
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar [JMH options] [benchmark regex]
+ * </pre>
+ *
+ * Without <code>-rff</code> the results go to
+ * <code>jmh-result-&lt;timestamp&gt;.json</code> in the working directory.
+ * All other JMH command line options (<code>-p payloadSize=1024</code>,
+ * <code>-f</code>, <code>-prof</code>, ...) are passed through.
+ *
+ * @author Daniel Manzke
+ */
+public final class BenchmarkRunner {
+
+	private BenchmarkRunner() {
+		// main only
+	}
+
+	public static void main(final String[] args) throws RunnerException, CommandLineOptionException, IOException {
+		final CommandLineOptions commandLine = new CommandLineOptions(args);
+		if (commandLine.shouldHelp()) {
+			commandLine.showHelp();
+			return;
+		}
+
+		final ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class);
+		if (!commandLine.getResultFormat().hasValue())
+			options.resultFormat(ResultFormatType.JSON);
+		if (!commandLine.getResult().hasValue())
+			options.result("jmh-result-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+
+		new Runner(options.build()).run();
+	}
+}
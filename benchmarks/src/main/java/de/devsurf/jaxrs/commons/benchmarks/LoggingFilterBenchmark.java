@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.devsurf.jaxrs.commons.filter.LoggingFilter;
+import de.devsurf.jaxrs.commons.streams.NullOutputStream;
+
+/**
+ * Measures the overhead {@link LoggingFilter} adds to a request, logging
+ * synchronously (to a discarding {@link System#out}) or through the
+ * asynchronous access log (to a temporary file).
+ *
+ * @author Daniel Manzke
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LoggingFilterBenchmark {
+
+	@Param({ "sync", "async" })
+	public String mode;
+
+	@Param({ "4", "32" })
+	public int responseHeaders;
+
+	@Param({ "1024", "65536" })
+	public int payloadSize;
+
+	/**
+	 * The body preview limit, -1 disables the body tap.
+	 */
+	@Param({ "-1", "256" })
+	public int bodyPreview;
+
+	/**
+	 * The fraction of requests logged, the others only if they fail.
+	 */
+	@Param({ "1", "0.01" })
+	public double sampleRate;
+
+	@Param({ "text", "json", "binary" })
+	public String format;
+
+	private LoggingFilter filter;
+
+	private PayloadChain chain;
+
+	private PrintStream out;
+
+	private File logFile;
+
+	@Setup
+	public void setUp() throws IOException, ServletException {
+		this.out = System.out;
+		System.setOut(new PrintStream(new NullOutputStream()));
+
+		final StubFilterConfig config = new StubFilterConfig().with(LoggingFilter.PARAM_BODY_PREVIEW, this.bodyPreview).with(
+				LoggingFilter.PARAM_SAMPLE_RATE, this.sampleRate).with(LoggingFilter.PARAM_FORMAT, this.format);
+		if ("async".equals(this.mode)) {
+			this.logFile = File.createTempFile("access", ".log");
+			this.logFile.deleteOnExit();
+			config.with(LoggingFilter.PARAM_ASYNC, true).with(LoggingFilter.PARAM_LOG_FILE, this.logFile.getAbsolutePath())
+					.with(LoggingFilter.PARAM_REQUEST_HEADERS, "Accept,User-Agent,X-Header-0")
+					.with(LoggingFilter.PARAM_RESPONSE_HEADERS, "Content-Type,X-Response-0");
+		}
+
+		this.filter = new LoggingFilter();
+		this.filter.init(config);
+		this.chain = new PayloadChain(PayloadChain.payload(this.payloadSize), this.responseHeaders, 8192);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.filter.destroy();
+		System.setOut(this.out);
+		if (this.logFile != null)
+			this.logFile.delete();
+	}
+
+	@Benchmark
+	public int filter(final Exchange exchange) throws IOException, ServletException {
+		exchange.response.recycle();
+		this.filter.doFilter(exchange.request, exchange.response, this.chain);
+		return exchange.response.getStatus();
+	}
+
+	@State(Scope.Thread)
+	public static class Exchange {
+
+		@Param({ "4", "32" })
+		public int requestHeaders;
+
+		StubRequest request;
+
+		final StubResponse response = new StubResponse();
+
+		@Setup
+		public void setUp() {
+			this.request = new StubRequest("GET", "/items/1", "expand=all").withHeader("Accept", "application/json")
+					.withHeader("User-Agent", "benchmark").withHeaders(this.requestHeaders);
+		}
+	}
+}
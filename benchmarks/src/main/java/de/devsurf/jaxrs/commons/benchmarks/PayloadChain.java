@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A {@link FilterChain} which plays the resource: it sets a number of
+ * response headers and writes a fixed payload through the output stream.
+ *
+ * @author Daniel Manzke
+ */
+public final class PayloadChain implements FilterChain {
+
+	private final byte[] payload;
+
+	private final String[] headerNames;
+
+	private final String[] headerValues;
+
+	private final int chunkSize;
+
+	/**
+	 * @param headerCount
+	 *            The number of headers named <code>X-Response-0</code> and so
+	 *            on.
+	 * @param chunkSize
+	 *            The size of the writes the payload is split into.
+	 */
+	public PayloadChain(final byte[] payload, final int headerCount, final int chunkSize) {
+		this.payload = payload;
+		this.chunkSize = Math.max(1, chunkSize);
+		this.headerNames = new String[headerCount];
+		this.headerValues = new String[headerCount];
+		for (int i = 0; i < headerCount; i++) {
+			this.headerNames[i] = "X-Response-" + i;
+			this.headerValues[i] = "value-" + i;
+		}
+	}
+
+	@Override
+	public final void doFilter(final ServletRequest request, final ServletResponse response) throws IOException {
+		final HttpServletResponse http = (HttpServletResponse) response;
+		http.setStatus(HttpServletResponse.SC_OK);
+		http.setContentType("application/json");
+		for (int i = 0; i < this.headerNames.length; i++)
+			http.setHeader(this.headerNames[i], this.headerValues[i]);
+
+		final byte[] payload = this.payload;
+		for (int off = 0; off < payload.length; off += this.chunkSize)
+			http.getOutputStream().write(payload, off, Math.min(this.chunkSize, payload.length - off));
+	}
+
+	/**
+	 * @return <code>length</code> bytes of printable, moderately compressible
+	 *         text.
+	 */
+	public static final byte[] payload(final int length) {
+		final byte[] payload = new byte[length];
+		final Random random = new Random(length);
+		for (int i = 0; i < length; i++)
+			payload[i] = (byte) ('a' + random.nextInt(16));
+		return payload;
+	}
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import de.devsurf.jaxrs.commons.HeaderStore;
+import de.devsurf.jaxrs.commons.ReadableHttpResponseWrapper;
+
+/**
+ * Measures the header capture and body metering of
+ * {@link ReadableHttpResponseWrapper}: a resource sets a number of headers
+ * and writes its payload, afterwards every captured header is read back.
+ *
+ * @author Daniel Manzke
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ResponseWrapperBenchmark {
+
+	@Param({ "4", "16", "64" })
+	public int headerCount;
+
+	@Param({ "0", "4096", "65536" })
+	public int payloadSize;
+
+	/**
+	 * The body preview limit, -1 disables the body tap.
+	 */
+	@Param({ "-1", "256" })
+	public int bodyPreview;
+
+	private final StubRequest request = new StubRequest("GET", "/items/1", null);
+
+	private final StubResponse response = new StubResponse();
+
+	private PayloadChain chain;
+
+	@Setup
+	public void setUp() {
+		this.chain = new PayloadChain(PayloadChain.payload(this.payloadSize), this.headerCount, 8192);
+	}
+
+	@Benchmark
+	public void captureHeaders(final Blackhole blackhole) throws IOException {
+		this.response.recycle();
+		final ReadableHttpResponseWrapper wrapper = new ReadableHttpResponseWrapper(this.response);
+		this.capture(wrapper, blackhole);
+	}
+
+	/**
+	 * Like {@link #captureHeaders(Blackhole)}, but reuses one wrapper.
+	 */
+	@Benchmark
+	public void captureHeadersRecycled(final WrapperHolder holder, final Blackhole blackhole) throws IOException {
+		this.response.recycle();
+		holder.wrapper.recycle(this.response);
+		this.capture(holder.wrapper, blackhole);
+	}
+
+	private final void capture(final ReadableHttpResponseWrapper wrapper, final Blackhole blackhole) throws IOException {
+		if (this.bodyPreview >= 0)
+			wrapper.enableBodyTap(this.bodyPreview);
+
+		this.chain.doFilter(this.request, wrapper);
+		wrapper.finishBody();
+
+		final HeaderStore headers = wrapper.getHeaderStore();
+		for (final String name : wrapper.getHeaderNames())
+			blackhole.consume(headers.getFirst(name));
+
+		blackhole.consume(wrapper.getStatusCode());
+		blackhole.consume(wrapper.getBodyLength());
+		wrapper.releaseBody();
+	}
+
+	@State(Scope.Thread)
+	public static class WrapperHolder {
+
+		final ReadableHttpResponseWrapper wrapper = new ReadableHttpResponseWrapper(new StubResponse());
+	}
+}
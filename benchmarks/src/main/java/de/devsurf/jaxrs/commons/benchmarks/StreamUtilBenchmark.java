@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.devsurf.jaxrs.commons.streams.NullOutputStream;
+import de.devsurf.jaxrs.commons.streams.StreamUtil;
+
+/**
+ * Measures {@link StreamUtil#copyInToOut(InputStream, java.io.OutputStream, int, boolean)}
+ * from a heap stream and from a file, for several payload and buffer sizes.
+ *
+ * @author Daniel Manzke
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class StreamUtilBenchmark {
+
+	@Param({ "1024", "65536", "1048576" })
+	public int payloadSize;
+
+	@Param({ "4096", "65536" })
+	public int bufferSize;
+
+	private byte[] payload;
+
+	private File file;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		this.payload = PayloadChain.payload(this.payloadSize);
+
+		this.file = File.createTempFile("benchmark", ".bin");
+		this.file.deleteOnExit();
+		final FileOutputStream out = new FileOutputStream(this.file);
+		try {
+			out.write(this.payload);
+		} finally {
+			out.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		this.file.delete();
+	}
+
+	@Benchmark
+	public long copyFromHeap() throws IOException {
+		final NullOutputStream out = new NullOutputStream();
+		StreamUtil.copyInToOut(new ByteArrayInputStream(this.payload), out, this.bufferSize, false);
+		return out.getLength();
+	}
+
+	@Benchmark
+	public long copyFromFile() throws IOException {
+		final NullOutputStream out = new NullOutputStream();
+		StreamUtil.copyInToOut(new FileInputStream(this.file), out, this.bufferSize, true);
+		return out.getLength();
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+
+/**
+ * A {@link FilterConfig} with init parameters from a map. Its
+ * {@link ServletContext} only keeps attributes and swallows log messages.
+ *
+ * @author Daniel Manzke
+ */
+public final class StubFilterConfig implements FilterConfig {
+
+	private final Map<String, String> parameters = new HashMap<String, String>();
+
+	private final ServletContext context;
+
+	public StubFilterConfig() {
+		final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+		this.context = (ServletContext) Proxy.newProxyInstance(ServletContext.class.getClassLoader(), new Class<?>[] { ServletContext.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(final Object proxy, final Method method, final Object[] args) {
+						final String name = method.getName();
+						if ("getAttribute".equals(name))
+							return attributes.get(args[0]);
+						if ("setAttribute".equals(name)) {
+							if (args[1] == null)
+								attributes.remove(args[0]);
+							else
+								attributes.put((String) args[0], args[1]);
+							return null;
+						}
+						if ("removeAttribute".equals(name)) {
+							attributes.remove(args[0]);
+							return null;
+						}
+						if ("log".equals(name))
+							return null;
+						throw new UnsupportedOperationException("ServletContext." + name);
+					}
+				});
+	}
+
+	public final StubFilterConfig with(final String name, final Object value) {
+		this.parameters.put(name, String.valueOf(value));
+		return this;
+	}
+
+	@Override
+	public final String getFilterName() {
+		return "benchmark";
+	}
+
+	@Override
+	public final ServletContext getServletContext() {
+		return this.context;
+	}
+
+	@Override
+	public final String getInitParameter(final String name) {
+		return this.parameters.get(name);
+	}
+
+	@Override
+	public final Enumeration<String> getInitParameterNames() {
+		return Collections.enumeration(this.parameters.keySet());
+	}
+}
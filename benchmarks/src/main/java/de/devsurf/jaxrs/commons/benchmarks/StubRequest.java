@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * A cheap {@link HttpServletRequest} for benchmarks.
+ * <p>
+ * Everything a filter usually touches is answered by plain fields, so the
+ * measurements are not dominated by the stand-in. Any other method throws an
+ * {@link UnsupportedOperationException}, which makes it obvious when a
+ * benchmarked class starts to depend on more of the request.
+ *
+ * @author Daniel Manzke
+ */
+public final class StubRequest extends HttpServletRequestWrapper {
+
+	private final String method;
+
+	private final String pathInfo;
+
+	private final String queryString;
+
+	private final List<String> headerNames = new ArrayList<String>();
+
+	private final Map<String, String> headers = new HashMap<String, String>();
+
+	private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+	private byte[] body = new byte[0];
+
+	public StubRequest(final String method, final String pathInfo, final String queryString) {
+		super(unsupported(HttpServletRequest.class));
+		this.method = method;
+		this.pathInfo = pathInfo;
+		this.queryString = queryString;
+	}
+
+	/**
+	 * Adds <code>count</code> headers named <code>X-Header-0</code> and so on.
+	 */
+	public final StubRequest withHeaders(final int count) {
+		for (int i = 0; i < count; i++)
+			this.withHeader("X-Header-" + i, "value-" + i);
+		return this;
+	}
+
+	public final StubRequest withHeader(final String name, final String value) {
+		if (this.headers.put(name.toLowerCase(), value) == null)
+			this.headerNames.add(name);
+		return this;
+	}
+
+	public final StubRequest withBody(final byte[] body) {
+		this.body = body;
+		return this;
+	}
+
+	@Override
+	public final String getMethod() {
+		return this.method;
+	}
+
+	@Override
+	public final String getPathInfo() {
+		return this.pathInfo;
+	}
+
+	@Override
+	public final String getServletPath() {
+		return "";
+	}
+
+	@Override
+	public final String getContextPath() {
+		return "";
+	}
+
+	@Override
+	public final String getRequestURI() {
+		return this.pathInfo;
+	}
+
+	@Override
+	public final String getQueryString() {
+		return this.queryString;
+	}
+
+	@Override
+	public final String getRemoteAddr() {
+		return "127.0.0.1";
+	}
+
+	@Override
+	public final String getRemoteUser() {
+		return null;
+	}
+
+	@Override
+	public final String getHeader(final String name) {
+		return this.headers.get(name.toLowerCase());
+	}
+
+	@Override
+	public final Enumeration<String> getHeaders(final String name) {
+		final String value = this.getHeader(name);
+		return value == null ? Collections.enumeration(Collections.<String> emptyList()) : Collections.enumeration(Collections
+				.singletonList(value));
+	}
+
+	@Override
+	public final Enumeration<String> getHeaderNames() {
+		return Collections.enumeration(this.headerNames);
+	}
+
+	@Override
+	public final Object getAttribute(final String name) {
+		return this.attributes.get(name);
+	}
+
+	@Override
+	public final void setAttribute(final String name, final Object value) {
+		this.attributes.put(name, value);
+	}
+
+	@Override
+	public final void removeAttribute(final String name) {
+		this.attributes.remove(name);
+	}
+
+	@Override
+	public final String getCharacterEncoding() {
+		return "UTF-8";
+	}
+
+	@Override
+	public final int getContentLength() {
+		return this.body.length;
+	}
+
+	@Override
+	public final ServletInputStream getInputStream() {
+		final ByteArrayInputStream in = new ByteArrayInputStream(this.body);
+		return new ServletInputStream() {
+			@Override
+			public int read() {
+				return in.read();
+			}
+
+			@Override
+			public int read(final byte[] b, final int off, final int len) {
+				return in.read(b, off, len);
+			}
+
+			@Override
+			public boolean isFinished() {
+				return in.available() == 0;
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setReadListener(final ReadListener listener) {
+				throw new UnsupportedOperationException("setReadListener");
+			}
+		};
+	}
+
+	@Override
+	public final boolean isAsyncStarted() {
+		return false;
+	}
+
+	@Override
+	public final boolean isAsyncSupported() {
+		return false;
+	}
+
+	/**
+	 * @return An implementation of <code>type</code> whose methods all throw
+	 *         an {@link UnsupportedOperationException}.
+	 */
+	static final <T> T unsupported(final Class<T> type) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName());
+			}
+		}));
+	}
+}
@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import de.devsurf.jaxrs.commons.FilterServletStream;
+import de.devsurf.jaxrs.commons.streams.NullOutputStream;
+
+/**
+ * A cheap {@link HttpServletResponse} for benchmarks which discards headers
+ * and body, only counting them.
+ * <p>
+ * Call {@link #recycle()} between invocations so one instance can be reused
+ * without allocating.
+ *
+ * @author Daniel Manzke
+ */
+public final class StubResponse extends HttpServletResponseWrapper {
+
+	private final NullOutputStream body = new NullOutputStream();
+
+	private final ServletOutputStream stream = new FilterServletStream(this.body);
+
+	private final PrintWriter writer;
+
+	private int status = SC_OK;
+
+	private int headerCount;
+
+	private String contentType;
+
+	public StubResponse() {
+		super(StubRequest.unsupported(HttpServletResponse.class));
+		try {
+			this.writer = new PrintWriter(new OutputStreamWriter(this.body, "UTF-8"));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public final void recycle() {
+		this.status = SC_OK;
+		this.headerCount = 0;
+		this.contentType = null;
+	}
+
+	/**
+	 * @return The number of bytes written since the stub was created.
+	 */
+	public final long getBodyLength() {
+		this.writer.flush();
+		return this.body.getLength();
+	}
+
+	public final int getHeaderCount() {
+		return this.headerCount;
+	}
+
+	public final int getStatus() {
+		return this.status;
+	}
+
+	@Override
+	public final ServletOutputStream getOutputStream() {
+		return this.stream;
+	}
+
+	@Override
+	public final PrintWriter getWriter() {
+		return this.writer;
+	}
+
+	@Override
+	public final String getCharacterEncoding() {
+		return "UTF-8";
+	}
+
+	@Override
+	public final void setCharacterEncoding(final String charset) {
+		// always UTF-8
+	}
+
+	@Override
+	public final String getContentType() {
+		return this.contentType;
+	}
+
+	@Override
+	public final void setContentType(final String type) {
+		this.contentType = type;
+	}
+
+	@Override
+	public final void setContentLength(final int len) {
+		this.headerCount++;
+	}
+
+	@Override
+	public final void setContentLengthLong(final long len) {
+		this.headerCount++;
+	}
+
+	@Override
+	public final Locale getLocale() {
+		return Locale.ROOT;
+	}
+
+	@Override
+	public final boolean isCommitted() {
+		return false;
+	}
+
+	@Override
+	public final void flushBuffer() {
+		this.writer.flush();
+	}
+
+	@Override
+	public final void resetBuffer() {
+		// nothing buffered
+	}
+
+	@Override
+	public final void reset() {
+		this.recycle();
+	}
+
+	@Override
+	public final boolean containsHeader(final String name) {
+		return false;
+	}
+
+	@Override
+	public final void setHeader(final String name, final String value) {
+		this.headerCount++;
+	}
+
+	@Override
+	public final void addHeader(final String name, final String value) {
+		this.headerCount++;
+	}
+
+	@Override
+	public final void setIntHeader(final String name, final int value) {
+		this.headerCount++;
+	}
+
+	@Override
+	public final void addIntHeader(final String name, final int value) {
+		this.headerCount++;
+	}
+
+	@Override
+	public final void setDateHeader(final String name, final long date) {
+		this.headerCount++;
+	}
+
+	@Override
+	public final void addDateHeader(final String name, final long date) {
+		this.headerCount++;
+	}
+
+	@Override
+	public final void setStatus(final int sc) {
+		this.status = sc;
+	}
+
+	@Override
+	@SuppressWarnings("deprecation")
+	public final void setStatus(final int sc, final String sm) {
+		this.status = sc;
+	}
+
+	@Override
+	public final void sendError(final int sc) {
+		this.status = sc;
+	}
+
+	@Override
+	public final void sendError(final int sc, final String msg) {
+		this.status = sc;
+	}
+
+	@Override
+	public final String encodeURL(final String url) {
+		return url;
+	}
+
+	@Override
+	public final String encodeRedirectURL(final String url) {
+		return url;
+	}
+}
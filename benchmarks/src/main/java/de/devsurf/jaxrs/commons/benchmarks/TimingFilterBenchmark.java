@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.devsurf.jaxrs.commons.filter.TimingFilter;
+
+/**
+ * Measures the overhead of {@link TimingFilter} recording into its latency
+ * histograms, spread over a number of distinct routes, with one and with
+ * several threads recording concurrently.
+ *
+ * @author Daniel Manzke
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TimingFilterBenchmark {
+
+	private static final FilterChain EMPTY_CHAIN = new FilterChain() {
+		@Override
+		public void doFilter(final ServletRequest request, final ServletResponse response) {
+			// the resource does nothing
+		}
+	};
+
+	@Param({ "1", "64", "1024" })
+	public int routes;
+
+	private TimingFilter filter;
+
+	private StubRequest[] requests;
+
+	@Setup
+	public void setUp() throws ServletException {
+		this.filter = new TimingFilter();
+		this.filter.init(new StubFilterConfig().with(TimingFilter.PARAM_PRINT, false).with(TimingFilter.PARAM_MAX_ROUTES,
+				Math.max(TimingFilter.DEFAULT_MAX_ROUTES, this.routes)));
+
+		this.requests = new StubRequest[this.routes];
+		for (int i = 0; i < this.routes; i++)
+			this.requests[i] = new StubRequest("GET", "/resource" + i, null);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.filter.destroy();
+	}
+
+	@Benchmark
+	public void record(final Exchange exchange) throws IOException, ServletException {
+		this.filter.doFilter(exchange.next(this.requests), exchange.response, EMPTY_CHAIN);
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void recordContended(final Exchange exchange) throws IOException, ServletException {
+		this.filter.doFilter(exchange.next(this.requests), exchange.response, EMPTY_CHAIN);
+	}
+
+	@State(Scope.Thread)
+	public static class Exchange {
+
+		final StubResponse response = new StubResponse();
+
+		private int index;
+
+		final StubRequest next(final StubRequest[] requests) {
+			final int index = this.index;
+			this.index = index + 1 == requests.length ? 0 : index + 1;
+			return requests[index];
+		}
+	}
+}
@@ -0,0 +1,534 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import de.devsurf.jaxrs.commons.streams.BufferPool;
+import de.devsurf.jaxrs.commons.streams.StreamUtil;
+
+/**
+ * Collects small writes in a pooled buffer and pushes them to another
+ * {@link ServletOutputStream} as one write when the {@link FlushPolicy} says
+ * so. The buffer is only borrowed while it holds data, an idle stream (e.g.
+ * of a feed waiting for the next event) keeps none.
+ * <p>
+ * Blocking writers are held up by the client once the buffer is full, like
+ * with any other stream. Writers using the non-blocking API (a
+ * {@link WriteListener}) are suspended instead: {@link #isReady()} turns
+ * <code>false</code> while the buffer is full or the client is not taking
+ * data, and the listener is called again once it is, so a slow client costs
+ * neither a thread nor more than one buffer.
+ * <p>
+ * Time based pushes are timed by the given scheduler, which never waits for a
+ * writer or a client. For non-blocking writers it pushes itself, as far as
+ * the client is ready. A blocking push is handed to the pusher instead, at
+ * most one per stream, so a slow client holds a pusher thread but never
+ * delays the pushes of other streams. If the pusher is busy, the push is
+ * tried again after the delay; without a pusher it is left to the next write
+ * or the end of the response. Once the scheduler is shut down, a push that
+ * would have been delayed runs right away on the writing thread.
+ *
+ * @author Daniel Manzke
+ */
+public class BufferedServletStream extends ServletOutputStream {
+
+	private final ServletOutputStream target;
+
+	private final int bufferSize;
+
+	private final FlushPolicy policy;
+
+	private final ScheduledExecutorService scheduler;
+
+	private final Executor pusher;
+
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final Runnable timedPush = new Runnable() {
+		@Override
+		public void run() {
+			BufferedServletStream.this.timedPush();
+		}
+	};
+
+	private final Runnable blockingPush = new Runnable() {
+		@Override
+		public void run() {
+			BufferedServletStream.this.blockingPush();
+		}
+	};
+
+	private byte[] buffer;
+
+	private int buffered;
+
+	private long bufferedSince;
+
+	private ScheduledFuture<?> timer;
+
+	private WriteListener listener;
+
+	private boolean suspended;
+
+	private boolean pushPending;
+
+	private boolean closed;
+
+	private boolean closePending;
+
+	private IOException failure;
+
+	/**
+	 * @param bufferSize
+	 *            The most bytes held back, larger writes go straight through.
+	 * @param scheduler
+	 *            Times the pushes of a {@link FlushPolicy} with a delay, may be
+	 *            <code>null</code> if it has none.
+	 */
+	public BufferedServletStream(final ServletOutputStream target, final int bufferSize, final FlushPolicy policy,
+			final ScheduledExecutorService scheduler) {
+		this(target, bufferSize, policy, scheduler, null);
+	}
+
+	/**
+	 * @param bufferSize
+	 *            The most bytes held back, larger writes go straight through.
+	 * @param scheduler
+	 *            Times the pushes of a {@link FlushPolicy} with a delay, may be
+	 *            <code>null</code> if it has none.
+	 * @param pusher
+	 *            Runs delayed pushes to blocking writers, may be
+	 *            <code>null</code> to leave them to the writer.
+	 */
+	public BufferedServletStream(final ServletOutputStream target, final int bufferSize, final FlushPolicy policy,
+			final ScheduledExecutorService scheduler, final Executor pusher) {
+		if (policy.getDelay() > 0 && scheduler == null)
+			throw new IllegalArgumentException("A delayed flush policy needs a scheduler");
+
+		this.target = target;
+		this.bufferSize = Math.max(1, bufferSize);
+		this.policy = policy;
+		this.scheduler = scheduler;
+		this.pusher = pusher;
+	}
+
+	@Override
+	public boolean isReady() {
+		this.lock.lock();
+		try {
+			if (this.listener == null)
+				return true;
+
+			if (this.failure == null && !this.pushPending && this.buffered < this.bufferSize && this.target.isReady())
+				return true;
+
+			this.suspended = true;
+			return false;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public void setWriteListener(final WriteListener listener) {
+		this.lock.lock();
+		try {
+			if (this.listener != null)
+				throw new IllegalStateException("A WriteListener has already been set");
+
+			this.listener = listener;
+			// the container calls onWritePossible() once it is ready
+			this.suspended = true;
+		} finally {
+			this.lock.unlock();
+		}
+
+		this.target.setWriteListener(new WriteListener() {
+			@Override
+			public void onWritePossible() throws IOException {
+				BufferedServletStream.this.onWritePossible();
+			}
+
+			@Override
+			public void onError(final Throwable t) {
+				BufferedServletStream.this.onError(t);
+			}
+		});
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		this.lock.lock();
+		try {
+			this.ensureOpen();
+			if (this.buffered >= this.bufferSize)
+				this.makeRoom();
+
+			this.buffer()[this.buffered++] = (byte) b;
+			this.written();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		this.lock.lock();
+		try {
+			this.ensureOpen();
+			if (len > this.bufferSize - this.buffered)
+				this.makeRoom();
+
+			if (len >= this.bufferSize) {
+				if (this.listener == null || this.target.isReady())
+					this.target.write(b, off, len);
+				else
+					this.park(b, off, len);
+				return;
+			}
+
+			System.arraycopy(b, off, this.buffer(), this.buffered, len);
+			this.buffered += len;
+			this.written();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Pushes if the {@link FlushPolicy} honors explicit flushes, otherwise
+	 * does nothing.
+	 */
+	@Override
+	public void flush() throws IOException {
+		this.lock.lock();
+		try {
+			this.ensureOpen();
+			if (this.policy.isExplicit())
+				this.push();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Pushes everything buffered, whatever the {@link FlushPolicy} says, e.g.
+	 * at the end of a response. Does nothing once the stream is closed.
+	 */
+	public void push() throws IOException {
+		this.lock.lock();
+		try {
+			if (this.closed && this.failure == null)
+				return;
+			this.ensureOpen();
+			this.cancelTimer();
+			this.pushPending = false;
+			if (this.listener == null || this.target.isReady()) {
+				try {
+					this.drain();
+					if (this.listener == null || this.target.isReady()) {
+						this.target.flush();
+						return;
+					}
+				} catch (IOException e) {
+					throw this.fail(e);
+				}
+			}
+			// the container calls onWritePossible() once the client caught up
+			this.pushPending = true;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Drops everything buffered, e.g. when the response is reset.
+	 */
+	public void discard() {
+		this.lock.lock();
+		try {
+			this.cancelTimer();
+			this.pushPending = false;
+			this.release();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.lock.lock();
+		try {
+			if (this.closed)
+				return;
+			this.closed = true;
+			this.cancelTimer();
+
+			if (this.failure != null) {
+				this.release();
+				this.target.close();
+				return;
+			}
+
+			if (this.listener != null && !this.target.isReady()) {
+				this.closePending = true;
+				return;
+			}
+			this.drain();
+			this.target.close();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of bytes waiting to be pushed.
+	 */
+	public int getBuffered() {
+		this.lock.lock();
+		try {
+			return this.buffered;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private final byte[] buffer() {
+		if (this.buffer == null)
+			this.buffer = StreamUtil.getBufferPool().acquireBytes(this.bufferSize);
+		if (this.buffered == 0)
+			this.bufferedSince = System.nanoTime();
+		return this.buffer;
+	}
+
+	/**
+	 * Writes the buffer to the target and gives it back to the pool.
+	 */
+	private final void drain() throws IOException {
+		if (this.buffered > 0)
+			this.target.write(this.buffer, 0, this.buffered);
+		this.release();
+	}
+
+	private final void release() {
+		if (this.buffer != null) {
+			final BufferPool pool = StreamUtil.getBufferPool();
+			pool.releaseBytes(this.buffer);
+			this.buffer = null;
+		}
+		this.buffered = 0;
+	}
+
+	/**
+	 * Empties a buffer which cannot take the next write.
+	 */
+	private final void makeRoom() throws IOException {
+		if (this.buffered == 0)
+			return;
+
+		if (this.listener != null && (this.pushPending || !this.target.isReady()))
+			throw new IllegalStateException("isReady() returned false");
+
+		try {
+			this.drain();
+		} catch (IOException e) {
+			throw this.fail(e);
+		}
+	}
+
+	/**
+	 * Holds a large write the container is not ready for, emptying the
+	 * buffer made it busy. The producer stays suspended until the bytes are
+	 * pushed by {@link #onWritePossible()}.
+	 */
+	private final void park(final byte[] b, final int off, final int len) {
+		// the buffer was drained by makeRoom(), so it holds nothing else
+		this.release();
+		this.buffer = StreamUtil.getBufferPool().acquireBytes(len);
+		System.arraycopy(b, off, this.buffer, 0, len);
+		this.buffered = len;
+		this.bufferedSince = System.nanoTime();
+		this.cancelTimer();
+		this.pushPending = true;
+	}
+
+	private final void written() throws IOException {
+		if (this.policy.isDue(this.buffered, System.nanoTime() - this.bufferedSince)) {
+			this.push();
+		} else if (this.timer == null && this.policy.getDelay() > 0) {
+			this.timer = this.schedule();
+			// the scheduler is shut down, e.g. by BufferingFilter.destroy()
+			if (this.timer == null)
+				this.push();
+		}
+	}
+
+	/**
+	 * @return <code>null</code> if the scheduler does not take tasks anymore.
+	 */
+	private final ScheduledFuture<?> schedule() {
+		try {
+			return this.scheduler.schedule(this.timedPush, this.policy.getDelay(), TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			return null;
+		}
+	}
+
+	private final void cancelTimer() {
+		if (this.timer != null) {
+			this.timer.cancel(false);
+			this.timer = null;
+		}
+	}
+
+	/**
+	 * Runs on the scheduler: pushes to a non-blocking writer, hands the push
+	 * to a blocking one over to the pusher.
+	 */
+	private final void timedPush() {
+		if (!this.lock.tryLock()) {
+			// a writer holds the lock, try again rather than wait for it; without
+			// a scheduler the rest is pushed at the end of the response
+			this.schedule();
+			return;
+		}
+
+		boolean blocking = false;
+		WriteListener listener = null;
+		IOException failure = null;
+		try {
+			if (this.closed || this.failure != null || this.buffered == 0) {
+				this.timer = null;
+				return;
+			}
+			if (this.listener == null) {
+				// the timer stays set until the pusher ran, so no second push is queued
+				blocking = this.pusher != null;
+				if (!blocking)
+					this.timer = null;
+			} else {
+				this.timer = null;
+				this.push();
+			}
+		} catch (IOException e) {
+			listener = this.listener;
+			failure = e;
+		} finally {
+			this.lock.unlock();
+		}
+
+		if (listener != null)
+			listener.onError(failure);
+		if (blocking) {
+			try {
+				this.pusher.execute(this.blockingPush);
+			} catch (RejectedExecutionException e) {
+				// all pushers are busy or shut down, try again later
+				this.schedule();
+			}
+		}
+	}
+
+	/**
+	 * Runs on the pusher, may wait for the writer and the client.
+	 */
+	private final void blockingPush() {
+		this.lock.lock();
+		try {
+			this.timer = null;
+			if (this.closed || this.failure != null || this.buffered == 0)
+				return;
+			this.push();
+		} catch (IOException e) {
+			// recorded by push(), the writer gets it with its next call
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	private final void onWritePossible() throws IOException {
+		boolean resume = false;
+		this.lock.lock();
+		try {
+			if (this.closePending) {
+				this.closePending = false;
+				this.drain();
+				this.target.close();
+				return;
+			}
+
+			if (this.pushPending && this.target.isReady()) {
+				this.pushPending = false;
+				this.drain();
+				if (this.target.isReady())
+					this.target.flush();
+				else
+					this.pushPending = true;
+			}
+
+			if (this.suspended && !this.closed && !this.pushPending && this.buffered < this.bufferSize
+					&& this.target.isReady()) {
+				this.suspended = false;
+				resume = true;
+			}
+		} catch (IOException e) {
+			throw this.fail(e);
+		} finally {
+			this.lock.unlock();
+		}
+
+		// outside the lock, the listener writes through this stream
+		if (resume)
+			this.listener.onWritePossible();
+	}
+
+	private final void onError(final Throwable t) {
+		WriteListener listener;
+		this.lock.lock();
+		try {
+			this.fail(t instanceof IOException ? (IOException) t : new IOException(t));
+			listener = this.listener;
+		} finally {
+			this.lock.unlock();
+		}
+		listener.onError(t);
+	}
+
+	private final IOException fail(final IOException e) {
+		if (this.failure == null)
+			this.failure = e;
+		this.cancelTimer();
+		this.release();
+		return e;
+	}
+
+	private final void ensureOpen() throws IOException {
+		if (this.failure != null)
+			throw new IOException("The stream failed before", this.failure);
+		if (this.closed)
+			throw new IOException("The stream is closed");
+	}
+}
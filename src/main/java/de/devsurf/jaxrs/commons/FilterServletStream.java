@@ -19,8 +19,15 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 
 /**
+ * Passes everything to another stream.
+ * <p>
+ * If that is a {@link ServletOutputStream}, non-blocking writes are delegated
+ * to it. Otherwise writes always block, so the stream is always ready and a
+ * {@link WriteListener} is told so at once.
+ * 
  * @author Daniel Manzke
  *
  */
@@ -31,6 +38,23 @@ public class FilterServletStream extends ServletOutputStream {
 		stream = output;
 	}
 
+	public boolean isReady() {
+		return !(stream instanceof ServletOutputStream) || ((ServletOutputStream) stream).isReady();
+	}
+
+	public void setWriteListener(WriteListener listener) {
+		if (stream instanceof ServletOutputStream) {
+			((ServletOutputStream) stream).setWriteListener(listener);
+			return;
+		}
+
+		try {
+			listener.onWritePossible();
+		} catch (IOException e) {
+			listener.onError(e);
+		}
+	}
+
 	public void write(int b) throws IOException {
 		stream.write(b);
 	}
@@ -42,4 +66,12 @@ public class FilterServletStream extends ServletOutputStream {
 	public void write(byte[] b, int off, int len) throws IOException {
 		stream.write(b, off, len);
 	}
+
+	public void flush() throws IOException {
+		stream.flush();
+	}
+
+	public void close() throws IOException {
+		stream.close();
+	}
 }
@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a {@link BufferedServletStream} pushes what it collected to
+ * the client: once enough bytes are buffered, once the oldest buffered byte
+ * waited long enough, when the application calls <code>flush()</code>, or
+ * any combination of these.
+ * <p>
+ * Ignoring explicit flushes lets many small <code>write(); flush();</code>
+ * sequences, e.g. the events of a feed, share one packet.
+ *
+ * @author Daniel Manzke
+ */
+public final class FlushPolicy {
+
+	/**
+	 * Pushes only on <code>flush()</code>, when the buffer is full and at the
+	 * end of the response.
+	 */
+	public static final FlushPolicy EXPLICIT = new FlushPolicy(0, 0, TimeUnit.NANOSECONDS, true);
+
+	private final int size;
+
+	private final long delay;
+
+	private final boolean explicit;
+
+	/**
+	 * @param size
+	 *            The number of buffered bytes which triggers a push, 0 for
+	 *            none.
+	 * @param delay
+	 *            How long the oldest byte may be held back, 0 for no limit.
+	 * @param explicit
+	 *            Whether <code>flush()</code> pushes.
+	 */
+	public FlushPolicy(final int size, final long delay, final TimeUnit unit, final boolean explicit) {
+		if (size < 0 || delay < 0)
+			throw new IllegalArgumentException("Invalid size or delay: " + size + ", " + delay);
+
+		this.size = size;
+		this.delay = unit.toNanos(delay);
+		this.explicit = explicit;
+	}
+
+	/**
+	 * @return A policy pushing every <code>size</code> bytes, ignoring
+	 *         <code>flush()</code>.
+	 */
+	public static FlushPolicy size(final int size) {
+		return new FlushPolicy(size, 0, TimeUnit.NANOSECONDS, false);
+	}
+
+	/**
+	 * @return A policy pushing at most <code>delay</code> after a byte was
+	 *         written, ignoring <code>flush()</code>.
+	 */
+	public static FlushPolicy time(final long delay, final TimeUnit unit) {
+		return new FlushPolicy(0, delay, unit, false);
+	}
+
+	public final int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return The delay in nanoseconds, 0 for none.
+	 */
+	public final long getDelay() {
+		return this.delay;
+	}
+
+	public final boolean isExplicit() {
+		return this.explicit;
+	}
+
+	/**
+	 * @param age
+	 *            Nanoseconds since the oldest buffered byte was written.
+	 */
+	final boolean isDue(final int buffered, final long age) {
+		return (this.size > 0 && buffered >= this.size) || (this.delay > 0 && age >= this.delay);
+	}
+
+	@Override
+	public String toString() {
+		return "FlushPolicy[size=" + this.size + ", delay=" + this.delay + "ns, explicit=" + this.explicit + "]";
+	}
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A compact, case-insensitive list of HTTP headers.
+ * <p>
+ * Names and values are kept in flat arrays in the order they were added. Int
+ * and date values are stored as primitives and only turned into strings when
+ * they are read, so capturing headers nobody looks at costs no more than a few
+ * array stores. The store is not thread-safe and can be {@link #clear()
+ * cleared} for reuse.
+ *
+ * @author Daniel Manzke
+ */
+public final class HeaderStore {
+
+	private static final byte STRING = 0;
+
+	private static final byte INT = 1;
+
+	private static final byte DATE = 2;
+
+	private String[] names;
+
+	private String[] values;
+
+	private long[] numbers;
+
+	private byte[] types;
+
+	private int size;
+
+	public HeaderStore() {
+		this(8);
+	}
+
+	public HeaderStore(final int capacity) {
+		final int slots = Math.max(1, capacity);
+
+		this.names = new String[slots];
+		this.values = new String[slots];
+		this.numbers = new long[slots];
+		this.types = new byte[slots];
+	}
+
+	public final void add(final String name, final String value) {
+		this.values[this.slot(name, STRING)] = value;
+	}
+
+	public final void addInt(final String name, final int value) {
+		this.numbers[this.slot(name, INT)] = value;
+	}
+
+	public final void addDate(final String name, final long date) {
+		this.numbers[this.slot(name, DATE)] = date;
+	}
+
+	public final void set(final String name, final String value) {
+		this.remove(name);
+		this.add(name, value);
+	}
+
+	public final void setInt(final String name, final int value) {
+		this.remove(name);
+		this.addInt(name, value);
+	}
+
+	public final void setDate(final String name, final long date) {
+		this.remove(name);
+		this.addDate(name, date);
+	}
+
+	/**
+	 * Removes every value of the header.
+	 */
+	public final void remove(final String name) {
+		int target = 0;
+		for (int i = 0; i < this.size; i++) {
+			if (matches(this.names[i], name))
+				continue;
+
+			if (target != i) {
+				this.names[target] = this.names[i];
+				this.values[target] = this.values[i];
+				this.numbers[target] = this.numbers[i];
+				this.types[target] = this.types[i];
+			}
+			target++;
+		}
+
+		for (int i = target; i < this.size; i++) {
+			this.names[i] = null;
+			this.values[i] = null;
+		}
+		this.size = target;
+	}
+
+	public final boolean contains(final String name) {
+		return this.indexOf(name) >= 0;
+	}
+
+	/**
+	 * @return The number of name/value slots.
+	 */
+	public final int size() {
+		return this.size;
+	}
+
+	public final String getName(final int index) {
+		return this.names[index];
+	}
+
+	public final String getValue(final int index) {
+		String value = this.values[index];
+		if (value == null && this.types[index] != STRING) {
+			value = this.types[index] == INT ? Integer.toString((int) this.numbers[index]) : new Date(this.numbers[index]).toString();
+			this.values[index] = value;
+		}
+		return value;
+	}
+
+	/**
+	 * @return <code>true</code> if the header at the index was added as date.
+	 */
+	public final boolean isDate(final int index) {
+		return this.types[index] == DATE;
+	}
+
+	/**
+	 * @return The date at the index in milliseconds since the epoch, only
+	 *         meaningful if {@link #isDate(int)}.
+	 */
+	public final long getDate(final int index) {
+		return this.numbers[index];
+	}
+
+	/**
+	 * @return The first value of the header or <code>null</code>.
+	 */
+	public final String getFirst(final String name) {
+		final int index = this.indexOf(name);
+		return index < 0 ? null : this.getValue(index);
+	}
+
+	/**
+	 * @return The first value of the header as int, parsing it if it was not
+	 *         added as int, or <code>defaultValue</code>.
+	 */
+	public final int getInt(final String name, final int defaultValue) {
+		final int index = this.indexOf(name);
+		if (index < 0)
+			return defaultValue;
+		if (this.types[index] != STRING)
+			return (int) this.numbers[index];
+
+		try {
+			return Integer.parseInt(this.values[index].trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @return The first value of the header in milliseconds since the epoch
+	 *         if it was added as date, otherwise <code>defaultValue</code>.
+	 */
+	public final long getDate(final String name, final long defaultValue) {
+		final int index = this.indexOf(name);
+		return index >= 0 && this.types[index] == DATE ? this.numbers[index] : defaultValue;
+	}
+
+	/**
+	 * @return All values of the header or <code>null</code> if it is not
+	 *         present.
+	 */
+	public final List<String> get(final String name) {
+		List<String> values = null;
+		for (int i = 0; i < this.size; i++) {
+			if (matches(this.names[i], name)) {
+				if (values == null)
+					values = new ArrayList<String>(2);
+				values.add(this.getValue(i));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @return The distinct header names, spelled as they were first added.
+	 */
+	public final Collection<String> getNames() {
+		final List<String> names = new ArrayList<String>(this.size);
+		for (int i = 0; i < this.size; i++)
+			if (this.indexOf(this.names[i]) == i)
+				names.add(this.names[i]);
+		return names;
+	}
+
+	public final void clear() {
+		for (int i = 0; i < this.size; i++) {
+			this.names[i] = null;
+			this.values[i] = null;
+		}
+		this.size = 0;
+	}
+
+	private final int indexOf(final String name) {
+		for (int i = 0; i < this.size; i++)
+			if (matches(this.names[i], name))
+				return i;
+		return -1;
+	}
+
+	private final int slot(final String name, final byte type) {
+		if (this.size == this.names.length)
+			this.grow();
+
+		final int index = this.size++;
+		this.names[index] = name;
+		this.values[index] = null;
+		this.types[index] = type;
+		return index;
+	}
+
+	private final void grow() {
+		final int capacity = this.names.length << 1;
+
+		final String[] names = new String[capacity];
+		final String[] values = new String[capacity];
+		final long[] numbers = new long[capacity];
+		final byte[] types = new byte[capacity];
+
+		System.arraycopy(this.names, 0, names, 0, this.size);
+		System.arraycopy(this.values, 0, values, 0, this.size);
+		System.arraycopy(this.numbers, 0, numbers, 0, this.size);
+		System.arraycopy(this.types, 0, types, 0, this.size);
+
+		this.names = names;
+		this.values = values;
+		this.numbers = numbers;
+		this.types = types;
+	}
+
+	private static final boolean matches(final String name, final String other) {
+		return name == other || (name != null && name.equalsIgnoreCase(other));
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import de.devsurf.jaxrs.commons.streams.StreamUtil;
+
+/**
+ * A {@link FilterServletStream} which counts the bytes passing through and
+ * keeps a copy of the first few of them.
+ * <p>
+ * The preview buffer is borrowed from {@link StreamUtil#getBufferPool()} on
+ * the first write, grows with the preview up to the limit and is returned by
+ * {@link #release()}. Nothing beyond the preview is ever buffered.
+ *
+ * @author Daniel Manzke
+ */
+public class MeteringServletStream extends FilterServletStream {
+
+	private static final int INITIAL_PREVIEW_SIZE = 8192;
+
+	private int previewLimit;
+
+	private byte[] preview;
+
+	private int previewLength;
+
+	private long count;
+
+	/**
+	 * @param previewLimit
+	 *            The number of bytes to keep, 0 only counts.
+	 */
+	public MeteringServletStream(final OutputStream output, final int previewLimit) {
+		super(output);
+		this.previewLimit = Math.max(0, previewLimit);
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		super.write(b);
+		this.count++;
+
+		if (this.previewLength < this.previewLimit)
+			this.preview(this.previewLength + 1)[this.previewLength++] = (byte) b;
+	}
+
+	@Override
+	public void write(final byte[] b) throws IOException {
+		this.write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+		super.write(b, off, len);
+		this.count += len;
+
+		final int capture = Math.min(len, this.previewLimit - this.previewLength);
+		if (capture > 0) {
+			System.arraycopy(b, off, this.preview(this.previewLength + capture), this.previewLength, capture);
+			this.previewLength += capture;
+		}
+	}
+
+	/**
+	 * @return The number of bytes written.
+	 */
+	public final long getCount() {
+		return this.count;
+	}
+
+	/**
+	 * @return A copy of the first bytes written, at most the preview limit.
+	 */
+	public final byte[] getPreview() {
+		final byte[] copy = new byte[this.previewLength];
+		if (this.previewLength > 0)
+			System.arraycopy(this.preview, 0, copy, 0, this.previewLength);
+		return copy;
+	}
+
+	public final int getPreviewLength() {
+		return this.previewLength;
+	}
+
+	/**
+	 * Returns the preview buffer to the pool. The preview is gone afterwards,
+	 * bytes are still counted.
+	 */
+	public final void release() {
+		if (this.preview != null) {
+			StreamUtil.getBufferPool().releaseBytes(this.preview);
+			this.preview = null;
+		}
+		this.previewLimit = 0;
+		this.previewLength = 0;
+	}
+
+	private final byte[] preview(final int required) {
+		if (this.preview == null) {
+			this.preview = StreamUtil.getBufferPool().acquireBytes(
+					Math.min(this.previewLimit, Math.max(required, INITIAL_PREVIEW_SIZE)));
+		} else if (this.preview.length < required) {
+			final byte[] grown = StreamUtil.getBufferPool().acquireBytes(
+					Math.min(this.previewLimit, Math.max(required, this.preview.length << 1)));
+			System.arraycopy(this.preview, 0, grown, 0, this.previewLength);
+			StreamUtil.getBufferPool().releaseBytes(this.preview);
+			this.preview = grown;
+		}
+		return this.preview;
+	}
+}
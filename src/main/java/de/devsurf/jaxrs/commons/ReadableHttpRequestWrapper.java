@@ -0,0 +1,332 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+import de.devsurf.jaxrs.commons.streams.SpillBuffer;
+
+/**
+ * A {@link HttpServletRequestWrapper} whose body can be read more than once.
+ * <p>
+ * Every call of {@link #getInputStream()} or {@link #getReader()} starts at
+ * the beginning of the body. Bytes are pulled from the request only when a
+ * reader gets past what was read before, and are kept in a
+ * {@link SpillBuffer}: in memory up to the threshold, beyond it in a
+ * temporary file. So a filter can look at the body before or after the
+ * resource without the resource noticing, and large uploads never sit on the
+ * heap.
+ * <p>
+ * The container can no longer parse the parameters of a form POST
+ * (<code>application/x-www-form-urlencoded</code>) once the body was read
+ * through the wrapper, and the wrapper would see an empty body if the
+ * container parsed them first. So for forms the wrapper reads the body itself
+ * and answers the parameter methods from it, merged with those of the query
+ * and of a form the container did parse before. Parts of a
+ * <code>multipart/form-data</code> body are still left to the container.
+ * <p>
+ * The wrapper has to be {@link #release() released} when the request is
+ * done, which deletes the file.
+ *
+ * @author Daniel Manzke
+ */
+public class ReadableHttpRequestWrapper extends HttpServletRequestWrapper {
+
+	public static final int DEFAULT_THRESHOLD = 65536;
+
+	private final SpillBuffer body;
+
+	private ServletInputStream input;
+
+	private boolean ended;
+
+	private Map<String, String[]> parameters;
+
+	public ReadableHttpRequestWrapper(final HttpServletRequest request) {
+		this(request, DEFAULT_THRESHOLD, null);
+	}
+
+	/**
+	 * @param threshold
+	 *            The number of bytes to keep in memory.
+	 * @param directory
+	 *            Where to spill larger bodies, <code>null</code> for the
+	 *            default temporary directory.
+	 */
+	public ReadableHttpRequestWrapper(final HttpServletRequest request, final int threshold, final File directory) {
+		super(request);
+		this.body = new SpillBuffer(threshold, directory);
+	}
+
+	/**
+	 * @return A new stream positioned at the beginning of the body.
+	 */
+	@Override
+	public final ServletInputStream getInputStream() throws IOException {
+		return new ReplayStream();
+	}
+
+	/**
+	 * @return A new reader positioned at the beginning of the body.
+	 */
+	@Override
+	public final BufferedReader getReader() throws IOException {
+		final String encoding = this.getCharacterEncoding();
+		return new BufferedReader(new InputStreamReader(this.getInputStream(),
+				Charset.forName(encoding == null ? "ISO-8859-1" : encoding)));
+	}
+
+	@Override
+	public String getParameter(final String name) {
+		if (!this.isForm())
+			return super.getParameter(name);
+
+		final String[] values = this.parameters().get(name);
+		return values == null ? null : values[0];
+	}
+
+	@Override
+	public String[] getParameterValues(final String name) {
+		if (!this.isForm())
+			return super.getParameterValues(name);
+
+		final String[] values = this.parameters().get(name);
+		return values == null ? null : values.clone();
+	}
+
+	@Override
+	public Map<String, String[]> getParameterMap() {
+		return this.isForm() ? this.parameters() : super.getParameterMap();
+	}
+
+	@Override
+	public Enumeration<String> getParameterNames() {
+		return this.isForm() ? Collections.enumeration(this.parameters().keySet()) : super.getParameterNames();
+	}
+
+	/**
+	 * Reads the rest of the body from the request.
+	 *
+	 * @return The length of the body.
+	 */
+	public final long readFully() throws IOException {
+		final byte[] buffer = new byte[8192];
+		final ReplayStream stream = new ReplayStream();
+		stream.position = this.body.size();
+		while (stream.read(buffer, 0, buffer.length) >= 0) {
+			// the stream appends to the body
+		}
+		return this.body.size();
+	}
+
+	/**
+	 * @return The number of body bytes read from the request so far.
+	 */
+	public final long getBodyLength() {
+		return this.body.size();
+	}
+
+	/**
+	 * @return <code>true</code> once the end of the body was read.
+	 */
+	public final boolean isBodyComplete() {
+		return this.ended;
+	}
+
+	/**
+	 * @return At most <code>limit</code> leading bytes of what was read from
+	 *         the body so far; never reads from the request.
+	 */
+	public final byte[] getBodyPreview(final int limit) throws IOException {
+		final byte[] preview = new byte[(int) Math.min(limit, this.body.size())];
+		int position = 0;
+		while (position < preview.length) {
+			final int n = this.body.read(position, preview, position, preview.length - position);
+			if (n < 0)
+				break;
+			position += n;
+		}
+		return preview;
+	}
+
+	/**
+	 * Frees the memory and deletes the file holding the body.
+	 */
+	public final void release() {
+		this.body.release();
+	}
+
+	/**
+	 * Reads the body from the buffer as far as it goes, then from the request
+	 * into the buffer.
+	 */
+	private final class ReplayStream extends ServletInputStream {
+
+		private final byte[] single = new byte[1];
+
+		long position;
+
+		@Override
+		public int read() throws IOException {
+			return this.read(this.single, 0, 1) < 0 ? -1 : this.single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0)
+				return 0;
+
+			final SpillBuffer body = ReadableHttpRequestWrapper.this.body;
+			if (this.position < body.size()) {
+				final int n = body.read(this.position, b, off, len);
+				this.position += n;
+				return n;
+			}
+			if (ReadableHttpRequestWrapper.this.ended)
+				return -1;
+
+			final int n = ReadableHttpRequestWrapper.this.input().read(b, off, len);
+			if (n < 0) {
+				ReadableHttpRequestWrapper.this.ended = true;
+				body.complete();
+				return -1;
+			}
+			body.append(b, off, n);
+			this.position += n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			final long buffered = ReadableHttpRequestWrapper.this.body.size() - this.position;
+			if (buffered > 0)
+				return (int) Math.min(Integer.MAX_VALUE, buffered);
+			return ReadableHttpRequestWrapper.this.ended ? 0 : ReadableHttpRequestWrapper.this.input().available();
+		}
+
+		@Override
+		public boolean isFinished() {
+			return ReadableHttpRequestWrapper.this.ended && this.position >= ReadableHttpRequestWrapper.this.body.size();
+		}
+
+		@Override
+		public boolean isReady() {
+			if (this.position < ReadableHttpRequestWrapper.this.body.size() || ReadableHttpRequestWrapper.this.ended)
+				return true;
+			try {
+				return ReadableHttpRequestWrapper.this.input().isReady();
+			} catch (IOException e) {
+				return true;
+			}
+		}
+
+		/**
+		 * The listener is notified by the request stream, reads through this
+		 * stream still fill the buffer.
+		 */
+		@Override
+		public void setReadListener(final ReadListener listener) {
+			try {
+				ReadableHttpRequestWrapper.this.input().setReadListener(listener);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> for a POST whose parameters the container
+	 *         would parse from the body.
+	 */
+	private final boolean isForm() {
+		final String contentType = this.getContentType();
+		return "POST".equals(this.getMethod()) && contentType != null
+				&& contentType.toLowerCase(Locale.ENGLISH).startsWith("application/x-www-form-urlencoded");
+	}
+
+	/**
+	 * Reads the form once, then merges the parameters the container has,
+	 * which are only those of the query unless it parsed the form before.
+	 */
+	private final Map<String, String[]> parameters() {
+		if (this.parameters != null)
+			return this.parameters;
+
+		final StringBuilder form = new StringBuilder();
+		try {
+			final BufferedReader reader = this.getReader();
+			final char[] buffer = new char[4096];
+			int n;
+			while ((n = reader.read(buffer)) >= 0)
+				form.append(buffer, 0, n);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to read the form", e);
+		}
+
+		final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>(super.getParameterMap());
+		final String encoding = this.getCharacterEncoding();
+		final Charset charset = Charset.forName(encoding == null ? "ISO-8859-1" : encoding);
+		for (final String pair : form.toString().split("&")) {
+			if (pair.length() == 0)
+				continue;
+
+			final int separator = pair.indexOf('=');
+			final String name;
+			final String value;
+			try {
+				name = URLDecoder.decode(separator < 0 ? pair : pair.substring(0, separator), charset);
+				value = separator < 0 ? "" : URLDecoder.decode(pair.substring(separator + 1), charset);
+			} catch (IllegalArgumentException e) {
+				// malformed escapes are skipped, like containers do
+				continue;
+			}
+
+			final String[] values = parameters.get(name);
+			if (values == null) {
+				parameters.put(name, new String[] { value });
+			} else {
+				final String[] appended = new String[values.length + 1];
+				System.arraycopy(values, 0, appended, 0, values.length);
+				appended[values.length] = value;
+				parameters.put(name, appended);
+			}
+		}
+
+		this.parameters = Collections.unmodifiableMap(parameters);
+		return this.parameters;
+	}
+
+	private final ServletInputStream input() throws IOException {
+		if (this.input == null)
+			this.input = super.getInputStream();
+		return this.input;
+	}
+}
@@ -16,85 +16,181 @@
 package de.devsurf.jaxrs.commons;
 
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
 /**
+ * A {@link HttpServletResponseWrapper} which remembers the status and the
+ * headers set on the response, so they can be read after the chain returned.
+ * <p>
+ * Headers are captured in a {@link HeaderStore}; int and date values are only
+ * formatted when they are read. A wrapper can be reused for another response
+ * with {@link #recycle(HttpServletResponse)}.
+ * <p>
+ * Optionally the body can be tapped with {@link #enableBodyTap(int)}: the
+ * output is then routed through a {@link MeteringServletStream}, which counts
+ * the bytes and keeps the first few of them. Whoever enabled the tap has to
+ * call {@link #finishBody()} once the chain returned.
+ *
  * @author Daniel Manzke
  *
  */
-public final class ReadableHttpResponseWrapper extends HttpServletResponseWrapper {
+public class ReadableHttpResponseWrapper extends HttpServletResponseWrapper {
 
 	private int statusCode;
 
 	private String statusMessage;
 
-	private Map<String, Collection<String>> headers = new HashMap<String, Collection<String>>();
+	private final HeaderStore headers = new HeaderStore();
+
+	private int previewLimit = -1;
+
+	private MeteringServletStream body;
+
+	private PrintWriter writer;
 	
 	public ReadableHttpResponseWrapper(final HttpServletResponse httpServletResponse) {
 		super(httpServletResponse);
 	}
 
+	/**
+	 * Forgets everything captured so far and wraps the given response. The
+	 * body tap is disabled again.
+	 */
+	public final void recycle(final HttpServletResponse httpServletResponse) {
+		this.releaseBody();
+		this.setResponse(httpServletResponse);
+		this.clear();
+		this.previewLimit = -1;
+		this.body = null;
+		this.writer = null;
+	}
+
+	/**
+	 * Routes the body through a {@link MeteringServletStream}. Has to be
+	 * called before the output is obtained.
+	 *
+	 * @param previewLimit
+	 *            The number of bytes to keep, 0 only counts.
+	 */
+	public final void enableBodyTap(final int previewLimit) {
+		this.previewLimit = Math.max(0, previewLimit);
+	}
+
 	@Override
-	public final void addDateHeader(final String name, final long date) {
-		super.addDateHeader(name, date);
+	public final ServletOutputStream getOutputStream() throws IOException {
+		if (this.previewLimit < 0)
+			return super.getOutputStream();
+		if (this.writer != null)
+			throw new IllegalStateException("getWriter() has already been called");
+
+		return this.body();
+	}
+
+	@Override
+	public final PrintWriter getWriter() throws IOException {
+		if (this.previewLimit < 0)
+			return super.getWriter();
+		if (this.writer == null) {
+			if (this.body != null)
+				throw new IllegalStateException("getOutputStream() has already been called");
+
+			this.writer = this.newWriter(this.body());
+		}
+		return this.writer;
+	}
+
+	@Override
+	public final void flushBuffer() throws IOException {
+		if (this.writer != null)
+			this.writer.flush();
+		super.flushBuffer();
+	}
+
+	@Override
+	public final void resetBuffer() {
+		super.resetBuffer();
+		this.discardWriter();
+	}
+
+	/**
+	 * Pushes characters still buffered in the writer of the body tap into the
+	 * response.
+	 */
+	public final void finishBody() {
+		if (this.writer != null)
+			this.writer.flush();
+	}
 
-		final String value = new Date(date).toString();
+	/**
+	 * @return The number of body bytes written through the tap, -1 if the tap
+	 *         is not enabled.
+	 */
+	public final long getBodyLength() {
+		if (this.previewLimit < 0)
+			return -1;
+		return this.body == null ? 0 : this.body.getCount();
+	}
+
+	/**
+	 * @return The first bytes of the body, never <code>null</code>.
+	 */
+	public final byte[] getBodyPreview() {
+		return this.body == null ? new byte[0] : this.body.getPreview();
+	}
 
-		if (this.containsHeader(name))
-			this.headers.get(name).add(value);
-		else
-			this.headers.put(name, new LinkedList<String>(Collections.singleton(value)));
+	/**
+	 * Returns the preview buffer of the body tap to the pool.
+	 */
+	public final void releaseBody() {
+		if (this.body != null)
+			this.body.release();
+	}
+
+	@Override
+	public final void addDateHeader(final String name, final long date) {
+		super.addDateHeader(name, date);
+		this.headers.addDate(name, date);
 	}
 
 	@Override
 	public final void addHeader(final String name, final String value) {
 		super.addHeader(name, value);
-
-		if (this.headers.containsKey(name))
-			this.headers.get(name).add(value);
-		else
-			this.headers.put(name, new LinkedList<String>(Collections.singleton(value)));
+		this.headers.add(name, value);
 	}
 
 	@Override
 	public final void addIntHeader(String name, int integer) {
 		super.addIntHeader(name, integer);
-
-		final String value = Integer.toString(integer);
-
-		if (this.headers.containsKey(name))
-			this.headers.get(name).add(value);
-		else
-			this.headers.put(name, new LinkedList<String>(Collections.singleton(value)));
+		this.headers.addInt(name, integer);
 	}
 
 	@Override
 	public final void setDateHeader(final String name, final long date) {
 		super.setDateHeader(name, date);
-		this.headers.put(name, new LinkedList<String>(Collections.singleton(new Date(date).toString())));
+		this.headers.setDate(name, date);
 	}
 
 	@Override
 	public final void setHeader(final String name, final String value) {
 		super.setHeader(name, value);
-		this.headers.put(name, new LinkedList<String>(Collections.singleton(value)));
+		this.headers.set(name, value);
 	}
 
 	@Override
 	public final void setIntHeader(final String name, final int value) {
 		super.setIntHeader(name, value);
-		this.headers.put(name, new LinkedList<String>(Collections.singleton(Integer.toString(value))));
+		this.headers.setInt(name, value);
 	}
 
 	@Override
+	@SuppressWarnings("deprecation")
 	public final void setStatus(final int statusCode, final String statusMessage) {
 		super.setStatus(statusCode, statusMessage);
 		this.statusCode = statusCode;
@@ -120,6 +216,13 @@ public final class ReadableHttpResponseWrapper extends HttpServletResponseWrappe
 		this.statusMessage = statusMessage;
 	}
 
+	@Override
+	public final void reset() {
+		super.reset();
+		this.clear();
+		this.discardWriter();
+	}
+
 	public final String getStatusMessage() {
 		return this.statusMessage;
 	}
@@ -129,10 +232,42 @@ public final class ReadableHttpResponseWrapper extends HttpServletResponseWrappe
 	}
 
 	public final Collection<String> getHeaderNames() {
-		return this.headers.keySet();
+		return this.headers.getNames();
 	}
 
 	public final Collection<String> getHeaders(final String name) {
 		return this.headers.get(name);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @return The captured headers, without copying them.
+	 */
+	public final HeaderStore getHeaderStore() {
+		return this.headers;
+	}
+
+	private final MeteringServletStream body() throws IOException {
+		if (this.body == null)
+			this.body = new MeteringServletStream(super.getOutputStream(), this.previewLimit);
+		return this.body;
+	}
+
+	private final PrintWriter newWriter(final MeteringServletStream body) {
+		return new PrintWriter(new OutputStreamWriter(body, Charset.forName(this.getCharacterEncoding())));
+	}
+
+	/**
+	 * Drops characters which were not yet encoded, the container discarded
+	 * its buffer as well.
+	 */
+	private final void discardWriter() {
+		if (this.writer != null)
+			this.writer = this.newWriter(this.body);
+	}
+
+	private final void clear() {
+		this.statusCode = 0;
+		this.statusMessage = null;
+		this.headers.clear();
+	}
+}
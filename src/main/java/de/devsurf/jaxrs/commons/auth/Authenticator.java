@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.auth;
+
+import java.io.IOException;
+
+/**
+ * Verifies a username and password, e.g. against a password hash or a
+ * directory.
+ * <p>
+ * Implementations must be thread-safe. If they are configured by class name,
+ * they need a public no-argument constructor.
+ *
+ * @see CachingAuthenticator
+ *
+ * @author Daniel Manzke
+ */
+public interface Authenticator {
+
+	/**
+	 * @return <code>true</code> if the credentials are valid.
+	 * @throws IOException
+	 *             If the backend could not be reached.
+	 */
+	boolean authenticate(String username, String password) throws IOException;
+}
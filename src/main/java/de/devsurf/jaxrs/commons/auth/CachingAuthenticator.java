@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.auth;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import de.devsurf.jaxrs.commons.concurrent.ExpiringCache;
+
+/**
+ * Remembers successful verifications of another {@link Authenticator} for a
+ * while, so an expensive check runs only once per credential and time to
+ * live.
+ * <p>
+ * The cache never holds a password: entries are keyed by a salted SHA-256
+ * hash of the length prefixed username and the password, the salt being
+ * random per instance. Failed
+ * verifications are not cached.
+ *
+ * @author Daniel Manzke
+ */
+public final class CachingAuthenticator implements Authenticator {
+
+	private static final Object VERIFIED = Boolean.TRUE;
+
+	private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-256 is not available", e);
+			}
+		}
+	};
+
+	private final Authenticator delegate;
+
+	private final ExpiringCache<Key, Object> cache;
+
+	private final long ttl;
+
+	private final byte[] salt = new byte[16];
+
+	/**
+	 * @param ttl
+	 *            How long a verification stays valid.
+	 * @param maxSize
+	 *            The maximum number of cached credentials.
+	 */
+	public CachingAuthenticator(final Authenticator delegate, final long ttl, final TimeUnit unit, final int maxSize) {
+		this.delegate = delegate;
+		this.ttl = unit.toNanos(ttl);
+		this.cache = new ExpiringCache<Key, Object>(maxSize);
+		new SecureRandom().nextBytes(this.salt);
+	}
+
+	@Override
+	public final boolean authenticate(final String username, final String password) throws IOException {
+		final Key key = this.key(username, password);
+		if (this.cache.get(key) != null)
+			return true;
+
+		if (!this.delegate.authenticate(username, password))
+			return false;
+
+		this.cache.put(key, VERIFIED, this.ttl);
+		return true;
+	}
+
+	/**
+	 * Forgets all verifications, e.g. after passwords were changed.
+	 */
+	public final void invalidate() {
+		this.cache.clear();
+	}
+
+	public final int size() {
+		return this.cache.size();
+	}
+
+	private final Key key(final String username, final String password) {
+		final MessageDigest digest = DIGEST.get();
+		digest.reset();
+		digest.update(this.salt);
+		// the length keeps the boundary between the two unambiguous
+		final byte[] name = username.getBytes(StandardCharsets.UTF_8);
+		digest.update((byte) (name.length >>> 24));
+		digest.update((byte) (name.length >>> 16));
+		digest.update((byte) (name.length >>> 8));
+		digest.update((byte) name.length);
+		digest.update(name);
+		digest.update(password.getBytes(StandardCharsets.UTF_8));
+		return new Key(digest.digest());
+	}
+
+	private static final class Key {
+
+		private final byte[] hash;
+
+		private final int hashCode;
+
+		Key(final byte[] hash) {
+			this.hash = hash;
+			this.hashCode = Arrays.hashCode(hash);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hashCode;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			return obj instanceof Key && Arrays.equals(this.hash, ((Key) obj).hash);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A response held by a {@link ResponseCache}: status, content type and
+ * headers on the heap, the body in off-heap pages.
+ * <p>
+ * Responses are reference counted. {@link ResponseCache#get(String)} hands
+ * out a reference which has to be given back with {@link #release()}; the
+ * pages are freed once the cache dropped the response and the last reader
+ * released it.
+ *
+ * @author Daniel Manzke
+ */
+public final class CachedResponse {
+
+	private final SlabStore store;
+
+	private final int[] pages;
+
+	private final int length;
+
+	private final int status;
+
+	private final String contentType;
+
+	private final String[] headers;
+
+	private final long created;
+
+	private final long expires;
+
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	/**
+	 * Written before the reference of the cache is given back, so the
+	 * decrement publishes it to whoever frees the pages.
+	 */
+	private volatile boolean retired;
+
+	/**
+	 * @param headers
+	 *            Names and values, alternating.
+	 */
+	CachedResponse(final SlabStore store, final int[] pages, final int length, final int status,
+			final String contentType, final String[] headers, final long created, final long expires) {
+		this.store = store;
+		this.pages = pages;
+		this.length = length;
+		this.status = status;
+		this.contentType = contentType;
+		this.headers = headers;
+		this.created = created;
+		this.expires = expires;
+	}
+
+	public final int getStatus() {
+		return this.status;
+	}
+
+	public final String getContentType() {
+		return this.contentType;
+	}
+
+	public final int getHeaderCount() {
+		return this.headers.length >> 1;
+	}
+
+	public final String getHeaderName(final int index) {
+		return this.headers[index << 1];
+	}
+
+	public final String getHeaderValue(final int index) {
+		return this.headers[(index << 1) + 1];
+	}
+
+	/**
+	 * @return The length of the body in bytes.
+	 */
+	public final int getLength() {
+		return this.length;
+	}
+
+	/**
+	 * @return The seconds since the response was stored.
+	 */
+	public final long getAge() {
+		return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - this.created);
+	}
+
+	public final boolean isExpired(final long now) {
+		return this.expires - now <= 0;
+	}
+
+	/**
+	 * Copies the body to the stream.
+	 */
+	public final void writeBody(final OutputStream out) throws IOException {
+		this.store.read(this.pages, this.length, out);
+	}
+
+	/**
+	 * Gives back a reference obtained from the cache.
+	 */
+	public final void release() {
+		if (this.references.decrementAndGet() == 0)
+			this.store.free(this.pages, this.retired);
+	}
+
+	/**
+	 * Gives back the reference of the cache; the pages count as reclaimable
+	 * from now on, even if readers still hold them.
+	 */
+	final void retire() {
+		this.retired = true;
+		this.store.retire(this.pages.length);
+		this.release();
+	}
+
+	/**
+	 * @return <code>false</code> if the pages are already freed.
+	 */
+	final boolean retain() {
+		for (;;) {
+			final int references = this.references.get();
+			if (references == 0)
+				return false;
+			if (this.references.compareAndSet(references, references + 1))
+				return true;
+		}
+	}
+
+	final int getWeight() {
+		return this.pages.length * this.store.getPageSize();
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.cache;
+
+/**
+ * A count-min sketch with four bit counters, estimating how often a key was
+ * seen recently.
+ * <p>
+ * Every key maps to four counters in different 64 bit words; its frequency is
+ * the smallest of them, at most 15. After ten increments per word all
+ * counters are halved, so old popularity fades. Not thread-safe.
+ *
+ * @author Daniel Manzke
+ */
+final class FrequencySketch {
+
+	private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL,
+			0xcbf29ce484222325L };
+
+	private static final long RESET_MASK = 0x7777777777777777L;
+
+	private static final long ONE_MASK = 0x1111111111111111L;
+
+	private final long[] table;
+
+	private final int mask;
+
+	private final int sampleSize;
+
+	private int size;
+
+	/**
+	 * @param capacity
+	 *            The expected number of distinct keys.
+	 */
+	FrequencySketch(final int capacity) {
+		final int length = Integer.highestOneBit(Math.max(16, Math.min(capacity, 1 << 26)) - 1) << 1;
+		this.table = new long[length];
+		this.mask = length - 1;
+		this.sampleSize = 10 * length;
+	}
+
+	final int frequency(final int key) {
+		final int hash = spread(key);
+		final int start = (hash & 3) << 2;
+
+		int frequency = Integer.MAX_VALUE;
+		for (int i = 0; i < 4; i++) {
+			final int index = this.indexOf(hash, i);
+			final int count = (int) ((this.table[index] >>> ((start + i) << 2)) & 0xfL);
+			frequency = Math.min(frequency, count);
+		}
+		return frequency;
+	}
+
+	final void increment(final int key) {
+		final int hash = spread(key);
+		final int start = (hash & 3) << 2;
+
+		boolean added = false;
+		for (int i = 0; i < 4; i++)
+			added |= this.incrementAt(this.indexOf(hash, i), start + i);
+
+		if (added && ++this.size == this.sampleSize)
+			this.reset();
+	}
+
+	private final boolean incrementAt(final int index, final int counter) {
+		final int offset = counter << 2;
+		final long mask = 0xfL << offset;
+		if ((this.table[index] & mask) == mask)
+			return false;
+
+		this.table[index] += 1L << offset;
+		return true;
+	}
+
+	private final void reset() {
+		int odd = 0;
+		for (int i = 0; i < this.table.length; i++) {
+			odd += Long.bitCount(this.table[i] & ONE_MASK);
+			this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+		}
+		this.size = (this.size - (odd >>> 2)) >>> 1;
+	}
+
+	private final int indexOf(final int hash, final int depth) {
+		long h = (hash + SEEDS[depth]) * SEEDS[depth];
+		h += h >>> 32;
+		return (int) h & this.mask;
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+}
@@ -0,0 +1,437 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.devsurf.jaxrs.commons.concurrent.RingBuffer;
+
+/**
+ * A byte-budgeted cache of {@link CachedResponse}s with W-TinyLFU eviction.
+ * <p>
+ * New responses enter a small LRU window (1% of the budget). Responses
+ * falling out of the window compete with the least recently used response of
+ * the probation segment of the main space; a {@link FrequencySketch} decides
+ * which of them was requested more often recently, the other one is evicted.
+ * A hit in probation promotes a response to the protected segment (80% of the
+ * main space). So a burst of one-off responses cannot flush the popular ones.
+ * <p>
+ * Lookups never lock: hits are recorded in a lossy {@link RingBuffer} and
+ * replayed against the policy by whichever thread acquires the lock next.
+ * Bodies are stored in a {@link SlabStore}, every response weighs as much as
+ * the pages it occupies.
+ *
+ * @author Daniel Manzke
+ */
+public final class ResponseCache {
+
+	private static final int WINDOW = 0;
+
+	private static final int PROBATION = 1;
+
+	private static final int PROTECTED = 2;
+
+	private static final int READ_BUFFER_SIZE = 128;
+
+	private static final int DRAIN_THRESHOLD = 32;
+
+	private final ConcurrentMap<String, Node> data = new ConcurrentHashMap<String, Node>();
+
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	private final RingBuffer<Node> readBuffer = new RingBuffer<Node>(READ_BUFFER_SIZE);
+
+	private final Node[] drained = new Node[READ_BUFFER_SIZE];
+
+	private final SlabStore store;
+
+	private final FrequencySketch sketch;
+
+	private final long maximum;
+
+	private final long windowMaximum;
+
+	private final long protectedMaximum;
+
+	private final AccessOrder window = new AccessOrder();
+
+	private final AccessOrder probation = new AccessOrder();
+
+	private final AccessOrder protectedSegment = new AccessOrder();
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * @param maximum
+	 *            The budget in bytes, allocated off the heap as needed.
+	 * @param pageSize
+	 *            The unit of allocation in bytes.
+	 */
+	public ResponseCache(final long maximum, final int pageSize) {
+		this.store = new SlabStore(maximum, pageSize);
+		this.maximum = maximum;
+		this.windowMaximum = Math.max(pageSize, maximum / 100);
+		this.protectedMaximum = (maximum - this.windowMaximum) * 8 / 10;
+		this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maximum / pageSize));
+	}
+
+	/**
+	 * @return A reference to the response, which has to be
+	 *         {@link CachedResponse#release() released}, or <code>null</code>
+	 *         if there is no fresh one.
+	 */
+	public final CachedResponse get(final String key) {
+		final Node node = this.data.get(key);
+		if (node == null) {
+			this.misses.increment();
+			return null;
+		}
+
+		if (node.response.isExpired(System.nanoTime())) {
+			this.invalidate(key, node);
+			this.misses.increment();
+			return null;
+		}
+
+		if (!node.response.retain()) {
+			this.misses.increment();
+			return null;
+		}
+
+		this.readBuffer.offer(node);
+		if (this.readBuffer.size() >= DRAIN_THRESHOLD && this.evictionLock.tryLock()) {
+			try {
+				this.drainReads();
+			} finally {
+				this.evictionLock.unlock();
+			}
+		}
+
+		this.hits.increment();
+		return node.response;
+	}
+
+	/**
+	 * Stores a response, replacing an existing one. The body is copied off
+	 * the heap.
+	 *
+	 * @param headers
+	 *            Names and values, alternating.
+	 * @param ttl
+	 *            The time to live in nanoseconds.
+	 * @return <code>false</code> if the response does not fit.
+	 */
+	public final boolean put(final String key, final int status, final String contentType, final String[] headers,
+			final byte[] body, final int length, final long ttl) {
+		final int count = this.store.pagesFor(length);
+		if ((long) count * this.store.getPageSize() > this.maximum)
+			return false;
+
+		int[] pages = this.store.allocate(count);
+		if (pages == null) {
+			this.evictionLock.lock();
+			try {
+				this.evictForSpace(count);
+			} finally {
+				this.evictionLock.unlock();
+			}
+			pages = this.store.allocate(count);
+			if (pages == null)
+				return false;
+		}
+		this.store.write(pages, body, 0, length);
+
+		final long now = System.nanoTime();
+		final Node node = new Node(key, new CachedResponse(this.store, pages, length, status, contentType, headers, now,
+				now + ttl));
+
+		this.evictionLock.lock();
+		try {
+			final Node previous = this.data.put(key, node);
+			if (previous != null && previous.queue >= 0)
+				this.evict(previous);
+
+			this.window.addLast(node);
+			node.queue = WINDOW;
+			this.sketch.increment(node.hash);
+
+			this.drainReads();
+			this.evictEntries();
+		} finally {
+			this.evictionLock.unlock();
+		}
+		return true;
+	}
+
+	public final void invalidate(final String key) {
+		final Node node = this.data.get(key);
+		if (node != null)
+			this.invalidate(key, node);
+	}
+
+	public final void clear() {
+		this.evictionLock.lock();
+		try {
+			for (final Node node : this.data.values()) {
+				if (node.queue >= 0)
+					this.evict(node);
+			}
+		} finally {
+			this.evictionLock.unlock();
+		}
+	}
+
+	public final int size() {
+		return this.data.size();
+	}
+
+	/**
+	 * @return The bytes occupied by the cached responses.
+	 */
+	public final long getWeightedSize() {
+		this.evictionLock.lock();
+		try {
+			return this.window.weight + this.probation.weight + this.protectedSegment.weight;
+		} finally {
+			this.evictionLock.unlock();
+		}
+	}
+
+	public final long getMaximum() {
+		return this.maximum;
+	}
+
+	public final long getHits() {
+		return this.hits.sum();
+	}
+
+	public final long getMisses() {
+		return this.misses.sum();
+	}
+
+	public final long getEvictions() {
+		return this.evictions.sum();
+	}
+
+	private final void invalidate(final String key, final Node node) {
+		this.evictionLock.lock();
+		try {
+			if (node.queue >= 0)
+				this.evict(node);
+		} finally {
+			this.evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Replays recorded hits: refreshes their recency, counts their frequency
+	 * and promotes them from probation to protected.
+	 */
+	private final void drainReads() {
+		final int count = this.readBuffer.drainTo(this.drained, this.drained.length);
+		for (int i = 0; i < count; i++) {
+			final Node node = this.drained[i];
+			this.drained[i] = null;
+			if (node.queue < 0)
+				continue;
+
+			this.sketch.increment(node.hash);
+			if (node.queue == WINDOW) {
+				this.window.moveToLast(node);
+			} else if (node.queue == PROTECTED) {
+				this.protectedSegment.moveToLast(node);
+			} else {
+				this.probation.remove(node);
+				this.protectedSegment.addLast(node);
+				node.queue = PROTECTED;
+
+				while (this.protectedSegment.weight > this.protectedMaximum) {
+					final Node demoted = this.protectedSegment.first();
+					this.protectedSegment.remove(demoted);
+					this.probation.addLast(demoted);
+					demoted.queue = PROBATION;
+				}
+			}
+		}
+	}
+
+	private final void evictEntries() {
+		// responses leaving the window become candidates at the end of probation
+		Node candidate = null;
+		while (this.window.weight > this.windowMaximum) {
+			final Node node = this.window.first();
+			this.window.remove(node);
+			this.probation.addLast(node);
+			node.queue = PROBATION;
+			if (candidate == null)
+				candidate = node;
+		}
+
+		while (this.weightedSize() > this.maximum) {
+			Node victim = this.probation.first();
+			if (victim == null)
+				victim = this.protectedSegment.first();
+			if (victim == null)
+				victim = this.window.first();
+
+			if (candidate != null && candidate.queue != PROBATION)
+				candidate = null;
+
+			if (candidate == null || candidate == victim) {
+				if (candidate == victim)
+					candidate = this.probation.next(candidate);
+				this.evict(victim);
+				continue;
+			}
+
+			if (this.sketch.frequency(candidate.hash) > this.sketch.frequency(victim.hash)) {
+				this.evict(victim);
+			} else {
+				final Node next = this.probation.next(candidate);
+				this.evict(candidate);
+				candidate = next;
+			}
+		}
+	}
+
+	/**
+	 * Evicts until enough pages are free or will be once the readers of
+	 * evicted responses released them. The pages in use by readers are
+	 * counted, so a put never evicts more than it needs, even if it then
+	 * cannot be stored right away.
+	 * <p>
+	 * Like {@link #evictEntries()}, the response about to leave the window
+	 * competes with the victim of the main space, so running out of pages
+	 * does not bypass the admission policy.
+	 */
+	private final void evictForSpace(final int pages) {
+		this.drainReads();
+		while (this.store.getReclaimablePages() < pages) {
+			Node victim = this.probation.first();
+			if (victim == null)
+				victim = this.protectedSegment.first();
+			final Node candidate = this.window.first();
+			if (victim == null && candidate == null)
+				return;
+
+			if (victim == null || (candidate != null && this.sketch.frequency(candidate.hash) <= this.sketch.frequency(victim.hash)))
+				this.evict(candidate);
+			else
+				this.evict(victim);
+		}
+	}
+
+	private final void evict(final Node node) {
+		if (node.queue == WINDOW) {
+			this.window.remove(node);
+		} else if (node.queue == PROBATION) {
+			this.probation.remove(node);
+		} else {
+			this.protectedSegment.remove(node);
+		}
+		node.queue = -1;
+
+		this.data.remove(node.key, node);
+		node.response.retire();
+		this.evictions.increment();
+	}
+
+	private final long weightedSize() {
+		return this.window.weight + this.probation.weight + this.protectedSegment.weight;
+	}
+
+	private static final class Node {
+
+		final String key;
+
+		final int hash;
+
+		final CachedResponse response;
+
+		final int weight;
+
+		/**
+		 * The segment, -1 once evicted. Guarded by the eviction lock.
+		 */
+		int queue = -1;
+
+		Node previous;
+
+		Node next;
+
+		Node(final String key, final CachedResponse response) {
+			this(key, response, response.getWeight());
+		}
+
+		Node(final String key, final CachedResponse response, final int weight) {
+			this.key = key;
+			this.hash = key.hashCode();
+			this.response = response;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * A doubly linked list of nodes in access order, least recent first.
+	 */
+	private static final class AccessOrder {
+
+		private final Node head = new Node("", null, 0);
+
+		long weight;
+
+		AccessOrder() {
+			this.head.previous = this.head;
+			this.head.next = this.head;
+		}
+
+		final Node first() {
+			return this.head.next == this.head ? null : this.head.next;
+		}
+
+		final Node next(final Node node) {
+			return node.next == this.head ? null : node.next;
+		}
+
+		final void addLast(final Node node) {
+			node.previous = this.head.previous;
+			node.next = this.head;
+			this.head.previous.next = node;
+			this.head.previous = node;
+			this.weight += node.weight;
+		}
+
+		final void remove(final Node node) {
+			node.previous.next = node.next;
+			node.next.previous = node.previous;
+			node.previous = null;
+			node.next = null;
+			this.weight -= node.weight;
+		}
+
+		final void moveToLast(final Node node) {
+			this.remove(node);
+			this.addLast(node);
+		}
+	}
+}
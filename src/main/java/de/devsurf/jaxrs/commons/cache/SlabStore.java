@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import de.devsurf.jaxrs.commons.streams.StreamUtil;
+
+/**
+ * Stores byte arrays outside of the heap, in pages of direct memory.
+ * <p>
+ * Direct memory is allocated in slabs of {@value #PAGES_PER_SLAB} pages,
+ * lazily and up to the capacity; slabs are never given back, freed pages are
+ * reused. A value occupies as many pages as it needs, not necessarily
+ * adjacent ones, so the store does not fragment. Allocating and freeing is
+ * synchronized, reading and writing the pages of a value is not.
+ *
+ * @author Daniel Manzke
+ */
+final class SlabStore {
+
+	static final int PAGES_PER_SLAB = 256;
+
+	private final int pageSize;
+
+	private final int maxPages;
+
+	private final ByteBuffer[] slabs;
+
+	private final int[] free;
+
+	private int freeCount;
+
+	private int createdPages;
+
+	/**
+	 * Pages of retired values which are still being read.
+	 */
+	private int retiredPages;
+
+	/**
+	 * @param capacity
+	 *            The number of bytes to store at most.
+	 * @param pageSize
+	 *            The size of a page in bytes.
+	 */
+	SlabStore(final long capacity, final int pageSize) {
+		final long slabSize = (long) pageSize * PAGES_PER_SLAB;
+		final long slabCount = (capacity + slabSize - 1) / slabSize;
+		if (slabCount * PAGES_PER_SLAB > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("capacity too large for page size " + pageSize);
+
+		this.pageSize = pageSize;
+		this.maxPages = (int) Math.min(slabCount * PAGES_PER_SLAB, (capacity + pageSize - 1) / pageSize);
+		this.slabs = new ByteBuffer[(int) slabCount];
+		this.free = new int[this.maxPages];
+	}
+
+	final int getPageSize() {
+		return this.pageSize;
+	}
+
+	final int pagesFor(final int length) {
+		return Math.max(1, (length + this.pageSize - 1) / this.pageSize);
+	}
+
+	final synchronized int getFreePages() {
+		return this.freeCount + this.maxPages - this.createdPages;
+	}
+
+	/**
+	 * @return The page numbers or <code>null</code> if there are not enough
+	 *         free pages.
+	 */
+	final synchronized int[] allocate(final int count) {
+		if (count > this.getFreePages())
+			return null;
+
+		final int[] pages = new int[count];
+		for (int i = 0; i < count; i++) {
+			if (this.freeCount == 0)
+				this.grow();
+			pages[i] = this.free[--this.freeCount];
+		}
+		return pages;
+	}
+
+	/**
+	 * @return The free pages plus those of retired values which are freed as
+	 *         soon as their readers are done.
+	 */
+	final synchronized int getReclaimablePages() {
+		return this.getFreePages() + this.retiredPages;
+	}
+
+	/**
+	 * Announces that the pages of a value will be {@link #free(int[], boolean)
+	 * freed} once the last reader released them.
+	 */
+	final synchronized void retire(final int count) {
+		this.retiredPages += count;
+	}
+
+	/**
+	 * @param retired
+	 *            Whether the pages were {@link #retire(int) retired} before.
+	 */
+	final synchronized void free(final int[] pages, final boolean retired) {
+		for (final int page : pages)
+			this.free[this.freeCount++] = page;
+		if (retired)
+			this.retiredPages -= pages.length;
+	}
+
+	/**
+	 * Copies <code>length</code> bytes into the given pages.
+	 */
+	final void write(final int[] pages, final byte[] source, int offset, int length) {
+		for (int i = 0; length > 0; i++) {
+			final int n = Math.min(length, this.pageSize);
+			this.page(pages[i]).put(source, offset, n);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Writes <code>length</code> bytes from the given pages to the stream.
+	 */
+	final void read(final int[] pages, int length, final OutputStream out) throws IOException {
+		final byte[] buffer = StreamUtil.getBufferPool().acquireBytes(this.pageSize);
+		try {
+			for (int i = 0; length > 0; i++) {
+				final int n = Math.min(length, this.pageSize);
+				this.page(pages[i]).get(buffer, 0, n);
+				out.write(buffer, 0, n);
+				length -= n;
+			}
+		} finally {
+			StreamUtil.getBufferPool().releaseBytes(buffer);
+		}
+	}
+
+	/**
+	 * @return A view of the page, positioned at its start.
+	 */
+	private final ByteBuffer page(final int page) {
+		// the slab was published by allocate(), before the page was handed out
+		final ByteBuffer view = this.slabs[page / PAGES_PER_SLAB].duplicate();
+		final int start = (page % PAGES_PER_SLAB) * this.pageSize;
+		view.limit(start + this.pageSize).position(start);
+		return view;
+	}
+
+	/**
+	 * Creates the next slab and puts its pages on the free list.
+	 */
+	private final void grow() {
+		final int slab = this.createdPages / PAGES_PER_SLAB;
+		final int pages = Math.min(PAGES_PER_SLAB, this.maxPages - this.createdPages);
+		this.slabs[slab] = ByteBuffer.allocateDirect(pages * this.pageSize);
+
+		for (int i = pages - 1; i >= 0; i--)
+			this.free[this.freeCount++] = this.createdPages + i;
+		this.createdPages += pages;
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of concurrent calls and adapts the limit to the observed
+ * latency.
+ * <p>
+ * Latencies are averaged per window of at least {@value #MIN_WINDOW_SAMPLES}
+ * samples and 100 ms. The average of the last window is compared to a slowly
+ * moving long-term average: while they agree the limit grows by about its
+ * square root per window, once the last window is slower the limit shrinks by
+ * the ratio, at most by half (gradient algorithm). The limit only grows while
+ * at least half of it is in use. Admission is a compare-and-set on the
+ * in-flight counter; the limit is recomputed by whichever caller closes a
+ * window.
+ *
+ * @author Daniel Manzke
+ */
+public final class AdaptiveLimiter {
+
+	public static final int MIN_WINDOW_SAMPLES = 10;
+
+	private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private static final double LONG_WINDOW = 600;
+
+	private static final double TOLERANCE = 1.5;
+
+	private static final double SMOOTHING = 0.2;
+
+	private final int minLimit;
+
+	private final int maxLimit;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final LongAdder accepted = new LongAdder();
+
+	private final LongAdder rejected = new LongAdder();
+
+	private final AtomicLong windowSum = new AtomicLong();
+
+	private final AtomicInteger windowCount = new AtomicInteger();
+
+	private final AtomicBoolean updating = new AtomicBoolean();
+
+	private volatile long windowStart = System.nanoTime();
+
+	private volatile int limit;
+
+	private double estimatedLimit;
+
+	private double longRtt;
+
+	private volatile long shortRtt;
+
+	public AdaptiveLimiter(final int initialLimit, final int minLimit, final int maxLimit) {
+		this.minLimit = Math.max(1, minLimit);
+		this.maxLimit = Math.max(this.minLimit, maxLimit);
+		this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+		this.estimatedLimit = this.limit;
+	}
+
+	/**
+	 * @return <code>false</code> if the limit is reached; otherwise the
+	 *         caller has to call {@link #release(long)} when done.
+	 */
+	public final boolean tryAcquire() {
+		for (;;) {
+			final int current = this.inFlight.get();
+			if (current >= this.limit) {
+				this.rejected.increment();
+				return false;
+			}
+			if (this.inFlight.compareAndSet(current, current + 1)) {
+				this.accepted.increment();
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Ends a call and records its latency.
+	 *
+	 * @param latency
+	 *            The duration of the call in nanoseconds, negative to record
+	 *            nothing, e.g. for failed calls.
+	 */
+	public final void release(final long latency) {
+		final int inFlight = this.inFlight.getAndDecrement();
+		if (latency < 0)
+			return;
+
+		this.windowSum.addAndGet(latency);
+		final int samples = this.windowCount.incrementAndGet();
+		if (samples >= MIN_WINDOW_SAMPLES && System.nanoTime() - this.windowStart >= WINDOW_NANOS
+				&& this.updating.compareAndSet(false, true)) {
+			try {
+				this.update(inFlight);
+			} finally {
+				this.updating.set(false);
+			}
+		}
+	}
+
+	public final int getLimit() {
+		return this.limit;
+	}
+
+	public final int getInFlight() {
+		return this.inFlight.get();
+	}
+
+	public final long getAccepted() {
+		return this.accepted.sum();
+	}
+
+	public final long getRejected() {
+		return this.rejected.sum();
+	}
+
+	/**
+	 * @return The average latency of the last window in nanoseconds.
+	 */
+	public final long getShortRtt() {
+		return this.shortRtt;
+	}
+
+	private final void update(final int inFlight) {
+		final int count = this.windowCount.getAndSet(0);
+		final long sum = this.windowSum.getAndSet(0);
+		this.windowStart = System.nanoTime();
+		if (count == 0)
+			return;
+
+		final double shortRtt = (double) sum / count;
+		this.shortRtt = (long) shortRtt;
+
+		if (this.longRtt == 0) {
+			this.longRtt = shortRtt;
+		} else {
+			this.longRtt += (shortRtt - this.longRtt) / LONG_WINDOW;
+			// recovering from an overload, let the baseline follow quickly
+			if (this.longRtt / shortRtt > 2)
+				this.longRtt *= 0.95;
+		}
+
+		// an application which does not use the limit gives no signal to grow
+		if (inFlight < this.estimatedLimit / 2)
+			return;
+
+		final double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * this.longRtt / shortRtt));
+		final double queueSize = Math.sqrt(this.estimatedLimit);
+		final double target = this.estimatedLimit * gradient + queueSize;
+
+		this.estimatedLimit = Math.max(this.minLimit,
+				Math.min(this.maxLimit, this.estimatedLimit * (1 - SMOOTHING) + target * SMOOTHING));
+		this.limit = (int) this.estimatedLimit;
+	}
+}
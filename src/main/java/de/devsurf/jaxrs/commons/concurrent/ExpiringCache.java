@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.concurrent;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A concurrent map whose entries expire after a time to live and whose size
+ * is bounded.
+ * <p>
+ * Expired entries are removed when they are read. Once the cache grows beyond
+ * its maximum size, the thread which noticed sweeps out all expired entries
+ * and, if that was not enough, arbitrary others. There is no background
+ * thread.
+ *
+ * @author Daniel Manzke
+ */
+public final class ExpiringCache<K, V> {
+
+	private final ConcurrentMap<K, Entry<V>> entries = new ConcurrentHashMap<K, Entry<V>>();
+
+	private final AtomicBoolean sweeping = new AtomicBoolean();
+
+	private final int maxSize;
+
+	public ExpiringCache(final int maxSize) {
+		this.maxSize = Math.max(1, maxSize);
+	}
+
+	/**
+	 * @return The value or <code>null</code> if it is absent or expired.
+	 */
+	public final V get(final K key) {
+		final Entry<V> entry = this.entries.get(key);
+		if (entry == null)
+			return null;
+
+		if (entry.expires - System.nanoTime() <= 0) {
+			this.entries.remove(key, entry);
+			return null;
+		}
+		return entry.value;
+	}
+
+	/**
+	 * @param ttl
+	 *            The time to live in nanoseconds.
+	 */
+	public final void put(final K key, final V value, final long ttl) {
+		this.entries.put(key, new Entry<V>(value, System.nanoTime() + ttl));
+
+		if (this.entries.size() > this.maxSize)
+			this.sweep();
+	}
+
+	public final void remove(final K key) {
+		this.entries.remove(key);
+	}
+
+	public final void clear() {
+		this.entries.clear();
+	}
+
+	public final int size() {
+		return this.entries.size();
+	}
+
+	private final void sweep() {
+		if (!this.sweeping.compareAndSet(false, true))
+			return;
+
+		try {
+			final long now = System.nanoTime();
+			for (final Iterator<Map.Entry<K, Entry<V>>> i = this.entries.entrySet().iterator(); i.hasNext();)
+				if (i.next().getValue().expires - now <= 0)
+					i.remove();
+
+			// still too large: make room for a tenth of the entries
+			final int target = this.maxSize - this.maxSize / 10;
+			for (final Iterator<K> i = this.entries.keySet().iterator(); i.hasNext() && this.entries.size() > target;) {
+				i.next();
+				i.remove();
+			}
+		} finally {
+			this.sweeping.set(false);
+		}
+	}
+
+	private static final class Entry<V> {
+
+		final V value;
+
+		final long expires;
+
+		Entry(final V value, final long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.concurrent;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A token bucket per key, for a large and changing set of keys.
+ * <p>
+ * Each bucket is a single {@link AtomicLong} holding the time at which it
+ * will be full again (the theoretical arrival time of the generic cell rate
+ * algorithm). Taking a token moves that time one interval ahead with a
+ * compare-and-set; refilling is implied by the clock, so there is no timer
+ * and no lock. A bucket which is full carries no information, so it can be
+ * dropped without changing any decision.
+ * <p>
+ * The keys are spread over stripes. When a stripe holds more than its share
+ * of <code>maxKeys</code>, the thread adding a key sweeps the full buckets
+ * out of it, and if that is not enough arbitrary others, which only makes the
+ * limiter more lenient for them.
+ *
+ * @author Daniel Manzke
+ */
+public final class RateLimiter {
+
+	private static final int STRIPES = 64;
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	private final long interval;
+
+	private final long tolerance;
+
+	private final int burst;
+
+	private final int maxKeysPerStripe;
+
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * @param rate
+	 *            The tokens added per second.
+	 * @param burst
+	 *            The capacity of a bucket.
+	 * @param maxKeys
+	 *            The number of buckets to keep about.
+	 */
+	public RateLimiter(final double rate, final int burst, final int maxKeys) {
+		if (rate <= 0 || burst < 1)
+			throw new IllegalArgumentException("rate and burst must be positive: " + rate + ", " + burst);
+
+		this.interval = Math.max(1, (long) (1000000000L / rate));
+		this.burst = burst;
+		this.tolerance = this.interval * (burst - 1);
+		this.maxKeysPerStripe = Math.max(16, maxKeys / STRIPES);
+
+		for (int i = 0; i < STRIPES; i++)
+			this.stripes[i] = new Stripe();
+	}
+
+	/**
+	 * Takes a token from the bucket of the key.
+	 *
+	 * @return If the token was granted the positive number of nanoseconds
+	 *         until the bucket is full again, otherwise the negated number of
+	 *         nanoseconds until the next token is available.
+	 */
+	public final long tryAcquire(final String key) {
+		final Stripe stripe = this.stripes[spread(key.hashCode()) & (STRIPES - 1)];
+		final long now = System.nanoTime();
+
+		AtomicLong bucket = stripe.buckets.get(key);
+		if (bucket == null) {
+			bucket = new AtomicLong(now);
+			final AtomicLong existing = stripe.buckets.putIfAbsent(key, bucket);
+			if (existing != null) {
+				bucket = existing;
+			} else if (stripe.buckets.size() > this.maxKeysPerStripe) {
+				this.sweep(stripe, now);
+			}
+		}
+
+		for (;;) {
+			final long full = bucket.get();
+			final long start = full - now > 0 ? full : now;
+			if (start - now > this.tolerance) {
+				this.rejected.increment();
+				return -(start - now - this.tolerance);
+			}
+
+			final long next = start + this.interval;
+			if (bucket.compareAndSet(full, next))
+				return next - now;
+		}
+	}
+
+	/**
+	 * @return The tokens left after a call of {@link #tryAcquire(String)}
+	 *         which returned the given value.
+	 */
+	public final int getRemaining(final long acquired) {
+		if (acquired <= 0)
+			return 0;
+		return (int) ((this.tolerance + this.interval - acquired) / this.interval);
+	}
+
+	public final int getBurst() {
+		return this.burst;
+	}
+
+	public final long getRejected() {
+		return this.rejected.sum();
+	}
+
+	/**
+	 * @return The number of buckets currently kept.
+	 */
+	public final int size() {
+		int size = 0;
+		for (final Stripe stripe : this.stripes)
+			size += stripe.buckets.size();
+		return size;
+	}
+
+	private final void sweep(final Stripe stripe, final long now) {
+		if (!stripe.sweeping.compareAndSet(false, true))
+			return;
+
+		try {
+			for (final Iterator<AtomicLong> i = stripe.buckets.values().iterator(); i.hasNext();)
+				if (i.next().get() - now <= 0)
+					i.remove();
+
+			final int target = this.maxKeysPerStripe - this.maxKeysPerStripe / 10;
+			for (final Iterator<AtomicLong> i = stripe.buckets.values().iterator(); i.hasNext()
+					&& stripe.buckets.size() > target;) {
+				i.next();
+				i.remove();
+			}
+		} finally {
+			stripe.sweeping.set(false);
+		}
+	}
+
+	private static int spread(final int hash) {
+		return hash ^ (hash >>> 16) ^ (hash >>> 8);
+	}
+
+	private static final class Stripe {
+
+		final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<String, AtomicLong>();
+
+		final AtomicBoolean sweeping = new AtomicBoolean();
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free multi-producer/multi-consumer queue backed by a ring of
+ * sequenced slots.
+ * <p>
+ * Every slot carries its own sequence number, so producers and consumers only
+ * ever compete for the head or tail counter and never for a lock. The capacity
+ * is rounded up to the next power of two.
+ *
+ * @author Daniel Manzke
+ */
+public final class RingBuffer<E> {
+
+	private final int mask;
+
+	private final AtomicReferenceArray<E> elements;
+
+	private final AtomicLongArray sequences;
+
+	private final AtomicLong head = new AtomicLong();
+
+	private final AtomicLong tail = new AtomicLong();
+
+	public RingBuffer(final int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+		final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+
+		this.mask = size - 1;
+		this.elements = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+
+		for (int i = 0; i < size; i++)
+			this.sequences.set(i, i);
+	}
+
+	/**
+	 * @return <code>false</code> if the buffer is full.
+	 */
+	public final boolean offer(final E element) {
+		if (element == null)
+			throw new NullPointerException("element");
+
+		for (;;) {
+			final long position = this.tail.get();
+			final int index = (int) position & this.mask;
+			final long difference = this.sequences.get(index) - position;
+
+			if (difference == 0) {
+				if (this.tail.compareAndSet(position, position + 1)) {
+					this.elements.lazySet(index, element);
+					this.sequences.lazySet(index, position + 1);
+					return true;
+				}
+			} else if (difference < 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return The oldest element or <code>null</code> if the buffer is empty.
+	 */
+	public final E poll() {
+		for (;;) {
+			final long position = this.head.get();
+			final int index = (int) position & this.mask;
+			final long difference = this.sequences.get(index) - (position + 1);
+
+			if (difference == 0) {
+				if (this.head.compareAndSet(position, position + 1)) {
+					final E element = this.elements.get(index);
+					this.elements.lazySet(index, null);
+					this.sequences.lazySet(index, position + this.mask + 1);
+					return element;
+				}
+			} else if (difference < 0) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Moves up to <code>limit</code> elements into <code>target</code>,
+	 * starting at index 0.
+	 *
+	 * @return The number of elements moved.
+	 */
+	public final int drainTo(final E[] target, final int limit) {
+		final int max = Math.min(limit, target.length);
+
+		int count = 0;
+		while (count < max) {
+			final E element = this.poll();
+			if (element == null)
+				break;
+			target[count++] = element;
+		}
+		return count;
+	}
+
+	/**
+	 * @return An estimate of the number of queued elements.
+	 */
+	public final int size() {
+		final long size = this.tail.get() - this.head.get();
+		return (int) Math.max(0, Math.min(size, this.capacity()));
+	}
+
+	public final boolean isEmpty() {
+		return this.tail.get() == this.head.get();
+	}
+
+	public final int capacity() {
+		return this.mask + 1;
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.concurrent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lets concurrent callers with the same key share one computation.
+ * <p>
+ * The first caller to {@link #join(Object)} a key becomes the leader and has
+ * to {@link Call#complete(Object)} its call, in a finally block; everybody
+ * joining until then becomes a follower and can {@link Call#await(long,
+ * TimeUnit)} the result. Once completed, the next caller leads a new flight.
+ *
+ * @author Daniel Manzke
+ */
+public final class SingleFlight<K, V> {
+
+	private final ConcurrentMap<K, Flight<V>> flights = new ConcurrentHashMap<K, Flight<V>>();
+
+	public final Call<K, V> join(final K key) {
+		final Flight<V> flight = new Flight<V>();
+		final Flight<V> existing = this.flights.putIfAbsent(key, flight);
+		if (existing == null)
+			return new Call<K, V>(this, key, flight, true);
+
+		existing.followers.incrementAndGet();
+		return new Call<K, V>(this, key, existing, false);
+	}
+
+	/**
+	 * @return The number of keys currently in flight.
+	 */
+	public final int size() {
+		return this.flights.size();
+	}
+
+	public static final class Call<K, V> {
+
+		private final SingleFlight<K, V> owner;
+
+		private final K key;
+
+		private final Flight<V> flight;
+
+		private final boolean leader;
+
+		Call(final SingleFlight<K, V> owner, final K key, final Flight<V> flight, final boolean leader) {
+			this.owner = owner;
+			this.key = key;
+			this.flight = flight;
+			this.leader = leader;
+		}
+
+		public final boolean isLeader() {
+			return this.leader;
+		}
+
+		/**
+		 * @return The number of followers which joined so far.
+		 */
+		public final int getFollowers() {
+			return this.flight.followers.get();
+		}
+
+		/**
+		 * Publishes the result to the followers and lands the flight. Only the
+		 * leader may complete, and only once.
+		 *
+		 * @param value
+		 *            The result, <code>null</code> if there is none to share.
+		 */
+		public final void complete(final V value) {
+			if (!this.leader)
+				throw new IllegalStateException("Only the leader completes a call");
+
+			this.flight.value = value;
+			this.owner.flights.remove(this.key, this.flight);
+			this.flight.done.countDown();
+		}
+
+		/**
+		 * @return The result of the leader, <code>null</code> if it had none
+		 *         or did not complete in time.
+		 */
+		public final V await(final long timeout, final TimeUnit unit) throws InterruptedException {
+			if (!this.flight.done.await(timeout, unit))
+				return null;
+			return this.flight.value;
+		}
+
+		public final boolean isDone() {
+			return this.flight.done.getCount() == 0;
+		}
+	}
+
+	private static final class Flight<V> {
+
+		final CountDownLatch done = new CountDownLatch(1);
+
+		final AtomicInteger followers = new AtomicInteger();
+
+		volatile V value;
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.filter;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Work a filter has to do once a request is complete, for requests which are
+ * still running asynchronously when the filter chain returns.
+ * <p>
+ * Filters check {@link ServletRequest#isAsyncStarted()} after the chain and
+ * either do the work right away or {@link #listen(ServletRequest, ServletResponse)}
+ * for the end of the request. The work runs exactly once, on the thread which
+ * completes the request, and survives a further
+ * {@link ServletRequest#startAsync()}.
+ *
+ * @author Daniel Manzke
+ */
+abstract class AsyncCompletion implements AsyncListener {
+
+	private volatile boolean failed;
+
+	/**
+	 * Registers for the end of the asynchronous request the chain started.
+	 */
+	final void listen(final ServletRequest request, final ServletResponse response) {
+		request.getAsyncContext().addListener(this, request, response);
+	}
+
+	/**
+	 * @param failed
+	 *            Whether the request timed out or failed.
+	 */
+	abstract void completed(boolean failed);
+
+	@Override
+	public final void onComplete(final AsyncEvent event) throws IOException {
+		this.completed(this.failed);
+	}
+
+	@Override
+	public final void onTimeout(final AsyncEvent event) throws IOException {
+		this.failed = true;
+	}
+
+	@Override
+	public final void onError(final AsyncEvent event) throws IOException {
+		this.failed = true;
+	}
+
+	@Override
+	public final void onStartAsync(final AsyncEvent event) throws IOException {
+		// listeners are dropped when the request goes asynchronous again
+		event.getAsyncContext().addListener(this, event.getSuppliedRequest(), event.getSuppliedResponse());
+	}
+}
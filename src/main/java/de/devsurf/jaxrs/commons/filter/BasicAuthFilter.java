@@ -16,6 +16,10 @@
 package de.devsurf.jaxrs.commons.filter;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -24,10 +28,11 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
-import sun.misc.BASE64Decoder;
+import de.devsurf.jaxrs.commons.auth.Authenticator;
+import de.devsurf.jaxrs.commons.auth.CachingAuthenticator;
 
 /**
  * Windows Vista: BasicAuth is disabled
@@ -40,12 +45,58 @@ import sun.misc.BASE64Decoder;
 		0 - Basic authentication disabled 
 		1 - Basic authentication enabled for SSL shares only 
 		2 or greater - Basic authentication enabled for SSL shares and for non-SSL shares 
+ * <p>
+ * The credentials are checked by the {@link Authenticator} named in the
+ * <code>authenticator</code> init parameter or passed to
+ * {@link #BasicAuthFilter(Authenticator)}. Successful checks are cached for
+ * <code>cacheTtl</code> seconds (default 300, 0 disables the cache) in up to
+ * <code>cacheSize</code> entries. Without an authenticator every well-formed
+ * header is accepted, as before.
+ * <p>
+ * The username is published as request attribute {@link #USER_ATTRIBUTE} and
+ * through {@link HttpServletRequest#getRemoteUser()}. Only if
+ * <code>session</code> is <code>true</code> (the default) it is stored in the
+ * HTTP session as well; set it to <code>false</code> for stateless clients.
+ * The password is never stored.
  * 
  * @author Daniel Manzke
  *
  */
 public class BasicAuthFilter implements Filter {
 
+	public static final String USER_ATTRIBUTE = "BasicAuthUser";
+
+	public static final String PARAM_REALM = "realm";
+
+	public static final String PARAM_AUTHENTICATOR = "authenticator";
+
+	public static final String PARAM_CACHE_TTL = "cacheTtl";
+
+	public static final String PARAM_CACHE_SIZE = "cacheSize";
+
+	public static final String PARAM_SESSION = "session";
+
+	private static final String SCHEME = "Basic ";
+
+	private Authenticator authenticator;
+
+	private String challenge = "BASIC realm=\"SAPERION\"";
+
+	private boolean session = true;
+
+	public BasicAuthFilter() {
+		// Intentionally left blank.
+	}
+
+	/**
+	 * @param authenticator
+	 *            Used as is, wrap it in a {@link CachingAuthenticator} if
+	 *            needed. Takes precedence over the init parameters.
+	 */
+	public BasicAuthFilter(Authenticator authenticator) {
+		this.authenticator = authenticator;
+	}
+
 	@Override
 	public void destroy() {
 	}
@@ -57,31 +108,107 @@ public class BasicAuthFilter implements Filter {
 		HttpServletResponse response = ((HttpServletResponse)res);
 		String auth = request.getHeader("Authorization");
 		
-		if(auth == null){
-			response.setHeader("WWW-Authenticate", "BASIC realm=\"SAPERION\"");
-			response.setStatus(401);
+		if(auth == null || !auth.regionMatches(true, 0, SCHEME, 0, SCHEME.length())){
+			challenge(response);
+			return;
+		}
 
+		String sNameAndPw;
+		try{
+			sNameAndPw = new String(Base64.getDecoder().decode(auth.substring(SCHEME.length()).trim()), StandardCharsets.UTF_8);
+		}catch (IllegalArgumentException e){
+			challenge(response);
 			return;
-		}else{
-			try{
-				BASE64Decoder decoder = new BASE64Decoder();
-				String sNameAndPw = new String(decoder.decodeBuffer(auth.substring(6).trim()));
-				String username = sNameAndPw.substring(0, sNameAndPw.indexOf(":"));
-				String password = sNameAndPw.substring(sNameAndPw.indexOf(":")+1);
-				
-				HttpSession session = request.getSession(true);
-				session.setAttribute("BasicAuthUser", username);
-				session.setAttribute("BasicAuthPassword", password);
-				//authenticate -> if wrong send 401
-			}catch (java.io.IOException ioe){
-			}
+		}
+
+		int separator = sNameAndPw.indexOf(':');
+		if(separator < 0){
+			challenge(response);
+			return;
+		}
+
+		String username = sNameAndPw.substring(0, separator);
+		String password = sNameAndPw.substring(separator+1);
+		if(authenticator != null && !authenticator.authenticate(username, password)){
+			challenge(response);
+			return;
+		}
+
+		request.setAttribute(USER_ATTRIBUTE, username);
+		if(session){
+			request.getSession(true).setAttribute(USER_ATTRIBUTE, username);
 		}
 		
-		chain.doFilter(req, res);
+		chain.doFilter(new AuthenticatedRequest(request, username), res);
 	}
 
 	@Override
-	public void init(FilterConfig arg0) throws ServletException {
+	public void init(FilterConfig config) throws ServletException {
+		challenge = "BASIC realm=\"" + InitParameters.getString(config, PARAM_REALM, "SAPERION") + "\"";
+		session = InitParameters.getBoolean(config, PARAM_SESSION, true);
+
+		String className = InitParameters.getString(config, PARAM_AUTHENTICATOR, null);
+		if(authenticator != null || className == null){
+			return;
+		}
+
+		Authenticator configured;
+		try{
+			configured = Class.forName(className, true, Thread.currentThread().getContextClassLoader())
+					.asSubclass(Authenticator.class).getDeclaredConstructor().newInstance();
+		}catch (Exception e){
+			throw new ServletException("Cannot create authenticator " + className, e);
+		}
+
+		long ttl = InitParameters.getLong(config, PARAM_CACHE_TTL, 300);
+		if(ttl > 0){
+			configured = new CachingAuthenticator(configured, ttl, TimeUnit.SECONDS,
+					InitParameters.getInt(config, PARAM_CACHE_SIZE, 10000));
+		}
+		authenticator = configured;
+	}
+
+	public Authenticator getAuthenticator() {
+		return authenticator;
+	}
+
+	private void challenge(HttpServletResponse response) {
+		response.setHeader("WWW-Authenticate", challenge);
+		response.setStatus(401);
 	}
 
+	private static final class AuthenticatedRequest extends HttpServletRequestWrapper {
+
+		private final Principal principal;
+
+		AuthenticatedRequest(HttpServletRequest request, final String username) {
+			super(request);
+			this.principal = new Principal() {
+				@Override
+				public String getName() {
+					return username;
+				}
+
+				@Override
+				public String toString() {
+					return username;
+				}
+			};
+		}
+
+		@Override
+		public String getRemoteUser() {
+			return principal.getName();
+		}
+
+		@Override
+		public Principal getUserPrincipal() {
+			return principal;
+		}
+
+		@Override
+		public String getAuthType() {
+			return HttpServletRequest.BASIC_AUTH;
+		}
+	}
 }
@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.filter;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import de.devsurf.jaxrs.commons.BufferedServletStream;
+import de.devsurf.jaxrs.commons.FlushPolicy;
+
+/**
+ * Routes the body of every response through a {@link BufferedServletStream},
+ * so many small writes reach the client as few large ones, and
+ * <code>flush()</code> calls can be coalesced by a {@link FlushPolicy}.
+ * Whatever is still buffered is pushed when the request ends, for
+ * asynchronous requests right before {@link javax.servlet.AsyncContext#complete()}.
+ * <p>
+ * Applications writing through a {@link javax.servlet.WriteListener} are
+ * suspended while a slow client is not taking data, see
+ * {@link BufferedServletStream}. Init parameters:
+ * <ul>
+ * <li>{@value #PARAM_BUFFER_SIZE} - the most bytes held back per response,
+ * defaults to {@value #DEFAULT_BUFFER_SIZE}</li>
+ * <li>{@value #PARAM_FLUSH_SIZE} - buffered bytes which trigger a push, 0
+ * (the default) for none</li>
+ * <li>{@value #PARAM_FLUSH_DELAY} - milliseconds after which buffered bytes
+ * are pushed, 0 (the default) for no limit</li>
+ * <li>{@value #PARAM_EXPLICIT_FLUSH} - whether <code>flush()</code> of the
+ * application pushes, defaults to <code>true</code>; turn it off together
+ * with a delay for feeds flushing every event</li>
+ * <li>{@value #PARAM_PUSH_THREADS} - threads pushing delayed bytes to
+ * blocking writers, defaults to {@value #DEFAULT_PUSH_THREADS}; each slow
+ * client holds one while its push lasts</li>
+ * </ul>
+ *
+ * @author Daniel Manzke
+ */
+public final class BufferingFilter implements Filter {
+
+	public static final String PARAM_BUFFER_SIZE = "bufferSize";
+
+	public static final String PARAM_FLUSH_SIZE = "flushSize";
+
+	public static final String PARAM_FLUSH_DELAY = "flushDelay";
+
+	public static final String PARAM_EXPLICIT_FLUSH = "explicitFlush";
+
+	public static final String PARAM_PUSH_THREADS = "pushThreads";
+
+	public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	public static final int DEFAULT_PUSH_THREADS = 4;
+
+	private static final int PUSH_QUEUE_CAPACITY = 1024;
+
+	private int bufferSize = DEFAULT_BUFFER_SIZE;
+
+	private FlushPolicy policy = FlushPolicy.EXPLICIT;
+
+	private ScheduledExecutorService scheduler;
+
+	private ThreadPoolExecutor pusher;
+
+	@Override
+	public void init(final FilterConfig config) throws ServletException {
+		this.bufferSize = InitParameters.getInt(config, PARAM_BUFFER_SIZE, DEFAULT_BUFFER_SIZE);
+		final int flushSize = InitParameters.getInt(config, PARAM_FLUSH_SIZE, 0);
+		final long flushDelay = InitParameters.getLong(config, PARAM_FLUSH_DELAY, 0);
+		final boolean explicit = InitParameters.getBoolean(config, PARAM_EXPLICIT_FLUSH, true);
+		if (this.bufferSize < 1 || flushSize < 0 || flushDelay < 0)
+			throw new ServletException("Invalid " + PARAM_BUFFER_SIZE + ", " + PARAM_FLUSH_SIZE + " or " + PARAM_FLUSH_DELAY
+					+ ": " + this.bufferSize + ", " + flushSize + ", " + flushDelay);
+
+		this.policy = new FlushPolicy(flushSize, flushDelay, TimeUnit.MILLISECONDS, explicit);
+		if (flushDelay > 0) {
+			this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, "buffering-filter-flush");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+			final int threads = Math.max(1, InitParameters.getInt(config, PARAM_PUSH_THREADS, DEFAULT_PUSH_THREADS));
+			final AtomicInteger count = new AtomicInteger();
+			this.pusher = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+					PUSH_QUEUE_CAPACITY), new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, "buffering-filter-push-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			this.pusher.allowCoreThreadTimeOut(true);
+		}
+	}
+
+	@Override
+	public final void destroy() {
+		if (this.scheduler != null) {
+			this.scheduler.shutdownNow();
+			this.scheduler = null;
+		}
+		if (this.pusher != null) {
+			this.pusher.shutdownNow();
+			this.pusher = null;
+		}
+	}
+
+	@Override
+	public final void doFilter(final ServletRequest req, final ServletResponse res, final FilterChain chain)
+			throws IOException, ServletException {
+		if (!(req instanceof HttpServletRequest) || !(res instanceof HttpServletResponse)) {
+			chain.doFilter(req, res);
+			return;
+		}
+
+		final BufferedResponse buffered = new BufferedResponse((HttpServletResponse) res);
+		final FinishingRequest finishing = new FinishingRequest((HttpServletRequest) req, new FinishingRequest.Finisher() {
+			@Override
+			public void finish() throws IOException {
+				buffered.finish();
+			}
+		});
+
+		boolean async = false;
+		try {
+			chain.doFilter(finishing, buffered);
+			if (finishing.isAsyncStarted()) {
+				async = true;
+				new AsyncCompletion() {
+					@Override
+					void completed(final boolean failed) {
+						buffered.release();
+					}
+				}.listen(finishing, buffered);
+			} else {
+				buffered.finish();
+			}
+		} finally {
+			if (!async)
+				buffered.release();
+		}
+	}
+
+	public FlushPolicy getPolicy() {
+		return this.policy;
+	}
+
+	private final class BufferedResponse extends HttpServletResponseWrapper {
+
+		private BufferedServletStream stream;
+
+		private PrintWriter writer;
+
+		BufferedResponse(final HttpServletResponse response) {
+			super(response);
+		}
+
+		@Override
+		public final ServletOutputStream getOutputStream() throws IOException {
+			if (this.writer != null)
+				throw new IllegalStateException("getWriter() has already been called");
+			return this.stream();
+		}
+
+		@Override
+		public final PrintWriter getWriter() throws IOException {
+			if (this.writer == null) {
+				if (this.stream != null)
+					throw new IllegalStateException("getOutputStream() has already been called");
+				this.writer = this.newWriter(this.stream());
+			}
+			return this.writer;
+		}
+
+		@Override
+		public final void flushBuffer() throws IOException {
+			if (this.writer != null)
+				this.writer.flush();
+			if (this.stream != null)
+				this.stream.flush();
+			if (this.stream == null || BufferingFilter.this.policy.isExplicit())
+				super.flushBuffer();
+		}
+
+		@Override
+		public final void resetBuffer() {
+			super.resetBuffer();
+			this.discard();
+		}
+
+		@Override
+		public final void reset() {
+			super.reset();
+			this.discard();
+		}
+
+		/**
+		 * Pushes what is still buffered.
+		 */
+		final void finish() throws IOException {
+			if (this.writer != null)
+				this.writer.flush();
+			if (this.stream != null)
+				this.stream.push();
+		}
+
+		final void release() {
+			if (this.stream != null)
+				this.stream.discard();
+		}
+
+		private final BufferedServletStream stream() throws IOException {
+			if (this.stream == null)
+				this.stream = new BufferedServletStream(super.getOutputStream(), BufferingFilter.this.bufferSize,
+						BufferingFilter.this.policy, BufferingFilter.this.scheduler, BufferingFilter.this.pusher);
+			return this.stream;
+		}
+
+		private final PrintWriter newWriter(final ServletOutputStream stream) {
+			return new PrintWriter(new OutputStreamWriter(stream, Charset.forName(this.getCharacterEncoding())));
+		}
+
+		private final void discard() {
+			if (this.stream != null)
+				this.stream.discard();
+			if (this.writer != null)
+				this.writer = this.newWriter(this.stream);
+		}
+	}
+}
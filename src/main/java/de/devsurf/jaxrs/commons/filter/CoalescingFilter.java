@@ -0,0 +1,286 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.filter;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import de.devsurf.jaxrs.commons.HeaderStore;
+import de.devsurf.jaxrs.commons.ReadableHttpResponseWrapper;
+import de.devsurf.jaxrs.commons.concurrent.SingleFlight;
+import de.devsurf.jaxrs.commons.metrics.Collector;
+import de.devsurf.jaxrs.commons.metrics.MetricType;
+import de.devsurf.jaxrs.commons.metrics.MetricsRegistry;
+import de.devsurf.jaxrs.commons.metrics.PrometheusWriter;
+
+/**
+ * Runs identical concurrent GET requests only once.
+ * <p>
+ * Requests are identical if their path, query and the request headers named
+ * in {@value #PARAM_KEY_HEADERS} are. The first one leads: it runs the chain
+ * while status and headers are captured by a
+ * {@link ReadableHttpResponseWrapper} and the body is teed off as it is
+ * written. All identical requests arriving in the meantime wait up to
+ * {@value #PARAM_TIMEOUT} milliseconds and then get a copy of the response.
+ * Followers whose wait timed out, or whose leader did not produce a
+ * shareable response, run the chain themselves.
+ * <p>
+ * Only 2xx responses (except 206) without <code>Set-Cookie</code> and with a
+ * body of at most {@value #PARAM_MAX_BODY_SIZE} bytes are shared. Requests
+ * with <code>Authorization</code>, with a <code>Cookie</code> which is not
+ * part of the key, conditional and range requests are never coalesced.
+ * Unlike the {@link ResponseCacheFilter} nothing is kept once the leader is
+ * done, so this works for responses which must not be cached. Init
+ * parameters:
+ * <ul>
+ * <li>{@value #PARAM_KEY_HEADERS} - comma separated request headers which
+ * select different responses, defaults to <code>Accept</code>,
+ * <code>Accept-Encoding</code> and <code>Accept-Language</code></li>
+ * <li>{@value #PARAM_TIMEOUT} - milliseconds a follower waits for the
+ * leader, defaults to {@value #DEFAULT_TIMEOUT}</li>
+ * <li>{@value #PARAM_MAX_BODY_SIZE} - the largest body to share, defaults to
+ * {@value #DEFAULT_MAX_BODY_SIZE}</li>
+ * </ul>
+ * The requests by role (leader, shared or fallback) are exported through the
+ * {@link MetricsRegistry}.
+ *
+ * @author Daniel Manzke
+ */
+public final class CoalescingFilter implements Filter {
+
+	public static final String PARAM_KEY_HEADERS = "keyHeaders";
+
+	public static final String PARAM_TIMEOUT = "timeout";
+
+	public static final String PARAM_MAX_BODY_SIZE = "maxBodySize";
+
+	public static final long DEFAULT_TIMEOUT = 1000;
+
+	public static final int DEFAULT_MAX_BODY_SIZE = 1048576;
+
+	private static final String[] DEFAULT_KEY_HEADERS = { "Accept", "Accept-Encoding", "Accept-Language" };
+
+	private static final String[] BYPASS_HEADERS = { "Authorization", "Range", "If-None-Match", "If-Modified-Since",
+			"If-Match", "If-Unmodified-Since" };
+
+	private final SingleFlight<String, SharedResponse> flights = new SingleFlight<String, SharedResponse>();
+
+	private String[] keyHeaders = DEFAULT_KEY_HEADERS;
+
+	private boolean cookieInKey;
+
+	private long timeout = DEFAULT_TIMEOUT;
+
+	private int maxBodySize = DEFAULT_MAX_BODY_SIZE;
+
+	private final LongAdder leaders = new LongAdder();
+
+	private final LongAdder shared = new LongAdder();
+
+	private final LongAdder fallbacks = new LongAdder();
+
+	private MetricsRegistry registry;
+
+	private Collector collector;
+
+	@Override
+	public void init(final FilterConfig config) throws ServletException {
+		final String[] keyHeaders = InitParameters.getList(config, PARAM_KEY_HEADERS);
+		if (keyHeaders.length > 0)
+			this.keyHeaders = keyHeaders;
+		this.cookieInKey = false;
+		for (final String name : this.keyHeaders)
+			this.cookieInKey |= "Cookie".equalsIgnoreCase(name);
+
+		this.timeout = InitParameters.getLong(config, PARAM_TIMEOUT, DEFAULT_TIMEOUT);
+		this.maxBodySize = InitParameters.getInt(config, PARAM_MAX_BODY_SIZE, DEFAULT_MAX_BODY_SIZE);
+		if (this.timeout < 0 || this.maxBodySize < 0)
+			throw new ServletException("Invalid " + PARAM_TIMEOUT + " or " + PARAM_MAX_BODY_SIZE + ": " + this.timeout + ", "
+					+ this.maxBodySize);
+
+		final LongAdder leaders = this.leaders;
+		final LongAdder shared = this.shared;
+		final LongAdder fallbacks = this.fallbacks;
+		final String leader = PrometheusWriter.labels("role", "leader");
+		final String follower = PrometheusWriter.labels("role", "shared");
+		final String fallback = PrometheusWriter.labels("role", "fallback");
+		this.collector = new Collector() {
+			@Override
+			public void collect(final PrometheusWriter writer) throws IOException {
+				writer.family("coalesced_requests_total", "Coalesced GET requests by role.", MetricType.COUNTER);
+				writer.sample("coalesced_requests_total", leader, leaders.sum());
+				writer.sample("coalesced_requests_total", follower, shared.sum());
+				writer.sample("coalesced_requests_total", fallback, fallbacks.sum());
+			}
+		};
+		this.registry = MetricsRegistry.get(config.getServletContext());
+		this.registry.register(this.collector);
+	}
+
+	@Override
+	public final void destroy() {
+		if (this.registry != null) {
+			this.registry.unregister(this.collector);
+			this.registry = null;
+		}
+	}
+
+	@Override
+	public final void doFilter(final ServletRequest req, final ServletResponse res, final FilterChain chain)
+			throws IOException, ServletException {
+		if (!(req instanceof HttpServletRequest) || !(res instanceof HttpServletResponse)) {
+			chain.doFilter(req, res);
+			return;
+		}
+
+		final HttpServletRequest request = (HttpServletRequest) req;
+		final HttpServletResponse response = (HttpServletResponse) res;
+		if (!this.isCoalescable(request)) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		final String key = StoredResponses.key(request, this.keyHeaders);
+		final SingleFlight.Call<String, SharedResponse> call = this.flights.join(key);
+		if (!call.isLeader()) {
+			final SharedResponse result;
+			try {
+				result = call.await(this.timeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ServletException("Interrupted while waiting for " + key, e);
+			}
+
+			if (result != null) {
+				this.shared.increment();
+				result.writeTo(response);
+			} else {
+				this.fallbacks.increment();
+				chain.doFilter(request, response);
+			}
+			return;
+		}
+
+		this.leaders.increment();
+		final ReadableHttpResponseWrapper wrapper = new ReadableHttpResponseWrapper(response);
+		wrapper.enableBodyTap(this.maxBodySize + 1);
+		boolean share = false;
+		boolean async = false;
+		try {
+			chain.doFilter(request, wrapper);
+			if (request.isAsyncStarted()) {
+				async = true;
+				new AsyncCompletion() {
+					@Override
+					void completed(final boolean failed) {
+						CoalescingFilter.this.finish(wrapper, call, !failed);
+					}
+				}.listen(request, wrapper);
+			} else {
+				wrapper.finishBody();
+				share = true;
+			}
+		} finally {
+			if (!async)
+				this.finish(wrapper, call, share);
+		}
+	}
+
+	/**
+	 * Hands a copy of the response to the followers, or <code>null</code> to
+	 * let them run the chain themselves.
+	 */
+	private final void finish(final ReadableHttpResponseWrapper wrapper, final SingleFlight.Call<String, SharedResponse> call,
+			final boolean share) {
+		SharedResponse result = null;
+		try {
+			// nobody waiting: skip the copy, latecomers fall back to the chain
+			if (share && call.getFollowers() > 0)
+				result = this.capture(wrapper);
+		} finally {
+			wrapper.releaseBody();
+			call.complete(result);
+		}
+	}
+
+	private final SharedResponse capture(final ReadableHttpResponseWrapper wrapper) {
+		final int status = wrapper.getStatusCode() == 0 ? HttpServletResponse.SC_OK : wrapper.getStatusCode();
+		if (status < 200 || status > 299 || status == HttpServletResponse.SC_PARTIAL_CONTENT
+				|| wrapper.getBodyLength() > this.maxBodySize)
+			return null;
+
+		final HeaderStore headers = wrapper.getHeaderStore();
+		if (headers.contains("Set-Cookie"))
+			return null;
+
+		return new SharedResponse(status, wrapper.getContentType(), StoredResponses.copyHeaders(headers),
+				wrapper.getBodyPreview());
+	}
+
+	private final boolean isCoalescable(final HttpServletRequest request) {
+		if (!"GET".equals(request.getMethod()))
+			return false;
+		if (!this.cookieInKey && request.getHeader("Cookie") != null)
+			return false;
+
+		for (final String name : BYPASS_HEADERS)
+			if (request.getHeader(name) != null)
+				return false;
+		return true;
+	}
+
+	/**
+	 * The response of a leader, immutable so any number of followers can write
+	 * it at the same time.
+	 */
+	private static final class SharedResponse {
+
+		private final int status;
+
+		private final String contentType;
+
+		private final String[] headers;
+
+		private final byte[] body;
+
+		SharedResponse(final int status, final String contentType, final String[] headers, final byte[] body) {
+			this.status = status;
+			this.contentType = contentType;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		final void writeTo(final HttpServletResponse response) throws IOException {
+			response.setStatus(this.status);
+			if (this.contentType != null)
+				response.setContentType(this.contentType);
+			for (int i = 0; i < this.headers.length; i += 2)
+				response.addHeader(this.headers[i], this.headers[i + 1]);
+			response.setContentLength(this.body.length);
+			response.getOutputStream().write(this.body);
+		}
+	}
+}
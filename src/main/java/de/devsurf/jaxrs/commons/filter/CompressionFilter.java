@@ -0,0 +1,612 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.filter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import de.devsurf.jaxrs.commons.FilterServletStream;
+import de.devsurf.jaxrs.commons.streams.DeflaterPool;
+import de.devsurf.jaxrs.commons.streams.ParallelDeflateOutputStream;
+import de.devsurf.jaxrs.commons.streams.StreamUtil;
+
+/**
+ * Compresses responses with gzip or deflate, whichever the client prefers in
+ * its <code>Accept-Encoding</code> header.
+ * <p>
+ * The first {@value #PARAM_MIN_SIZE} bytes of a body are held back; bodies
+ * which end before are sent as they are, as are bodies with a smaller
+ * <code>Content-Length</code>, an explicit <code>Content-Encoding</code> or
+ * one of the excluded content types. Range requests are not compressed.
+ * Larger bodies are deflated in blocks by a {@link ParallelDeflateOutputStream}
+ * on a bounded pool shared by all requests; when the pool is saturated the
+ * request thread compresses itself. Init parameters:
+ * <ul>
+ * <li>{@value #PARAM_MIN_SIZE} - the smallest body to compress, defaults to
+ * {@value #DEFAULT_MIN_SIZE}</li>
+ * <li>{@value #PARAM_LEVEL} - the compression level, defaults to
+ * {@value #DEFAULT_LEVEL}</li>
+ * <li>{@value #PARAM_THREADS} - the size of the compression pool, defaults
+ * to the number of processors</li>
+ * <li>{@value #PARAM_BLOCK_SIZE} - the number of bytes deflated per task,
+ * defaults to {@value #DEFAULT_BLOCK_SIZE}</li>
+ * <li>{@value #PARAM_BLOCKS_IN_FLIGHT} - the number of blocks a single
+ * response may have pending, defaults to {@value #DEFAULT_BLOCKS_IN_FLIGHT}
+ * </li>
+ * <li>{@value #PARAM_EXCLUDED_TYPES} - comma separated content types which
+ * are never compressed, a trailing slash matches all subtypes; defaults to
+ * images, audio, video and archives</li>
+ * </ul>
+ * Every response passing the filter gets <code>Vary: Accept-Encoding</code>;
+ * a strong ETag of a compressed response is turned into a weak one. An
+ * asynchronous response is completed when the application calls
+ * {@link javax.servlet.AsyncContext#complete()}.
+ *
+ * @author Daniel Manzke
+ */
+public final class CompressionFilter implements Filter {
+
+	public static final String PARAM_MIN_SIZE = "minSize";
+
+	public static final String PARAM_LEVEL = "level";
+
+	public static final String PARAM_THREADS = "threads";
+
+	public static final String PARAM_BLOCK_SIZE = "blockSize";
+
+	public static final String PARAM_BLOCKS_IN_FLIGHT = "blocksInFlight";
+
+	public static final String PARAM_EXCLUDED_TYPES = "excludedTypes";
+
+	public static final int DEFAULT_MIN_SIZE = 1024;
+
+	public static final int DEFAULT_LEVEL = 6;
+
+	public static final int DEFAULT_BLOCK_SIZE = 131072;
+
+	public static final int DEFAULT_BLOCKS_IN_FLIGHT = 4;
+
+	private static final String[] DEFAULT_EXCLUDED_TYPES = { "image/", "audio/", "video/", "application/zip",
+			"application/gzip", "application/x-gzip", "application/x-compress", "application/x-bzip2",
+			"application/x-xz", "application/x-7z-compressed", "application/x-rar-compressed" };
+
+	/**
+	 * Seconds {@link #destroy()} waits for running compressions.
+	 */
+	private static final long SHUTDOWN_TIMEOUT = 30;
+
+	/**
+	 * Deflates on the calling thread if the pool is busy, and unlike
+	 * {@link ThreadPoolExecutor.CallerRunsPolicy} also once it is shut down,
+	 * so a stream still in flight never waits for a block nobody runs.
+	 */
+	private static final RejectedExecutionHandler CALLER_RUNS = new RejectedExecutionHandler() {
+		@Override
+		public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor) {
+			runnable.run();
+		}
+	};
+
+	private static final String GZIP = "gzip";
+
+	private static final String DEFLATE = "deflate";
+
+	private int minSize = DEFAULT_MIN_SIZE;
+
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+
+	private int blocksInFlight = DEFAULT_BLOCKS_IN_FLIGHT;
+
+	private String[] excludedTypes = DEFAULT_EXCLUDED_TYPES;
+
+	private DeflaterPool deflaters;
+
+	private ThreadPoolExecutor executor;
+
+	@Override
+	public void init(final FilterConfig config) throws ServletException {
+		this.minSize = Math.max(0, InitParameters.getInt(config, PARAM_MIN_SIZE, DEFAULT_MIN_SIZE));
+		this.blockSize = InitParameters.getInt(config, PARAM_BLOCK_SIZE, DEFAULT_BLOCK_SIZE);
+		this.blocksInFlight = InitParameters.getInt(config, PARAM_BLOCKS_IN_FLIGHT, DEFAULT_BLOCKS_IN_FLIGHT);
+
+		final String[] excludedTypes = InitParameters.getList(config, PARAM_EXCLUDED_TYPES);
+		if (excludedTypes.length > 0) {
+			for (int i = 0; i < excludedTypes.length; i++)
+				excludedTypes[i] = excludedTypes[i].toLowerCase(Locale.ENGLISH);
+			this.excludedTypes = excludedTypes;
+		}
+
+		final int level = InitParameters.getInt(config, PARAM_LEVEL, DEFAULT_LEVEL);
+		if (level < 0 || level > 9)
+			throw new ServletException("Invalid " + PARAM_LEVEL + ": " + level);
+
+		final int threads = Math.max(1, InitParameters.getInt(config, PARAM_THREADS, Runtime.getRuntime().availableProcessors()));
+		this.deflaters = new DeflaterPool(level, threads * 4);
+
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(threads * 2), new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						final Thread thread = new Thread(runnable, "compression-worker-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, CALLER_RUNS);
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	@Override
+	public final void destroy() {
+		if (this.executor != null) {
+			this.executor.shutdown();
+			try {
+				this.executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.executor = null;
+		}
+		if (this.deflaters != null) {
+			this.deflaters.clear();
+			this.deflaters = null;
+		}
+	}
+
+	@Override
+	public final void doFilter(final ServletRequest req, final ServletResponse res, final FilterChain chain)
+			throws IOException, ServletException {
+		if (!(req instanceof HttpServletRequest) || !(res instanceof HttpServletResponse)) {
+			chain.doFilter(req, res);
+			return;
+		}
+
+		final HttpServletRequest request = (HttpServletRequest) req;
+		final HttpServletResponse response = (HttpServletResponse) res;
+		response.addHeader("Vary", "Accept-Encoding");
+
+		final String encoding = this.deflaters == null || request.getHeader("Range") != null ? null
+				: negotiate(request.getHeader("Accept-Encoding"));
+		if (encoding == null) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		final CompressingResponse compressing = new CompressingResponse(response, encoding);
+		final FinishingRequest finishing = new FinishingRequest(request, new FinishingRequest.Finisher() {
+			@Override
+			public void finish() throws IOException {
+				compressing.finish();
+			}
+		});
+
+		boolean async = false;
+		try {
+			chain.doFilter(finishing, compressing);
+			if (finishing.isAsyncStarted()) {
+				async = true;
+				new AsyncCompletion() {
+					@Override
+					void completed(final boolean failed) {
+						compressing.release();
+					}
+				}.listen(finishing, compressing);
+			} else {
+				compressing.finish();
+			}
+		} finally {
+			if (!async)
+				compressing.release();
+		}
+	}
+
+	/**
+	 * @return "gzip", "deflate" or <code>null</code> if the client accepts
+	 *         neither. gzip wins a tie.
+	 */
+	static String negotiate(final String acceptEncoding) {
+		if (acceptEncoding == null)
+			return null;
+
+		float gzip = -1;
+		float deflate = -1;
+		float any = -1;
+		for (final String part : acceptEncoding.split(",")) {
+			final int semicolon = part.indexOf(';');
+			final String coding = (semicolon < 0 ? part : part.substring(0, semicolon)).trim();
+			final float quality = semicolon < 0 ? 1 : quality(part.substring(semicolon + 1));
+
+			if (coding.equalsIgnoreCase(GZIP) || coding.equalsIgnoreCase("x-gzip")) {
+				gzip = Math.max(gzip, quality);
+			} else if (coding.equalsIgnoreCase(DEFLATE)) {
+				deflate = Math.max(deflate, quality);
+			} else if (coding.equals("*")) {
+				any = quality;
+			}
+		}
+
+		if (gzip < 0)
+			gzip = any;
+		if (deflate < 0)
+			deflate = any;
+
+		if (gzip > 0 && gzip >= deflate)
+			return GZIP;
+		return deflate > 0 ? DEFLATE : null;
+	}
+
+	private static float quality(final String parameters) {
+		for (final String parameter : parameters.split(";")) {
+			final String trimmed = parameter.trim();
+			if (trimmed.length() > 2 && (trimmed.charAt(0) == 'q' || trimmed.charAt(0) == 'Q') && trimmed.charAt(1) == '=') {
+				try {
+					return Float.parseFloat(trimmed.substring(2).trim());
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+
+	private static String weak(final String etag) {
+		return etag.startsWith("W/") ? etag : "W/" + etag;
+	}
+
+	private final boolean isExcluded(final String contentType) {
+		if (contentType == null)
+			return false;
+
+		final int semicolon = contentType.indexOf(';');
+		final String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ENGLISH);
+		for (final String excluded : this.excludedTypes) {
+			if (excluded.endsWith("/") ? type.startsWith(excluded) : type.equals(excluded))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Holds back the start of the body until it is clear whether it is worth
+	 * compressing, then either compresses or passes everything through.
+	 */
+	private final class CompressingResponse extends HttpServletResponseWrapper {
+
+		private final String encoding;
+
+		private long contentLength = -1;
+
+		private String etag;
+
+		private boolean identity;
+
+		private boolean decided;
+
+		private boolean finishing;
+
+		private byte[] buffer;
+
+		private int buffered;
+
+		private OutputStream target;
+
+		private ParallelDeflateOutputStream deflater;
+
+		private ServletOutputStream stream;
+
+		private PrintWriter writer;
+
+		CompressingResponse(final HttpServletResponse response, final String encoding) {
+			super(response);
+			this.encoding = encoding;
+		}
+
+		@Override
+		public final ServletOutputStream getOutputStream() throws IOException {
+			if (this.writer != null)
+				throw new IllegalStateException("getWriter() has already been called");
+			return this.stream();
+		}
+
+		@Override
+		public final PrintWriter getWriter() throws IOException {
+			if (this.writer == null) {
+				if (this.stream != null)
+					throw new IllegalStateException("getOutputStream() has already been called");
+				this.writer = this.newWriter(this.stream());
+			}
+			return this.writer;
+		}
+
+		@Override
+		public final void setContentLength(final int length) {
+			this.contentLength(length);
+		}
+
+		@Override
+		public final void setContentLengthLong(final long length) {
+			this.contentLength(length);
+		}
+
+		@Override
+		public final void setHeader(final String name, final String value) {
+			if (this.intercept(name, value))
+				super.setHeader(name, value);
+		}
+
+		@Override
+		public final void addHeader(final String name, final String value) {
+			if (this.intercept(name, value))
+				super.addHeader(name, value);
+		}
+
+		@Override
+		public final void setIntHeader(final String name, final int value) {
+			if (this.intercept(name, String.valueOf(value)))
+				super.setIntHeader(name, value);
+		}
+
+		@Override
+		public final void addIntHeader(final String name, final int value) {
+			if (this.intercept(name, String.valueOf(value)))
+				super.addIntHeader(name, value);
+		}
+
+		@Override
+		public final void flushBuffer() throws IOException {
+			if (this.writer != null)
+				this.writer.flush();
+			if (this.stream != null)
+				this.stream.flush();
+			super.flushBuffer();
+		}
+
+		@Override
+		public final void resetBuffer() {
+			super.resetBuffer();
+			this.buffered = 0;
+			if (this.deflater != null) {
+				// the headers stay, so the body starts over compressed
+				this.deflater.abort();
+				try {
+					this.deflater = this.newDeflater();
+					this.target = this.deflater;
+				} catch (IOException e) {
+					throw new IllegalStateException("Cannot restart compression", e);
+				}
+			}
+			this.discardWriter();
+		}
+
+		@Override
+		public final void reset() {
+			super.reset();
+			super.addHeader("Vary", "Accept-Encoding");
+			this.release();
+			this.contentLength = -1;
+			this.etag = null;
+			this.identity = false;
+			this.decided = false;
+			this.finishing = false;
+			this.target = null;
+			this.discardWriter();
+		}
+
+		/**
+		 * Writes what is still held back and completes the compressed body.
+		 */
+		final void finish() throws IOException {
+			this.finishing = true;
+			if (this.writer != null)
+				this.writer.flush();
+
+			if (!this.decided) {
+				if (this.buffered == 0) {
+					if (this.etag != null)
+						super.setHeader("ETag", this.etag);
+					if (this.contentLength >= 0)
+						super.setHeader("Content-Length", String.valueOf(this.contentLength));
+					return;
+				}
+				this.identity = true;
+				this.decide();
+			}
+
+			if (this.deflater != null)
+				this.deflater.finish();
+		}
+
+		final void release() {
+			if (this.deflater != null) {
+				this.deflater.abort();
+				this.deflater = null;
+			}
+			if (this.buffer != null) {
+				StreamUtil.getBufferPool().releaseBytes(this.buffer);
+				this.buffer = null;
+			}
+			this.buffered = 0;
+		}
+
+		private final void write(final int b) throws IOException {
+			if (!this.decided) {
+				if (this.buffered < CompressionFilter.this.minSize) {
+					this.buffer()[this.buffered++] = (byte) b;
+					return;
+				}
+				this.decide();
+			}
+			this.target.write(b);
+		}
+
+		private final void write(final byte[] b, final int off, final int len) throws IOException {
+			if (!this.decided) {
+				if (this.buffered + len <= CompressionFilter.this.minSize) {
+					System.arraycopy(b, off, this.buffer(), this.buffered, len);
+					this.buffered += len;
+					return;
+				}
+				this.decide();
+			}
+			this.target.write(b, off, len);
+		}
+
+		private final byte[] buffer() {
+			if (this.buffer == null)
+				this.buffer = StreamUtil.getBufferPool().acquireBytes(CompressionFilter.this.minSize);
+			return this.buffer;
+		}
+
+		private final void flush() throws IOException {
+			if (!this.decided) {
+				// the writer flushes on finish, which must not force compression
+				if (this.finishing)
+					return;
+				this.decide();
+			}
+			this.target.flush();
+		}
+
+		/**
+		 * Chooses between compression and identity and writes the held back
+		 * bytes.
+		 */
+		private final void decide() throws IOException {
+			this.decided = true;
+
+			if (!this.identity && !CompressionFilter.this.isExcluded(this.getContentType())) {
+				super.setHeader("Content-Encoding", this.encoding);
+				if (this.etag != null)
+					super.setHeader("ETag", weak(this.etag));
+				this.deflater = this.newDeflater();
+				this.target = this.deflater;
+			} else {
+				if (this.etag != null)
+					super.setHeader("ETag", this.etag);
+				if (this.contentLength >= 0)
+					super.setHeader("Content-Length", String.valueOf(this.contentLength));
+				this.target = super.getOutputStream();
+			}
+
+			if (this.buffered > 0)
+				this.target.write(this.buffer, 0, this.buffered);
+			this.buffered = 0;
+		}
+
+		private final ParallelDeflateOutputStream newDeflater() throws IOException {
+			return new ParallelDeflateOutputStream(super.getOutputStream(), GZIP.equals(this.encoding),
+					CompressionFilter.this.deflaters, CompressionFilter.this.executor,
+					CompressionFilter.this.blockSize, CompressionFilter.this.blocksInFlight);
+		}
+
+		/**
+		 * @return <code>true</code> if the header has to be passed on.
+		 */
+		private final boolean intercept(final String name, final String value) {
+			if ("Content-Length".equalsIgnoreCase(name) && value != null) {
+				try {
+					this.contentLength(Long.parseLong(value.trim()));
+				} catch (NumberFormatException e) {
+					return true;
+				}
+				return false;
+			}
+			if ("ETag".equalsIgnoreCase(name) && value != null) {
+				// a strong ETag identifies the identity encoding
+				if (!this.decided) {
+					this.etag = value;
+					return false;
+				}
+				if (this.deflater != null) {
+					super.setHeader(name, weak(value));
+					return false;
+				}
+			}
+			if ("Content-Encoding".equalsIgnoreCase(name) && !this.decided)
+				this.identity = true;
+			return true;
+		}
+
+		private final void contentLength(final long length) {
+			if (this.decided) {
+				if (this.deflater == null)
+					super.setHeader("Content-Length", String.valueOf(length));
+			} else if (length < CompressionFilter.this.minSize) {
+				this.identity = true;
+				super.setHeader("Content-Length", String.valueOf(length));
+			} else {
+				this.contentLength = length;
+			}
+		}
+
+		private final ServletOutputStream stream() {
+			if (this.stream == null) {
+				this.stream = new FilterServletStream(new OutputStream() {
+					@Override
+					public void write(final int b) throws IOException {
+						CompressingResponse.this.write(b);
+					}
+
+					@Override
+					public void write(final byte[] b, final int off, final int len) throws IOException {
+						CompressingResponse.this.write(b, off, len);
+					}
+
+					@Override
+					public void flush() throws IOException {
+						CompressingResponse.this.flush();
+					}
+
+					@Override
+					public void close() throws IOException {
+						CompressingResponse.this.finish();
+					}
+				});
+			}
+			return this.stream;
+		}
+
+		private final PrintWriter newWriter(final ServletOutputStream stream) {
+			return new PrintWriter(new OutputStreamWriter(stream, Charset.forName(this.getCharacterEncoding())));
+		}
+
+		private final void discardWriter() {
+			if (this.writer != null)
+				this.writer = this.newWriter(this.stream);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.filter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import de.devsurf.jaxrs.commons.concurrent.AdaptiveLimiter;
+import de.devsurf.jaxrs.commons.metrics.Collector;
+import de.devsurf.jaxrs.commons.metrics.MetricType;
+import de.devsurf.jaxrs.commons.metrics.MetricsRegistry;
+import de.devsurf.jaxrs.commons.metrics.PrometheusWriter;
+
+/**
+ * Sheds load before it piles up in the thread pool of the container.
+ * <p>
+ * Every route group has an {@link AdaptiveLimiter} whose limit follows the
+ * measured processing time. A request beyond the limit of its group is
+ * answered at once with 503 Service Unavailable and <code>Retry-After</code>,
+ * so a slow downstream only stalls the group calling it. Groups are the path
+ * prefixes listed in {@value #PARAM_GROUPS}, the longest matching one wins;
+ * all other requests share the group {@value #DEFAULT_GROUP}. Asynchronous
+ * requests hold their permit until they are complete, but their duration
+ * (e.g. of a long poll) does not move the limit. Init parameters:
+ * <ul>
+ * <li>{@value #PARAM_GROUPS} - comma separated path prefixes</li>
+ * <li>{@value #PARAM_INITIAL_LIMIT}, {@value #PARAM_MIN_LIMIT} and
+ * {@value #PARAM_MAX_LIMIT} - the bounds of each limit, default to
+ * {@value #DEFAULT_INITIAL_LIMIT}, {@value #DEFAULT_MIN_LIMIT} and
+ * {@value #DEFAULT_MAX_LIMIT}</li>
+ * <li>{@value #PARAM_RETRY_AFTER} - the seconds to send in
+ * <code>Retry-After</code>, defaults to 1</li>
+ * </ul>
+ * The limiters are available through {@link #getLimiters()} and as the
+ * servlet context attribute {@value #LIMITERS_ATTRIBUTE}; limit, requests in
+ * flight and rejections per group are exported through the
+ * {@link MetricsRegistry}.
+ *
+ * @author Daniel Manzke
+ */
+public final class ConcurrencyLimitFilter implements Filter {
+
+	public static final String LIMITERS_ATTRIBUTE = "de.devsurf.jaxrs.commons.concurrent.AdaptiveLimiter";
+
+	public static final String PARAM_GROUPS = "groups";
+
+	public static final String PARAM_INITIAL_LIMIT = "initialLimit";
+
+	public static final String PARAM_MIN_LIMIT = "minLimit";
+
+	public static final String PARAM_MAX_LIMIT = "maxLimit";
+
+	public static final String PARAM_RETRY_AFTER = "retryAfter";
+
+	public static final String DEFAULT_GROUP = "*";
+
+	public static final int DEFAULT_INITIAL_LIMIT = 20;
+
+	public static final int DEFAULT_MIN_LIMIT = 4;
+
+	public static final int DEFAULT_MAX_LIMIT = 1000;
+
+	private String[] prefixes = new String[0];
+
+	private AdaptiveLimiter[] limiters = new AdaptiveLimiter[0];
+
+	private AdaptiveLimiter defaultLimiter = new AdaptiveLimiter(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT);
+
+	private String retryAfter = "1";
+
+	private MetricsRegistry registry;
+
+	private Collector collector;
+
+	@Override
+	public void init(final FilterConfig config) throws ServletException {
+		final int initialLimit = InitParameters.getInt(config, PARAM_INITIAL_LIMIT, DEFAULT_INITIAL_LIMIT);
+		final int minLimit = InitParameters.getInt(config, PARAM_MIN_LIMIT, DEFAULT_MIN_LIMIT);
+		final int maxLimit = InitParameters.getInt(config, PARAM_MAX_LIMIT, DEFAULT_MAX_LIMIT);
+		this.retryAfter = String.valueOf(InitParameters.getInt(config, PARAM_RETRY_AFTER, 1));
+
+		// longest prefix first, so the first match is the most specific one
+		final String[] prefixes = InitParameters.getList(config, PARAM_GROUPS);
+		Arrays.sort(prefixes, new Comparator<String>() {
+			@Override
+			public int compare(final String a, final String b) {
+				return b.length() - a.length();
+			}
+		});
+
+		this.prefixes = prefixes;
+		this.limiters = new AdaptiveLimiter[prefixes.length];
+		for (int i = 0; i < prefixes.length; i++)
+			this.limiters[i] = new AdaptiveLimiter(initialLimit, minLimit, maxLimit);
+		this.defaultLimiter = new AdaptiveLimiter(initialLimit, minLimit, maxLimit);
+
+		config.getServletContext().setAttribute(LIMITERS_ATTRIBUTE, this.getLimiters());
+
+		final Map<String, AdaptiveLimiter> limiters = this.getLimiters();
+		final String[] labels = new String[limiters.size()];
+		int index = 0;
+		for (final String group : limiters.keySet())
+			labels[index++] = PrometheusWriter.labels("group", group);
+
+		this.collector = new Collector() {
+			@Override
+			public void collect(final PrometheusWriter writer) throws IOException {
+				writer.family("concurrency_limit", "The current concurrency limit of the group.", MetricType.GAUGE);
+				int i = 0;
+				for (final AdaptiveLimiter limiter : limiters.values())
+					writer.sample("concurrency_limit", labels[i++], limiter.getLimit());
+
+				writer.family("concurrency_in_flight", "Requests of the group in the filter chain.", MetricType.GAUGE);
+				i = 0;
+				for (final AdaptiveLimiter limiter : limiters.values())
+					writer.sample("concurrency_in_flight", labels[i++], limiter.getInFlight());
+
+				writer.family("concurrency_rejected_total", "Requests of the group rejected with 503.", MetricType.COUNTER);
+				i = 0;
+				for (final AdaptiveLimiter limiter : limiters.values())
+					writer.sample("concurrency_rejected_total", labels[i++], limiter.getRejected());
+			}
+		};
+		this.registry = MetricsRegistry.get(config.getServletContext());
+		this.registry.register(this.collector);
+	}
+
+	@Override
+	public final void destroy() {
+		if (this.registry != null) {
+			this.registry.unregister(this.collector);
+			this.registry = null;
+		}
+	}
+
+	@Override
+	public final void doFilter(final ServletRequest req, final ServletResponse res, final FilterChain chain)
+			throws IOException, ServletException {
+		if (!(req instanceof HttpServletRequest) || !(res instanceof HttpServletResponse)) {
+			chain.doFilter(req, res);
+			return;
+		}
+
+		final AdaptiveLimiter limiter = this.limiter(TimingFilter.path((HttpServletRequest) req));
+		if (!limiter.tryAcquire()) {
+			final HttpServletResponse response = (HttpServletResponse) res;
+			response.setHeader("Retry-After", this.retryAfter);
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+
+		final long start = System.nanoTime();
+		long latency = -1;
+		boolean async = false;
+		try {
+			chain.doFilter(req, res);
+			if (req.isAsyncStarted()) {
+				async = true;
+				new AsyncCompletion() {
+					@Override
+					void completed(final boolean failed) {
+						limiter.release(-1);
+					}
+				}.listen(req, res);
+			} else {
+				latency = System.nanoTime() - start;
+			}
+		} finally {
+			if (!async)
+				limiter.release(latency);
+		}
+	}
+
+	/**
+	 * @return The limiter per group, in the order of matching.
+	 */
+	public Map<String, AdaptiveLimiter> getLimiters() {
+		final Map<String, AdaptiveLimiter> limiters = new LinkedHashMap<String, AdaptiveLimiter>();
+		for (int i = 0; i < this.prefixes.length; i++)
+			limiters.put(this.prefixes[i], this.limiters[i]);
+		limiters.put(DEFAULT_GROUP, this.defaultLimiter);
+		return Collections.unmodifiableMap(limiters);
+	}
+
+	private final AdaptiveLimiter limiter(final String path) {
+		for (int i = 0; i < this.prefixes.length; i++)
+			if (path.startsWith(this.prefixes[i]))
+				return this.limiters[i];
+		return this.defaultLimiter;
+	}
+}
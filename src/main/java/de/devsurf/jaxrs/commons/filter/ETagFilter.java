@@ -0,0 +1,565 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.filter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import de.devsurf.jaxrs.commons.FilterServletStream;
+import de.devsurf.jaxrs.commons.concurrent.ExpiringCache;
+import de.devsurf.jaxrs.commons.streams.StreamUtil;
+import de.devsurf.jaxrs.commons.streams.XxHash64;
+
+/**
+ * Tags successful GET responses with an ETag and answers
+ * <code>If-None-Match</code> with 304 Not Modified.
+ * <p>
+ * The ETag is an {@link XxHash64} of the body, updated as the body is
+ * written. Since the header has to precede the body, up to
+ * {@value #PARAM_MAX_BUFFER_SIZE} bytes are held back; larger bodies, and
+ * bodies which are flushed with {@link HttpServletResponse#flushBuffer()},
+ * are passed through untagged as soon as that is known. An ETag set by the
+ * application is kept and only compared. An asynchronous response is tagged
+ * when the application calls {@link javax.servlet.AsyncContext#complete()}.
+ * <p>
+ * With {@value #PARAM_CACHE_TTL} set, the ETag of every tagged response is
+ * remembered per URI for that many seconds, and a matching conditional
+ * request is answered before the chain runs. Changes of a resource are then
+ * noticed at most that late, unless they are made through this filter: any
+ * request with an unsafe method (POST, PUT, DELETE, ...) forgets the ETag of
+ * its URI. Responses varying on request headers are not remembered, since
+ * the key does not include them. <code>Accept-Encoding</code> is the
+ * exception: a {@link CompressionFilter} only changes the encoding of the
+ * tagged body, and ETags are compared weakly. Init
+ * parameters:
+ * <ul>
+ * <li>{@value #PARAM_MAX_BUFFER_SIZE} - the largest body to tag, defaults to
+ * {@value #DEFAULT_MAX_BUFFER_SIZE}</li>
+ * <li>{@value #PARAM_CACHE_TTL} - seconds to remember an ETag, 0 (the
+ * default) disables the cache</li>
+ * <li>{@value #PARAM_CACHE_SIZE} - the number of URIs to remember, defaults
+ * to {@value #DEFAULT_CACHE_SIZE}</li>
+ * </ul>
+ *
+ * @author Daniel Manzke
+ */
+public final class ETagFilter implements Filter {
+
+	public static final String PARAM_MAX_BUFFER_SIZE = "maxBufferSize";
+
+	public static final String PARAM_CACHE_TTL = "cacheTtl";
+
+	public static final String PARAM_CACHE_SIZE = "cacheSize";
+
+	public static final int DEFAULT_MAX_BUFFER_SIZE = 65536;
+
+	public static final int DEFAULT_CACHE_SIZE = 10000;
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private int maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
+
+	private long cacheTtl;
+
+	private ExpiringCache<String, String> cache;
+
+	@Override
+	public void init(final FilterConfig config) throws ServletException {
+		this.maxBufferSize = Math.max(0, InitParameters.getInt(config, PARAM_MAX_BUFFER_SIZE, DEFAULT_MAX_BUFFER_SIZE));
+
+		final long ttl = InitParameters.getLong(config, PARAM_CACHE_TTL, 0);
+		if (ttl > 0) {
+			this.cacheTtl = TimeUnit.SECONDS.toNanos(ttl);
+			this.cache = new ExpiringCache<String, String>(InitParameters.getInt(config, PARAM_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+		}
+	}
+
+	@Override
+	public final void destroy() {
+		if (this.cache != null)
+			this.cache.clear();
+	}
+
+	@Override
+	public final void doFilter(final ServletRequest req, final ServletResponse res, final FilterChain chain)
+			throws IOException, ServletException {
+		if (!(req instanceof HttpServletRequest) || !(res instanceof HttpServletResponse)) {
+			chain.doFilter(req, res);
+			return;
+		}
+
+		final HttpServletRequest request = (HttpServletRequest) req;
+		final HttpServletResponse response = (HttpServletResponse) res;
+		final String method = request.getMethod();
+		if (!"GET".equals(method)) {
+			if (this.cache == null || isSafe(method)) {
+				chain.doFilter(request, response);
+				return;
+			}
+
+			// forget before, so a stale ETag is not served while it changes,
+			// and after, in case a GET remembered the old one meanwhile
+			this.invalidate(request);
+			try {
+				chain.doFilter(request, response);
+			} finally {
+				this.invalidate(request);
+			}
+			return;
+		}
+
+		final String ifNoneMatch = request.getHeader("If-None-Match");
+		final String key = this.cache == null ? null : key(request);
+		if (key != null && ifNoneMatch != null) {
+			final String etag = this.cache.get(key);
+			if (etag != null && matches(ifNoneMatch, etag)) {
+				response.setHeader("ETag", etag);
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+		}
+
+		final TaggingResponse tagging = new TaggingResponse(response);
+		final FinishingRequest finishing = new FinishingRequest(request, new FinishingRequest.Finisher() {
+			@Override
+			public void finish() throws IOException {
+				ETagFilter.this.finish(tagging, key, ifNoneMatch);
+			}
+		});
+
+		boolean async = false;
+		try {
+			chain.doFilter(finishing, tagging);
+			if (finishing.isAsyncStarted()) {
+				async = true;
+				new AsyncCompletion() {
+					@Override
+					void completed(final boolean failed) {
+						tagging.release();
+					}
+				}.listen(finishing, tagging);
+			} else {
+				this.finish(tagging, key, ifNoneMatch);
+			}
+		} finally {
+			if (!async)
+				tagging.release();
+		}
+	}
+
+	/**
+	 * Sends the body and remembers its ETag.
+	 */
+	private final void finish(final TaggingResponse tagging, final String key, final String ifNoneMatch) throws IOException {
+		final String etag = tagging.finish(ifNoneMatch);
+		if (key != null) {
+			if (etag != null && !varies(tagging.getHeaders("Vary"))) {
+				this.cache.put(key, etag, this.cacheTtl);
+			} else {
+				this.cache.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the <code>Vary</code> headers name any
+	 *         request header but <code>Accept-Encoding</code>.
+	 */
+	static boolean varies(final Collection<String> vary) {
+		if (vary == null)
+			return false;
+
+		for (final String value : vary) {
+			for (final String name : value.split(",")) {
+				final String trimmed = name.trim();
+				if (trimmed.length() > 0 && !trimmed.equalsIgnoreCase("Accept-Encoding"))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Forgets the ETag of the request URI, with and without its query.
+	 */
+	private final void invalidate(final HttpServletRequest request) {
+		this.cache.remove(request.getRequestURI());
+		if (request.getQueryString() != null)
+			this.cache.remove(key(request));
+	}
+
+	/**
+	 * @return <code>true</code> if the method does not change the resource.
+	 */
+	static boolean isSafe(final String method) {
+		return "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method) || "TRACE".equals(method);
+	}
+
+	/**
+	 * @return <code>true</code> if the <code>If-None-Match</code> header
+	 *         lists the ETag, compared weakly.
+	 */
+	static boolean matches(final String ifNoneMatch, final String etag) {
+		final String opaque = opaque(etag);
+		for (final String candidate : ifNoneMatch.split(",")) {
+			final String trimmed = candidate.trim();
+			if (trimmed.equals("*") || opaque(trimmed).equals(opaque))
+				return true;
+		}
+		return false;
+	}
+
+	static String etag(long hash) {
+		final char[] etag = new char[18];
+		etag[0] = '"';
+		for (int i = 16; i > 0; i--) {
+			etag[i] = HEX[(int) (hash & 0xF)];
+			hash >>>= 4;
+		}
+		etag[17] = '"';
+		return new String(etag);
+	}
+
+	private static String opaque(final String etag) {
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+
+	private static String key(final HttpServletRequest request) {
+		final String query = request.getQueryString();
+		return query == null ? request.getRequestURI() : request.getRequestURI() + '?' + query;
+	}
+
+	/**
+	 * Hashes and holds back the body until it is complete or too large.
+	 */
+	private final class TaggingResponse extends HttpServletResponseWrapper {
+
+		private final XxHash64 hash = new XxHash64();
+
+		private byte[] buffer;
+
+		private int buffered;
+
+		private boolean passThrough;
+
+		private int statusCode = HttpServletResponse.SC_OK;
+
+		private String etag;
+
+		private long contentLength = -1;
+
+		private ServletOutputStream stream;
+
+		private PrintWriter writer;
+
+		TaggingResponse(final HttpServletResponse response) {
+			super(response);
+		}
+
+		@Override
+		public final ServletOutputStream getOutputStream() throws IOException {
+			if (this.writer != null)
+				throw new IllegalStateException("getWriter() has already been called");
+			return this.stream();
+		}
+
+		@Override
+		public final PrintWriter getWriter() throws IOException {
+			if (this.writer == null) {
+				if (this.stream != null)
+					throw new IllegalStateException("getOutputStream() has already been called");
+				this.writer = this.newWriter(this.stream());
+			}
+			return this.writer;
+		}
+
+		@Override
+		public final void setStatus(final int statusCode) {
+			super.setStatus(statusCode);
+			this.statusCode = statusCode;
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public final void setStatus(final int statusCode, final String statusMessage) {
+			super.setStatus(statusCode, statusMessage);
+			this.statusCode = statusCode;
+		}
+
+		@Override
+		public final void sendError(final int statusCode) throws IOException {
+			this.passThrough();
+			super.sendError(statusCode);
+			this.statusCode = statusCode;
+		}
+
+		@Override
+		public final void sendError(final int statusCode, final String message) throws IOException {
+			this.passThrough();
+			super.sendError(statusCode, message);
+			this.statusCode = statusCode;
+		}
+
+		@Override
+		public final void sendRedirect(final String location) throws IOException {
+			this.passThrough();
+			super.sendRedirect(location);
+			this.statusCode = HttpServletResponse.SC_MOVED_TEMPORARILY;
+		}
+
+		@Override
+		public final void setContentLength(final int length) {
+			this.contentLength(length);
+		}
+
+		@Override
+		public final void setContentLengthLong(final long length) {
+			this.contentLength(length);
+		}
+
+		@Override
+		public final void setHeader(final String name, final String value) {
+			if (this.intercept(name, value))
+				super.setHeader(name, value);
+		}
+
+		@Override
+		public final void addHeader(final String name, final String value) {
+			if (this.intercept(name, value))
+				super.addHeader(name, value);
+		}
+
+		@Override
+		public final void setIntHeader(final String name, final int value) {
+			if (this.intercept(name, String.valueOf(value)))
+				super.setIntHeader(name, value);
+		}
+
+		@Override
+		public final void addIntHeader(final String name, final int value) {
+			if (this.intercept(name, String.valueOf(value)))
+				super.addIntHeader(name, value);
+		}
+
+		@Override
+		public final void flushBuffer() throws IOException {
+			if (this.writer != null)
+				this.writer.flush();
+			this.passThrough();
+			super.flushBuffer();
+		}
+
+		@Override
+		public final void resetBuffer() {
+			super.resetBuffer();
+			this.clearBody();
+		}
+
+		@Override
+		public final void reset() {
+			super.reset();
+			this.clearBody();
+			this.statusCode = HttpServletResponse.SC_OK;
+			this.etag = null;
+			this.contentLength = -1;
+		}
+
+		/**
+		 * Sends the held back body, or 304 if the client has it already.
+		 *
+		 * @return The ETag which was sent, <code>null</code> if the response
+		 *         was not tagged.
+		 */
+		final String finish(final String ifNoneMatch) throws IOException {
+			if (this.writer != null)
+				this.writer.flush();
+			if (this.passThrough)
+				return null;
+
+			if (this.statusCode != HttpServletResponse.SC_OK) {
+				this.passThrough();
+				return null;
+			}
+
+			final String etag = this.etag != null ? this.etag : etag(this.hash.getValue());
+			super.setHeader("ETag", etag);
+			if (ifNoneMatch != null && matches(ifNoneMatch, etag)) {
+				super.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return etag;
+			}
+
+			super.setContentLength(this.buffered);
+			if (this.buffered > 0)
+				super.getOutputStream().write(this.buffer, 0, this.buffered);
+			this.buffered = 0;
+			return etag;
+		}
+
+		final void release() {
+			if (this.buffer != null) {
+				StreamUtil.getBufferPool().releaseBytes(this.buffer);
+				this.buffer = null;
+			}
+			this.buffered = 0;
+		}
+
+		private final void write(final int b) throws IOException {
+			if (!this.passThrough) {
+				if (this.buffered < ETagFilter.this.maxBufferSize) {
+					this.buffer()[this.buffered++] = (byte) b;
+					this.hash.update(b);
+					return;
+				}
+				this.passThrough();
+			}
+			super.getOutputStream().write(b);
+		}
+
+		private final void write(final byte[] b, final int off, final int len) throws IOException {
+			if (!this.passThrough) {
+				if (this.buffered + len <= ETagFilter.this.maxBufferSize) {
+					System.arraycopy(b, off, this.buffer(), this.buffered, len);
+					this.buffered += len;
+					this.hash.update(b, off, len);
+					return;
+				}
+				this.passThrough();
+			}
+			super.getOutputStream().write(b, off, len);
+		}
+
+		/**
+		 * Gives up on tagging and writes what was held back.
+		 */
+		private final void passThrough() throws IOException {
+			if (this.passThrough)
+				return;
+
+			this.passThrough = true;
+			if (this.etag != null)
+				super.setHeader("ETag", this.etag);
+			if (this.contentLength >= 0)
+				super.setHeader("Content-Length", String.valueOf(this.contentLength));
+			if (this.buffered > 0)
+				super.getOutputStream().write(this.buffer, 0, this.buffered);
+			this.release();
+		}
+
+		private final byte[] buffer() {
+			if (this.buffer == null)
+				this.buffer = StreamUtil.getBufferPool().acquireBytes(ETagFilter.this.maxBufferSize);
+			return this.buffer;
+		}
+
+		/**
+		 * @return <code>true</code> if the header has to be passed on.
+		 */
+		private final boolean intercept(final String name, final String value) {
+			if (this.passThrough)
+				return true;
+
+			if ("ETag".equalsIgnoreCase(name)) {
+				this.etag = value;
+				return false;
+			}
+			if ("Content-Length".equalsIgnoreCase(name) && value != null) {
+				try {
+					this.contentLength(Long.parseLong(value.trim()));
+				} catch (NumberFormatException e) {
+					return true;
+				}
+				return false;
+			}
+			return true;
+		}
+
+		private final void contentLength(final long length) {
+			if (this.passThrough) {
+				super.setHeader("Content-Length", String.valueOf(length));
+				return;
+			}
+
+			this.contentLength = length;
+			if (length > ETagFilter.this.maxBufferSize) {
+				try {
+					this.passThrough();
+				} catch (IOException e) {
+					// nothing is written before the body exceeds the limit
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+
+		private final void clearBody() {
+			if (!this.passThrough) {
+				this.buffered = 0;
+				this.hash.reset();
+			}
+			if (this.writer != null)
+				this.writer = this.newWriter(this.stream);
+		}
+
+		private final ServletOutputStream stream() {
+			if (this.stream == null) {
+				this.stream = new FilterServletStream(new OutputStream() {
+					@Override
+					public void write(final int b) throws IOException {
+						TaggingResponse.this.write(b);
+					}
+
+					@Override
+					public void write(final byte[] b, final int off, final int len) throws IOException {
+						TaggingResponse.this.write(b, off, len);
+					}
+
+					@Override
+					public void flush() throws IOException {
+						// held back bytes stay until the body is complete
+						if (TaggingResponse.this.passThrough)
+							TaggingResponse.super.getOutputStream().flush();
+					}
+
+					@Override
+					public void close() throws IOException {
+						if (TaggingResponse.this.passThrough)
+							TaggingResponse.super.getOutputStream().close();
+					}
+				});
+			}
+			return this.stream;
+		}
+
+		private final PrintWriter newWriter(final ServletOutputStream stream) {
+			return new PrintWriter(new OutputStreamWriter(stream, Charset.forName(this.getCharacterEncoding())));
+		}
+	}
+}
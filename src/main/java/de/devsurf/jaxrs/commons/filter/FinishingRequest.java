@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.filter;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Passed down the chain by filters which have to write the end of a response
+ * themselves (e.g. the trailer of a compressed body). If the application
+ * completes an asynchronous request with {@link AsyncContext#complete()}, the
+ * {@link Finisher} runs right before, while the response can still be
+ * written. An {@link AsyncCompletion} would be too late for that.
+ * <p>
+ * Requests ended by {@link AsyncContext#dispatch()} or a timeout are not
+ * finished.
+ *
+ * @author Daniel Manzke
+ */
+final class FinishingRequest extends HttpServletRequestWrapper {
+
+	/**
+	 * Writes the end of the response.
+	 */
+	interface Finisher {
+
+		void finish() throws IOException;
+	}
+
+	private final Finisher finisher;
+
+	private FinishingContext context;
+
+	FinishingRequest(final HttpServletRequest request, final Finisher finisher) {
+		super(request);
+		this.finisher = finisher;
+	}
+
+	@Override
+	public final AsyncContext startAsync() {
+		return this.decorate(super.startAsync());
+	}
+
+	@Override
+	public final AsyncContext startAsync(final ServletRequest request, final ServletResponse response) {
+		return this.decorate(super.startAsync(request, response));
+	}
+
+	@Override
+	public final AsyncContext getAsyncContext() {
+		return this.decorate(super.getAsyncContext());
+	}
+
+	private final synchronized AsyncContext decorate(final AsyncContext context) {
+		if (this.context == null || this.context.delegate != context)
+			this.context = new FinishingContext(context, this.finisher);
+		return this.context;
+	}
+
+	private static final class FinishingContext implements AsyncContext {
+
+		final AsyncContext delegate;
+
+		private final Finisher finisher;
+
+		private boolean finished;
+
+		FinishingContext(final AsyncContext delegate, final Finisher finisher) {
+			this.delegate = delegate;
+			this.finisher = finisher;
+		}
+
+		@Override
+		public void complete() {
+			synchronized (this) {
+				if (!this.finished) {
+					this.finished = true;
+					try {
+						this.finisher.finish();
+					} catch (IOException e) {
+						// the client is gone, complete anyway
+					}
+				}
+			}
+			this.delegate.complete();
+		}
+
+		@Override
+		public ServletRequest getRequest() {
+			return this.delegate.getRequest();
+		}
+
+		@Override
+		public ServletResponse getResponse() {
+			return this.delegate.getResponse();
+		}
+
+		@Override
+		public boolean hasOriginalRequestAndResponse() {
+			return this.delegate.hasOriginalRequestAndResponse();
+		}
+
+		@Override
+		public void dispatch() {
+			this.delegate.dispatch();
+		}
+
+		@Override
+		public void dispatch(final String path) {
+			this.delegate.dispatch(path);
+		}
+
+		@Override
+		public void dispatch(final ServletContext context, final String path) {
+			this.delegate.dispatch(context, path);
+		}
+
+		@Override
+		public void start(final Runnable run) {
+			this.delegate.start(run);
+		}
+
+		@Override
+		public void addListener(final AsyncListener listener) {
+			this.delegate.addListener(listener);
+		}
+
+		@Override
+		public void addListener(final AsyncListener listener, final ServletRequest request, final ServletResponse response) {
+			this.delegate.addListener(listener, request, response);
+		}
+
+		@Override
+		public <T extends AsyncListener> T createListener(final Class<T> clazz) throws ServletException {
+			return this.delegate.createListener(clazz);
+		}
+
+		@Override
+		public void setTimeout(final long timeout) {
+			this.delegate.setTimeout(timeout);
+		}
+
+		@Override
+		public long getTimeout() {
+			return this.delegate.getTimeout();
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.filter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+
+/**
+ * Reads typed init parameters from a {@link FilterConfig}.
+ *
+ * @author Daniel Manzke
+ */
+final class InitParameters {
+
+	private static final String[] EMPTY = new String[0];
+
+	private InitParameters() {
+		// Intentionally left blank.
+	}
+
+	static final String getString(final FilterConfig config, final String name, final String defaultValue) {
+		final String value = config.getInitParameter(name);
+		return value == null || value.trim().length() == 0 ? defaultValue : value.trim();
+	}
+
+	static final boolean getBoolean(final FilterConfig config, final String name, final boolean defaultValue) {
+		final String value = getString(config, name, null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	static final int getInt(final FilterConfig config, final String name, final int defaultValue) throws ServletException {
+		final String value = getString(config, name, null);
+		if (value == null)
+			return defaultValue;
+
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new ServletException("Invalid " + name + ": " + value, e);
+		}
+	}
+
+	static final long getLong(final FilterConfig config, final String name, final long defaultValue) throws ServletException {
+		final String value = getString(config, name, null);
+		if (value == null)
+			return defaultValue;
+
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new ServletException("Invalid " + name + ": " + value, e);
+		}
+	}
+
+	/**
+	 * @return The trimmed, non-empty parts of a comma separated parameter.
+	 */
+	static final String[] getList(final FilterConfig config, final String name) {
+		final String value = config.getInitParameter(name);
+		if (value == null)
+			return EMPTY;
+
+		final List<String> parts = new ArrayList<String>();
+		for (final String part : value.split(",")) {
+			final String trimmed = part.trim();
+			if (trimmed.length() > 0)
+				parts.add(trimmed);
+		}
+		return parts.toArray(new String[parts.size()]);
+	}
+}
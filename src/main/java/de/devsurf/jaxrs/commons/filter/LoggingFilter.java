@@ -15,14 +15,19 @@
  */
 package de.devsurf.jaxrs.commons.filter;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Collection;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -34,21 +39,271 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
+import de.devsurf.jaxrs.commons.HeaderStore;
+import de.devsurf.jaxrs.commons.ReadableHttpRequestWrapper;
+import de.devsurf.jaxrs.commons.concurrent.RingBuffer;
+import de.devsurf.jaxrs.commons.logging.AccessLogEncoder;
+import de.devsurf.jaxrs.commons.logging.AccessLogFormat;
+import de.devsurf.jaxrs.commons.logging.AccessLogRecord;
+import de.devsurf.jaxrs.commons.logging.AsyncAccessLog;
+import de.devsurf.jaxrs.commons.logging.LogBuffer;
+import de.devsurf.jaxrs.commons.logging.OverflowPolicy;
+import de.devsurf.jaxrs.commons.metrics.Collector;
+import de.devsurf.jaxrs.commons.metrics.MetricType;
+import de.devsurf.jaxrs.commons.metrics.MetricsRegistry;
+import de.devsurf.jaxrs.commons.metrics.PrometheusWriter;
+import de.devsurf.jaxrs.commons.tracing.TraceContext;
+
 /**
  * This implementation of {@link Filter} logs request and response.
+ * <p>
+ * By default every request and response is printed to {@link System#out} on
+ * the request thread. With the init parameter {@value #PARAM_ASYNC} set to
+ * <code>true</code> the filter only captures an {@link AccessLogRecord} per
+ * exchange and hands it to an {@link AsyncAccessLog}, which writes it from a
+ * background thread. The asynchronous mode is configured with these init
+ * parameters:
+ * <ul>
+ * <li>{@value #PARAM_LOG_FILE} - the file to append to, defaults to
+ * {@link System#out}</li>
+ * <li>{@value #PARAM_QUEUE_CAPACITY} - the number of records which may be
+ * pending, defaults to {@value #DEFAULT_QUEUE_CAPACITY}</li>
+ * <li>{@value #PARAM_OVERFLOW_POLICY} - <code>drop</code> or
+ * <code>block</code>, see {@link OverflowPolicy}</li>
+ * <li>{@value #PARAM_BUFFER_SIZE} - the size of the write buffer, defaults to
+ * {@value #DEFAULT_BUFFER_SIZE}</li>
+ * <li>{@value #PARAM_REQUEST_HEADERS} and {@value #PARAM_RESPONSE_HEADERS} -
+ * comma separated names of the headers to capture</li>
+ * </ul>
+ * The number of written, dropped and pending records of the asynchronous log
+ * is exported through the {@link MetricsRegistry}.
+ * <p>
+ * In both modes {@value #PARAM_BODY_PREVIEW} enables the body tap of the
+ * {@link de.devsurf.jaxrs.commons.ReadableHttpResponseWrapper}: the number of
+ * response bytes is logged together with at most that many leading bytes of
+ * the body (0 logs only the size). The body itself is never buffered.
+ * <p>
+ * {@value #PARAM_REQUEST_BODY_PREVIEW} does the same for the request: it is
+ * wrapped into a {@link ReadableHttpRequestWrapper}, so the application can
+ * still consume the body as usual (even several times) and afterwards at most
+ * that many leading bytes of what was read are logged. Bodies beyond
+ * {@value #PARAM_SPILL_THRESHOLD} bytes (defaults to
+ * {@value ReadableHttpRequestWrapper#DEFAULT_THRESHOLD}) are spilled to a
+ * temporary file instead of the heap.
+ * <p>
+ * At peak load not every exchange has to be logged:
+ * <ul>
+ * <li>{@value #PARAM_SAMPLE_RATE} - the fraction of requests to log, between
+ * 0 and 1 (the default)</li>
+ * <li>{@value #PARAM_ERROR_STATUS} - requests answered with this status or
+ * above are always logged, defaults to {@value #DEFAULT_ERROR_STATUS}; 0
+ * disables it</li>
+ * <li>{@value #PARAM_SLOW_THRESHOLD} - requests taking at least this many
+ * milliseconds are always logged, 0 (the default) disables it</li>
+ * </ul>
+ * Whether a request is sampled is decided before the chain runs; other
+ * requests only get a wrapper which remembers the status, and are logged
+ * after the chain returned if they failed or were slow, without response
+ * headers and bodies. An exchange is therefore written once the response is
+ * complete.
+ * <p>
+ * {@value #PARAM_FORMAT} selects the {@link AccessLogEncoder}:
+ * <code>text</code> (the default), <code>json</code> (one JSON object per
+ * line) or <code>binary</code> (length prefixed records, see
+ * {@link AccessLogFormat}), or the class name of an own encoder. In the
+ * synchronous mode every request thread encodes into its own buffer and
+ * writes the exchange with a single call to {@link System#out}.
+ * <p>
+ * Asynchronous requests are logged once they are complete; a timeout or error
+ * is logged as status 500.
+ * <p>
+ * If the request is traced by a {@link TracingFilter}, the trace id is logged with
+ * every exchange.
+ * <p>
+ * {@value #PARAM_HEADER_ALLOW} and {@value #PARAM_HEADER_DENY} are comma
+ * separated, case-insensitive header names: if an allow list is given, only
+ * those headers are logged, and headers on the deny list (e.g.
+ * <code>Authorization</code>) never are.
  * 
  * @author Daniel Manzke
  */
 public final class LoggingFilter implements Filter {
 
+	public static final String PARAM_ASYNC = "async";
+
+	public static final String PARAM_LOG_FILE = "logFile";
+
+	public static final String PARAM_QUEUE_CAPACITY = "queueCapacity";
+
+	public static final String PARAM_OVERFLOW_POLICY = "overflowPolicy";
+
+	public static final String PARAM_BUFFER_SIZE = "bufferSize";
+
+	public static final String PARAM_REQUEST_HEADERS = "requestHeaders";
+
+	public static final String PARAM_RESPONSE_HEADERS = "responseHeaders";
+
+	public static final String PARAM_BODY_PREVIEW = "bodyPreview";
+
+	public static final String PARAM_REQUEST_BODY_PREVIEW = "requestBodyPreview";
+
+	public static final String PARAM_SPILL_THRESHOLD = "spillThreshold";
+
+	public static final String PARAM_SAMPLE_RATE = "sampleRate";
+
+	public static final String PARAM_ERROR_STATUS = "errorStatus";
+
+	public static final String PARAM_SLOW_THRESHOLD = "slowThreshold";
+
+	public static final String PARAM_HEADER_ALLOW = "headerAllow";
+
+	public static final String PARAM_HEADER_DENY = "headerDeny";
+
+	public static final String PARAM_FORMAT = "format";
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 8192;
+
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+	public static final int DEFAULT_ERROR_STATUS = 500;
+
+	private static final String[] NO_HEADERS = new String[0];
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static final int SYNC_ENCODERS = 2 * Runtime.getRuntime().availableProcessors();
+
+	private AsyncAccessLog accessLog;
+
+	private String[] requestHeaders = NO_HEADERS;
+
+	private String[] responseHeaders = NO_HEADERS;
+
+	private int bodyPreview = -1;
+
+	private int requestBodyPreview = -1;
+
+	private int spillThreshold = ReadableHttpRequestWrapper.DEFAULT_THRESHOLD;
+
+	private File spillDirectory;
+
+	private double sampleRate = 1;
+
+	private int errorStatus = DEFAULT_ERROR_STATUS;
+
+	private long slowThreshold;
+
+	private Set<String> headerAllow;
+
+	private Set<String> headerDeny;
+
+	private String format = AccessLogFormat.TEXT.name();
+
+	/**
+	 * Encoders of the synchronous mode between two requests. A pool instead
+	 * of thread locals, so nothing of the webapp stays on the threads of the
+	 * container after an undeploy.
+	 */
+	private final RingBuffer<SyncEncoder> syncEncoders = new RingBuffer<SyncEncoder>(SYNC_ENCODERS);
+
+	private MetricsRegistry registry;
+
+	private Collector collector;
+
 	@Override
 	public void init(final FilterConfig config) throws ServletException {
-		// Intentionally left blank.
+		this.bodyPreview = InitParameters.getInt(config, PARAM_BODY_PREVIEW, -1);
+		this.requestBodyPreview = InitParameters.getInt(config, PARAM_REQUEST_BODY_PREVIEW, -1);
+		this.spillThreshold = InitParameters.getInt(config, PARAM_SPILL_THRESHOLD, ReadableHttpRequestWrapper.DEFAULT_THRESHOLD);
+
+		final Object tempDir = config.getServletContext().getAttribute("javax.servlet.context.tempdir");
+		this.spillDirectory = tempDir instanceof File ? (File) tempDir : null;
+
+		final String sampleRate = InitParameters.getString(config, PARAM_SAMPLE_RATE, "1");
+		try {
+			this.sampleRate = Double.parseDouble(sampleRate);
+		} catch (NumberFormatException e) {
+			throw new ServletException("Invalid " + PARAM_SAMPLE_RATE + ": " + sampleRate, e);
+		}
+		this.errorStatus = InitParameters.getInt(config, PARAM_ERROR_STATUS, DEFAULT_ERROR_STATUS);
+		this.slowThreshold = TimeUnit.MILLISECONDS.toNanos(InitParameters.getLong(config, PARAM_SLOW_THRESHOLD, 0));
+		this.headerAllow = headerSet(InitParameters.getList(config, PARAM_HEADER_ALLOW));
+		this.headerDeny = headerSet(InitParameters.getList(config, PARAM_HEADER_DENY));
+
+		this.format = InitParameters.getString(config, PARAM_FORMAT, AccessLogFormat.TEXT.name());
+		final AccessLogEncoder encoder;
+		try {
+			encoder = this.newEncoder();
+		} catch (IllegalStateException e) {
+			throw new ServletException(e.getMessage(), e.getCause());
+		}
+
+		if (!InitParameters.getBoolean(config, PARAM_ASYNC, false))
+			return;
+
+		final int capacity = InitParameters.getInt(config, PARAM_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY);
+		final int bufferSize = InitParameters.getInt(config, PARAM_BUFFER_SIZE, DEFAULT_BUFFER_SIZE);
+
+		final String policy = InitParameters.getString(config, PARAM_OVERFLOW_POLICY, OverflowPolicy.DROP.name());
+		final OverflowPolicy overflowPolicy;
+		try {
+			overflowPolicy = OverflowPolicy.valueOf(policy.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new ServletException("Unknown " + PARAM_OVERFLOW_POLICY + ": " + policy, e);
+		}
+
+		this.requestHeaders = this.filterHeaders(InitParameters.getList(config, PARAM_REQUEST_HEADERS));
+		this.responseHeaders = this.filterHeaders(InitParameters.getList(config, PARAM_RESPONSE_HEADERS));
+
+		final String logFile = InitParameters.getString(config, PARAM_LOG_FILE, null);
+		if (logFile == null) {
+			this.accessLog = new AsyncAccessLog(System.out, false, capacity, overflowPolicy, bufferSize, encoder);
+		} else {
+			try {
+				this.accessLog = new AsyncAccessLog(new FileOutputStream(logFile, true), true, capacity, overflowPolicy, bufferSize, encoder);
+			} catch (IOException e) {
+				throw new ServletException("Unable to open " + logFile, e);
+			}
+		}
+
+		final AsyncAccessLog accessLog = this.accessLog;
+		final String written = PrometheusWriter.labels("result", "written");
+		final String dropped = PrometheusWriter.labels("result", "dropped");
+		this.collector = new Collector() {
+			@Override
+			public void collect(final PrometheusWriter writer) throws IOException {
+				writer.family("access_log_records_total", "Access log records by result.", MetricType.COUNTER);
+				writer.sample("access_log_records_total", written, accessLog.getWritten());
+				writer.sample("access_log_records_total", dropped, accessLog.getDropped());
+				writer.family("access_log_pending", "Access log records waiting for the writer.", MetricType.GAUGE);
+				writer.sample("access_log_pending", "", accessLog.getPending());
+			}
+		};
+		this.registry = MetricsRegistry.get(config.getServletContext());
+		this.registry.register(this.collector);
 	}
 
 	@Override
 	public final void destroy() {
-		// Intentionally left blank.
+		if (this.registry != null) {
+			this.registry.unregister(this.collector);
+			this.registry = null;
+		}
+		if (this.accessLog != null) {
+			this.accessLog.close();
+			this.accessLog = null;
+		}
+		while (this.syncEncoders.poll() != null) {
+			// let them be collected with the webapp
+		}
+	}
+
+	/**
+	 * @return The asynchronous access log or <code>null</code> if the filter
+	 *         logs synchronously.
+	 */
+	public final AsyncAccessLog getAccessLog() {
+		return this.accessLog;
 	}
 
 	@Override
@@ -66,140 +321,369 @@ public final class LoggingFilter implements Filter {
 
 	private final void doFilter(final HttpServletRequest request, final HttpServletResponse response, final FilterChain chain) throws IOException,
 			ServletException {
-		this.logHttpServletRequest(request);
-
-		final ReadableHttpResponseWrapper wrapper = new ReadableHttpResponseWrapper(response);
+		final long timestamp = System.currentTimeMillis();
+		final long start = System.nanoTime();
 
-		chain.doFilter(request, wrapper);
+		if (!this.sample()) {
+			this.doFilterUnsampled(request, response, chain, timestamp, start);
+			return;
+		}
 
-		this.logHttpServletResponse(wrapper);
+		final ReadableHttpRequestWrapper readable = this.requestBodyPreview >= 0 ? new ReadableHttpRequestWrapper(request, this.spillThreshold,
+				this.spillDirectory) : null;
+		final ReadableHttpResponseWrapper wrapper = this.wrap(response);
+		final HttpServletRequest chained = readable == null ? request : readable;
+
+		boolean failed = true;
+		boolean async = false;
+		try {
+			chain.doFilter(chained, wrapper);
+			failed = false;
+			if (chained.isAsyncStarted()) {
+				async = true;
+				new AsyncCompletion() {
+					@Override
+					void completed(final boolean failed) {
+						LoggingFilter.this.logExchange(request, wrapper, readable, timestamp, start, failed);
+					}
+				}.listen(chained, wrapper);
+			} else {
+				wrapper.finishBody();
+			}
+		} finally {
+			if (!async)
+				this.logExchange(request, wrapper, readable, timestamp, start, failed);
+		}
 	}
 
-	@SuppressWarnings("unchecked")
-	private final void logHttpServletRequest(final HttpServletRequest request) {
-		System.out.print(String.format("%1$tF %1$tT --> %2$s %3$s %4$s", new Date(), request.getMethod(), request.getPathInfo(), request.getQueryString()));
+	/**
+	 * Logs a sampled exchange and releases its buffers.
+	 *
+	 * @param failed
+	 *            Whether the chain threw, or an asynchronous request timed out
+	 *            or failed; logged as 500 like an unsampled request.
+	 */
+	private final void logExchange(final HttpServletRequest request, final ReadableHttpResponseWrapper wrapper,
+			final ReadableHttpRequestWrapper readable, final long timestamp, final long start, final boolean failed) {
+		final long duration = System.nanoTime() - start;
+		final int statusCode = failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : wrapper.getStatusCode() == 0 ? HttpServletResponse.SC_OK
+				: wrapper.getStatusCode();
+
+		final boolean async = this.accessLog != null;
+		this.log(new AccessLogRecord(timestamp, duration, request.getMethod(), request.getPathInfo(), request.getQueryString(),
+				async ? this.captureRequestHeaders(request) : this.allRequestHeaders(request), statusCode, wrapper.getStatusMessage(),
+				async ? this.captureResponseHeaders(wrapper) : this.allResponseHeaders(wrapper), wrapper.getBodyLength(), this.preview(wrapper),
+				this.preview(readable), traceId(request)));
+
+		wrapper.releaseBody();
+		if (readable != null)
+			readable.release();
+	}
 
-		for (final String headerName : (List<String>) Collections.list(request.getHeaderNames()))
-			for (final String headerValue : (List<String>) Collections.list(request.getHeaders(headerName)))
-				System.out.print(String.format(" %s=%s", headerName, headerValue));
+	/**
+	 * Only remembers the status, so the request can still be logged if it
+	 * failed or was slow. Neither headers nor bodies are captured.
+	 */
+	private final void doFilterUnsampled(final HttpServletRequest request, final HttpServletResponse response, final FilterChain chain,
+			final long timestamp, final long start) throws IOException, ServletException {
+		if (this.errorStatus <= 0 && this.slowThreshold <= 0) {
+			chain.doFilter(request, response);
+			return;
+		}
 
-		System.out.println();
+		final StatusResponse wrapper = new StatusResponse(response);
+		boolean failed = true;
+		boolean async = false;
+		try {
+			chain.doFilter(request, wrapper);
+			failed = false;
+			if (request.isAsyncStarted()) {
+				async = true;
+				new AsyncCompletion() {
+					@Override
+					void completed(final boolean asyncFailed) {
+						LoggingFilter.this.logUnsampled(request, asyncFailed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : wrapper.status,
+								timestamp, start);
+					}
+				}.listen(request, wrapper);
+			}
+		} finally {
+			if (!async)
+				this.logUnsampled(request, failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : wrapper.status, timestamp, start);
+		}
 	}
 
-	private final void logHttpServletResponse(final ReadableHttpResponseWrapper response) {
-		System.out.print(String.format("%1$tF %1$tT <-- %2$d %3$s", new Date(), response.getStatusCode(), response.getStatusMessage()));
+	private final void logUnsampled(final HttpServletRequest request, final int statusCode, final long timestamp, final long start) {
+		final long duration = System.nanoTime() - start;
+		final boolean error = this.errorStatus > 0 && statusCode >= this.errorStatus;
+		final boolean slow = this.slowThreshold > 0 && duration >= this.slowThreshold;
+		if (error || slow) {
+			this.log(new AccessLogRecord(timestamp, duration, request.getMethod(), request.getPathInfo(), request.getQueryString(),
+					this.accessLog != null ? this.captureRequestHeaders(request) : this.allRequestHeaders(request), statusCode, null, null, -1,
+					null, null, traceId(request)));
+		}
+	}
 
-		for (final String headerName : response.getHeaderNames())
-			for (final String headerValue : response.getHeaders(headerName))
-				System.out.print(String.format(" %s=%s", headerName, headerValue));
+	/**
+	 * @return The id of the trace started by a {@link TracingFilter} or
+	 *         <code>null</code>.
+	 */
+	static String traceId(final ServletRequest request) {
+		final Object context = request.getAttribute(TraceContext.ATTRIBUTE);
+		return context instanceof TraceContext ? ((TraceContext) context).getTraceId() : null;
+	}
 
-		System.out.println();
+	private final boolean sample() {
+		final double rate = this.sampleRate;
+		return rate >= 1 || rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
 	}
 
-	public static final class ReadableHttpResponseWrapper extends HttpServletResponseWrapper {
+	private final ReadableHttpResponseWrapper wrap(final HttpServletResponse response) {
+		final ReadableHttpResponseWrapper wrapper = new ReadableHttpResponseWrapper(response);
+		if (this.bodyPreview >= 0)
+			wrapper.enableBodyTap(this.bodyPreview);
+		return wrapper;
+	}
 
-		private int statusCode;
+	private final String preview(final ReadableHttpResponseWrapper response) {
+		if (this.bodyPreview <= 0)
+			return null;
 
-		private String statusMessage;
+		final byte[] preview = response.getBodyPreview();
+		if (preview.length == 0)
+			return null;
 
-		private Map<String, Collection<String>> headers = new HashMap<String, Collection<String>>();
-		
-		public ReadableHttpResponseWrapper(final HttpServletResponse httpServletResponse) {
-			super(httpServletResponse);
+		try {
+			return new String(preview, response.getCharacterEncoding());
+		} catch (UnsupportedEncodingException e) {
+			return new String(preview, ISO_8859_1);
 		}
+	}
 
-		@Override
-		public final void addDateHeader(final String name, final long date) {
-			super.addDateHeader(name, date);
+	private final String preview(final ReadableHttpRequestWrapper request) {
+		if (request == null || this.requestBodyPreview <= 0)
+			return null;
 
-			final String value = new Date(date).toString();
+		final byte[] preview;
+		try {
+			preview = request.getBodyPreview(this.requestBodyPreview);
+		} catch (IOException e) {
+			return null;
+		}
+		if (preview.length == 0)
+			return null;
+
+		final String encoding = request.getCharacterEncoding();
+		if (encoding != null) {
+			try {
+				return new String(preview, encoding);
+			} catch (UnsupportedEncodingException e) {
+				// fall through
+			}
+		}
+		return new String(preview, ISO_8859_1);
+	}
 
-			if (this.containsHeader(name))
-				this.headers.get(name).add(value);
-			else
-				this.headers.put(name, new LinkedList<String>(Collections.singleton(value)));
+	private final String[] captureRequestHeaders(final HttpServletRequest request) {
+		final String[] names = this.requestHeaders;
+		if (names.length == 0)
+			return null;
+
+		final String[] headers = new String[names.length << 1];
+		int count = 0;
+		for (final String name : names) {
+			final String value = request.getHeader(name);
+			if (value != null) {
+				headers[count++] = name;
+				headers[count++] = value;
+			}
 		}
+		return count == headers.length ? headers : trim(headers, count);
+	}
 
-		@Override
-		public final void addHeader(final String name, final String value) {
-			super.addHeader(name, value);
+	private final String[] captureResponseHeaders(final ReadableHttpResponseWrapper response) {
+		final String[] names = this.responseHeaders;
+		if (names.length == 0)
+			return null;
+
+		final HeaderStore store = response.getHeaderStore();
+		final String[] headers = new String[names.length << 1];
+		int count = 0;
+		for (final String name : names) {
+			final String value = store.getFirst(name);
+			if (value != null) {
+				headers[count++] = name;
+				headers[count++] = value;
+			}
+		}
+		return count == headers.length ? headers : trim(headers, count);
+	}
+
+	private static final String[] trim(final String[] headers, final int count) {
+		final String[] trimmed = new String[count];
+		System.arraycopy(headers, 0, trimmed, 0, count);
+		return trimmed;
+	}
 
-			if (this.headers.containsKey(name))
-				this.headers.get(name).add(value);
-			else
-				this.headers.put(name, new LinkedList<String>(Collections.singleton(value)));
+	private final void log(final AccessLogRecord record) {
+		final AsyncAccessLog accessLog = this.accessLog;
+		if (accessLog != null) {
+			accessLog.log(record);
+			return;
 		}
 
-		@Override
-		public final void addIntHeader(String name, int integer) {
-			super.addIntHeader(name, integer);
+		SyncEncoder sync = this.syncEncoders.poll();
+		if (sync == null)
+			sync = new SyncEncoder(this.newEncoder());
+		sync.buffer.reset();
+		sync.encoder.encode(record, sync.buffer);
+		System.out.write(sync.buffer.array(), 0, sync.buffer.size());
+		// dropped if the pool is full
+		this.syncEncoders.offer(sync);
+	}
 
-			final String value = Integer.toString(integer);
+	/**
+	 * @return All request headers which pass the allow and deny lists.
+	 */
+	@SuppressWarnings("unchecked")
+	private final String[] allRequestHeaders(final HttpServletRequest request) {
+		final List<String> headers = new ArrayList<String>();
+		for (final String headerName : (List<String>) Collections.list(request.getHeaderNames()))
+			if (this.isLogged(headerName))
+				for (final String headerValue : (List<String>) Collections.list(request.getHeaders(headerName))) {
+					headers.add(headerName);
+					headers.add(headerValue);
+				}
+		return headers.toArray(new String[headers.size()]);
+	}
 
-			if (this.headers.containsKey(name))
-				this.headers.get(name).add(value);
-			else
-				this.headers.put(name, new LinkedList<String>(Collections.singleton(value)));
-		}
+	/**
+	 * @return All captured response headers which pass the allow and deny
+	 *         lists.
+	 */
+	private final String[] allResponseHeaders(final ReadableHttpResponseWrapper response) {
+		final List<String> headers = new ArrayList<String>();
+		for (final String headerName : response.getHeaderNames())
+			if (this.isLogged(headerName))
+				for (final String headerValue : response.getHeaders(headerName)) {
+					headers.add(headerName);
+					headers.add(headerValue);
+				}
+		return headers.toArray(new String[headers.size()]);
+	}
 
-		@Override
-		public final void setDateHeader(final String name, final long date) {
-			super.setDateHeader(name, date);
-			this.headers.put(name, new LinkedList<String>(Collections.singleton(new Date(date).toString())));
+	private final AccessLogEncoder newEncoder() {
+		final String format = this.format;
+		for (final AccessLogFormat builtIn : AccessLogFormat.values())
+			if (builtIn.name().equalsIgnoreCase(format))
+				return builtIn.newEncoder();
+
+		try {
+			return Class.forName(format, true, Thread.currentThread().getContextClassLoader()).asSubclass(AccessLogEncoder.class)
+					.getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot create encoder " + format, e);
 		}
+	}
 
-		@Override
-		public final void setHeader(final String name, final String value) {
-			super.setHeader(name, value);
-			this.headers.put(name, new LinkedList<String>(Collections.singleton(value)));
+	private final boolean isLogged(final String headerName) {
+		return (this.headerAllow == null || this.headerAllow.contains(headerName))
+				&& (this.headerDeny == null || !this.headerDeny.contains(headerName));
+	}
+
+	/**
+	 * @return The names which pass the allow and deny lists.
+	 */
+	private final String[] filterHeaders(final String[] names) {
+		final List<String> logged = new ArrayList<String>(names.length);
+		for (final String name : names)
+			if (this.isLogged(name))
+				logged.add(name);
+		return logged.toArray(new String[logged.size()]);
+	}
+
+	private static final Set<String> headerSet(final String[] names) {
+		if (names.length == 0)
+			return null;
+
+		final Set<String> set = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+		set.addAll(Arrays.asList(names));
+		return set;
+	}
+
+	/**
+	 * An encoder and its buffer, used by one request at a time in the
+	 * synchronous mode.
+	 */
+	private static final class SyncEncoder {
+
+		final AccessLogEncoder encoder;
+
+		final LogBuffer buffer = new LogBuffer();
+
+		SyncEncoder(final AccessLogEncoder encoder) {
+			this.encoder = encoder;
 		}
+	}
 
-		@Override
-		public final void setIntHeader(final String name, final int value) {
-			super.setIntHeader(name, value);
-			this.headers.put(name, new LinkedList<String>(Collections.singleton(Integer.toString(value))));
+	/**
+	 * Remembers the status for responses which are not sampled.
+	 */
+	private static final class StatusResponse extends HttpServletResponseWrapper {
+
+		int status = SC_OK;
+
+		StatusResponse(final HttpServletResponse response) {
+			super(response);
 		}
 
 		@Override
-		public final void setStatus(final int statusCode, final String statusMessage) {
-			super.setStatus(statusCode, statusMessage);
-			this.statusCode = statusCode;
-			this.statusMessage = statusMessage;
+		public void setStatus(final int status) {
+			super.setStatus(status);
+			this.status = status;
 		}
 
 		@Override
-		public final void setStatus(final int statusCode) {
-			super.setStatus(statusCode);
-			this.statusCode = statusCode;
+		@SuppressWarnings("deprecation")
+		public void setStatus(final int status, final String message) {
+			super.setStatus(status, message);
+			this.status = status;
 		}
 
 		@Override
-		public final void sendError(final int statusCode) throws IOException {
-			super.sendError(statusCode);
-			this.statusCode = statusCode;
+		public void sendError(final int status) throws IOException {
+			super.sendError(status);
+			this.status = status;
 		}
 
 		@Override
-		public final void sendError(final int statusCode, final String statusMessage) throws IOException {
-			super.sendError(statusCode, statusMessage);
-			this.statusCode = statusCode;
-			this.statusMessage = statusMessage;
+		public void sendError(final int status, final String message) throws IOException {
+			super.sendError(status, message);
+			this.status = status;
 		}
 
-		public final String getStatusMessage() {
-			return this.statusMessage;
+		@Override
+		public void sendRedirect(final String location) throws IOException {
+			super.sendRedirect(location);
+			this.status = SC_MOVED_TEMPORARILY;
 		}
 
-		public final int getStatusCode() {
-			return this.statusCode;
+		@Override
+		public void reset() {
+			super.reset();
+			this.status = SC_OK;
 		}
+	}
 
-		public final Collection<String> getHeaderNames() {
-			return this.headers.keySet();
-		}
+	/**
+	 * @deprecated Use {@link de.devsurf.jaxrs.commons.ReadableHttpResponseWrapper}
+	 *             directly, this class only remains for compatibility.
+	 */
+	@Deprecated
+	public static final class ReadableHttpResponseWrapper extends de.devsurf.jaxrs.commons.ReadableHttpResponseWrapper {
 
-		public final Collection<String> getHeaders(final String name) {
-			return this.headers.get(name);
+		public ReadableHttpResponseWrapper(final HttpServletResponse httpServletResponse) {
+			super(httpServletResponse);
 		}
 	}
-}
\ No newline at end of file
+}
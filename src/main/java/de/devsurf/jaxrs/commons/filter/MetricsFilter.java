@@ -0,0 +1,428 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.filter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import de.devsurf.jaxrs.commons.MeteringServletStream;
+import de.devsurf.jaxrs.commons.metrics.Collector;
+import de.devsurf.jaxrs.commons.metrics.Counter;
+import de.devsurf.jaxrs.commons.metrics.Gauge;
+import de.devsurf.jaxrs.commons.metrics.Histogram;
+import de.devsurf.jaxrs.commons.metrics.MetricType;
+import de.devsurf.jaxrs.commons.metrics.MetricsRegistry;
+import de.devsurf.jaxrs.commons.metrics.MetricsServlet;
+import de.devsurf.jaxrs.commons.metrics.PrometheusWriter;
+import de.devsurf.jaxrs.commons.metrics.RouteNormalizer;
+import de.devsurf.jaxrs.commons.metrics.RouteReportServlet;
+import de.devsurf.jaxrs.commons.metrics.RouteStatistics;
+import de.devsurf.jaxrs.commons.metrics.RouteSummary;
+
+/**
+ * This implementation of {@link Filter} records the traffic of the
+ * application into the {@link MetricsRegistry} of the servlet context, which
+ * {@link MetricsServlet} exports:
+ * <ul>
+ * <li><code>&lt;prefix&gt;_requests_total</code> by status class
+ * (<code>2xx</code>, ...)</li>
+ * <li><code>&lt;prefix&gt;_requests_in_flight</code></li>
+ * <li><code>&lt;prefix&gt;_request_bytes_total</code> and
+ * <code>&lt;prefix&gt;_response_bytes_total</code>, the body bytes actually
+ * read and written</li>
+ * <li><code>&lt;prefix&gt;_request_duration_seconds</code> as histogram</li>
+ * </ul>
+ * Asynchronous requests count as in flight until they are complete.
+ * <p>
+ * Requests, errors (status 500 and above), response bytes and time are also
+ * counted per route, the method and the path turned into a template by
+ * {@link RouteNormalizer}. These {@link RouteStatistics} are exported as
+ * <code>&lt;prefix&gt;_route_*_total</code> and available as servlet
+ * context attribute {@value RouteStatistics#ATTRIBUTE}, the
+ * {@link RouteReportServlet} shows the routes which take the most time.
+ * <p>
+ * Init parameters:
+ * <ul>
+ * <li>{@value #PARAM_PREFIX} - the prefix of the metric names, defaults to
+ * {@value #DEFAULT_PREFIX}</li>
+ * <li>{@value #PARAM_BUCKETS} - comma separated upper bounds of the latency
+ * buckets in milliseconds, defaults to
+ * {@link Histogram#LATENCY_BUCKETS}</li>
+ * <li>{@value #PARAM_MAX_ROUTES} - the number of distinct routes to track,
+ * defaults to {@value #DEFAULT_MAX_ROUTES}</li>
+ * </ul>
+ * All metrics are looked up once in {@link #init(FilterConfig)}; recording
+ * a request allocates nothing beyond the two wrappers which count the body
+ * bytes and the route, which is computed once per request and shared with a
+ * {@link TimingFilter} through request attribute
+ * {@value TimingFilter#ROUTE_ATTRIBUTE}.
+ *
+ * @author Daniel Manzke
+ */
+public final class MetricsFilter implements Filter {
+
+	public static final String PARAM_PREFIX = "prefix";
+
+	public static final String PARAM_BUCKETS = "buckets";
+
+	public static final String PARAM_MAX_ROUTES = "maxRoutes";
+
+	public static final String DEFAULT_PREFIX = "http";
+
+	public static final int DEFAULT_MAX_ROUTES = 256;
+
+	private static final String[] STATUS_CLASSES = { "other", "1xx", "2xx", "3xx", "4xx", "5xx" };
+
+	private final Counter[] requests = new Counter[STATUS_CLASSES.length];
+
+	private final LongAdder inFlight = new LongAdder();
+
+	private Counter requestBytes;
+
+	private Counter responseBytes;
+
+	private Histogram duration;
+
+	private MetricsRegistry registry;
+
+	private String inFlightName;
+
+	private RouteStatistics routes;
+
+	private Collector collector;
+
+	@Override
+	public void init(final FilterConfig config) throws ServletException {
+		final String prefix = InitParameters.getString(config, PARAM_PREFIX, DEFAULT_PREFIX);
+
+		final String[] buckets = InitParameters.getList(config, PARAM_BUCKETS);
+		long[] bounds = Histogram.LATENCY_BUCKETS;
+		if (buckets.length > 0) {
+			bounds = new long[buckets.length];
+			for (int i = 0; i < buckets.length; i++) {
+				try {
+					bounds[i] = (long) (Double.parseDouble(buckets[i]) * TimeUnit.MILLISECONDS.toNanos(1));
+				} catch (NumberFormatException e) {
+					throw new ServletException("Invalid " + PARAM_BUCKETS + ": " + buckets[i], e);
+				}
+			}
+		}
+
+		this.registry = MetricsRegistry.get(config.getServletContext());
+		try {
+			for (int i = 0; i < STATUS_CLASSES.length; i++)
+				this.requests[i] = this.registry.counter(prefix + "_requests_total", "Requests by status class.", "status", STATUS_CLASSES[i]);
+
+			this.requestBytes = this.registry.counter(prefix + "_request_bytes_total", "Request body bytes read by the application.");
+			this.responseBytes = this.registry.counter(prefix + "_response_bytes_total", "Response body bytes written by the application.");
+			this.duration = this.registry.histogram(prefix + "_request_duration_seconds", "Time spent in the filter chain.", bounds,
+					Histogram.NANOS_TO_SECONDS);
+
+			final LongAdder inFlight = this.inFlight;
+			this.inFlightName = prefix + "_requests_in_flight";
+			this.registry.register(this.inFlightName, "Requests currently in the filter chain.", MetricType.GAUGE, new Gauge() {
+				@Override
+				public double getValue() {
+					return inFlight.sum();
+				}
+			});
+		} catch (IllegalArgumentException e) {
+			throw new ServletException(e.getMessage(), e);
+		}
+
+		this.routes = new RouteStatistics(InitParameters.getInt(config, PARAM_MAX_ROUTES, DEFAULT_MAX_ROUTES));
+		config.getServletContext().setAttribute(RouteStatistics.ATTRIBUTE, this.routes);
+
+		final RouteStatistics routes = this.routes;
+		final String requestsName = prefix + "_route_requests_total";
+		final String errorsName = prefix + "_route_errors_total";
+		final String bytesName = prefix + "_route_response_bytes_total";
+		final String timeName = prefix + "_route_seconds_total";
+		this.collector = new Collector() {
+			@Override
+			public void collect(final PrometheusWriter writer) throws IOException {
+				final List<RouteSummary> summaries = routes.getSummaries();
+				final String[] labels = new String[summaries.size()];
+				for (int i = 0; i < labels.length; i++)
+					labels[i] = PrometheusWriter.labels("route", summaries.get(i).getRoute());
+
+				writer.family(requestsName, "Requests per route.", MetricType.COUNTER);
+				for (int i = 0; i < labels.length; i++)
+					writer.sample(requestsName, labels[i], summaries.get(i).getRequests());
+				writer.family(errorsName, "Requests per route answered with 5xx or failed.", MetricType.COUNTER);
+				for (int i = 0; i < labels.length; i++)
+					writer.sample(errorsName, labels[i], summaries.get(i).getErrors());
+				writer.family(bytesName, "Response body bytes per route.", MetricType.COUNTER);
+				for (int i = 0; i < labels.length; i++)
+					writer.sample(bytesName, labels[i], summaries.get(i).getBytes());
+				writer.family(timeName, "Time spent in the filter chain per route.", MetricType.COUNTER);
+				for (int i = 0; i < labels.length; i++)
+					writer.sample(timeName, labels[i], summaries.get(i).getTotalTime() * Histogram.NANOS_TO_SECONDS);
+			}
+		};
+		this.registry.register(this.collector);
+	}
+
+	@Override
+	public final void destroy() {
+		if (this.registry != null) {
+			this.registry.unregister(this.inFlightName);
+			this.registry.unregister(this.collector);
+			this.registry = null;
+		}
+	}
+
+	@Override
+	public final void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain) throws IOException, ServletException {
+		/*
+		 * This filter is only able to handle HTTP, so we bypass anything else.
+		 */
+		if (!(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		final MeteredRequest meteredRequest = new MeteredRequest((HttpServletRequest) request);
+		final MeteredResponse meteredResponse = new MeteredResponse((HttpServletResponse) response);
+
+		this.inFlight.increment();
+		final long start = System.nanoTime();
+		int status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+		boolean async = false;
+		try {
+			chain.doFilter(meteredRequest, meteredResponse);
+			if (meteredRequest.isAsyncStarted()) {
+				async = true;
+				new AsyncCompletion() {
+					@Override
+					void completed(final boolean failed) {
+						MetricsFilter.this.record(meteredRequest, meteredResponse, failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR
+								: meteredResponse.status, start);
+					}
+				}.listen(meteredRequest, meteredResponse);
+			} else {
+				meteredResponse.finish();
+				status = meteredResponse.status;
+			}
+		} finally {
+			if (!async)
+				this.record(meteredRequest, meteredResponse, status, start);
+		}
+	}
+
+	private final void record(final MeteredRequest meteredRequest, final MeteredResponse meteredResponse, final int status, final long start) {
+		final long duration = System.nanoTime() - start;
+		this.duration.record(duration);
+		this.inFlight.decrement();
+
+		this.requests[status < 100 || status > 599 ? 0 : status / 100].increment();
+		if (meteredRequest.bytes > 0)
+			this.requestBytes.add(meteredRequest.bytes);
+		final long responseBytes = meteredResponse.body == null ? 0 : meteredResponse.body.getCount();
+		if (responseBytes > 0)
+			this.responseBytes.add(responseBytes);
+
+		this.routes.record(TimingFilter.route(meteredRequest), status >= 500, responseBytes, duration);
+	}
+
+	/**
+	 * Counts the body bytes the application reads.
+	 */
+	private static final class MeteredRequest extends HttpServletRequestWrapper {
+
+		long bytes;
+
+		private ServletInputStream input;
+
+		MeteredRequest(final HttpServletRequest request) {
+			super(request);
+		}
+
+		@Override
+		public ServletInputStream getInputStream() throws IOException {
+			if (this.input == null) {
+				final ServletInputStream input = super.getInputStream();
+				this.input = new ServletInputStream() {
+					@Override
+					public int read() throws IOException {
+						final int b = input.read();
+						if (b >= 0)
+							MeteredRequest.this.bytes++;
+						return b;
+					}
+
+					@Override
+					public int read(final byte[] b, final int off, final int len) throws IOException {
+						final int n = input.read(b, off, len);
+						if (n > 0)
+							MeteredRequest.this.bytes += n;
+						return n;
+					}
+
+					@Override
+					public int available() throws IOException {
+						return input.available();
+					}
+
+					@Override
+					public void close() throws IOException {
+						input.close();
+					}
+
+					@Override
+					public boolean isFinished() {
+						return input.isFinished();
+					}
+
+					@Override
+					public boolean isReady() {
+						return input.isReady();
+					}
+
+					@Override
+					public void setReadListener(final ReadListener listener) {
+						input.setReadListener(listener);
+					}
+				};
+			}
+			return this.input;
+		}
+
+		@Override
+		public BufferedReader getReader() throws IOException {
+			final String encoding = this.getCharacterEncoding();
+			return new BufferedReader(new InputStreamReader(this.getInputStream(), Charset.forName(encoding == null ? "ISO-8859-1"
+					: encoding)));
+		}
+	}
+
+	/**
+	 * Remembers the status and counts the body bytes the application writes.
+	 */
+	private static final class MeteredResponse extends HttpServletResponseWrapper {
+
+		int status = SC_OK;
+
+		MeteringServletStream body;
+
+		private PrintWriter writer;
+
+		MeteredResponse(final HttpServletResponse response) {
+			super(response);
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			if (this.writer != null)
+				throw new IllegalStateException("getWriter() has already been called");
+			return this.body();
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			if (this.writer == null) {
+				if (this.body != null)
+					throw new IllegalStateException("getOutputStream() has already been called");
+				this.writer = new PrintWriter(new OutputStreamWriter(this.body(), Charset.forName(this.getCharacterEncoding())));
+			}
+			return this.writer;
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			if (this.writer != null)
+				this.writer.flush();
+			super.flushBuffer();
+		}
+
+		@Override
+		public void resetBuffer() {
+			super.resetBuffer();
+			if (this.writer != null)
+				this.writer = new PrintWriter(new OutputStreamWriter(this.body, Charset.forName(this.getCharacterEncoding())));
+		}
+
+		@Override
+		public void reset() {
+			this.resetBuffer();
+			super.reset();
+			this.status = SC_OK;
+		}
+
+		@Override
+		public void setStatus(final int status) {
+			super.setStatus(status);
+			this.status = status;
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public void setStatus(final int status, final String message) {
+			super.setStatus(status, message);
+			this.status = status;
+		}
+
+		@Override
+		public void sendError(final int status) throws IOException {
+			super.sendError(status);
+			this.status = status;
+		}
+
+		@Override
+		public void sendError(final int status, final String message) throws IOException {
+			super.sendError(status, message);
+			this.status = status;
+		}
+
+		@Override
+		public void sendRedirect(final String location) throws IOException {
+			super.sendRedirect(location);
+			this.status = SC_MOVED_TEMPORARILY;
+		}
+
+		final void finish() {
+			if (this.writer != null)
+				this.writer.flush();
+		}
+
+		private final MeteringServletStream body() throws IOException {
+			if (this.body == null)
+				this.body = new MeteringServletStream(super.getOutputStream(), 0);
+			return this.body;
+		}
+	}
+}
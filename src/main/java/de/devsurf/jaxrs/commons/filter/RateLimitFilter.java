@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.filter;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import de.devsurf.jaxrs.commons.concurrent.RateLimiter;
+import de.devsurf.jaxrs.commons.metrics.Collector;
+import de.devsurf.jaxrs.commons.metrics.MetricType;
+import de.devsurf.jaxrs.commons.metrics.MetricsRegistry;
+import de.devsurf.jaxrs.commons.metrics.PrometheusWriter;
+
+/**
+ * Limits the request rate per client with a {@link RateLimiter}.
+ * <p>
+ * Clients are told apart by their remote address, or with
+ * {@value #PARAM_KEY} set to <code>principal</code> by the user which
+ * {@link BasicAuthFilter} or the container authenticated, falling back to
+ * the address for anonymous requests. Every response carries
+ * <code>RateLimit-Limit</code>, <code>RateLimit-Remaining</code> and
+ * <code>RateLimit-Reset</code> (seconds until the bucket is full); rejected
+ * requests get 429 Too Many Requests with <code>Retry-After</code>. Init
+ * parameters:
+ * <ul>
+ * <li>{@value #PARAM_RATE} - requests per second, defaults to
+ * {@value #DEFAULT_RATE}</li>
+ * <li>{@value #PARAM_BURST} - the size of a bucket, defaults to the rate</li>
+ * <li>{@value #PARAM_KEY} - <code>address</code> (the default) or
+ * <code>principal</code></li>
+ * <li>{@value #PARAM_MAX_KEYS} - the number of clients to track, defaults to
+ * {@value #DEFAULT_MAX_KEYS}</li>
+ * </ul>
+ * The limiter is available as the servlet context attribute
+ * {@value #LIMITER_ATTRIBUTE}; the number of rejected requests and tracked
+ * clients are exported through the {@link MetricsRegistry}.
+ *
+ * @author Daniel Manzke
+ */
+public final class RateLimitFilter implements Filter {
+
+	public static final String LIMITER_ATTRIBUTE = "de.devsurf.jaxrs.commons.concurrent.RateLimiter";
+
+	public static final String PARAM_RATE = "rate";
+
+	public static final String PARAM_BURST = "burst";
+
+	public static final String PARAM_KEY = "key";
+
+	public static final String PARAM_MAX_KEYS = "maxKeys";
+
+	public static final int DEFAULT_RATE = 10;
+
+	public static final int DEFAULT_MAX_KEYS = 1000000;
+
+	private static final int SC_TOO_MANY_REQUESTS = 429;
+
+	private RateLimiter limiter = new RateLimiter(DEFAULT_RATE, DEFAULT_RATE, DEFAULT_MAX_KEYS);
+
+	private String limit = String.valueOf(DEFAULT_RATE);
+
+	private boolean principal;
+
+	private MetricsRegistry registry;
+
+	private Collector collector;
+
+	@Override
+	public void init(final FilterConfig config) throws ServletException {
+		final String rate = InitParameters.getString(config, PARAM_RATE, String.valueOf(DEFAULT_RATE));
+		final double perSecond;
+		try {
+			perSecond = Double.parseDouble(rate);
+		} catch (NumberFormatException e) {
+			throw new ServletException("Invalid " + PARAM_RATE + ": " + rate, e);
+		}
+
+		final int burst = InitParameters.getInt(config, PARAM_BURST, (int) Math.max(1, Math.ceil(perSecond)));
+		final String key = InitParameters.getString(config, PARAM_KEY, "address");
+		if (!key.equals("address") && !key.equals("principal"))
+			throw new ServletException("Unknown " + PARAM_KEY + ": " + key);
+
+		try {
+			this.limiter = new RateLimiter(perSecond, burst, InitParameters.getInt(config, PARAM_MAX_KEYS, DEFAULT_MAX_KEYS));
+		} catch (IllegalArgumentException e) {
+			throw new ServletException(e.getMessage(), e);
+		}
+		this.limit = String.valueOf(burst);
+		this.principal = key.equals("principal");
+
+		config.getServletContext().setAttribute(LIMITER_ATTRIBUTE, this.limiter);
+
+		final RateLimiter limiter = this.limiter;
+		this.collector = new Collector() {
+			@Override
+			public void collect(final PrometheusWriter writer) throws IOException {
+				writer.family("rate_limit_rejected_total", "Requests rejected by the rate limit.", MetricType.COUNTER);
+				writer.sample("rate_limit_rejected_total", "", limiter.getRejected());
+				writer.family("rate_limit_clients", "Clients with a partly drained bucket.", MetricType.GAUGE);
+				writer.sample("rate_limit_clients", "", limiter.size());
+			}
+		};
+		this.registry = MetricsRegistry.get(config.getServletContext());
+		this.registry.register(this.collector);
+	}
+
+	@Override
+	public final void destroy() {
+		if (this.registry != null) {
+			this.registry.unregister(this.collector);
+			this.registry = null;
+		}
+	}
+
+	@Override
+	public final void doFilter(final ServletRequest req, final ServletResponse res, final FilterChain chain)
+			throws IOException, ServletException {
+		if (!(req instanceof HttpServletRequest) || !(res instanceof HttpServletResponse)) {
+			chain.doFilter(req, res);
+			return;
+		}
+
+		final HttpServletResponse response = (HttpServletResponse) res;
+		final long acquired = this.limiter.tryAcquire(this.key((HttpServletRequest) req));
+
+		response.setHeader("RateLimit-Limit", this.limit);
+		response.setHeader("RateLimit-Remaining", String.valueOf(this.limiter.getRemaining(acquired)));
+		if (acquired > 0) {
+			response.setHeader("RateLimit-Reset", String.valueOf(seconds(acquired)));
+			chain.doFilter(req, res);
+			return;
+		}
+
+		final String retryAfter = String.valueOf(seconds(-acquired));
+		response.setHeader("RateLimit-Reset", retryAfter);
+		response.setHeader("Retry-After", retryAfter);
+		response.setStatus(SC_TOO_MANY_REQUESTS);
+	}
+
+	public RateLimiter getLimiter() {
+		return this.limiter;
+	}
+
+	private final String key(final HttpServletRequest request) {
+		if (this.principal) {
+			final Object user = request.getAttribute(BasicAuthFilter.USER_ATTRIBUTE);
+			if (user != null)
+				return "user:" + user;
+
+			final String remoteUser = request.getRemoteUser();
+			if (remoteUser != null)
+				return "user:" + remoteUser;
+		}
+		return request.getRemoteAddr();
+	}
+
+	/**
+	 * @return The nanoseconds rounded up to whole seconds.
+	 */
+	private static long seconds(final long nanos) {
+		return (nanos + 999999999L) / 1000000000L;
+	}
+}
@@ -0,0 +1,377 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.filter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import de.devsurf.jaxrs.commons.HeaderStore;
+import de.devsurf.jaxrs.commons.ReadableHttpResponseWrapper;
+import de.devsurf.jaxrs.commons.cache.CachedResponse;
+import de.devsurf.jaxrs.commons.cache.ResponseCache;
+import de.devsurf.jaxrs.commons.concurrent.ExpiringCache;
+import de.devsurf.jaxrs.commons.concurrent.SingleFlight;
+import de.devsurf.jaxrs.commons.metrics.Collector;
+import de.devsurf.jaxrs.commons.metrics.MetricType;
+import de.devsurf.jaxrs.commons.metrics.MetricsRegistry;
+import de.devsurf.jaxrs.commons.metrics.PrometheusWriter;
+
+/**
+ * Serves repeated GET requests from a {@link ResponseCache}.
+ * <p>
+ * Responses are keyed by path, query and the request headers named in
+ * {@value #PARAM_VARY_HEADERS}. Only 200 responses are stored, and only if
+ * their <code>Cache-Control</code> allows a shared cache to: the lifetime is
+ * taken from <code>s-maxage</code> or <code>max-age</code>, falling back to
+ * {@value #PARAM_DEFAULT_TTL}. Responses setting cookies, varying on other
+ * headers or larger than {@value #PARAM_MAX_ENTRY_SIZE} are not stored;
+ * requests with credentials or <code>no-cache</code> bypass the cache.
+ * Asynchronous responses are stored once they are complete, unless they
+ * timed out or failed.
+ * <p>
+ * Concurrent misses for the same key are coalesced: one request runs the
+ * chain, the others wait up to {@value #PARAM_COALESCE_TIMEOUT} milliseconds
+ * and are then served from the cache, or run the chain themselves if the
+ * response could not be stored. A key whose response could not be stored is
+ * not coalesced for the next ten seconds, so requests to endpoints which are
+ * never cacheable do not wait for each other. Place the filter inside a
+ * {@link CompressionFilter}, so the cache holds the identity encoding. Init
+ * parameters:
+ * <ul>
+ * <li>{@value #PARAM_MAX_SIZE} - the off-heap budget in bytes, defaults to
+ * {@value #DEFAULT_MAX_SIZE}</li>
+ * <li>{@value #PARAM_PAGE_SIZE} - the unit of allocation, defaults to
+ * {@value #DEFAULT_PAGE_SIZE}</li>
+ * <li>{@value #PARAM_MAX_ENTRY_SIZE} - the largest body to store, defaults
+ * to {@value #DEFAULT_MAX_ENTRY_SIZE}</li>
+ * <li>{@value #PARAM_DEFAULT_TTL} - seconds to keep responses without
+ * max-age, 0 (the default) does not store them</li>
+ * <li>{@value #PARAM_VARY_HEADERS} - comma separated request headers which
+ * select different responses, defaults to <code>Accept</code> and
+ * <code>Accept-Language</code></li>
+ * <li>{@value #PARAM_COALESCE_TIMEOUT} - milliseconds a request waits for a
+ * concurrent miss, defaults to {@value #DEFAULT_COALESCE_TIMEOUT}; 0
+ * disables coalescing</li>
+ * </ul>
+ * The cache is available through {@link #getCache()} and as the servlet
+ * context attribute {@value #CACHE_ATTRIBUTE}; hits, misses, evictions and
+ * the bytes in use are exported through the {@link MetricsRegistry}.
+ *
+ * @author Daniel Manzke
+ */
+public final class ResponseCacheFilter implements Filter {
+
+	public static final String CACHE_ATTRIBUTE = "de.devsurf.jaxrs.commons.cache.ResponseCache";
+
+	public static final String PARAM_MAX_SIZE = "maxSize";
+
+	public static final String PARAM_PAGE_SIZE = "pageSize";
+
+	public static final String PARAM_MAX_ENTRY_SIZE = "maxEntrySize";
+
+	public static final String PARAM_DEFAULT_TTL = "defaultTtl";
+
+	public static final String PARAM_VARY_HEADERS = "varyHeaders";
+
+	public static final String PARAM_COALESCE_TIMEOUT = "coalesceTimeout";
+
+	public static final long DEFAULT_MAX_SIZE = 67108864;
+
+	public static final int DEFAULT_PAGE_SIZE = 4096;
+
+	public static final int DEFAULT_MAX_ENTRY_SIZE = 1048576;
+
+	public static final long DEFAULT_COALESCE_TIMEOUT = 5000;
+
+	private static final String[] DEFAULT_VARY_HEADERS = { "Accept", "Accept-Language" };
+
+	private static final long UNSTORABLE_TTL = TimeUnit.SECONDS.toNanos(10);
+
+	private static final int UNSTORABLE_KEYS = 10000;
+
+	private ResponseCache cache;
+
+	private final SingleFlight<String, Boolean> flights = new SingleFlight<String, Boolean>();
+
+	private final ExpiringCache<String, Boolean> unstorable = new ExpiringCache<String, Boolean>(UNSTORABLE_KEYS);
+
+	private int maxEntrySize = DEFAULT_MAX_ENTRY_SIZE;
+
+	private long defaultTtl;
+
+	private long coalesceTimeout = DEFAULT_COALESCE_TIMEOUT;
+
+	private String[] varyHeaders = DEFAULT_VARY_HEADERS;
+
+	private MetricsRegistry registry;
+
+	private Collector collector;
+
+	@Override
+	public void init(final FilterConfig config) throws ServletException {
+		final long maxSize = InitParameters.getLong(config, PARAM_MAX_SIZE, DEFAULT_MAX_SIZE);
+		final int pageSize = InitParameters.getInt(config, PARAM_PAGE_SIZE, DEFAULT_PAGE_SIZE);
+		if (maxSize < pageSize || pageSize < 1)
+			throw new ServletException("Invalid " + PARAM_MAX_SIZE + " or " + PARAM_PAGE_SIZE + ": " + maxSize + ", " + pageSize);
+
+		this.cache = new ResponseCache(maxSize, pageSize);
+		this.maxEntrySize = InitParameters.getInt(config, PARAM_MAX_ENTRY_SIZE, DEFAULT_MAX_ENTRY_SIZE);
+		this.defaultTtl = TimeUnit.SECONDS.toNanos(InitParameters.getLong(config, PARAM_DEFAULT_TTL, 0));
+		this.coalesceTimeout = InitParameters.getLong(config, PARAM_COALESCE_TIMEOUT, DEFAULT_COALESCE_TIMEOUT);
+
+		final String[] varyHeaders = InitParameters.getList(config, PARAM_VARY_HEADERS);
+		if (varyHeaders.length > 0)
+			this.varyHeaders = varyHeaders;
+
+		config.getServletContext().setAttribute(CACHE_ATTRIBUTE, this.cache);
+
+		final ResponseCache cache = this.cache;
+		final String hit = PrometheusWriter.labels("result", "hit");
+		final String miss = PrometheusWriter.labels("result", "miss");
+		this.collector = new Collector() {
+			@Override
+			public void collect(final PrometheusWriter writer) throws IOException {
+				writer.family("response_cache_requests_total", "Cache lookups by result.", MetricType.COUNTER);
+				writer.sample("response_cache_requests_total", hit, cache.getHits());
+				writer.sample("response_cache_requests_total", miss, cache.getMisses());
+				writer.family("response_cache_evictions_total", "Responses evicted to make room.", MetricType.COUNTER);
+				writer.sample("response_cache_evictions_total", "", cache.getEvictions());
+				writer.family("response_cache_bytes", "Off-heap bytes held by cached responses.", MetricType.GAUGE);
+				writer.sample("response_cache_bytes", "", cache.getWeightedSize());
+			}
+		};
+		this.registry = MetricsRegistry.get(config.getServletContext());
+		this.registry.register(this.collector);
+	}
+
+	@Override
+	public final void destroy() {
+		if (this.registry != null) {
+			this.registry.unregister(this.collector);
+			this.registry = null;
+		}
+		if (this.cache != null)
+			this.cache.clear();
+		this.unstorable.clear();
+	}
+
+	@Override
+	public final void doFilter(final ServletRequest req, final ServletResponse res, final FilterChain chain)
+			throws IOException, ServletException {
+		if (!(req instanceof HttpServletRequest) || !(res instanceof HttpServletResponse)) {
+			chain.doFilter(req, res);
+			return;
+		}
+
+		final HttpServletRequest request = (HttpServletRequest) req;
+		final HttpServletResponse response = (HttpServletResponse) res;
+		if (this.cache == null || !"GET".equals(request.getMethod()) || request.getHeader("Authorization") != null) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		final String requestCacheControl = request.getHeader("Cache-Control");
+		final boolean noStore = contains(requestCacheControl, "no-store");
+		final boolean noCache = noStore || contains(requestCacheControl, "no-cache")
+				|| contains(request.getHeader("Pragma"), "no-cache");
+
+		final String key = StoredResponses.key(request, this.varyHeaders);
+		if (!noCache && this.serve(key, response))
+			return;
+
+		SingleFlight.Call<String, Boolean> call = null;
+		if (!noCache && this.coalesceTimeout > 0 && this.unstorable.get(key) == null) {
+			call = this.flights.join(key);
+			if (!call.isLeader()) {
+				try {
+					call.await(this.coalesceTimeout, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new ServletException("Interrupted while waiting for " + key, e);
+				}
+				if (this.serve(key, response))
+					return;
+				call = null;
+			}
+		}
+
+		final ReadableHttpResponseWrapper wrapper = new ReadableHttpResponseWrapper(response);
+		wrapper.enableBodyTap(this.maxEntrySize + 1);
+		final SingleFlight.Call<String, Boolean> flight = call;
+		boolean store = false;
+		boolean async = false;
+		try {
+			chain.doFilter(request, wrapper);
+			if (request.isAsyncStarted()) {
+				async = true;
+				new AsyncCompletion() {
+					@Override
+					void completed(final boolean failed) {
+						ResponseCacheFilter.this.finish(key, wrapper, flight, !failed && !noStore);
+					}
+				}.listen(request, wrapper);
+			} else {
+				wrapper.finishBody();
+				store = !noStore;
+			}
+		} finally {
+			if (!async)
+				this.finish(key, wrapper, flight, store);
+		}
+	}
+
+	/**
+	 * Stores the response if asked to, releases the body and wakes up the
+	 * requests waiting for it.
+	 */
+	private final void finish(final String key, final ReadableHttpResponseWrapper wrapper, final SingleFlight.Call<String, Boolean> call,
+			final boolean store) {
+		boolean stored = false;
+		try {
+			if (store) {
+				stored = this.store(key, wrapper);
+				if (stored) {
+					this.unstorable.remove(key);
+				} else {
+					this.unstorable.put(key, Boolean.TRUE, UNSTORABLE_TTL);
+				}
+			}
+		} finally {
+			wrapper.releaseBody();
+			if (call != null)
+				call.complete(Boolean.valueOf(stored));
+		}
+	}
+
+	public ResponseCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * @return <code>true</code> if the response was served from the cache.
+	 */
+	private final boolean serve(final String key, final HttpServletResponse response) throws IOException {
+		final CachedResponse cached = this.cache.get(key);
+		if (cached == null)
+			return false;
+
+		try {
+			response.setStatus(cached.getStatus());
+			if (cached.getContentType() != null)
+				response.setContentType(cached.getContentType());
+			for (int i = 0; i < cached.getHeaderCount(); i++)
+				response.addHeader(cached.getHeaderName(i), cached.getHeaderValue(i));
+			response.setHeader("Age", Long.toString(cached.getAge()));
+			response.setContentLength(cached.getLength());
+			cached.writeBody(response.getOutputStream());
+		} finally {
+			cached.release();
+		}
+		return true;
+	}
+
+	private final boolean store(final String key, final ReadableHttpResponseWrapper wrapper) {
+		final int status = wrapper.getStatusCode() == 0 ? HttpServletResponse.SC_OK : wrapper.getStatusCode();
+		final long length = wrapper.getBodyLength();
+		if (status != HttpServletResponse.SC_OK || length > this.maxEntrySize)
+			return false;
+
+		final HeaderStore headers = wrapper.getHeaderStore();
+		if (headers.contains("Set-Cookie") || !this.isVaryCovered(headers.get("Vary")))
+			return false;
+
+		final long ttl = this.ttl(headers.get("Cache-Control"));
+		if (ttl <= 0)
+			return false;
+
+		// the age is set when the response is served
+		final byte[] body = wrapper.getBodyPreview();
+		return this.cache.put(key, status, wrapper.getContentType(), StoredResponses.copyHeaders(headers, "Age"), body,
+				body.length, ttl);
+	}
+
+	/**
+	 * @return The lifetime in nanoseconds, 0 if the response must not be
+	 *         stored.
+	 */
+	private final long ttl(final List<String> cacheControl) {
+		if (cacheControl == null)
+			return this.defaultTtl;
+
+		long maxAge = -1;
+		long sharedMaxAge = -1;
+		for (final String value : cacheControl) {
+			for (final String directive : value.split(",")) {
+				final String trimmed = directive.trim().toLowerCase(Locale.ENGLISH);
+				if (trimmed.equals("no-store") || trimmed.equals("no-cache") || trimmed.equals("private"))
+					return 0;
+				if (trimmed.startsWith("s-maxage=")) {
+					sharedMaxAge = seconds(trimmed.substring(9));
+				} else if (trimmed.startsWith("max-age=")) {
+					maxAge = seconds(trimmed.substring(8));
+				}
+			}
+		}
+
+		final long seconds = sharedMaxAge >= 0 ? sharedMaxAge : maxAge;
+		return seconds >= 0 ? TimeUnit.SECONDS.toNanos(seconds) : this.defaultTtl;
+	}
+
+	private final boolean isVaryCovered(final List<String> vary) {
+		if (vary == null)
+			return true;
+
+		for (final String value : vary) {
+			for (final String name : value.split(",")) {
+				final String trimmed = name.trim();
+				if (trimmed.length() == 0)
+					continue;
+				if (trimmed.equals("*"))
+					return false;
+
+				boolean covered = false;
+				for (final String varyHeader : this.varyHeaders)
+					covered |= varyHeader.equalsIgnoreCase(trimmed);
+				if (!covered)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private static long seconds(final String value) {
+		try {
+			return Math.max(0, Long.parseLong(value.trim()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static boolean contains(final String header, final String directive) {
+		return header != null && header.toLowerCase(Locale.ENGLISH).contains(directive);
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.filter;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.http.HttpServletRequest;
+
+import de.devsurf.jaxrs.commons.HeaderStore;
+
+/**
+ * Keys and header copies shared by the filters which answer a request with
+ * the response of another one.
+ *
+ * @author Daniel Manzke
+ */
+final class StoredResponses {
+
+	/**
+	 * Headers describing the connection or one transfer of the body, which
+	 * must not be replayed.
+	 */
+	private static final String[] HOP_HEADERS = { "Content-Length", "Transfer-Encoding", "Connection", "Keep-Alive",
+			"Date" };
+
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	private StoredResponses() {
+		// Intentionally left blank.
+	}
+
+	/**
+	 * @param headers
+	 *            The request headers which select different responses.
+	 * @return Path, query and the values of the headers, one per line.
+	 */
+	static final String key(final HttpServletRequest request, final String[] headers) {
+		final StringBuilder key = new StringBuilder(128).append(request.getRequestURI());
+		final String query = request.getQueryString();
+		if (query != null)
+			key.append('?').append(query);
+
+		for (final String name : headers) {
+			final String value = request.getHeader(name);
+			key.append('\n');
+			if (value != null)
+				key.append(value);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Copies the response headers, except hop-by-hop ones and those named in
+	 * <code>excluded</code>. Date headers are formatted as HTTP dates.
+	 *
+	 * @return Alternating names and values.
+	 */
+	static final String[] copyHeaders(final HeaderStore headers, final String... excluded) {
+		final List<String> copy = new ArrayList<String>(headers.size() * 2);
+		for (int i = 0; i < headers.size(); i++) {
+			final String name = headers.getName(i);
+			if (contains(HOP_HEADERS, name) || contains(excluded, name))
+				continue;
+			copy.add(name);
+			copy.add(headers.isDate(i) ? HTTP_DATE.format(Instant.ofEpochMilli(headers.getDate(i))) : headers.getValue(i));
+		}
+		return copy.toArray(new String[copy.size()]);
+	}
+
+	private static boolean contains(final String[] names, final String name) {
+		for (final String candidate : names)
+			if (candidate.equalsIgnoreCase(name))
+				return true;
+		return false;
+	}
+}
@@ -17,6 +17,11 @@ package de.devsurf.jaxrs.commons.filter;
 
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
@@ -24,26 +29,209 @@ import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
 
+import de.devsurf.jaxrs.commons.metrics.Collector;
+import de.devsurf.jaxrs.commons.metrics.Histogram;
+import de.devsurf.jaxrs.commons.metrics.LatencyHistogram;
+import de.devsurf.jaxrs.commons.metrics.LatencyRecorder;
+import de.devsurf.jaxrs.commons.metrics.LatencySnapshot;
+import de.devsurf.jaxrs.commons.metrics.MetricType;
+import de.devsurf.jaxrs.commons.metrics.MetricsRegistry;
+import de.devsurf.jaxrs.commons.metrics.PrometheusWriter;
+import de.devsurf.jaxrs.commons.metrics.RouteNormalizer;
+
+/**
+ * Measures the processing time of every request and records it into a
+ * {@link LatencyHistogram} per route: the method and the path, with numeric
+ * and UUID segments collapsed by {@link RouteNormalizer}. Asynchronous
+ * requests are measured until they are complete.
+ * <p>
+ * The {@link LatencyRecorder} is available through {@link #getRecorder()} and
+ * as the servlet context attribute {@value #RECORDER_ATTRIBUTE}. The
+ * {@link MetricsRegistry} exports it as summary
+ * <code>http_route_duration_seconds</code> with one series per route. Init
+ * parameters:
+ * <ul>
+ * <li>{@value #PARAM_PRINT} - print every request to {@link System#out},
+ * defaults to <code>true</code>, together with the trace id of a
+ * {@link TracingFilter}</li>
+ * <li>{@value #PARAM_RESET_INTERVAL} - seconds after which the histograms are
+ * rotated, 0 (the default) never resets them</li>
+ * <li>{@value #PARAM_MAX_ROUTES} - the number of distinct routes to track,
+ * defaults to {@value #DEFAULT_MAX_ROUTES}</li>
+ * </ul>
+ * The route is computed once per request and kept as request attribute
+ * {@value #ROUTE_ATTRIBUTE}, which the {@link MetricsFilter} shares.
+ */
 public class TimingFilter implements Filter {
+	public static final String RECORDER_ATTRIBUTE = "de.devsurf.jaxrs.commons.metrics.LatencyRecorder";
+
+	public static final String ROUTE_ATTRIBUTE = "de.devsurf.jaxrs.commons.filter.TimingFilter.route";
+
+	public static final String PARAM_PRINT = "print";
+
+	public static final String PARAM_RESET_INTERVAL = "resetInterval";
+
+	public static final String PARAM_MAX_ROUTES = "maxRoutes";
+
+	public static final int DEFAULT_MAX_ROUTES = 256;
+
+	/**
+	 * @deprecated {@link DecimalFormat} is not thread-safe and no longer used
+	 *             by this filter.
+	 */
+	@Deprecated
 	public static final DecimalFormat format = new DecimalFormat("#.###");
+
+	private LatencyRecorder recorder = new LatencyRecorder(DEFAULT_MAX_ROUTES, 4);
+
+	private boolean print = true;
+
+	private ScheduledExecutorService rotation;
+
+	private MetricsRegistry registry;
+
+	private Collector collector;
+
 	@Override
 	public void destroy() {
+		if (this.rotation != null) {
+			this.rotation.shutdownNow();
+			this.rotation = null;
+		}
+		if (this.registry != null) {
+			this.registry.unregister(this.collector);
+			this.registry = null;
+		}
 	}
 
 	@Override
-	public void doFilter(ServletRequest req, ServletResponse res,
+	public void doFilter(final ServletRequest req, ServletResponse res,
 			FilterChain chain) throws IOException, ServletException {
-		long start = System.nanoTime();
+		final long start = System.nanoTime();
 
-		chain.doFilter(req, res);
+		try {
+			chain.doFilter(req, res);
+		} finally {
+			if (req.isAsyncStarted()) {
+				new AsyncCompletion() {
+					@Override
+					void completed(boolean failed) {
+						record(req, start);
+					}
+				}.listen(req, res);
+			} else {
+				record(req, start);
+			}
+		}
+	}
 
+	private void record(ServletRequest req, long start) {
 		long duration = System.nanoTime()-start;
-		System.out.println("Processing the Request took: "+duration+" ns ~ "+format.format((duration/1000000d))+" ms");
+		recorder.record(route(req), duration);
+
+		if (print) {
+			String traceId = LoggingFilter.traceId(req);
+			System.out.println(traceId == null ? message(duration) : message(duration) + " trace=" + traceId);
+		}
 	}
 
 	@Override
-	public void init(FilterConfig arg0) throws ServletException {
+	public void init(FilterConfig config) throws ServletException {
+		print = InitParameters.getBoolean(config, PARAM_PRINT, true);
+
+		int maxRoutes = InitParameters.getInt(config, PARAM_MAX_ROUTES, DEFAULT_MAX_ROUTES);
+		recorder = new LatencyRecorder(maxRoutes, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		config.getServletContext().setAttribute(RECORDER_ATTRIBUTE, recorder);
+
+		final LatencyRecorder exported = recorder;
+		collector = new Collector() {
+			@Override
+			public void collect(PrometheusWriter writer) throws IOException {
+				writer.family("http_route_duration_seconds", "Processing time per route.", MetricType.SUMMARY);
+				for (Map.Entry<String, LatencySnapshot> entry : exported.getSnapshots().entrySet())
+					writer.summary("http_route_duration_seconds", PrometheusWriter.labels("route", entry.getKey()), entry.getValue(),
+							Histogram.NANOS_TO_SECONDS);
+			}
+		};
+		registry = MetricsRegistry.get(config.getServletContext());
+		registry.register(collector);
+
+		int interval = InitParameters.getInt(config, PARAM_RESET_INTERVAL, 0);
+		if (interval > 0) {
+			rotation = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "timing-filter-rotation");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			final LatencyRecorder recorder = this.recorder;
+			rotation.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					recorder.rotate();
+				}
+			}, interval, interval, TimeUnit.SECONDS);
+		}
 	}
 
+	public LatencyRecorder getRecorder() {
+		return recorder;
+	}
+
+	/**
+	 * @return The method and the template of the path, computed by the first
+	 *         caller and kept as request attribute {@value #ROUTE_ATTRIBUTE}.
+	 */
+	static String route(ServletRequest req) {
+		if (!(req instanceof HttpServletRequest))
+			return "*";
+
+		Object cached = req.getAttribute(ROUTE_ATTRIBUTE);
+		if (cached instanceof String)
+			return (String) cached;
+
+		HttpServletRequest request = (HttpServletRequest) req;
+		String route = request.getMethod() + " " + RouteNormalizer.normalize(path(request));
+		req.setAttribute(ROUTE_ATTRIBUTE, route);
+		return route;
+	}
+
+	/**
+	 * @return The path within the application, at least "/".
+	 */
+	static String path(HttpServletRequest request) {
+		String path = request.getPathInfo();
+		String servletPath = request.getServletPath();
+		if (path == null)
+			path = servletPath;
+		else if (servletPath != null && servletPath.length() > 0)
+			path = servletPath + path;
+
+		return path == null || path.length() == 0 ? "/" : path;
+	}
+
+	static String message(long duration) {
+		StringBuilder message = new StringBuilder(64);
+		message.append("Processing the Request took: ").append(duration).append(" ns ~ ");
+
+		// same output as "#.###", without the shared DecimalFormat
+		long micros = (duration + 500) / 1000;
+		message.append(micros / 1000);
+		int fraction = (int) (micros % 1000);
+		if (fraction != 0) {
+			message.append('.');
+			if (fraction < 100)
+				message.append('0');
+			if (fraction < 10)
+				message.append('0');
+			while (fraction % 10 == 0)
+				fraction /= 10;
+			message.append(fraction);
+		}
+		return message.append(" ms").toString();
+	}
 }
@@ -0,0 +1,297 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.filter;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import de.devsurf.jaxrs.commons.metrics.Collector;
+import de.devsurf.jaxrs.commons.metrics.MetricType;
+import de.devsurf.jaxrs.commons.metrics.MetricsRegistry;
+import de.devsurf.jaxrs.commons.metrics.PrometheusWriter;
+import de.devsurf.jaxrs.commons.tracing.FileSpanExporter;
+import de.devsurf.jaxrs.commons.tracing.HttpSpanExporter;
+import de.devsurf.jaxrs.commons.tracing.Span;
+import de.devsurf.jaxrs.commons.tracing.SpanExporter;
+import de.devsurf.jaxrs.commons.tracing.TraceContext;
+import de.devsurf.jaxrs.commons.tracing.Tracer;
+
+/**
+ * Records a {@link Span} for the rest of the filter chain, so the latency of
+ * a request can be broken down into its stages.
+ * <p>
+ * The first instance a request passes continues the trace of the
+ * {@value TraceContext#HEADER} header or starts a new one, and returns the
+ * trace id in the {@value #PARAM_RESPONSE_HEADER} header. Every further
+ * instance opens a child span named after its {@value #PARAM_STAGE}, e.g.
+ * 
+ * <pre>
+ * TracingFilter (stage=request) - BasicAuthFilter
+ * TracingFilter (stage=auth)    - LoggingFilter
+ * TracingFilter (stage=logging) - ...
+ * TracingFilter (stage=resource) - the JAX-RS servlet
+ * </pre>
+ * 
+ * The time spent in a stage is the duration of its span minus that of the
+ * child. The context of the innermost span is available as request attribute
+ * {@value TraceContext#ATTRIBUTE}, so resources can open their own spans or
+ * pass {@link TraceContext#toTraceparent()} on to other services; the
+ * {@link LoggingFilter} logs its trace id. Spans of asynchronous requests end
+ * when the request is complete.
+ * <p>
+ * Spans are exported by a {@link Tracer} shared through the servlet context
+ * attribute {@value Tracer#ATTRIBUTE}. The first instance creates it from its
+ * init parameters:
+ * <ul>
+ * <li>{@value #PARAM_TRACE_FILE} - the file to append the spans to as JSON
+ * lines</li>
+ * <li>{@value #PARAM_COLLECTOR_URL} - alternatively the URL to post batches
+ * of spans to</li>
+ * <li>{@value #PARAM_BUFFER_CAPACITY} - the number of spans each of the
+ * tracer's buffers may hold, defaults to {@value #DEFAULT_BUFFER_CAPACITY}</li>
+ * <li>{@value #PARAM_BATCH_SIZE} - the maximum number of spans per export,
+ * defaults to {@value #DEFAULT_BATCH_SIZE}</li>
+ * <li>{@value #PARAM_FLUSH_INTERVAL} - milliseconds between two exports,
+ * defaults to {@value #DEFAULT_FLUSH_INTERVAL}</li>
+ * <li>{@value #PARAM_SAMPLE_RATE} - the fraction of new traces to record,
+ * between 0 and 1 (the default); callers decide for the traces they
+ * continue</li>
+ * </ul>
+ * Without a target ids are still propagated, but no spans are recorded.
+ * 
+ * @author Daniel Manzke
+ */
+public final class TracingFilter implements Filter {
+
+	public static final String PARAM_STAGE = "stage";
+
+	public static final String PARAM_RESPONSE_HEADER = "responseHeader";
+
+	public static final String PARAM_TRACE_FILE = "traceFile";
+
+	public static final String PARAM_COLLECTOR_URL = "collectorUrl";
+
+	public static final String PARAM_BUFFER_CAPACITY = "bufferCapacity";
+
+	public static final String PARAM_BATCH_SIZE = "batchSize";
+
+	public static final String PARAM_FLUSH_INTERVAL = "flushInterval";
+
+	public static final String PARAM_SAMPLE_RATE = "sampleRate";
+
+	public static final String DEFAULT_STAGE = "request";
+
+	public static final String DEFAULT_RESPONSE_HEADER = "X-Trace-Id";
+
+	public static final int DEFAULT_BUFFER_CAPACITY = 1024;
+
+	public static final int DEFAULT_BATCH_SIZE = 512;
+
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+	private String stage = DEFAULT_STAGE;
+
+	private String responseHeader = DEFAULT_RESPONSE_HEADER;
+
+	private double sampleRate = 1;
+
+	private ServletContext context;
+
+	private Tracer tracer;
+
+	private boolean ownsTracer;
+
+	private MetricsRegistry registry;
+
+	private Collector collector;
+
+	@Override
+	public void init(final FilterConfig config) throws ServletException {
+		this.stage = InitParameters.getString(config, PARAM_STAGE, DEFAULT_STAGE);
+		this.responseHeader = InitParameters.getString(config, PARAM_RESPONSE_HEADER, DEFAULT_RESPONSE_HEADER);
+		if (this.responseHeader.length() == 0)
+			this.responseHeader = null;
+
+		final String sampleRate = InitParameters.getString(config, PARAM_SAMPLE_RATE, "1");
+		try {
+			this.sampleRate = Double.parseDouble(sampleRate);
+		} catch (NumberFormatException e) {
+			throw new ServletException("Invalid " + PARAM_SAMPLE_RATE + ": " + sampleRate, e);
+		}
+
+		this.context = config.getServletContext();
+		final Object shared = this.context.getAttribute(Tracer.ATTRIBUTE);
+		if (shared instanceof Tracer) {
+			this.tracer = (Tracer) shared;
+			return;
+		}
+
+		final SpanExporter exporter = this.createExporter(config);
+		if (exporter == null)
+			return;
+
+		final int bufferCapacity = InitParameters.getInt(config, PARAM_BUFFER_CAPACITY, DEFAULT_BUFFER_CAPACITY);
+		final int batchSize = InitParameters.getInt(config, PARAM_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+		final long flushInterval = InitParameters.getLong(config, PARAM_FLUSH_INTERVAL, DEFAULT_FLUSH_INTERVAL);
+		this.tracer = new Tracer(exporter, bufferCapacity, batchSize, flushInterval, TimeUnit.MILLISECONDS);
+		this.ownsTracer = true;
+		this.context.setAttribute(Tracer.ATTRIBUTE, this.tracer);
+
+		final Tracer tracer = this.tracer;
+		final String exported = PrometheusWriter.labels("result", "exported");
+		final String dropped = PrometheusWriter.labels("result", "dropped");
+		this.collector = new Collector() {
+			@Override
+			public void collect(final PrometheusWriter writer) throws IOException {
+				writer.family("trace_spans_total", "Trace spans by result.", MetricType.COUNTER);
+				writer.sample("trace_spans_total", exported, tracer.getExported());
+				writer.sample("trace_spans_total", dropped, tracer.getDropped());
+			}
+		};
+		this.registry = MetricsRegistry.get(this.context);
+		this.registry.register(this.collector);
+	}
+
+	@Override
+	public void destroy() {
+		if (this.registry != null) {
+			this.registry.unregister(this.collector);
+			this.registry = null;
+		}
+		if (this.ownsTracer) {
+			this.context.removeAttribute(Tracer.ATTRIBUTE);
+			this.tracer.close();
+			this.ownsTracer = false;
+		}
+		this.tracer = null;
+	}
+
+	/**
+	 * @return The tracer exporting the spans or <code>null</code> if none are
+	 *         recorded.
+	 */
+	public final Tracer getTracer() {
+		return this.tracer;
+	}
+
+	@Override
+	public final void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain) throws IOException,
+			ServletException {
+		final Object current = request.getAttribute(TraceContext.ATTRIBUTE);
+		final boolean root = !(current instanceof TraceContext);
+		final TraceContext parent = root ? caller(request) : (TraceContext) current;
+		final boolean sampled = parent == null ? this.sample() : parent.isSampled();
+
+		final Tracer tracer = this.tracer;
+		if (tracer == null || !sampled) {
+			final TraceContext context = parent == null ? TraceContext.create(sampled) : parent;
+			if (root)
+				this.start(request, response, context);
+			chain.doFilter(request, response);
+			return;
+		}
+
+		final Span span = tracer.start(this.stage, parent);
+		if (root)
+			this.start(request, response, span.getContext());
+		else
+			request.setAttribute(TraceContext.ATTRIBUTE, span.getContext());
+
+		boolean async = false;
+		try {
+			chain.doFilter(request, response);
+			if (request.isAsyncStarted()) {
+				async = true;
+				new AsyncCompletion() {
+					@Override
+					void completed(final boolean failed) {
+						span.setError(failed);
+						span.end();
+					}
+				}.listen(request, response);
+			}
+		} catch (IOException | ServletException | RuntimeException | Error e) {
+			span.setError(true);
+			throw e;
+		} finally {
+			if (!async) {
+				span.end();
+				// the root context stays, so filters before this one can log it
+				if (!root)
+					request.setAttribute(TraceContext.ATTRIBUTE, parent);
+			}
+		}
+	}
+
+	private final void start(final ServletRequest request, final ServletResponse response, final TraceContext context) {
+		request.setAttribute(TraceContext.ATTRIBUTE, context);
+		if (this.responseHeader != null && response instanceof HttpServletResponse)
+			((HttpServletResponse) response).setHeader(this.responseHeader, context.getTraceId());
+	}
+
+	/**
+	 * @return The context of the caller or <code>null</code>.
+	 */
+	private static TraceContext caller(final ServletRequest request) {
+		if (!(request instanceof HttpServletRequest))
+			return null;
+		return TraceContext.parse(((HttpServletRequest) request).getHeader(TraceContext.HEADER));
+	}
+
+	/**
+	 * @return Whether a new trace is recorded, according to
+	 *         {@value #PARAM_SAMPLE_RATE}.
+	 */
+	private final boolean sample() {
+		final double rate = this.sampleRate;
+		return rate >= 1 || rate > 0 && ThreadLocalRandom.current().nextDouble() < rate;
+	}
+
+	private final SpanExporter createExporter(final FilterConfig config) throws ServletException {
+		final String traceFile = InitParameters.getString(config, PARAM_TRACE_FILE, null);
+		if (traceFile != null) {
+			try {
+				return new FileSpanExporter(new File(traceFile));
+			} catch (IOException e) {
+				throw new ServletException("Unable to open " + traceFile, e);
+			}
+		}
+
+		final String collectorUrl = InitParameters.getString(config, PARAM_COLLECTOR_URL, null);
+		if (collectorUrl != null) {
+			try {
+				return new HttpSpanExporter(new URL(collectorUrl));
+			} catch (MalformedURLException e) {
+				throw new ServletException("Invalid " + PARAM_COLLECTOR_URL + ": " + collectorUrl, e);
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.logging;
+
+/**
+ * Turns an {@link AccessLogRecord} into bytes.
+ * <p>
+ * Encoders may cache (e.g. the formatted timestamp of the current second or
+ * the bytes of header names) and are therefore used by one thread at a time:
+ * the {@link AsyncAccessLog} has one for its writer thread. If they are
+ * configured by class name, they need a public no-argument constructor.
+ *
+ * @see AccessLogFormat
+ *
+ * @author Daniel Manzke
+ */
+public interface AccessLogEncoder {
+
+	/**
+	 * Appends the record to the buffer, including the record separator.
+	 */
+	void encode(AccessLogRecord record, LogBuffer buffer);
+}
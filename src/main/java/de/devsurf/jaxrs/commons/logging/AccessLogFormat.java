@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.logging;
+
+/**
+ * The built-in {@link AccessLogEncoder}s.
+ *
+ * @author Daniel Manzke
+ */
+public enum AccessLogFormat {
+
+	/**
+	 * One line of text per record, see {@link TextEncoder}.
+	 */
+	TEXT {
+		@Override
+		public AccessLogEncoder newEncoder() {
+			return new TextEncoder();
+		}
+	},
+
+	/**
+	 * One JSON object per line, see {@link JsonEncoder}.
+	 */
+	JSON {
+		@Override
+		public AccessLogEncoder newEncoder() {
+			return new JsonEncoder();
+		}
+	},
+
+	/**
+	 * Length-prefixed binary records, see {@link BinaryEncoder}.
+	 */
+	BINARY {
+		@Override
+		public AccessLogEncoder newEncoder() {
+			return new BinaryEncoder();
+		}
+	};
+
+	public abstract AccessLogEncoder newEncoder();
+}
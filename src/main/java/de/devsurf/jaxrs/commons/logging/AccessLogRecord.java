@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.logging;
+
+/**
+ * An immutable snapshot of one request/response exchange, captured on the
+ * request thread and formatted later by the {@link AsyncAccessLog} writer.
+ * <p>
+ * Headers are kept as flat arrays of alternating names and values.
+ *
+ * @author Daniel Manzke
+ */
+public final class AccessLogRecord {
+
+	private static final String[] NO_HEADERS = new String[0];
+
+	private final long timestamp;
+
+	private final long duration;
+
+	private final String method;
+
+	private final String path;
+
+	private final String query;
+
+	private final int statusCode;
+
+	private final String statusMessage;
+
+	private final String[] requestHeaders;
+
+	private final String[] responseHeaders;
+
+	private final long bodyLength;
+
+	private final String bodyPreview;
+
+	private final String requestBodyPreview;
+
+	private final String traceId;
+
+	/**
+	 * @param timestamp
+	 *            The time the request arrived in milliseconds since the epoch.
+	 * @param duration
+	 *            The processing time in nanoseconds.
+	 * @param requestHeaders
+	 *            Alternating header names and values, may be <code>null</code>.
+	 * @param responseHeaders
+	 *            Alternating header names and values, may be <code>null</code>.
+	 * @param bodyLength
+	 *            The number of response bytes or -1 if unknown.
+	 * @param bodyPreview
+	 *            The beginning of the response body, may be <code>null</code>.
+	 */
+	public AccessLogRecord(final long timestamp, final long duration, final String method, final String path, final String query,
+			final String[] requestHeaders, final int statusCode, final String statusMessage, final String[] responseHeaders,
+			final long bodyLength, final String bodyPreview) {
+		this(timestamp, duration, method, path, query, requestHeaders, statusCode, statusMessage, responseHeaders, bodyLength,
+				bodyPreview, null);
+	}
+
+	/**
+	 * @param requestBodyPreview
+	 *            The beginning of the request body, may be <code>null</code>.
+	 */
+	public AccessLogRecord(final long timestamp, final long duration, final String method, final String path, final String query,
+			final String[] requestHeaders, final int statusCode, final String statusMessage, final String[] responseHeaders,
+			final long bodyLength, final String bodyPreview, final String requestBodyPreview) {
+		this(timestamp, duration, method, path, query, requestHeaders, statusCode, statusMessage, responseHeaders, bodyLength,
+				bodyPreview, requestBodyPreview, null);
+	}
+
+	/**
+	 * @param traceId
+	 *            The id of the trace the exchange belongs to, may be
+	 *            <code>null</code>.
+	 */
+	public AccessLogRecord(final long timestamp, final long duration, final String method, final String path, final String query,
+			final String[] requestHeaders, final int statusCode, final String statusMessage, final String[] responseHeaders,
+			final long bodyLength, final String bodyPreview, final String requestBodyPreview, final String traceId) {
+		this.timestamp = timestamp;
+		this.duration = duration;
+		this.method = method;
+		this.path = path;
+		this.query = query;
+		this.statusCode = statusCode;
+		this.statusMessage = statusMessage;
+		this.requestHeaders = requestHeaders == null ? NO_HEADERS : requestHeaders;
+		this.responseHeaders = responseHeaders == null ? NO_HEADERS : responseHeaders;
+		this.bodyLength = bodyLength;
+		this.bodyPreview = bodyPreview;
+		this.requestBodyPreview = requestBodyPreview;
+		this.traceId = traceId;
+	}
+
+	public final long getTimestamp() {
+		return this.timestamp;
+	}
+
+	public final long getDuration() {
+		return this.duration;
+	}
+
+	public final String getMethod() {
+		return this.method;
+	}
+
+	public final String getPath() {
+		return this.path;
+	}
+
+	public final String getQuery() {
+		return this.query;
+	}
+
+	public final int getStatusCode() {
+		return this.statusCode;
+	}
+
+	public final String getStatusMessage() {
+		return this.statusMessage;
+	}
+
+	/**
+	 * @return The number of response bytes or -1 if unknown.
+	 */
+	public final long getBodyLength() {
+		return this.bodyLength;
+	}
+
+	/**
+	 * @return The beginning of the response body or <code>null</code>.
+	 */
+	public final String getBodyPreview() {
+		return this.bodyPreview;
+	}
+
+	/**
+	 * @return The beginning of the request body or <code>null</code>.
+	 */
+	public final String getRequestBodyPreview() {
+		return this.requestBodyPreview;
+	}
+
+	/**
+	 * @return The id of the trace or <code>null</code>.
+	 */
+	public final String getTraceId() {
+		return this.traceId;
+	}
+
+	public final int getRequestHeaderCount() {
+		return this.requestHeaders.length >> 1;
+	}
+
+	public final String getRequestHeaderName(final int index) {
+		return this.requestHeaders[index << 1];
+	}
+
+	public final String getRequestHeaderValue(final int index) {
+		return this.requestHeaders[(index << 1) + 1];
+	}
+
+	public final int getResponseHeaderCount() {
+		return this.responseHeaders.length >> 1;
+	}
+
+	public final String getResponseHeaderName(final int index) {
+		return this.responseHeaders[index << 1];
+	}
+
+	public final String getResponseHeaderValue(final int index) {
+		return this.responseHeaders[(index << 1) + 1];
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import de.devsurf.jaxrs.commons.concurrent.RingBuffer;
+
+/**
+ * An access log which takes {@link AccessLogRecord}s from request threads and
+ * writes them from a single background thread.
+ * <p>
+ * Request threads only enqueue into a bounded {@link RingBuffer}. The writer
+ * drains the buffer in batches, encodes every record with its
+ * {@link AccessLogEncoder} into one reused {@link LogBuffer} and copies that
+ * into a large buffered stream, which is flushed whenever the queue runs
+ * empty. What happens if the queue is full is decided by the
+ * {@link OverflowPolicy}.
+ *
+ * @author Daniel Manzke
+ */
+public final class AsyncAccessLog {
+
+	private static final int BATCH_SIZE = 256;
+
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private static final long BLOCKED_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final RingBuffer<AccessLogRecord> queue;
+
+	private final OverflowPolicy overflowPolicy;
+
+	private final OutputStream stream;
+
+	private final boolean closeStream;
+
+	private final OutputStream out;
+
+	private final AccessLogEncoder encoder;
+
+	private final Thread thread;
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final AtomicLong written = new AtomicLong();
+
+	private volatile boolean running = true;
+
+	/**
+	 * @param stream
+	 *            The target of the log.
+	 * @param closeStream
+	 *            Whether {@link #close()} should close the stream or only
+	 *            flush it (e.g. for {@link System#out}).
+	 * @param capacity
+	 *            The maximum number of queued records.
+	 * @param bufferSize
+	 *            The size of the write buffer in bytes.
+	 */
+	public AsyncAccessLog(final OutputStream stream, final boolean closeStream, final int capacity, final OverflowPolicy overflowPolicy,
+			final int bufferSize) {
+		this(stream, closeStream, capacity, overflowPolicy, bufferSize, new TextEncoder());
+	}
+
+	/**
+	 * @param encoder
+	 *            Turns the records into bytes, it is only used by the writer
+	 *            thread.
+	 */
+	public AsyncAccessLog(final OutputStream stream, final boolean closeStream, final int capacity, final OverflowPolicy overflowPolicy,
+			final int bufferSize, final AccessLogEncoder encoder) {
+		this.queue = new RingBuffer<AccessLogRecord>(capacity);
+		this.overflowPolicy = overflowPolicy;
+		this.stream = stream;
+		this.closeStream = closeStream;
+		this.out = new BufferedOutputStream(stream, bufferSize);
+		this.encoder = encoder;
+
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				AsyncAccessLog.this.drain();
+			}
+		}, "access-log-writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Hands the record to the writer thread.
+	 *
+	 * @return <code>false</code> if the record was dropped.
+	 */
+	public final boolean log(final AccessLogRecord record) {
+		while (this.running) {
+			if (this.queue.offer(record))
+				return true;
+
+			if (this.overflowPolicy == OverflowPolicy.DROP)
+				break;
+
+			LockSupport.unpark(this.thread);
+			LockSupport.parkNanos(this, BLOCKED_NANOS);
+		}
+
+		this.dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @return The number of records which were discarded because the queue was
+	 *         full, the log was closed or writing failed.
+	 */
+	public final long getDropped() {
+		return this.dropped.get();
+	}
+
+	/**
+	 * @return The number of records which were written.
+	 */
+	public final long getWritten() {
+		return this.written.get();
+	}
+
+	/**
+	 * @return The number of records waiting for the writer.
+	 */
+	public final int getPending() {
+		return this.queue.size();
+	}
+
+	/**
+	 * Stops accepting records, writes everything still queued and flushes (or
+	 * closes) the underlying stream.
+	 */
+	public final void close() {
+		this.running = false;
+		LockSupport.unpark(this.thread);
+
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				this.thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		try {
+			if (this.closeStream)
+				this.stream.close();
+			else
+				this.stream.flush();
+		} catch (IOException e) {
+			// ignore
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private final void drain() {
+		final AccessLogRecord[] batch = new AccessLogRecord[BATCH_SIZE];
+		final LogBuffer buffer = new LogBuffer();
+		boolean dirty = false;
+
+		for (;;) {
+			final int count = this.queue.drainTo(batch, batch.length);
+
+			if (count == 0) {
+				if (dirty) {
+					dirty = false;
+					this.flush();
+				}
+				if (!this.running && this.queue.isEmpty())
+					break;
+
+				LockSupport.parkNanos(this, IDLE_NANOS);
+				continue;
+			}
+
+			for (int i = 0; i < count; i++) {
+				try {
+					buffer.reset();
+					this.encoder.encode(batch[i], buffer);
+					buffer.writeTo(this.out);
+					this.written.incrementAndGet();
+				} catch (IOException | RuntimeException e) {
+					this.dropped.incrementAndGet();
+				}
+				batch[i] = null;
+			}
+			dirty = true;
+		}
+	}
+
+	private final void flush() {
+		try {
+			this.out.flush();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.logging;
+
+/**
+ * Encodes a record into a compact, length-prefixed binary form, which can be
+ * read back without scanning for separators:
+ *
+ * <pre>
+ * int32   length of the rest of the record, big-endian
+ * byte    version, {@value #VERSION}
+ * int64   timestamp in milliseconds since the epoch
+ * int64   duration in nanoseconds
+ * varint  status code
+ * string  method, path, query, status message
+ * varint  number of request headers, followed by name and value strings
+ * varint  number of response headers, followed by name and value strings
+ * varint  body length + 1, 0 if unknown
+ * string  body preview, request body preview, trace id
+ * </pre>
+ *
+ * Varints are unsigned LEB128. A string is a varint of its UTF-8 length + 1
+ * followed by the bytes, 0 standing for <code>null</code>. Header names are
+ * encoded once.
+ *
+ * @author Daniel Manzke
+ */
+public final class BinaryEncoder implements AccessLogEncoder {
+
+	public static final byte VERSION = 2;
+
+	private final HeaderNameCache names = new HeaderNameCache() {
+		@Override
+		void encode(final String name, final LogBuffer buffer) {
+			appendString(buffer, name);
+		}
+	};
+
+	@Override
+	public final void encode(final AccessLogRecord record, final LogBuffer buffer) {
+		final int start = buffer.size();
+		buffer.appendInt(0);
+
+		buffer.append(VERSION);
+		buffer.appendLong(record.getTimestamp());
+		buffer.appendLong(record.getDuration());
+		buffer.appendVarint(record.getStatusCode());
+		appendString(buffer, record.getMethod());
+		appendString(buffer, record.getPath());
+		appendString(buffer, record.getQuery());
+		appendString(buffer, record.getStatusMessage());
+
+		buffer.appendVarint(record.getRequestHeaderCount());
+		for (int i = 0; i < record.getRequestHeaderCount(); i++) {
+			buffer.append(this.names.get(record.getRequestHeaderName(i)));
+			appendString(buffer, record.getRequestHeaderValue(i));
+		}
+
+		buffer.appendVarint(record.getResponseHeaderCount());
+		for (int i = 0; i < record.getResponseHeaderCount(); i++) {
+			buffer.append(this.names.get(record.getResponseHeaderName(i)));
+			appendString(buffer, record.getResponseHeaderValue(i));
+		}
+
+		buffer.appendVarint(record.getBodyLength() < 0 ? 0 : record.getBodyLength() + 1);
+		appendString(buffer, record.getBodyPreview());
+		appendString(buffer, record.getRequestBodyPreview());
+		appendString(buffer, record.getTraceId());
+
+		buffer.setInt(start, buffer.size() - start - 4);
+	}
+
+	static final void appendString(final LogBuffer buffer, final String value) {
+		if (value == null) {
+			buffer.appendVarint(0);
+			return;
+		}
+		buffer.appendVarint(LogBuffer.utf8Length(value) + 1L);
+		buffer.appendUtf8(value);
+	}
+}
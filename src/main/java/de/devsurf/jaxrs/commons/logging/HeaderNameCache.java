@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.logging;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the encoded bytes of header names. The set of names a log sees
+ * is small and fixed in practice, so each is encoded only once; should it
+ * grow beyond {@value #MAX_SIZE} names, the cache starts over.
+ *
+ * @author Daniel Manzke
+ */
+abstract class HeaderNameCache {
+
+	static final int MAX_SIZE = 256;
+
+	private final Map<String, byte[]> names = new HashMap<String, byte[]>();
+
+	private final LogBuffer scratch = new LogBuffer(64);
+
+	final byte[] get(final String name) {
+		byte[] bytes = this.names.get(name);
+		if (bytes == null) {
+			if (this.names.size() >= MAX_SIZE)
+				this.names.clear();
+
+			this.scratch.reset();
+			this.encode(name, this.scratch);
+			bytes = new byte[this.scratch.size()];
+			System.arraycopy(this.scratch.array(), 0, bytes, 0, bytes.length);
+			this.names.put(name, bytes);
+		}
+		return bytes;
+	}
+
+	abstract void encode(String name, LogBuffer buffer);
+}
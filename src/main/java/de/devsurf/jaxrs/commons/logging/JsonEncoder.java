@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.logging;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Encodes a record as one JSON object per line (JSON Lines):
+ *
+ * <pre>
+ * {"time":"2010-05-01T12:00:00.123Z","method":"GET","path":"/items/1","query":"expand=all","status":200,"message":"OK",
+ *  "durationMicros":1234,"traceId":"4bf92f3577b34da6a3ce929d0e0e4736","requestHeaders":{"Accept":"text/plain"},"responseHeaders":{"Content-Type":"text/plain"},
+ *  "bytes":42,"body":"...","requestBody":"..."}
+ * </pre>
+ *
+ * Missing values are left out; times are UTC. The timestamp up to the second
+ * is formatted once per second, and header names are encoded once.
+ *
+ * @author Daniel Manzke
+ */
+public final class JsonEncoder implements AccessLogEncoder {
+
+	private static final byte[] METHOD = "\",\"method\":\"".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] PATH = ",\"path\":\"".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] QUERY = ",\"query\":\"".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] STATUS = ",\"status\":".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] MESSAGE = ",\"message\":\"".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] DURATION = ",\"durationMicros\":".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] TRACE_ID = ",\"traceId\":\"".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] REQUEST_HEADERS = ",\"requestHeaders\":{".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] RESPONSE_HEADERS = ",\"responseHeaders\":{".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] BYTES = ",\"bytes\":".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] BODY = ",\"body\":\"".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] REQUEST_BODY = ",\"requestBody\":\"".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] END = "}\n".getBytes(LogBuffer.UTF8);
+
+	private final SimpleDateFormat dateFormat;
+
+	private final HeaderNameCache names = new HeaderNameCache() {
+		@Override
+		void encode(final String name, final LogBuffer buffer) {
+			buffer.append('"').appendJson(name).append('"').append(':').append('"');
+		}
+	};
+
+	private long second = Long.MIN_VALUE;
+
+	private byte[] prefix;
+
+	public JsonEncoder() {
+		this.dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+		this.dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	@Override
+	public final void encode(final AccessLogRecord record, final LogBuffer buffer) {
+		final long timestamp = record.getTimestamp();
+		buffer.append(this.prefix(timestamp)).appendPadded(Math.floorMod(timestamp, 1000L), 3).append('Z');
+
+		buffer.append(METHOD).appendJson(record.getMethod()).append('"');
+		this.appendString(buffer, PATH, record.getPath());
+		this.appendString(buffer, QUERY, record.getQuery());
+		buffer.append(STATUS).append(record.getStatusCode());
+		this.appendString(buffer, MESSAGE, record.getStatusMessage());
+		buffer.append(DURATION).append(record.getDuration() / 1000);
+		this.appendString(buffer, TRACE_ID, record.getTraceId());
+
+		if (record.getRequestHeaderCount() > 0) {
+			buffer.append(REQUEST_HEADERS);
+			for (int i = 0; i < record.getRequestHeaderCount(); i++) {
+				if (i > 0)
+					buffer.append(',');
+				buffer.append(this.names.get(record.getRequestHeaderName(i))).appendJson(record.getRequestHeaderValue(i)).append('"');
+			}
+			buffer.append('}');
+		}
+
+		if (record.getResponseHeaderCount() > 0) {
+			buffer.append(RESPONSE_HEADERS);
+			for (int i = 0; i < record.getResponseHeaderCount(); i++) {
+				if (i > 0)
+					buffer.append(',');
+				buffer.append(this.names.get(record.getResponseHeaderName(i))).appendJson(record.getResponseHeaderValue(i)).append('"');
+			}
+			buffer.append('}');
+		}
+
+		if (record.getBodyLength() >= 0)
+			buffer.append(BYTES).append(record.getBodyLength());
+
+		this.appendString(buffer, BODY, record.getBodyPreview());
+		this.appendString(buffer, REQUEST_BODY, record.getRequestBodyPreview());
+
+		buffer.append(END);
+	}
+
+	private final void appendString(final LogBuffer buffer, final byte[] key, final String value) {
+		if (value != null)
+			buffer.append(key).appendJson(value).append('"');
+	}
+
+	/**
+	 * @return <code>{"time":"yyyy-MM-ddTHH:mm:ss.</code> of the second.
+	 */
+	private final byte[] prefix(final long timestamp) {
+		final long second = Math.floorDiv(timestamp, 1000L);
+		if (second != this.second) {
+			this.second = second;
+			this.prefix = ("{\"time\":\"" + this.dateFormat.format(new Date(second * 1000)) + ".").getBytes(LogBuffer.UTF8);
+		}
+		return this.prefix;
+	}
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.logging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A growable byte buffer which {@link AccessLogEncoder}s write records into.
+ * <p>
+ * It is meant to be reused for every record: {@link #reset()} keeps the
+ * array, so once it has grown to the size of the largest record nothing is
+ * allocated any more. Strings are encoded as UTF-8 character by character,
+ * without intermediate arrays. Not thread-safe.
+ *
+ * @author Daniel Manzke
+ */
+public final class LogBuffer {
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte[] DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+	private static final byte[] MIN_LONG = "-9223372036854775808".getBytes(UTF8);
+
+	private byte[] bytes;
+
+	private int size;
+
+	public LogBuffer() {
+		this(512);
+	}
+
+	public LogBuffer(final int initialCapacity) {
+		this.bytes = new byte[Math.max(16, initialCapacity)];
+	}
+
+	public final void reset() {
+		this.size = 0;
+	}
+
+	public final int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return The backing array, valid up to {@link #size()}.
+	 */
+	public final byte[] array() {
+		return this.bytes;
+	}
+
+	public final void writeTo(final OutputStream out) throws IOException {
+		out.write(this.bytes, 0, this.size);
+	}
+
+	public final LogBuffer append(final byte b) {
+		this.ensure(1);
+		this.bytes[this.size++] = b;
+		return this;
+	}
+
+	/**
+	 * Appends a character of the ASCII range as one byte.
+	 */
+	public final LogBuffer append(final char c) {
+		return this.append((byte) c);
+	}
+
+	public final LogBuffer append(final byte[] b) {
+		return this.append(b, 0, b.length);
+	}
+
+	public final LogBuffer append(final byte[] b, final int off, final int len) {
+		this.ensure(len);
+		System.arraycopy(b, off, this.bytes, this.size, len);
+		this.size += len;
+		return this;
+	}
+
+	/**
+	 * Appends the decimal representation without creating a string.
+	 */
+	public final LogBuffer append(final long value) {
+		if (value == Long.MIN_VALUE)
+			return this.append(MIN_LONG);
+
+		this.ensure(20);
+		long remaining = value;
+		if (remaining < 0) {
+			this.bytes[this.size++] = '-';
+			remaining = -remaining;
+		}
+
+		final int digits = digits(remaining);
+		int position = this.size + digits;
+		this.size = position;
+		do {
+			this.bytes[--position] = DIGITS[(int) (remaining % 10)];
+			remaining /= 10;
+		} while (remaining != 0);
+		return this;
+	}
+
+	/**
+	 * Appends a number with leading zeros up to the given width.
+	 */
+	public final LogBuffer appendPadded(final long value, final int width) {
+		for (int digits = digits(value); digits < width; digits++)
+			this.append((byte) '0');
+		return this.append(value);
+	}
+
+	/**
+	 * Appends the string as UTF-8, <code>null</code> is ignored.
+	 */
+	public final LogBuffer appendUtf8(final String s) {
+		if (s == null)
+			return this;
+
+		final int length = s.length();
+		this.ensure(length);
+		for (int i = 0; i < length; i++) {
+			final char c = s.charAt(i);
+			if (c < 0x80) {
+				this.ensure(1);
+				this.bytes[this.size++] = (byte) c;
+			} else {
+				i = this.appendNonAscii(s, i, c);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Appends the string as UTF-8 with the escapes of a JSON string, without
+	 * the enclosing quotes.
+	 */
+	public final LogBuffer appendJson(final String s) {
+		final int length = s.length();
+		this.ensure(length);
+		for (int i = 0; i < length; i++) {
+			final char c = s.charAt(i);
+			if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+				this.ensure(1);
+				this.bytes[this.size++] = (byte) c;
+			} else if (c == '"' || c == '\\') {
+				this.append((byte) '\\').append((byte) c);
+			} else if (c == '\n') {
+				this.append((byte) '\\').append((byte) 'n');
+			} else if (c == '\r') {
+				this.append((byte) '\\').append((byte) 'r');
+			} else if (c == '\t') {
+				this.append((byte) '\\').append((byte) 't');
+			} else if (c < 0x20) {
+				this.append((byte) '\\').append((byte) 'u').append((byte) '0').append((byte) '0');
+				this.append(DIGITS[c >> 4]).append(DIGITS[c & 0xF]);
+			} else {
+				i = this.appendNonAscii(s, i, c);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Appends the string as UTF-8, with line breaks escaped as
+	 * <code>\n</code> and <code>\r</code>, so it stays on one line.
+	 */
+	public final LogBuffer appendLine(final String s) {
+		final int length = s.length();
+		this.ensure(length);
+		for (int i = 0; i < length; i++) {
+			final char c = s.charAt(i);
+			if (c == '\n') {
+				this.append((byte) '\\').append((byte) 'n');
+			} else if (c == '\r') {
+				this.append((byte) '\\').append((byte) 'r');
+			} else if (c < 0x80) {
+				this.ensure(1);
+				this.bytes[this.size++] = (byte) c;
+			} else {
+				i = this.appendNonAscii(s, i, c);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Appends an unsigned LEB128 variable length integer.
+	 */
+	public final LogBuffer appendVarint(final long value) {
+		long remaining = value;
+		while ((remaining & ~0x7FL) != 0) {
+			this.append((byte) ((remaining & 0x7F) | 0x80));
+			remaining >>>= 7;
+		}
+		return this.append((byte) remaining);
+	}
+
+	public final LogBuffer appendInt(final int value) {
+		this.ensure(4);
+		this.setInt(this.size, value);
+		this.size += 4;
+		return this;
+	}
+
+	public final LogBuffer appendLong(final long value) {
+		return this.appendInt((int) (value >>> 32)).appendInt((int) value);
+	}
+
+	/**
+	 * Overwrites four bytes at a position already written, big-endian, e.g.
+	 * a length prefix which was reserved.
+	 */
+	public final void setInt(final int position, final int value) {
+		this.bytes[position] = (byte) (value >>> 24);
+		this.bytes[position + 1] = (byte) (value >>> 16);
+		this.bytes[position + 2] = (byte) (value >>> 8);
+		this.bytes[position + 3] = (byte) value;
+	}
+
+	/**
+	 * @return The number of UTF-8 bytes of the string.
+	 */
+	static final int utf8Length(final String s) {
+		final int length = s.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++) {
+			final char c = s.charAt(i);
+			if (c >= 0x80) {
+				if (c < 0x800) {
+					bytes++;
+				} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+					bytes += 2;
+					i++;
+				} else if (!Character.isSurrogate(c)) {
+					bytes += 2;
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return The index of the last character consumed.
+	 */
+	private final int appendNonAscii(final String s, final int i, final char c) {
+		this.ensure(4);
+		final byte[] bytes = this.bytes;
+		if (c < 0x800) {
+			bytes[this.size++] = (byte) (0xC0 | c >> 6);
+			bytes[this.size++] = (byte) (0x80 | c & 0x3F);
+			return i;
+		}
+		if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+			final int codePoint = Character.toCodePoint(c, s.charAt(i + 1));
+			bytes[this.size++] = (byte) (0xF0 | codePoint >> 18);
+			bytes[this.size++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+			bytes[this.size++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+			bytes[this.size++] = (byte) (0x80 | codePoint & 0x3F);
+			return i + 1;
+		}
+		if (Character.isSurrogate(c)) {
+			bytes[this.size++] = '?';
+			return i;
+		}
+		bytes[this.size++] = (byte) (0xE0 | c >> 12);
+		bytes[this.size++] = (byte) (0x80 | c >> 6 & 0x3F);
+		bytes[this.size++] = (byte) (0x80 | c & 0x3F);
+		return i;
+	}
+
+	private static final int digits(final long value) {
+		long limit = 10;
+		for (int digits = 1; digits < 19; digits++) {
+			if (value < limit)
+				return digits;
+			limit *= 10;
+		}
+		return 19;
+	}
+
+	private final void ensure(final int additional) {
+		final int required = this.size + additional;
+		if (required > this.bytes.length) {
+			final byte[] grown = new byte[Math.max(required, this.bytes.length << 1)];
+			System.arraycopy(this.bytes, 0, grown, 0, this.size);
+			this.bytes = grown;
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.logging;
+
+/**
+ * Decides what happens to a record when the {@link AsyncAccessLog} queue is
+ * full.
+ *
+ * @author Daniel Manzke
+ */
+public enum OverflowPolicy {
+	/**
+	 * Discard the record and count it, the request thread never waits.
+	 */
+	DROP,
+
+	/**
+	 * Wait until the writer has made room for the record.
+	 */
+	BLOCK
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.logging;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Encodes a record as one line of text in the local time zone:
+ *
+ * <pre>
+ * 2010-05-01 12:00:00 GET /items/1 expand=all 200 OK 1.234ms trace=4bf92f3577b34da6a3ce929d0e0e4736 &gt;Accept=text/plain &lt;Content-Type=text/plain bytes=42 body=...
+ * </pre>
+ *
+ * Missing values are written as <code>-</code>, request headers are prefixed
+ * with <code>&gt;</code>, response headers with <code>&lt;</code>. Line
+ * breaks in body previews are escaped. The date is formatted once per
+ * second.
+ *
+ * @author Daniel Manzke
+ */
+public final class TextEncoder implements AccessLogEncoder {
+
+	private static final byte[] BYTES = " bytes=".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] BODY = " body=".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] REQUEST_BODY = " requestBody=".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] TRACE = " trace=".getBytes(LogBuffer.UTF8);
+
+	private static final byte[] MILLIS = "ms".getBytes(LogBuffer.UTF8);
+
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+	private final HeaderNameCache requestNames = new HeaderNameCache() {
+		@Override
+		void encode(final String name, final LogBuffer buffer) {
+			buffer.append(' ').append('>').appendUtf8(name).append('=');
+		}
+	};
+
+	private final HeaderNameCache responseNames = new HeaderNameCache() {
+		@Override
+		void encode(final String name, final LogBuffer buffer) {
+			buffer.append(' ').append('<').appendUtf8(name).append('=');
+		}
+	};
+
+	private long second = Long.MIN_VALUE;
+
+	private byte[] date;
+
+	@Override
+	public final void encode(final AccessLogRecord record, final LogBuffer buffer) {
+		buffer.append(this.date(record.getTimestamp()));
+		buffer.append(' ').appendUtf8(record.getMethod());
+		this.appendOrDash(buffer.append(' '), record.getPath());
+		this.appendOrDash(buffer.append(' '), record.getQuery());
+		buffer.append(' ').append(record.getStatusCode());
+		this.appendOrDash(buffer.append(' '), record.getStatusMessage());
+
+		final long micros = record.getDuration() / 1000;
+		buffer.append(' ').append(micros / 1000).append('.').appendPadded(micros % 1000, 3).append(MILLIS);
+
+		if (record.getTraceId() != null)
+			buffer.append(TRACE).appendLine(record.getTraceId());
+
+		for (int i = 0; i < record.getRequestHeaderCount(); i++)
+			buffer.append(this.requestNames.get(record.getRequestHeaderName(i))).appendLine(record.getRequestHeaderValue(i));
+
+		for (int i = 0; i < record.getResponseHeaderCount(); i++)
+			buffer.append(this.responseNames.get(record.getResponseHeaderName(i))).appendLine(record.getResponseHeaderValue(i));
+
+		if (record.getBodyLength() >= 0)
+			buffer.append(BYTES).append(record.getBodyLength());
+
+		if (record.getBodyPreview() != null)
+			buffer.append(BODY).appendLine(record.getBodyPreview());
+
+		if (record.getRequestBodyPreview() != null)
+			buffer.append(REQUEST_BODY).appendLine(record.getRequestBodyPreview());
+
+		buffer.append('\n');
+	}
+
+	private final void appendOrDash(final LogBuffer buffer, final String value) {
+		if (value == null)
+			buffer.append('-');
+		else
+			buffer.appendLine(value);
+	}
+
+	private final byte[] date(final long timestamp) {
+		final long second = Math.floorDiv(timestamp, 1000L);
+		if (second != this.second) {
+			this.second = second;
+			this.date = this.dateFormat.format(new Date(timestamp)).getBytes(LogBuffer.UTF8);
+		}
+		return this.date;
+	}
+}
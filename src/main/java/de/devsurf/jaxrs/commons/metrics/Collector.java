@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.metrics;
+
+import java.io.IOException;
+
+/**
+ * Writes metrics whose labels are only known at export time, e.g. one
+ * series per route.
+ *
+ * @see MetricsRegistry#register(Collector)
+ *
+ * @author Daniel Manzke
+ */
+public interface Collector {
+
+	void collect(PrometheusWriter writer) throws IOException;
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A monotonic counter. Incrementing it neither allocates nor contends, the
+ * cells are striped by thread.
+ *
+ * @see MetricsRegistry#counter(String, String, String...)
+ *
+ * @author Daniel Manzke
+ */
+public final class Counter {
+
+	private final LongAdder cells = new LongAdder();
+
+	public final void increment() {
+		this.cells.increment();
+	}
+
+	/**
+	 * @param value
+	 *            The amount to add, must not be negative.
+	 */
+	public final void add(final long value) {
+		this.cells.add(value);
+	}
+
+	public final long get() {
+		return this.cells.sum();
+	}
+
+	@Override
+	public String toString() {
+		return this.cells.toString();
+	}
+}
@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.metrics;
+
+/**
+ * A value which is read whenever the metrics are exported, e.g. the size of
+ * a queue or a counter kept elsewhere.
+ * <p>
+ * Implementations must be thread-safe and cheap, they are called by the
+ * thread serving the scrape.
+ *
+ * @see MetricsRegistry#register(String, String, MetricType, Gauge, String...)
+ *
+ * @author Daniel Manzke
+ */
+public interface Gauge {
+
+	double getValue();
+}
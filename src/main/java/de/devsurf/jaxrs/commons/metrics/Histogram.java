@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.metrics;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram with fixed upper bounds, as exported by Prometheus.
+ * <p>
+ * Observations are recorded as longs in their own unit (e.g. nanoseconds)
+ * and multiplied with the scale on export (e.g. 1e-9 for seconds). Like
+ * {@link LatencyHistogram} the counters are striped by thread, so recording
+ * neither allocates nor contends; the buckets and the sum of one stripe share
+ * a block of cache lines.
+ *
+ * @see MetricsRegistry#histogram(String, String, long[], double, String...)
+ *
+ * @author Daniel Manzke
+ */
+public final class Histogram {
+
+	/**
+	 * Request durations from 1 ms to 10 s, in nanoseconds.
+	 */
+	public static final long[] LATENCY_BUCKETS = { millis(1), millis(2.5), millis(5), millis(10), millis(25), millis(50), millis(100),
+			millis(250), millis(500), millis(1000), millis(2500), millis(5000), millis(10000) };
+
+	/**
+	 * Scales nanoseconds to seconds.
+	 */
+	public static final double NANOS_TO_SECONDS = 1e-9;
+
+	private static final int LINE = 8;
+
+	private final long[] bounds;
+
+	private final double[] scaledBounds;
+
+	private final double scale;
+
+	/**
+	 * The number of cells of one stripe: a count per bucket, the overflow
+	 * bucket and the sum, rounded up to whole cache lines.
+	 */
+	private final int width;
+
+	private final int stripeMask;
+
+	private final AtomicLongArray cells;
+
+	/**
+	 * @param bounds
+	 *            The inclusive upper bounds of the buckets in ascending
+	 *            order, the bucket for larger values is added implicitly.
+	 * @param scale
+	 *            The factor which converts recorded values into the exported
+	 *            unit.
+	 */
+	public Histogram(final long[] bounds, final double scale) {
+		for (int i = 1; i < bounds.length; i++)
+			if (bounds[i] <= bounds[i - 1])
+				throw new IllegalArgumentException("Bounds must be ascending: " + Arrays.toString(bounds));
+
+		this.bounds = bounds.clone();
+		this.scale = scale;
+
+		// scaled in decimal, so 1000000 ns become 0.001 s and not 0.0010000000000000002
+		this.scaledBounds = new double[bounds.length];
+		for (int i = 0; i < bounds.length; i++)
+			this.scaledBounds[i] = BigDecimal.valueOf(bounds[i]).multiply(BigDecimal.valueOf(scale)).doubleValue();
+		this.width = (bounds.length + 2 + LINE - 1) / LINE * LINE;
+
+		final int processors = Runtime.getRuntime().availableProcessors();
+		final int stripes = processors <= 1 ? 1 : Math.min(16, Integer.highestOneBit(processors - 1) << 1);
+		this.stripeMask = stripes - 1;
+		this.cells = new AtomicLongArray(stripes * this.width);
+	}
+
+	public final void record(final long value) {
+		int bucket = Arrays.binarySearch(this.bounds, value);
+		if (bucket < 0)
+			bucket = -bucket - 1;
+
+		final int offset = ((int) Thread.currentThread().getId() & this.stripeMask) * this.width;
+		this.cells.incrementAndGet(offset + bucket);
+		this.cells.addAndGet(offset + this.bounds.length + 1, value);
+	}
+
+	/**
+	 * @return The upper bounds in the exported unit.
+	 */
+	public final double getBound(final int bucket) {
+		return this.scaledBounds[bucket];
+	}
+
+	/**
+	 * @return The number of buckets without the one for larger values.
+	 */
+	public final int getBucketCount() {
+		return this.bounds.length;
+	}
+
+	public final double getScale() {
+		return this.scale;
+	}
+
+	/**
+	 * @return The counts per bucket (not cumulative), the last element
+	 *         counts the values beyond the largest bound.
+	 */
+	public final long[] getCounts() {
+		final long[] counts = new long[this.bounds.length + 1];
+		for (int stripe = 0; stripe <= this.stripeMask; stripe++)
+			for (int i = 0; i < counts.length; i++)
+				counts[i] += this.cells.get(stripe * this.width + i);
+		return counts;
+	}
+
+	/**
+	 * @return The sum of all recorded values in their own unit.
+	 */
+	public final long getSum() {
+		long sum = 0;
+		for (int stripe = 0; stripe <= this.stripeMask; stripe++)
+			sum += this.cells.get(stripe * this.width + this.bounds.length + 1);
+		return sum;
+	}
+
+	private static final long millis(final double millis) {
+		return (long) (millis * TimeUnit.MILLISECONDS.toNanos(1));
+	}
+}
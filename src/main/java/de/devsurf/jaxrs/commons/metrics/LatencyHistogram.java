@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds with logarithmic buckets.
+ * <p>
+ * Every power of two is split into {@value #SUB_BUCKETS} linear sub-buckets,
+ * which keeps the relative error of a percentile below about 3% over the whole
+ * range up to 2^{@value #MAX_MAGNITUDE} ns (roughly 18 minutes). Larger values
+ * are counted in the last bucket.
+ * <p>
+ * The counters are striped by thread, so concurrent writers rarely touch the
+ * same cache lines. {@link #snapshot()} sums the stripes up.
+ *
+ * @author Daniel Manzke
+ */
+public final class LatencyHistogram {
+
+	static final int SUB_BUCKET_BITS = 5;
+
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	static final int MAX_MAGNITUDE = 40;
+
+	static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	/**
+	 * Distance between the sum and max cells of two stripes, one cache line.
+	 */
+	private static final int CELL_PADDING = 8;
+
+	private static final int SUM = 0;
+
+	private static final int MAX = 1;
+
+	private final int stripeMask;
+
+	private final AtomicLongArray counts;
+
+	private final AtomicLongArray cells;
+
+	public LatencyHistogram() {
+		this(defaultStripes());
+	}
+
+	/**
+	 * @param stripes
+	 *            The number of independent counter sets, rounded up to the
+	 *            next power of two.
+	 */
+	public LatencyHistogram(final int stripes) {
+		final int size = stripes <= 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+
+		this.stripeMask = size - 1;
+		this.counts = new AtomicLongArray(size * BUCKETS);
+		this.cells = new AtomicLongArray(size * CELL_PADDING);
+	}
+
+	/**
+	 * Records a duration, negative values are counted as zero.
+	 */
+	public final void record(final long nanos) {
+		final long value = nanos < 0 ? 0 : nanos;
+		final int stripe = (int) Thread.currentThread().getId() & this.stripeMask;
+
+		this.counts.incrementAndGet(stripe * BUCKETS + index(value));
+		this.cells.addAndGet(stripe * CELL_PADDING + SUM, value);
+
+		final int max = stripe * CELL_PADDING + MAX;
+		for (;;) {
+			final long current = this.cells.get(max);
+			if (value <= current || this.cells.compareAndSet(max, current, value))
+				break;
+		}
+	}
+
+	/**
+	 * @return The counts recorded so far.
+	 */
+	public final LatencySnapshot snapshot() {
+		return this.collect(false);
+	}
+
+	/**
+	 * Takes a snapshot and starts over. Values recorded while the reset is
+	 * running may end up in either interval, but none of them get lost.
+	 */
+	public final LatencySnapshot snapshotAndReset() {
+		return this.collect(true);
+	}
+
+	private final LatencySnapshot collect(final boolean reset) {
+		final long[] buckets = new long[BUCKETS];
+		long sum = 0;
+		long max = 0;
+
+		for (int stripe = 0; stripe <= this.stripeMask; stripe++) {
+			final int offset = stripe * BUCKETS;
+			for (int i = 0; i < BUCKETS; i++)
+				buckets[i] += reset ? this.counts.getAndSet(offset + i, 0) : this.counts.get(offset + i);
+
+			final int cell = stripe * CELL_PADDING;
+			sum += reset ? this.cells.getAndSet(cell + SUM, 0) : this.cells.get(cell + SUM);
+			max = Math.max(max, reset ? this.cells.getAndSet(cell + MAX, 0) : this.cells.get(cell + MAX));
+		}
+
+		return new LatencySnapshot(buckets, sum, max);
+	}
+
+	static final int index(final long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		if (magnitude >= MAX_MAGNITUDE)
+			return BUCKETS - 1;
+
+		final int shift = magnitude - SUB_BUCKET_BITS;
+		return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @return The largest value which falls into the bucket.
+	 */
+	static final long upperBound(final int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+
+		final int shift = (index >> SUB_BUCKET_BITS) - 1;
+		final long subBucket = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	private static final int defaultStripes() {
+		return Math.min(4, Runtime.getRuntime().availableProcessors());
+	}
+}
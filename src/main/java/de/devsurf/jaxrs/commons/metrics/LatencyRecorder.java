@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.metrics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps one {@link LatencyHistogram} per route.
+ * <p>
+ * Once {@link #getMaxRoutes()} routes are known, every further route is
+ * counted as {@value #OTHER_ROUTE}. If the recorder is {@link #rotate()
+ * rotated} on an interval, the snapshots returned are those of the last
+ * complete interval, otherwise they cover everything recorded so far.
+ *
+ * @author Daniel Manzke
+ */
+public final class LatencyRecorder {
+
+	public static final String OTHER_ROUTE = "OTHER";
+
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+	private final int maxRoutes;
+
+	private final int stripes;
+
+	private volatile Map<String, LatencySnapshot> interval;
+
+	public LatencyRecorder(final int maxRoutes, final int stripes) {
+		this.maxRoutes = maxRoutes;
+		this.stripes = stripes;
+	}
+
+	public final void record(final String route, final long nanos) {
+		this.histogram(route).record(nanos);
+	}
+
+	public final LatencyHistogram histogram(final String route) {
+		LatencyHistogram histogram = this.histograms.get(route);
+		if (histogram != null)
+			return histogram;
+
+		final String key = this.histograms.size() < this.maxRoutes ? route : OTHER_ROUTE;
+		if (key != route) {
+			histogram = this.histograms.get(key);
+			if (histogram != null)
+				return histogram;
+		}
+
+		histogram = new LatencyHistogram(this.stripes);
+
+		final LatencyHistogram existing = this.histograms.putIfAbsent(key, histogram);
+		return existing == null ? histogram : existing;
+	}
+
+	/**
+	 * Captures the snapshots of the interval which just ended and resets all
+	 * histograms.
+	 */
+	public final void rotate() {
+		final Map<String, LatencySnapshot> snapshots = new HashMap<String, LatencySnapshot>();
+		for (final Map.Entry<String, LatencyHistogram> entry : this.histograms.entrySet())
+			snapshots.put(entry.getKey(), entry.getValue().snapshotAndReset());
+
+		this.interval = Collections.unmodifiableMap(snapshots);
+	}
+
+	/**
+	 * @return The snapshot of the route or <code>null</code> if nothing was
+	 *         recorded for it.
+	 */
+	public final LatencySnapshot getSnapshot(final String route) {
+		final Map<String, LatencySnapshot> interval = this.interval;
+		if (interval != null)
+			return interval.get(route);
+
+		final LatencyHistogram histogram = this.histograms.get(route);
+		return histogram == null ? null : histogram.snapshot();
+	}
+
+	public final Map<String, LatencySnapshot> getSnapshots() {
+		final Map<String, LatencySnapshot> interval = this.interval;
+		if (interval != null)
+			return interval;
+
+		final Map<String, LatencySnapshot> snapshots = new HashMap<String, LatencySnapshot>();
+		for (final Map.Entry<String, LatencyHistogram> entry : this.histograms.entrySet())
+			snapshots.put(entry.getKey(), entry.getValue().snapshot());
+		return snapshots;
+	}
+
+	public final Set<String> getRoutes() {
+		return Collections.unmodifiableSet(this.histograms.keySet());
+	}
+
+	public final int getMaxRoutes() {
+		return this.maxRoutes;
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.metrics;
+
+/**
+ * An immutable view of a {@link LatencyHistogram}. All values are in
+ * nanoseconds.
+ *
+ * @author Daniel Manzke
+ */
+public final class LatencySnapshot {
+
+	private final long[] buckets;
+
+	private final long count;
+
+	private final long sum;
+
+	private final long max;
+
+	LatencySnapshot(final long[] buckets, final long sum, final long max) {
+		long count = 0;
+		for (final long bucket : buckets)
+			count += bucket;
+
+		this.buckets = buckets;
+		this.count = count;
+		this.sum = sum;
+		this.max = max;
+	}
+
+	public final long getCount() {
+		return this.count;
+	}
+
+	public final long getSum() {
+		return this.sum;
+	}
+
+	public final long getMax() {
+		return this.max;
+	}
+
+	public final double getMean() {
+		return this.count == 0 ? 0 : (double) this.sum / this.count;
+	}
+
+	/**
+	 * @param percentile
+	 *            A value between 0 and 100.
+	 * @return The smallest recorded value which is larger than or equal to the
+	 *         given percentage of all values, 0 if nothing was recorded.
+	 */
+	public final long getValueAtPercentile(final double percentile) {
+		if (this.count == 0)
+			return 0;
+
+		final double fraction = Math.min(100, Math.max(0, percentile)) / 100;
+		final long rank = Math.max(1, (long) Math.ceil(fraction * this.count));
+
+		long seen = 0;
+		for (int i = 0; i < this.buckets.length; i++) {
+			seen += this.buckets[i];
+			if (seen >= rank)
+				return Math.min(LatencyHistogram.upperBound(i), this.max);
+		}
+		return this.max;
+	}
+
+	public final long getP50() {
+		return this.getValueAtPercentile(50);
+	}
+
+	public final long getP90() {
+		return this.getValueAtPercentile(90);
+	}
+
+	public final long getP99() {
+		return this.getValueAtPercentile(99);
+	}
+
+	public final long getP999() {
+		return this.getValueAtPercentile(99.9);
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + this.count + " p50=" + this.getP50() + " p90=" + this.getP90() + " p99=" + this.getP99() + " p99.9="
+				+ this.getP999() + " max=" + this.max;
+	}
+}
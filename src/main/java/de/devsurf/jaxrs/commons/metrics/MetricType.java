@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.metrics;
+
+/**
+ * The types of the Prometheus text exposition format.
+ *
+ * @author Daniel Manzke
+ */
+public enum MetricType {
+
+	/**
+	 * A value which only ever goes up, e.g. the number of requests.
+	 */
+	COUNTER,
+
+	/**
+	 * A value which goes up and down, e.g. the number of requests in flight.
+	 */
+	GAUGE,
+
+	/**
+	 * Observations counted into cumulative buckets, see {@link Histogram}.
+	 */
+	HISTOGRAM,
+
+	/**
+	 * Precomputed quantiles, e.g. of a {@link LatencySnapshot}.
+	 */
+	SUMMARY;
+
+	final String text() {
+		return this.name().toLowerCase();
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.servlet.ServletContext;
+
+/**
+ * Holds the metrics of an application and writes them in the Prometheus text
+ * format.
+ * <p>
+ * Metrics are looked up once, when a filter is initialized, and then kept in
+ * fields; {@link Counter#increment()} and {@link Histogram#record(long)} do
+ * not allocate. Values kept elsewhere are exported through a {@link Gauge}
+ * or, if their labels change at runtime, a {@link Collector}. Series are
+ * identified by name and labels; asking twice for the same one returns the
+ * same instance.
+ * <p>
+ * The filters of this library share the registry stored in the servlet
+ * context under {@value #ATTRIBUTE}, see {@link #get(ServletContext)}, and
+ * {@link MetricsServlet} exports it.
+ *
+ * @author Daniel Manzke
+ */
+public final class MetricsRegistry {
+
+	public static final String ATTRIBUTE = "de.devsurf.jaxrs.commons.metrics.MetricsRegistry";
+
+	private final ConcurrentMap<String, Family> families = new ConcurrentSkipListMap<String, Family>();
+
+	private final List<Collector> collectors = new CopyOnWriteArrayList<Collector>();
+
+	/**
+	 * @return The registry of the application, created on first use.
+	 */
+	public static final MetricsRegistry get(final ServletContext context) {
+		synchronized (context) {
+			final Object registry = context.getAttribute(ATTRIBUTE);
+			if (registry instanceof MetricsRegistry)
+				return (MetricsRegistry) registry;
+
+			final MetricsRegistry created = new MetricsRegistry();
+			context.setAttribute(ATTRIBUTE, created);
+			return created;
+		}
+	}
+
+	/**
+	 * @param labels
+	 *            Alternating label names and values.
+	 */
+	public final Counter counter(final String name, final String help, final String... labels) {
+		final Family family = this.family(name, help, MetricType.COUNTER);
+		final String key = PrometheusWriter.labels(labels);
+
+		final Object existing = family.series.get(key);
+		if (existing != null)
+			return cast(Counter.class, name, existing);
+
+		final Counter counter = new Counter();
+		return cast(Counter.class, name, putIfAbsent(family.series, key, counter));
+	}
+
+	/**
+	 * If the histogram exists already, it is returned with its own bounds.
+	 *
+	 * @see Histogram#Histogram(long[], double)
+	 */
+	public final Histogram histogram(final String name, final String help, final long[] bounds, final double scale,
+			final String... labels) {
+		final Family family = this.family(name, help, MetricType.HISTOGRAM);
+		final String key = PrometheusWriter.labels(labels);
+
+		final Object existing = family.series.get(key);
+		if (existing != null)
+			return cast(Histogram.class, name, existing);
+
+		final Histogram histogram = new Histogram(bounds, scale);
+		return cast(Histogram.class, name, putIfAbsent(family.series, key, histogram));
+	}
+
+	/**
+	 * Exports a value kept elsewhere, replacing a gauge registered before
+	 * under the same name and labels.
+	 *
+	 * @param type
+	 *            {@link MetricType#COUNTER} or {@link MetricType#GAUGE}.
+	 */
+	public final void register(final String name, final String help, final MetricType type, final Gauge gauge, final String... labels) {
+		if (type != MetricType.COUNTER && type != MetricType.GAUGE)
+			throw new IllegalArgumentException("A gauge can only be exported as counter or gauge: " + type);
+
+		final Family family = this.family(name, help, type);
+		final String key = PrometheusWriter.labels(labels);
+
+		final Object existing = family.series.put(key, gauge);
+		if (existing != null && !(existing instanceof Gauge)) {
+			family.series.put(key, existing);
+			throw new IllegalArgumentException(name + " is already registered as " + existing.getClass().getSimpleName());
+		}
+	}
+
+	public final void register(final Collector collector) {
+		this.collectors.add(collector);
+	}
+
+	public final void unregister(final Collector collector) {
+		this.collectors.remove(collector);
+	}
+
+	/**
+	 * Removes a metric with all its series.
+	 */
+	public final void unregister(final String name) {
+		this.families.remove(name);
+	}
+
+	/**
+	 * Writes all metrics, the registered ones sorted by name, then those of
+	 * the collectors.
+	 */
+	public final void write(final Writer writer) throws IOException {
+		final PrometheusWriter prometheus = new PrometheusWriter(writer);
+
+		for (final Family family : this.families.values()) {
+			if (family.series.isEmpty())
+				continue;
+
+			prometheus.family(family.name, family.help, family.type);
+			for (final Map.Entry<String, Object> entry : family.series.entrySet()) {
+				final Object metric = entry.getValue();
+				if (metric instanceof Counter)
+					prometheus.sample(family.name, entry.getKey(), ((Counter) metric).get());
+				else if (metric instanceof Histogram)
+					prometheus.histogram(family.name, entry.getKey(), (Histogram) metric);
+				else
+					prometheus.sample(family.name, entry.getKey(), ((Gauge) metric).getValue());
+			}
+		}
+
+		for (final Collector collector : this.collectors)
+			collector.collect(prometheus);
+	}
+
+	/**
+	 * @return <code>true</code> if the name is a valid metric name.
+	 */
+	static final boolean isValidName(final String name) {
+		if (name == null || name.length() == 0)
+			return false;
+
+		for (int i = 0; i < name.length(); i++) {
+			final char c = name.charAt(i);
+			final boolean valid = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c == ':' || i > 0 && c >= '0' && c <= '9';
+			if (!valid)
+				return false;
+		}
+		return true;
+	}
+
+	private final Family family(final String name, final String help, final MetricType type) {
+		Family family = this.families.get(name);
+		if (family == null) {
+			if (!isValidName(name))
+				throw new IllegalArgumentException("Invalid metric name: " + name);
+
+			final Family created = new Family(name, help, type);
+			family = this.families.putIfAbsent(name, created);
+			if (family == null)
+				return created;
+		}
+
+		if (family.type != type)
+			throw new IllegalArgumentException(name + " is already registered as " + family.type.text());
+		return family;
+	}
+
+	private static final Object putIfAbsent(final ConcurrentMap<String, Object> series, final String key, final Object metric) {
+		final Object existing = series.putIfAbsent(key, metric);
+		return existing == null ? metric : existing;
+	}
+
+	private static final <T> T cast(final Class<T> type, final String name, final Object metric) {
+		if (!type.isInstance(metric))
+			throw new IllegalArgumentException(name + " is already registered as " + metric.getClass().getSimpleName());
+		return type.cast(metric);
+	}
+
+	private static final class Family {
+
+		final String name;
+
+		final String help;
+
+		final MetricType type;
+
+		final ConcurrentMap<String, Object> series = new ConcurrentSkipListMap<String, Object>();
+
+		Family(final String name, final String help, final MetricType type) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+		}
+	}
+}
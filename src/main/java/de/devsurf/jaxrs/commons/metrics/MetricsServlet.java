@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.metrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Exports the {@link MetricsRegistry} of the application in the Prometheus
+ * text format, e.g. mapped to <code>/metrics</code>.
+ *
+ * @author Daniel Manzke
+ */
+public class MetricsServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private transient MetricsRegistry registry;
+
+	@Override
+	public void init() throws ServletException {
+		this.registry = MetricsRegistry.get(this.getServletContext());
+	}
+
+	public final MetricsRegistry getRegistry() {
+		return this.registry;
+	}
+
+	@Override
+	protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType(PrometheusWriter.CONTENT_TYPE);
+		response.setHeader("Cache-Control", "no-store");
+
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"), 8192);
+		this.registry.write(writer);
+		writer.flush();
+	}
+}
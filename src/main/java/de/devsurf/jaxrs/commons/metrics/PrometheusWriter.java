@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes metrics in the Prometheus text exposition format, version 0.0.4.
+ * <p>
+ * Labels are passed pre-rendered, as produced by {@link #labels(String...)},
+ * so series which are registered once do not render them on every scrape.
+ *
+ * @author Daniel Manzke
+ */
+public final class PrometheusWriter {
+
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final Writer writer;
+
+	public PrometheusWriter(final Writer writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * Starts a metric family, all of its samples have to follow.
+	 */
+	public final void family(final String name, final String help, final MetricType type) throws IOException {
+		final Writer writer = this.writer;
+		if (help != null) {
+			writer.write("# HELP ");
+			writer.write(name);
+			writer.write(' ');
+			escape(writer, help, false);
+			writer.write('\n');
+		}
+		writer.write("# TYPE ");
+		writer.write(name);
+		writer.write(' ');
+		writer.write(type.text());
+		writer.write('\n');
+	}
+
+	/**
+	 * @param labels
+	 *            The rendered labels, may be empty.
+	 */
+	public final void sample(final String name, final String labels, final double value) throws IOException {
+		this.name(name, labels, null, null);
+		this.writer.write(format(value));
+		this.writer.write('\n');
+	}
+
+	public final void sample(final String name, final String labels, final long value) throws IOException {
+		this.name(name, labels, null, null);
+		this.writer.write(Long.toString(value));
+		this.writer.write('\n');
+	}
+
+	/**
+	 * Writes the cumulative buckets, sum and count of a histogram.
+	 */
+	public final void histogram(final String name, final String labels, final Histogram histogram) throws IOException {
+		final long[] counts = histogram.getCounts();
+		final String bucket = name + "_bucket";
+
+		long cumulative = 0;
+		for (int i = 0; i < counts.length; i++) {
+			cumulative += counts[i];
+			this.name(bucket, labels, "le", i < histogram.getBucketCount() ? format(histogram.getBound(i)) : "+Inf");
+			this.writer.write(Long.toString(cumulative));
+			this.writer.write('\n');
+		}
+
+		this.sample(name + "_sum", labels, histogram.getSum() * histogram.getScale());
+		this.sample(name + "_count", labels, cumulative);
+	}
+
+	/**
+	 * Writes the quantiles, sum and count of a latency snapshot.
+	 *
+	 * @param scale
+	 *            The factor which converts nanoseconds into the exported
+	 *            unit.
+	 */
+	public final void summary(final String name, final String labels, final LatencySnapshot snapshot, final double scale)
+			throws IOException {
+		for (final double quantile : QUANTILES) {
+			this.name(name, labels, "quantile", format(quantile));
+			this.writer.write(format(snapshot.getValueAtPercentile(quantile * 100) * scale));
+			this.writer.write('\n');
+		}
+
+		this.sample(name + "_sum", labels, snapshot.getSum() * scale);
+		this.sample(name + "_count", labels, snapshot.getCount());
+	}
+
+	/**
+	 * Renders label pairs for the sample methods.
+	 *
+	 * @param pairs
+	 *            Alternating names and values.
+	 * @return The labels without the enclosing braces, e.g.
+	 *         <code>method="GET",status="2xx"</code>.
+	 */
+	public static final String labels(final String... pairs) {
+		if (pairs.length % 2 != 0)
+			throw new IllegalArgumentException("Labels must be name/value pairs");
+
+		final StringBuilder labels = new StringBuilder();
+		try {
+			for (int i = 0; i < pairs.length; i += 2) {
+				if (!MetricsRegistry.isValidName(pairs[i]) || pairs[i].indexOf(':') >= 0)
+					throw new IllegalArgumentException("Invalid label name: " + pairs[i]);
+
+				if (i > 0)
+					labels.append(',');
+				labels.append(pairs[i]).append("=\"");
+				escape(labels, pairs[i + 1], true);
+				labels.append('"');
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return labels.toString();
+	}
+
+	private final void name(final String name, final String labels, final String extraName, final String extraValue) throws IOException {
+		final Writer writer = this.writer;
+		writer.write(name);
+
+		final boolean hasLabels = labels != null && labels.length() > 0;
+		if (hasLabels || extraName != null) {
+			writer.write('{');
+			if (hasLabels)
+				writer.write(labels);
+			if (extraName != null) {
+				if (hasLabels)
+					writer.write(',');
+				writer.write(extraName);
+				writer.write("=\"");
+				writer.write(extraValue);
+				writer.write('"');
+			}
+			writer.write('}');
+		}
+		writer.write(' ');
+	}
+
+	static final String format(final double value) {
+		if (Double.isNaN(value))
+			return "NaN";
+		if (Double.isInfinite(value))
+			return value > 0 ? "+Inf" : "-Inf";
+		if (value == Math.rint(value) && Math.abs(value) < 1e15)
+			return Long.toString((long) value);
+		return Double.toString(value);
+	}
+
+	private static final void escape(final Appendable out, final String text, final boolean quotes) throws IOException {
+		for (int i = 0; i < text.length(); i++) {
+			final char c = text.charAt(i);
+			if (c == '\\')
+				out.append("\\\\");
+			else if (c == '\n')
+				out.append("\\n");
+			else if (c == '"' && quotes)
+				out.append("\\\"");
+			else
+				out.append(c);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.metrics;
+
+/**
+ * Turns request paths into route templates, so <code>/users/42/orders</code>
+ * and <code>/users/43/orders</code> are counted as one route
+ * <code>/users/{id}/orders</code>.
+ * <p>
+ * Segments made of digits become <code>{id}</code>, UUIDs become
+ * <code>{uuid}</code>. Everything else is kept, other identifiers still
+ * need the cardinality limit of whoever keeps the routes.
+ *
+ * @author Daniel Manzke
+ */
+public final class RouteNormalizer {
+
+	public static final String ID = "{id}";
+
+	public static final String UUID = "{uuid}";
+
+	private RouteNormalizer() {
+		// Intentionally left blank.
+	}
+
+	/**
+	 * @return The template of the path, the path itself if nothing had to be
+	 *         replaced.
+	 */
+	public static String normalize(final String path) {
+		StringBuilder template = null;
+		int start = 0;
+		while (start <= path.length()) {
+			int end = path.indexOf('/', start);
+			if (end < 0)
+				end = path.length();
+
+			final String replacement = isNumber(path, start, end) ? ID : isUuid(path, start, end) ? UUID : null;
+			if (replacement != null) {
+				if (template == null)
+					template = new StringBuilder(path.length()).append(path, 0, start);
+				template.append(replacement);
+			} else if (template != null) {
+				template.append(path, start, end);
+			}
+			if (template != null && end < path.length())
+				template.append('/');
+			start = end + 1;
+		}
+		return template == null ? path : template.toString();
+	}
+
+	private static boolean isNumber(final String path, final int start, final int end) {
+		if (start == end)
+			return false;
+		for (int i = start; i < end; i++) {
+			final char c = path.charAt(i);
+			if (c < '0' || c > '9')
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isUuid(final String path, final int start, final int end) {
+		if (end - start != 36)
+			return false;
+		for (int i = 0; i < 36; i++) {
+			final char c = path.charAt(start + i);
+			if (i == 8 || i == 13 || i == 18 || i == 23) {
+				if (c != '-')
+					return false;
+			} else if (Character.digit(c, 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.metrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Shows the routes which took the most server time as plain text table, e.g.
+ * mapped to <code>/routes</code>. The {@link RouteStatistics} are taken
+ * from the servlet context attribute {@value RouteStatistics#ATTRIBUTE},
+ * the query parameter <code>top</code> limits the number of routes, it
+ * defaults to {@value #DEFAULT_TOP}.
+ *
+ * @author Daniel Manzke
+ */
+public class RouteReportServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int DEFAULT_TOP = 20;
+
+	@Override
+	protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+		final Object statistics = this.getServletContext().getAttribute(RouteStatistics.ATTRIBUTE);
+		if (!(statistics instanceof RouteStatistics)) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "No route statistics are recorded");
+			return;
+		}
+
+		int top = DEFAULT_TOP;
+		final String value = request.getParameter("top");
+		if (value != null) {
+			try {
+				top = Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid top: " + value);
+				return;
+			}
+		}
+
+		response.setStatus(HttpServletResponse.SC_OK);
+		response.setContentType("text/plain; charset=UTF-8");
+		response.setHeader("Cache-Control", "no-store");
+
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), "UTF-8"), 8192);
+		((RouteStatistics) statistics).writeReport(writer, Math.max(0, top));
+		writer.flush();
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts requests, errors, response bytes and processing time per route, as
+ * a continuous profile of where the server spends its time.
+ * <p>
+ * Routes should be templates (see {@link RouteNormalizer}). Once
+ * {@link #getMaxRoutes()} routes are known, every further route is counted
+ * as {@value #OTHER_ROUTE}. The four counters of a route are striped by thread like a
+ * {@link java.util.concurrent.atomic.LongAdder}, with all four of a stripe on
+ * one cache line, so recording a request touches a single
+ * line and never contends with other threads.
+ *
+ * @author Daniel Manzke
+ */
+public final class RouteStatistics {
+
+	public static final String ATTRIBUTE = "de.devsurf.jaxrs.commons.metrics.RouteStatistics";
+
+	public static final String OTHER_ROUTE = LatencyRecorder.OTHER_ROUTE;
+
+	private static final Comparator<RouteSummary> BY_TIME = new Comparator<RouteSummary>() {
+		@Override
+		public int compare(final RouteSummary a, final RouteSummary b) {
+			return Long.compare(b.getTotalTime(), a.getTotalTime());
+		}
+	};
+
+	private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+
+	private final int maxRoutes;
+
+	private final int mask;
+
+	public RouteStatistics(final int maxRoutes) {
+		this.maxRoutes = Math.max(1, maxRoutes);
+
+		final int processors = Runtime.getRuntime().availableProcessors();
+		final int stripes = processors <= 1 ? 1 : Integer.highestOneBit(processors - 1) << 1;
+		this.mask = Math.min(stripes, 64) - 1;
+	}
+
+	/**
+	 * @param error
+	 *            Whether the request failed, no matter with which status.
+	 * @param bytes
+	 *            The response body bytes, negative if unknown.
+	 * @param nanos
+	 *            The processing time.
+	 */
+	public final void record(final String route, final boolean error, final long bytes, final long nanos) {
+		this.route(route).record(((int) Thread.currentThread().getId() & this.mask) * Route.PADDING, error, bytes, nanos);
+	}
+
+	/**
+	 * @return The routes which took the most time in total, most expensive
+	 *         first.
+	 */
+	public final List<RouteSummary> getTop(final int count) {
+		final List<RouteSummary> summaries = this.getSummaries();
+		Collections.sort(summaries, BY_TIME);
+		return count < summaries.size() ? new ArrayList<RouteSummary>(summaries.subList(0, count)) : summaries;
+	}
+
+	public final List<RouteSummary> getSummaries() {
+		final List<RouteSummary> summaries = new ArrayList<RouteSummary>(this.routes.size());
+		for (final Route route : this.routes.values())
+			summaries.add(route.summarize(this.mask));
+		return summaries;
+	}
+
+	/**
+	 * Writes the {@link #getTop(int) top routes} as a plain text table with
+	 * their share of the total time.
+	 */
+	public final void writeReport(final Writer writer, final int count) throws IOException {
+		final List<RouteSummary> summaries = this.getSummaries();
+		Collections.sort(summaries, BY_TIME);
+
+		long total = 0;
+		for (final RouteSummary summary : summaries)
+			total += summary.getTotalTime();
+
+		writer.write(String.format(Locale.ENGLISH, "%7s %12s %10s %8s %12s %14s  %s%n", "share", "total_ms", "requests",
+				"errors", "mean_ms", "bytes", "route"));
+		for (int i = 0; i < summaries.size() && i < count; i++) {
+			final RouteSummary summary = summaries.get(i);
+			writer.write(String.format(Locale.ENGLISH, "%6.2f%% %12.3f %10d %8d %12.3f %14d  %s%n",
+					total == 0 ? 0d : 100d * summary.getTotalTime() / total, summary.getTotalTime() / 1e6,
+					summary.getRequests(), summary.getErrors(), summary.getMeanTime() / 1e6, summary.getBytes(),
+					summary.getRoute()));
+		}
+	}
+
+	/**
+	 * Forgets all routes.
+	 */
+	public final void clear() {
+		this.routes.clear();
+	}
+
+	public final int getMaxRoutes() {
+		return this.maxRoutes;
+	}
+
+	private final Route route(final String route) {
+		Route existing = this.routes.get(route);
+		if (existing != null)
+			return existing;
+
+		final String key = this.routes.size() < this.maxRoutes ? route : OTHER_ROUTE;
+		if (key != route) {
+			existing = this.routes.get(key);
+			if (existing != null)
+				return existing;
+		}
+
+		final Route created = new Route(key, this.mask + 1);
+		existing = this.routes.putIfAbsent(key, created);
+		return existing == null ? created : existing;
+	}
+
+	private static final class Route {
+
+		/**
+		 * Distance between two stripes, one cache line.
+		 */
+		static final int PADDING = 8;
+
+		private static final int REQUESTS = 0;
+
+		private static final int ERRORS = 1;
+
+		private static final int BYTES = 2;
+
+		private static final int TIME = 3;
+
+		private final String name;
+
+		private final AtomicLongArray cells;
+
+		Route(final String name, final int stripes) {
+			this.name = name;
+			this.cells = new AtomicLongArray(stripes * PADDING);
+		}
+
+		final void record(final int stripe, final boolean error, final long bytes, final long nanos) {
+			this.cells.getAndIncrement(stripe + REQUESTS);
+			if (error)
+				this.cells.getAndIncrement(stripe + ERRORS);
+			if (bytes > 0)
+				this.cells.getAndAdd(stripe + BYTES, bytes);
+			this.cells.getAndAdd(stripe + TIME, nanos);
+		}
+
+		final RouteSummary summarize(final int mask) {
+			long requests = 0;
+			long errors = 0;
+			long bytes = 0;
+			long time = 0;
+			for (int i = 0; i <= mask; i++) {
+				final int stripe = i * PADDING;
+				requests += this.cells.get(stripe + REQUESTS);
+				errors += this.cells.get(stripe + ERRORS);
+				bytes += this.cells.get(stripe + BYTES);
+				time += this.cells.get(stripe + TIME);
+			}
+			return new RouteSummary(this.name, requests, errors, bytes, time);
+		}
+	}
+}
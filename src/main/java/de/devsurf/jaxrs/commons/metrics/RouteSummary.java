@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.metrics;
+
+/**
+ * The totals of one route in {@link RouteStatistics}. Times are in
+ * nanoseconds.
+ *
+ * @author Daniel Manzke
+ */
+public final class RouteSummary {
+
+	private final String route;
+
+	private final long requests;
+
+	private final long errors;
+
+	private final long bytes;
+
+	private final long time;
+
+	RouteSummary(final String route, final long requests, final long errors, final long bytes, final long time) {
+		this.route = route;
+		this.requests = requests;
+		this.errors = errors;
+		this.bytes = bytes;
+		this.time = time;
+	}
+
+	public final String getRoute() {
+		return this.route;
+	}
+
+	public final long getRequests() {
+		return this.requests;
+	}
+
+	/**
+	 * @return The requests answered with a status of 500 or above, or which
+	 *         failed.
+	 */
+	public final long getErrors() {
+		return this.errors;
+	}
+
+	/**
+	 * @return The response body bytes.
+	 */
+	public final long getBytes() {
+		return this.bytes;
+	}
+
+	public final long getTotalTime() {
+		return this.time;
+	}
+
+	public final double getMeanTime() {
+		return this.requests == 0 ? 0 : (double) this.time / this.requests;
+	}
+
+	@Override
+	public String toString() {
+		return this.route + ": " + this.requests + " requests, " + this.errors + " errors, " + this.bytes + " bytes, "
+				+ this.time + " ns";
+	}
+}
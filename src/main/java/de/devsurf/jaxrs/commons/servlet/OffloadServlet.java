@@ -0,0 +1,381 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.GenericServlet;
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+import de.devsurf.jaxrs.commons.metrics.Collector;
+import de.devsurf.jaxrs.commons.metrics.MetricType;
+import de.devsurf.jaxrs.commons.metrics.MetricsRegistry;
+import de.devsurf.jaxrs.commons.metrics.PrometheusWriter;
+
+/**
+ * Runs another servlet, e.g. the one of the JAX-RS implementation, on its
+ * own threads, so blocking resources (long polls, slow backends) do not hold
+ * on to the threads of the container.
+ * <p>
+ * Every request is put into asynchronous mode and handed to the executor; the
+ * container thread returns at once, and the request is completed when the
+ * servlet is done. The wrapped servlet gets the init parameters of this one.
+ * Init parameters:
+ * <ul>
+ * <li>{@value #PARAM_SERVLET_CLASS} - the servlet to run</li>
+ * <li>{@value #PARAM_EXECUTOR} - <code>virtual</code> for a virtual thread
+ * per request (Java 21 and later, otherwise the pool is used) or
+ * <code>pool</code> (the default) for a bounded pool</li>
+ * <li>{@value #PARAM_THREADS} - the size of the pool, defaults to
+ * {@value #DEFAULT_THREADS}</li>
+ * <li>{@value #PARAM_QUEUE_CAPACITY} - the number of requests waiting for a
+ * thread of the pool, defaults to {@value #DEFAULT_QUEUE_CAPACITY}; beyond
+ * that requests are answered with 503 Service Unavailable</li>
+ * <li>{@value #PARAM_ASYNC_TIMEOUT} - milliseconds until a request times
+ * out, 0 (the default) for never, -1 for the timeout of the container</li>
+ * </ul>
+ * A request which times out is answered with 503 Service Unavailable, unless
+ * the response is already committed. If it is still waiting for a thread it
+ * does not run at all, otherwise its thread is interrupted; the servlet must
+ * not touch the response after that.
+ * The servlet and all filters in front of it have to be declared with
+ * <code>&lt;async-supported&gt;true&lt;/async-supported&gt;</code>, otherwise
+ * requests run on the container thread as before. The servlet itself must not
+ * start asynchronous processing. Running, waiting and rejected requests are
+ * exported through the {@link MetricsRegistry}.
+ *
+ * @author Daniel Manzke
+ */
+public class OffloadServlet extends GenericServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final String PARAM_SERVLET_CLASS = "servletClass";
+
+	public static final String PARAM_EXECUTOR = "executor";
+
+	public static final String PARAM_THREADS = "threads";
+
+	public static final String PARAM_QUEUE_CAPACITY = "queueCapacity";
+
+	public static final String PARAM_ASYNC_TIMEOUT = "asyncTimeout";
+
+	public static final String EXECUTOR_VIRTUAL = "virtual";
+
+	public static final String EXECUTOR_POOL = "pool";
+
+	public static final int DEFAULT_THREADS = 200;
+
+	public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+	public static final long DEFAULT_ASYNC_TIMEOUT = 0;
+
+	private transient Servlet servlet;
+
+	private transient ExecutorService executor;
+
+	private transient ThreadPoolExecutor pool;
+
+	private long asyncTimeout = DEFAULT_ASYNC_TIMEOUT;
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	private transient MetricsRegistry registry;
+
+	private transient Collector collector;
+
+	@Override
+	public void init() throws ServletException {
+		final String servletClass = this.getInitParameter(PARAM_SERVLET_CLASS);
+		if (servletClass == null)
+			throw new ServletException(PARAM_SERVLET_CLASS + " is missing");
+
+		try {
+			this.servlet = Class.forName(servletClass.trim(), true, Thread.currentThread().getContextClassLoader()).asSubclass(
+					Servlet.class).getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			throw new ServletException("Cannot create servlet " + servletClass, e);
+		}
+		this.servlet.init(this.getServletConfig());
+
+		this.asyncTimeout = this.getLong(PARAM_ASYNC_TIMEOUT, DEFAULT_ASYNC_TIMEOUT);
+		final String executor = this.getInitParameter(PARAM_EXECUTOR);
+		if (executor != null && EXECUTOR_VIRTUAL.equalsIgnoreCase(executor.trim())) {
+			this.executor = virtualThreads();
+			if (this.executor == null)
+				this.log("Virtual threads are not available, using a pool");
+		}
+		if (this.executor == null) {
+			final int threads = (int) this.getLong(PARAM_THREADS, DEFAULT_THREADS);
+			final int queueCapacity = (int) this.getLong(PARAM_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY);
+			this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1,
+					queueCapacity)), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					final Thread thread = new Thread(runnable, "offload-" + this.count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			this.pool.allowCoreThreadTimeOut(true);
+			this.executor = this.pool;
+		}
+
+		final AtomicInteger active = this.active;
+		final AtomicLong rejected = this.rejected;
+		final ThreadPoolExecutor pool = this.pool;
+		this.collector = new Collector() {
+			@Override
+			public void collect(final PrometheusWriter writer) throws IOException {
+				writer.family("offload_active", "Requests running on the offload executor.", MetricType.GAUGE);
+				writer.sample("offload_active", "", active.get());
+				if (pool != null) {
+					writer.family("offload_queued", "Requests waiting for an offload thread.", MetricType.GAUGE);
+					writer.sample("offload_queued", "", pool.getQueue().size());
+				}
+				writer.family("offload_rejected_total", "Requests rejected because the offload queue was full.", MetricType.COUNTER);
+				writer.sample("offload_rejected_total", "", rejected.get());
+			}
+		};
+		this.registry = MetricsRegistry.get(this.getServletContext());
+		this.registry.register(this.collector);
+	}
+
+	@Override
+	public void destroy() {
+		if (this.registry != null) {
+			this.registry.unregister(this.collector);
+			this.registry = null;
+		}
+		if (this.executor != null) {
+			this.executor.shutdown();
+			try {
+				this.executor.awaitTermination(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.executor = null;
+			this.pool = null;
+		}
+		if (this.servlet != null) {
+			this.servlet.destroy();
+			this.servlet = null;
+		}
+	}
+
+	/**
+	 * @return The servlet which handles the requests.
+	 */
+	public final Servlet getServlet() {
+		return this.servlet;
+	}
+
+	@Override
+	public void service(final ServletRequest request, final ServletResponse response) throws ServletException, IOException {
+		if (!request.isAsyncSupported() || request.isAsyncStarted()) {
+			this.servlet.service(request, response);
+			return;
+		}
+
+		final AsyncContext async = request.startAsync(request, response);
+		if (this.asyncTimeout >= 0)
+			async.setTimeout(this.asyncTimeout);
+
+		final Task task = new Task(async, request, response);
+		async.addListener(task);
+		try {
+			this.executor.execute(task);
+		} catch (RejectedExecutionException e) {
+			this.rejected.incrementAndGet();
+			if (task.abandon())
+				unavailable(async, response);
+		}
+	}
+
+	/**
+	 * Answers 503 and completes the request, unless the response is committed
+	 * or the request is completed already.
+	 */
+	private static void unavailable(final AsyncContext async, final ServletResponse response) {
+		try {
+			if (!response.isCommitted() && response instanceof HttpServletResponse) {
+				final HttpServletResponse httpResponse = (HttpServletResponse) response;
+				httpResponse.setHeader("Retry-After", "1");
+				httpResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			}
+			async.complete();
+		} catch (IllegalStateException e) {
+			// completed by the container
+		}
+	}
+
+	/**
+	 * Runs the servlet for one request, unless the request timed out or failed
+	 * before. Whoever finishes first, the servlet or the container, completes
+	 * the request.
+	 */
+	private final class Task implements Runnable, AsyncListener {
+
+		private static final int QUEUED = 0;
+
+		private static final int RUNNING = 1;
+
+		private static final int FINISHED = 2;
+
+		private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+		private final AsyncContext async;
+
+		private final ServletRequest request;
+
+		private final ServletResponse response;
+
+		private Thread worker;
+
+		Task(final AsyncContext async, final ServletRequest request, final ServletResponse response) {
+			this.async = async;
+			this.request = request;
+			this.response = response;
+		}
+
+		@Override
+		public void run() {
+			if (!this.state.compareAndSet(QUEUED, RUNNING))
+				return;
+
+			synchronized (this) {
+				this.worker = Thread.currentThread();
+			}
+			OffloadServlet.this.active.incrementAndGet();
+			try {
+				OffloadServlet.this.servlet.service(this.request, this.response);
+			} catch (Exception e) {
+				if (this.state.get() == RUNNING) {
+					OffloadServlet.this.log("Offloaded request failed", e);
+					if (!this.response.isCommitted() && this.response instanceof HttpServletResponse) {
+						try {
+							((HttpServletResponse) this.response).sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+						} catch (IOException | IllegalStateException ignore) {
+							// the client is gone
+						}
+					}
+				}
+			} finally {
+				OffloadServlet.this.active.decrementAndGet();
+				synchronized (this) {
+					this.worker = null;
+				}
+				if (this.state.compareAndSet(RUNNING, FINISHED)) {
+					try {
+						this.async.complete();
+					} catch (IllegalStateException e) {
+						// completed by the container
+					}
+				} else {
+					// abandoned: keep the interrupt away from the next task
+					Thread.interrupted();
+				}
+			}
+		}
+
+		/**
+		 * Keeps the servlet from running, or interrupts it if it does.
+		 *
+		 * @return <code>false</code> if the servlet is done already.
+		 */
+		final boolean abandon() {
+			if (this.state.getAndSet(FINISHED) == FINISHED)
+				return false;
+
+			synchronized (this) {
+				if (this.worker != null)
+					this.worker.interrupt();
+			}
+			return true;
+		}
+
+		@Override
+		public void onTimeout(final AsyncEvent event) {
+			if (this.abandon())
+				unavailable(this.async, this.response);
+		}
+
+		@Override
+		public void onError(final AsyncEvent event) {
+			if (this.abandon()) {
+				try {
+					this.async.complete();
+				} catch (IllegalStateException e) {
+					// completed by the container
+				}
+			}
+		}
+
+		@Override
+		public void onComplete(final AsyncEvent event) {
+			this.abandon();
+		}
+
+		@Override
+		public void onStartAsync(final AsyncEvent event) {
+			// not restarted
+		}
+	}
+
+	private final long getLong(final String name, final long defaultValue) throws ServletException {
+		final String value = this.getInitParameter(name);
+		if (value == null || value.trim().length() == 0)
+			return defaultValue;
+
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ServletException("Invalid " + name + ": " + value, e);
+		}
+	}
+
+	/**
+	 * @return A virtual thread per task executor or <code>null</code> if the
+	 *         runtime has none.
+	 */
+	private static ExecutorService virtualThreads() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
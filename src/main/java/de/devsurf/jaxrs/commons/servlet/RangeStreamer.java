@@ -0,0 +1,198 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import de.devsurf.jaxrs.commons.streams.ByteRange;
+import de.devsurf.jaxrs.commons.streams.ChannelUtil;
+import de.devsurf.jaxrs.commons.streams.StreamUtil;
+
+/**
+ * Sends a file, or the slices of it a client asked for with <code>Range</code>
+ * and <code>If-Range</code>, from a servlet or a JAX-RS resource (with the
+ * request and response injected by <code>@Context</code>).
+ * <p>
+ * A single range is answered with 206 and <code>Content-Range</code>, several
+ * ranges with a <code>multipart/byteranges</code> body, ranges outside the
+ * file with 416. Every slice is read at its offset with
+ * {@link ChannelUtil#transfer(FileChannel, long, long, OutputStream, int)}
+ * into the response in blocks of {@link StreamUtil#BUFFER_SIZE} bytes,
+ * nothing before it is read or skipped, and the channel is never moved, so
+ * one {@link FileChannel} can serve any number of concurrent requests.
+ *
+ * @author Daniel Manzke
+ */
+public final class RangeStreamer {
+
+	/**
+	 * Requests for more ranges, after merging overlapping ones, get the whole
+	 * file.
+	 */
+	public static final int DEFAULT_MAX_RANGES = 16;
+
+	private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+	private final FileChannel channel;
+
+	private final long length;
+
+	private final long lastModified;
+
+	private final String contentType;
+
+	private final String etag;
+
+	private final int maxRanges;
+
+	/**
+	 * @param lastModified
+	 *            In milliseconds since the epoch, or -1 if unknown.
+	 * @param contentType
+	 *            May be <code>null</code> for
+	 *            <code>application/octet-stream</code>.
+	 * @param etag
+	 *            A strong entity tag including the quotes, or
+	 *            <code>null</code>. <code>If-Range</code> with an entity tag
+	 *            only matches a strong one.
+	 */
+	public RangeStreamer(final FileChannel channel, final long lastModified, final String contentType, final String etag,
+			final int maxRanges) throws IOException {
+		this.channel = channel;
+		this.length = channel.size();
+		this.lastModified = lastModified;
+		this.contentType = contentType == null ? DEFAULT_CONTENT_TYPE : contentType;
+		this.etag = etag;
+		this.maxRanges = Math.max(1, maxRanges);
+	}
+
+	/**
+	 * Sends the file with an entity tag made of its length and modification
+	 * time.
+	 */
+	public static void send(final File file, final String contentType, final HttpServletRequest request,
+			final HttpServletResponse response) throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			final long lastModified = file.lastModified();
+			final String etag = "\"" + Long.toHexString(raf.length()) + "-" + Long.toHexString(lastModified) + "\"";
+			new RangeStreamer(raf.getChannel(), lastModified, contentType, etag, DEFAULT_MAX_RANGES).send(request, response);
+		} finally {
+			raf.close();
+		}
+	}
+
+	public final void send(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+		response.setHeader("Accept-Ranges", "bytes");
+		if (this.etag != null)
+			response.setHeader("ETag", this.etag);
+		if (this.lastModified >= 0)
+			response.setDateHeader("Last-Modified", this.lastModified);
+
+		final boolean head = "HEAD".equals(request.getMethod());
+		final String header = request.getHeader("Range");
+		final List<ByteRange> ranges = header != null && this.isCurrent(request) ? ByteRange.parse(header, this.length,
+				this.maxRanges) : null;
+
+		if (ranges == null) {
+			response.setStatus(HttpServletResponse.SC_OK);
+			response.setContentType(this.contentType);
+			response.setContentLengthLong(this.length);
+			if (!head)
+				this.write(response.getOutputStream(), 0, this.length);
+		} else if (ranges.isEmpty()) {
+			response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			response.setHeader("Content-Range", "bytes */" + this.length);
+			response.setContentLength(0);
+		} else if (ranges.size() == 1) {
+			final ByteRange range = ranges.get(0);
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setContentType(this.contentType);
+			response.setHeader("Content-Range", range.toContentRange(this.length));
+			response.setContentLengthLong(range.getLength());
+			if (!head)
+				this.write(response.getOutputStream(), range.getFirst(), range.getLength());
+		} else {
+			this.sendMultipart(ranges, head, response);
+		}
+	}
+
+	private final void sendMultipart(final List<ByteRange> ranges, final boolean head, final HttpServletResponse response)
+			throws IOException {
+		final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(System.nanoTime());
+		final byte[][] parts = new byte[ranges.size()][];
+		final byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+		long contentLength = end.length;
+		for (int i = 0; i < parts.length; i++) {
+			final ByteRange range = ranges.get(i);
+			parts[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + this.contentType + "\r\nContent-Range: "
+					+ range.toContentRange(this.length) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+			contentLength += parts[i].length + range.getLength();
+		}
+
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		response.setContentType("multipart/byteranges; boundary=" + boundary);
+		response.setContentLengthLong(contentLength);
+		if (head)
+			return;
+
+		final OutputStream out = response.getOutputStream();
+		for (int i = 0; i < parts.length; i++) {
+			out.write(parts[i]);
+			this.write(out, ranges.get(i).getFirst(), ranges.get(i).getLength());
+		}
+		out.write(end);
+	}
+
+	private final void write(final OutputStream out, final long position, final long count) throws IOException {
+		if (ChannelUtil.transfer(this.channel, position, count, out, StreamUtil.BUFFER_SIZE) < count)
+			throw new IOException("File shrank while sending bytes " + position + "-" + (position + count - 1));
+	}
+
+	/**
+	 * @return <code>true</code> if there is no <code>If-Range</code> or it
+	 *         matches the entity tag or modification time of the file.
+	 */
+	private final boolean isCurrent(final HttpServletRequest request) {
+		final String ifRange = request.getHeader("If-Range");
+		if (ifRange == null)
+			return true;
+
+		final String value = ifRange.trim();
+		if (value.startsWith("\"") || value.startsWith("W/"))
+			return this.etag != null && !this.etag.startsWith("W/") && this.etag.equals(value);
+
+		if (this.lastModified < 0)
+			return false;
+		try {
+			final long date = request.getDateHeader("If-Range");
+			return date >= 0 && date / 1000 == this.lastModified / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+}
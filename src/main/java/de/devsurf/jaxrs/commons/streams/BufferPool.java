@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.streams;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lends out buffers for temporary use.
+ * <p>
+ * A buffer may be larger than requested. It must be released exactly once and
+ * must not be touched after it was released. Releasing a buffer which did not
+ * come from the pool is allowed, the pool is free to keep or discard it.
+ *
+ * @see StreamUtil#getBufferPool()
+ * @see SizeClassedBufferPool
+ *
+ * @author Daniel Manzke
+ */
+public interface BufferPool {
+
+	byte[] acquireBytes(int minimumSize);
+
+	void releaseBytes(byte[] buffer);
+
+	char[] acquireChars(int minimumSize);
+
+	void releaseChars(char[] buffer);
+
+	/**
+	 * @return A cleared direct buffer with a capacity of at least
+	 *         <code>minimumSize</code>.
+	 */
+	ByteBuffer acquireDirect(int minimumSize);
+
+	void releaseDirect(ByteBuffer buffer);
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.streams;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An inclusive range of bytes within a resource of known length, as requested
+ * by a <code>Range: bytes=...</code> header.
+ * <p>
+ * {@link #parse(String, long, int)} accepts single and multiple ranges, open
+ * ranges (<code>500-</code>) and suffix ranges (<code>-500</code>). Ranges
+ * which overlap or touch are merged, so a client cannot make the server send
+ * the same bytes over and over again.
+ *
+ * @author Daniel Manzke
+ */
+public final class ByteRange {
+
+	private static final String UNIT = "bytes=";
+
+	private static final Comparator<ByteRange> BY_FIRST = new Comparator<ByteRange>() {
+		@Override
+		public int compare(final ByteRange a, final ByteRange b) {
+			return Long.compare(a.first, b.first);
+		}
+	};
+
+	private final long first;
+
+	private final long last;
+
+	public ByteRange(final long first, final long last) {
+		if (first < 0 || last < first)
+			throw new IllegalArgumentException("Invalid range: " + first + "-" + last);
+
+		this.first = first;
+		this.last = last;
+	}
+
+	/**
+	 * @param header
+	 *            The value of the <code>Range</code> header.
+	 * @param length
+	 *            The length of the resource.
+	 * @param maxRanges
+	 *            The maximum number of ranges after merging.
+	 * @return The requested ranges in ascending order, an empty list if none
+	 *         of them is satisfiable (answer with 416), or <code>null</code>
+	 *         if the header is malformed, uses another unit or asks for more
+	 *         than <code>maxRanges</code> ranges (ignore it and send the whole
+	 *         resource).
+	 */
+	public static List<ByteRange> parse(final String header, final long length, final int maxRanges) {
+		if (header == null || !header.regionMatches(true, 0, UNIT, 0, UNIT.length()))
+			return null;
+
+		final List<ByteRange> ranges = new ArrayList<ByteRange>(2);
+		int start = UNIT.length();
+		boolean empty = true;
+		while (start <= header.length()) {
+			int end = header.indexOf(',', start);
+			if (end < 0)
+				end = header.length();
+
+			final String spec = header.substring(start, end).trim();
+			start = end + 1;
+			if (spec.isEmpty())
+				continue;
+			empty = false;
+
+			final int dash = spec.indexOf('-');
+			if (dash < 0)
+				return null;
+
+			final long first;
+			final long last;
+			try {
+				if (dash == 0) {
+					first = Math.max(0, length - parseLong(spec.substring(1)));
+					last = length - 1;
+				} else {
+					first = parseLong(spec.substring(0, dash));
+					if (dash == spec.length() - 1) {
+						last = length - 1;
+					} else {
+						final long requested = parseLong(spec.substring(dash + 1));
+						if (requested < first)
+							return null;
+						last = Math.min(length - 1, requested);
+					}
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+
+			// unsatisfiable: starts behind the end or an empty suffix
+			if (first >= length || last < first)
+				continue;
+			ranges.add(new ByteRange(first, last));
+		}
+
+		if (empty)
+			return null;
+
+		return merge(ranges, maxRanges);
+	}
+
+	private static List<ByteRange> merge(final List<ByteRange> ranges, final int maxRanges) {
+		if (ranges.size() > 1) {
+			Collections.sort(ranges, BY_FIRST);
+
+			int merged = 0;
+			for (int i = 1; i < ranges.size(); i++) {
+				final ByteRange previous = ranges.get(merged);
+				final ByteRange range = ranges.get(i);
+				if (range.first <= previous.last + 1)
+					ranges.set(merged, new ByteRange(previous.first, Math.max(previous.last, range.last)));
+				else
+					ranges.set(++merged, range);
+			}
+			ranges.subList(merged + 1, ranges.size()).clear();
+		}
+
+		return ranges.size() > maxRanges ? null : ranges;
+	}
+
+	private static long parseLong(final String value) {
+		final String trimmed = value.trim();
+		if (trimmed.isEmpty() || trimmed.charAt(0) == '+' || trimmed.charAt(0) == '-')
+			throw new NumberFormatException(value);
+		return Long.parseLong(trimmed);
+	}
+
+	public final long getFirst() {
+		return this.first;
+	}
+
+	public final long getLast() {
+		return this.last;
+	}
+
+	public final long getLength() {
+		return this.last - this.first + 1;
+	}
+
+	/**
+	 * @return The value of a <code>Content-Range</code> header for this range.
+	 */
+	public final String toContentRange(final long length) {
+		return "bytes " + this.first + "-" + this.last + "/" + length;
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(this.first) * 31 + Long.hashCode(this.last);
+	}
+
+	@Override
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof ByteRange))
+			return false;
+
+		final ByteRange other = (ByteRange) obj;
+		return this.first == other.first && this.last == other.last;
+	}
+
+	@Override
+	public String toString() {
+		return this.first + "-" + this.last;
+	}
+}
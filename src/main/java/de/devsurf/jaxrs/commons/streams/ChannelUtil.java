@@ -0,0 +1,328 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.streams;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Copies data with as few intermediate copies as the endpoints allow.
+ * <p>
+ * If one side is a file and the other one a channel, or both are files,
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} or
+ * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)} let the
+ * operating system move the data (sendfile and friends). A plain stream on
+ * either side, like a servlet output stream, is copied through an array of
+ * the requested size instead: wrapping it into a channel would only add a
+ * copy and split every write into small pieces. Other channels are copied
+ * through a direct {@link ByteBuffer}. Both buffers are borrowed from
+ * {@link StreamUtil#getBufferPool()}.
+ *
+ * @author Daniel Manzke
+ */
+public final class ChannelUtil {
+
+	/**
+	 * The maximum number of bytes handed to one transfer call, some platforms
+	 * fail or fall back to copying for larger counts.
+	 */
+	private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+
+	private static final int DIRECT_BUFFER_SIZE = 65536;
+
+	private static final int COMPARE_BLOCK_SIZE = 256 * 1024;
+
+	private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+	private ChannelUtil() {
+		// Intentionally left blank.
+	}
+
+	/**
+	 * Copies everything from <code>in</code> to <code>out</code>. Neither
+	 * stream is flushed or closed.
+	 *
+	 * @return The number of bytes copied.
+	 */
+	public static long transfer(final InputStream in, final OutputStream out, final int bufferSize) throws IOException {
+		if (in instanceof FileInputStream && out instanceof FileOutputStream) {
+			final FileChannel source = ((FileInputStream) in).getChannel();
+			if (hasRemaining(source))
+				return copyFromFile(source, ((FileOutputStream) out).getChannel());
+		}
+
+		final BufferPool pool = StreamUtil.getBufferPool();
+		final byte[] buffer = pool.acquireBytes(bufferSize);
+		try {
+			long count = 0;
+			for (;;) {
+				final int len = in.read(buffer);
+				if (len < 0)
+					break;
+				out.write(buffer, 0, len);
+				count += len;
+			}
+			return count;
+		} finally {
+			pool.releaseBytes(buffer);
+		}
+	}
+
+	/**
+	 * Copies everything from <code>in</code> to <code>out</code>. Neither
+	 * channel is closed.
+	 *
+	 * @return The number of bytes copied.
+	 */
+	public static long transfer(final ReadableByteChannel in, final WritableByteChannel out) throws IOException {
+		if (in instanceof FileChannel && hasRemaining((FileChannel) in))
+			return copyFromFile((FileChannel) in, out);
+
+		if (out instanceof FileChannel)
+			return copyToFile(in, (FileChannel) out);
+
+		final BufferPool pool = StreamUtil.getBufferPool();
+		final ByteBuffer buffer = pool.acquireDirect(DIRECT_BUFFER_SIZE);
+		try {
+			long count = 0;
+			while (in.read(buffer) >= 0 || buffer.position() > 0) {
+				buffer.flip();
+				count += out.write(buffer);
+				buffer.compact();
+			}
+			return count;
+		} finally {
+			pool.releaseDirect(buffer);
+		}
+	}
+
+	/**
+	 * Copies <code>count</code> bytes of the file, starting at
+	 * <code>position</code>, without changing the position of the channel.
+	 *
+	 * If the operating system transfers nothing although the file has more
+	 * data, the rest is copied through a buffer instead of retrying.
+	 *
+	 * @return The number of bytes copied, less than <code>count</code> if the
+	 *         file ends earlier.
+	 */
+	public static long transfer(final FileChannel in, final long position, final long count, final WritableByteChannel out)
+			throws IOException {
+		long transferred = 0;
+		while (transferred < count) {
+			final long chunk = Math.min(TRANSFER_CHUNK, count - transferred);
+			final long len = in.transferTo(position + transferred, chunk, out);
+			if (len <= 0) {
+				if (position + transferred < in.size())
+					transferred += copyRange(in, position + transferred, count - transferred, out);
+				break;
+			}
+			transferred += len;
+		}
+		return transferred;
+	}
+
+	/**
+	 * Copies <code>count</code> bytes of the file, starting at
+	 * <code>position</code>, through an array of <code>bufferSize</code>
+	 * bytes, without changing the position of the channel.
+	 *
+	 * @return The number of bytes copied, less than <code>count</code> if the
+	 *         file ends earlier.
+	 */
+	public static long transfer(final FileChannel in, final long position, final long count, final OutputStream out,
+			final int bufferSize) throws IOException {
+		final BufferPool pool = StreamUtil.getBufferPool();
+		final byte[] array = pool.acquireBytes(bufferSize);
+		try {
+			final ByteBuffer buffer = ByteBuffer.wrap(array);
+			long copied = 0;
+			while (copied < count) {
+				buffer.clear();
+				buffer.limit((int) Math.min(array.length, count - copied));
+				read(in, buffer, position + copied);
+				if (buffer.position() == 0)
+					break;
+				out.write(array, 0, buffer.position());
+				copied += buffer.position();
+			}
+			return copied;
+		} finally {
+			pool.releaseBytes(array);
+		}
+	}
+
+	/**
+	 * Compares the rest of both files, starting at their current positions,
+	 * which are left unchanged.
+	 *
+	 * @param map
+	 *            Whether to compare memory-mapped windows of the files instead
+	 *            of reading them into buffers.
+	 * @return The offset of the first byte which differs, the length of the
+	 *         shorter file if it is a prefix of the other one, or -1 if both
+	 *         are equal.
+	 */
+	public static long mismatch(final FileChannel a, final FileChannel b, final boolean map) throws IOException {
+		final long positionA = a.position();
+		final long positionB = b.position();
+		final long lengthA = Math.max(0, a.size() - positionA);
+		final long lengthB = Math.max(0, b.size() - positionB);
+		final long common = Math.min(lengthA, lengthB);
+
+		final long mismatch = map ? mismatchMapped(a, positionA, b, positionB, common) : mismatchRead(a, positionA, b, positionB, common);
+		if (mismatch >= 0)
+			return mismatch;
+
+		return lengthA == lengthB ? -1 : common;
+	}
+
+	private static long mismatchMapped(final FileChannel a, final long positionA, final FileChannel b, final long positionB, final long length)
+			throws IOException {
+		long offset = 0;
+		while (offset < length) {
+			final long window = Math.min(MAP_WINDOW, length - offset);
+			final MappedByteBuffer bufferA = a.map(FileChannel.MapMode.READ_ONLY, positionA + offset, window);
+			final MappedByteBuffer bufferB = b.map(FileChannel.MapMode.READ_ONLY, positionB + offset, window);
+
+			final int mismatch = bufferA.mismatch(bufferB);
+			if (mismatch >= 0)
+				return offset + mismatch;
+			offset += window;
+		}
+		return -1;
+	}
+
+	private static long mismatchRead(final FileChannel a, final long positionA, final FileChannel b, final long positionB, final long length)
+			throws IOException {
+		final BufferPool pool = StreamUtil.getBufferPool();
+		final ByteBuffer bufferA = pool.acquireDirect(COMPARE_BLOCK_SIZE);
+		final ByteBuffer bufferB = pool.acquireDirect(COMPARE_BLOCK_SIZE);
+		try {
+			long offset = 0;
+			while (offset < length) {
+				final int block = (int) Math.min(COMPARE_BLOCK_SIZE, length - offset);
+
+				bufferA.clear().limit(block);
+				bufferB.clear().limit(block);
+				read(a, bufferA, positionA + offset);
+				read(b, bufferB, positionB + offset);
+				bufferA.flip();
+				bufferB.flip();
+
+				final int mismatch = bufferA.mismatch(bufferB);
+				if (mismatch >= 0)
+					return offset + mismatch;
+				offset += block;
+			}
+			return -1;
+		} finally {
+			pool.releaseDirect(bufferA);
+			pool.releaseDirect(bufferB);
+		}
+	}
+
+	/**
+	 * Reads at <code>position</code> until the buffer is full or the file
+	 * ends.
+	 */
+	private static void read(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+		long offset = position;
+		while (buffer.hasRemaining()) {
+			final int len = channel.read(buffer, offset);
+			if (len < 0)
+				break;
+			offset += len;
+		}
+	}
+
+	/**
+	 * Copies <code>count</code> bytes of the file through a direct buffer, for
+	 * channels {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+	 * makes no progress with.
+	 */
+	private static long copyRange(final FileChannel in, final long position, final long count, final WritableByteChannel out)
+			throws IOException {
+		final BufferPool pool = StreamUtil.getBufferPool();
+		final ByteBuffer buffer = pool.acquireDirect(DIRECT_BUFFER_SIZE);
+		try {
+			long copied = 0;
+			while (copied < count) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), count - copied));
+				read(in, buffer, position + copied);
+				buffer.flip();
+				if (!buffer.hasRemaining())
+					break;
+				while (buffer.hasRemaining())
+					copied += out.write(buffer);
+			}
+			return copied;
+		} finally {
+			pool.releaseDirect(buffer);
+		}
+	}
+
+	/**
+	 * Copies the rest of the file from its current position and advances the
+	 * position accordingly.
+	 */
+	private static long copyFromFile(final FileChannel in, final WritableByteChannel out) throws IOException {
+		final long position = in.position();
+		final long count = transfer(in, position, Math.max(0, in.size() - position), out);
+		in.position(position + count);
+		return count;
+	}
+
+	/**
+	 * Appends everything from the channel to the file at its current position
+	 * and advances the position accordingly.
+	 */
+	private static long copyToFile(final ReadableByteChannel in, final FileChannel out) throws IOException {
+		final long start = out.position();
+
+		long position = start;
+		for (;;) {
+			final long len = out.transferFrom(in, position, TRANSFER_CHUNK);
+			if (len <= 0)
+				break;
+			position += len;
+		}
+
+		out.position(position);
+		return position - start;
+	}
+
+	/**
+	 * Pipes, devices and files like those in <code>/proc</code> report no
+	 * size, they are read like any other stream.
+	 */
+	static boolean hasRemaining(final FileChannel channel) {
+		try {
+			return channel.size() > channel.position();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.streams;
+
+import java.util.zip.Deflater;
+
+import de.devsurf.jaxrs.commons.concurrent.RingBuffer;
+
+/**
+ * Keeps raw (headerless) {@link Deflater}s of one compression level for
+ * reuse.
+ * <p>
+ * A deflater holds a few hundred kilobytes of native memory which is only
+ * freed by {@link Deflater#end()} or finalization, so creating one per
+ * response is expensive. Deflaters which do not fit into the pool are ended
+ * right away.
+ *
+ * @author Daniel Manzke
+ */
+public final class DeflaterPool {
+
+	private final RingBuffer<Deflater> deflaters;
+
+	private final int level;
+
+	/**
+	 * @param level
+	 *            The compression level, see {@link Deflater}.
+	 * @param capacity
+	 *            The number of idle deflaters to keep.
+	 */
+	public DeflaterPool(final int level, final int capacity) {
+		this.level = level;
+		this.deflaters = new RingBuffer<Deflater>(Math.max(1, capacity));
+	}
+
+	/**
+	 * @return A reset deflater producing raw deflate data.
+	 */
+	public final Deflater acquire() {
+		final Deflater deflater = this.deflaters.poll();
+		return deflater != null ? deflater : new Deflater(this.level, true);
+	}
+
+	public final void release(final Deflater deflater) {
+		deflater.reset();
+		if (!this.deflaters.offer(deflater))
+			deflater.end();
+	}
+
+	public final int getLevel() {
+		return this.level;
+	}
+
+	/**
+	 * Ends all idle deflaters.
+	 */
+	public final void clear() {
+		Deflater deflater;
+		while ((deflater = this.deflaters.poll()) != null)
+			deflater.end();
+	}
+}
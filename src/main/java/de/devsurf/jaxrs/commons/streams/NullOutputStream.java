@@ -22,13 +22,13 @@ import java.io.OutputStream;
  * An <code>OutputStream</code> that discards the actual data but just counts
  * the number of bytes written.
  * 
- * @see #getSize()
+ * @see #getLength()
  * 
  * @author Daniel Manzke
  */
 public final class NullOutputStream extends OutputStream {
 
-	private int size;
+	private long size;
 
 	@Override
 	public final void write(final byte[] b, final int off, final int len) throws IOException {
@@ -46,9 +46,20 @@ public final class NullOutputStream extends OutputStream {
 	}
 
 	/**
-	 * @return The number of bytes written into this stream.
+	 * @return The number of bytes written into this stream, at most
+	 *         {@link Integer#MAX_VALUE}.
+	 * @deprecated Overflows for streams larger than 2 GB, use
+	 *             {@link #getLength()}.
 	 */
+	@Deprecated
 	public final int getSize() {
+		return (int) Math.min(Integer.MAX_VALUE, this.size);
+	}
+
+	/**
+	 * @return The number of bytes written into this stream.
+	 */
+	public final long getLength() {
 		return this.size;
 	}
 
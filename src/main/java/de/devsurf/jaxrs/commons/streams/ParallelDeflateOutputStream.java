@@ -0,0 +1,424 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.streams;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses into gzip or zlib format, deflating blocks of the input in
+ * parallel.
+ * <p>
+ * Like pigz, every block is deflated on its own, primed with the last 32 KiB
+ * of the preceding block as dictionary and ended with a sync flush, so the
+ * blocks concatenate to a single deflate stream which any inflater can read.
+ * The checksum is computed on the writing thread while the blocks are in
+ * flight. The last block is always deflated by the writing thread, so
+ * bodies of a single block never leave it.
+ * <p>
+ * At most <code>maxInFlight</code> blocks are pending at once; a writer
+ * which gets ahead of the executor waits for the oldest one. With a bounded
+ * executor using a caller-runs policy the writer deflates the block itself.
+ * Blocks and output buffers come from {@link StreamUtil#getBufferPool()}.
+ *
+ * @author Daniel Manzke
+ */
+public final class ParallelDeflateOutputStream extends OutputStream {
+
+	/**
+	 * The smallest block size, the size of the deflate window.
+	 */
+	public static final int MIN_BLOCK_SIZE = 32768;
+
+	private static final int DICTIONARY_SIZE = 32768;
+
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private final OutputStream out;
+
+	private final boolean gzip;
+
+	private final DeflaterPool deflaters;
+
+	private final Executor executor;
+
+	private final BufferPool buffers = StreamUtil.getBufferPool();
+
+	private final int blockSize;
+
+	private final int maxInFlight;
+
+	private final Checksum checksum;
+
+	private final ArrayDeque<Block> pending = new ArrayDeque<Block>();
+
+	private byte[] block;
+
+	private int length;
+
+	private long size;
+
+	/**
+	 * The input of the block submitted last, the dictionary of the next.
+	 */
+	private byte[] previous;
+
+	private int previousLength;
+
+	/**
+	 * The input of the block written out last, still needed as dictionary
+	 * until its successor is written.
+	 */
+	private byte[] retired;
+
+	private boolean finished;
+
+	/**
+	 * @param gzip
+	 *            <code>true</code> for the gzip format, <code>false</code> for
+	 *            the zlib format (HTTP "deflate").
+	 * @param executor
+	 *            Runs the deflate tasks, may run them on the calling thread.
+	 * @param blockSize
+	 *            The number of input bytes per block, at least
+	 *            {@link #MIN_BLOCK_SIZE}.
+	 * @param maxInFlight
+	 *            The number of blocks which may be pending at once.
+	 */
+	public ParallelDeflateOutputStream(final OutputStream out, final boolean gzip, final DeflaterPool deflaters,
+			final Executor executor, final int blockSize, final int maxInFlight) throws IOException {
+		this.out = out;
+		this.gzip = gzip;
+		this.deflaters = deflaters;
+		this.executor = executor;
+		this.blockSize = Math.max(MIN_BLOCK_SIZE, blockSize);
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.checksum = gzip ? new CRC32() : new Adler32();
+
+		if (gzip) {
+			out.write(GZIP_HEADER);
+		} else {
+			out.write(zlibHeader(deflaters.getLevel()));
+		}
+	}
+
+	@Override
+	public final void write(final int b) throws IOException {
+		this.ensureOpen();
+		if (this.block == null)
+			this.block = this.buffers.acquireBytes(this.blockSize);
+
+		this.block[this.length++] = (byte) b;
+		this.checksum.update(b);
+		this.size++;
+
+		if (this.length == this.blockSize)
+			this.submit(false);
+	}
+
+	@Override
+	public final void write(final byte[] b, int off, int len) throws IOException {
+		this.ensureOpen();
+		this.checksum.update(b, off, len);
+		this.size += len;
+
+		while (len > 0) {
+			if (this.block == null)
+				this.block = this.buffers.acquireBytes(this.blockSize);
+
+			final int n = Math.min(len, this.blockSize - this.length);
+			System.arraycopy(b, off, this.block, this.length, n);
+			this.length += n;
+			off += n;
+			len -= n;
+
+			if (this.length == this.blockSize)
+				this.submit(false);
+		}
+	}
+
+	/**
+	 * Deflates the buffered input with a sync flush and writes out all
+	 * pending blocks, so the receiver can inflate everything written so far.
+	 */
+	@Override
+	public final void flush() throws IOException {
+		this.ensureOpen();
+		if (this.length > 0)
+			this.submit(false);
+
+		while (!this.pending.isEmpty())
+			this.writeOldest();
+		this.out.flush();
+	}
+
+	/**
+	 * Writes the last block and the trailer without closing the underlying
+	 * stream.
+	 */
+	public final void finish() throws IOException {
+		if (this.finished)
+			return;
+
+		try {
+			this.submit(true);
+			while (!this.pending.isEmpty())
+				this.writeOldest();
+
+			final long value = this.checksum.getValue();
+			if (this.gzip) {
+				writeIntLE(this.out, (int) value);
+				writeIntLE(this.out, (int) this.size);
+			} else {
+				this.out.write((int) (value >>> 24));
+				this.out.write((int) (value >>> 16));
+				this.out.write((int) (value >>> 8));
+				this.out.write((int) value);
+			}
+		} finally {
+			this.abort();
+		}
+	}
+
+	@Override
+	public final void close() throws IOException {
+		try {
+			this.finish();
+		} finally {
+			this.out.close();
+		}
+	}
+
+	/**
+	 * Waits for the pending blocks and returns all buffers to the pool
+	 * without writing anything. The stream is unusable afterwards.
+	 */
+	public final void abort() {
+		this.finished = true;
+
+		// every block may still be the dictionary of its running successor
+		boolean interrupted = false;
+		for (final Block pending : this.pending) {
+			for (;;) {
+				try {
+					this.release(pending.task.get());
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					break;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		for (Block pending; (pending = this.pending.poll()) != null;)
+			this.buffers.releaseBytes(pending.input);
+
+		if (this.block != null) {
+			this.buffers.releaseBytes(this.block);
+			this.block = null;
+		}
+		if (this.retired != null) {
+			this.buffers.releaseBytes(this.retired);
+			this.retired = null;
+		}
+		this.previous = null;
+	}
+
+	/**
+	 * @return The number of uncompressed bytes written.
+	 */
+	public final long getSize() {
+		return this.size;
+	}
+
+	private final void submit(final boolean last) throws IOException {
+		if (this.block == null)
+			this.block = this.buffers.acquireBytes(last ? 0 : this.blockSize);
+
+		final byte[] input = this.block;
+		final int inputLength = this.length;
+		final byte[] dictionary = this.previous;
+		final int dictionaryLength = this.previousLength;
+
+		final Block submitted = new Block(input, new FutureTask<Chunk>(new Callable<Chunk>() {
+			@Override
+			public Chunk call() {
+				return deflate(input, inputLength, dictionary, dictionaryLength, last);
+			}
+		}));
+
+		this.block = null;
+		this.length = 0;
+		this.previous = input;
+		this.previousLength = inputLength;
+
+		while (this.pending.size() >= this.maxInFlight)
+			this.writeOldest();
+
+		this.pending.add(submitted);
+		if (last) {
+			submitted.task.run();
+		} else {
+			this.executor.execute(submitted.task);
+		}
+	}
+
+	private final void writeOldest() throws IOException {
+		final Block oldest = this.pending.poll();
+
+		final Chunk chunk;
+		try {
+			chunk = oldest.task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.pending.addFirst(oldest);
+			throw new InterruptedIOException("Interrupted while deflating");
+		} catch (ExecutionException e) {
+			this.retire(oldest.input);
+			throw new IOException("Deflating failed", e.getCause());
+		}
+		this.retire(oldest.input);
+
+		try {
+			this.out.write(chunk.data, 0, chunk.length);
+		} finally {
+			this.release(chunk);
+		}
+	}
+
+	/**
+	 * Releases the input of the predecessor of a finished block, which was
+	 * its dictionary.
+	 */
+	private final void retire(final byte[] input) {
+		if (this.retired != null)
+			this.buffers.releaseBytes(this.retired);
+		this.retired = input;
+	}
+
+	private final Chunk deflate(final byte[] input, final int inputLength, final byte[] dictionary,
+			final int dictionaryLength, final boolean last) {
+		final Deflater deflater = this.deflaters.acquire();
+		try {
+			if (dictionary != null && dictionaryLength > 0) {
+				final int n = Math.min(DICTIONARY_SIZE, dictionaryLength);
+				deflater.setDictionary(dictionary, dictionaryLength - n, n);
+			}
+			deflater.setInput(input, 0, inputLength);
+
+			byte[] output = this.buffers.acquireBytes(Math.max(1024, inputLength >>> 1));
+			int position = 0;
+			if (last) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					if (position == output.length)
+						output = this.grow(output, position);
+					position += deflater.deflate(output, position, output.length - position);
+				}
+			} else {
+				// a full output buffer means there may be more to flush
+				for (;;) {
+					position += deflater.deflate(output, position, output.length - position, Deflater.SYNC_FLUSH);
+					if (position < output.length)
+						break;
+					output = this.grow(output, position);
+				}
+			}
+			return new Chunk(output, position);
+		} finally {
+			this.deflaters.release(deflater);
+		}
+	}
+
+	private final byte[] grow(final byte[] output, final int length) {
+		final byte[] grown = this.buffers.acquireBytes(output.length << 1);
+		System.arraycopy(output, 0, grown, 0, length);
+		this.buffers.releaseBytes(output);
+		return grown;
+	}
+
+	private final void release(final Chunk chunk) {
+		if (chunk != null)
+			this.buffers.releaseBytes(chunk.data);
+	}
+
+	private final void ensureOpen() throws IOException {
+		if (this.finished)
+			throw new IOException("Stream already finished");
+	}
+
+	private static final byte[] zlibHeader(final int level) {
+		final int compressionLevel;
+		if (level == Deflater.DEFAULT_COMPRESSION || level == 6) {
+			compressionLevel = 2;
+		} else if (level < 2) {
+			compressionLevel = 0;
+		} else if (level < 6) {
+			compressionLevel = 1;
+		} else {
+			compressionLevel = 3;
+		}
+
+		final int cmf = 0x78;
+		int flg = compressionLevel << 6;
+		flg += (31 - (cmf << 8 | flg) % 31) % 31;
+		return new byte[] { (byte) cmf, (byte) flg };
+	}
+
+	private static final void writeIntLE(final OutputStream out, final int value) throws IOException {
+		out.write(value);
+		out.write(value >>> 8);
+		out.write(value >>> 16);
+		out.write(value >>> 24);
+	}
+
+	private static final class Block {
+
+		final byte[] input;
+
+		final FutureTask<Chunk> task;
+
+		Block(final byte[] input, final FutureTask<Chunk> task) {
+			this.input = input;
+			this.task = task;
+		}
+	}
+
+	private static final class Chunk {
+
+		final byte[] data;
+
+		final int length;
+
+		Chunk(final byte[] data, final int length) {
+			this.data = data;
+			this.length = length;
+		}
+	}
+}
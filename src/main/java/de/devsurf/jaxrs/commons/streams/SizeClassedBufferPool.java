@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.streams;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.devsurf.jaxrs.commons.concurrent.RingBuffer;
+
+/**
+ * A {@link BufferPool} with power-of-two size classes from
+ * {@value #MIN_SIZE} up to a configurable maximum.
+ * <p>
+ * Every size class has two tiers: a small cache per thread, which needs no
+ * synchronization at all, and a bounded {@link RingBuffer} shared by all
+ * threads. Only classes up to {@value #MAX_LOCAL_SIZE} are cached per thread,
+ * so a large thread pool does not pin large buffers. Requests above the
+ * maximum size are allocated and discarded without pooling.
+ *
+ * @author Daniel Manzke
+ */
+public final class SizeClassedBufferPool implements BufferPool {
+
+	public static final int MIN_SIZE = 1024;
+
+	public static final int MAX_LOCAL_SIZE = 65536;
+
+	public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+
+	public static final int DEFAULT_LOCAL_CAPACITY = 2;
+
+	public static final long DEFAULT_SHARED_BYTES = 4L * 1024 * 1024;
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+
+	private static final int MAX_SHARED_ENTRIES = 256;
+
+	private final int maxSize;
+
+	private final Tier<byte[]>[] bytes;
+
+	private final Tier<char[]>[] chars;
+
+	private final Tier<ByteBuffer>[] direct;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder discarded = new LongAdder();
+
+	public SizeClassedBufferPool() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_LOCAL_CAPACITY, DEFAULT_SHARED_BYTES);
+	}
+
+	/**
+	 * @param maxSize
+	 *            The largest pooled size, rounded up to a power of two.
+	 * @param localCapacity
+	 *            The number of buffers per size class cached by each thread.
+	 * @param sharedBytes
+	 *            The number of bytes (or chars) per size class kept in the
+	 *            shared tier.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public SizeClassedBufferPool(final int maxSize, final int localCapacity, final long sharedBytes) {
+		this.maxSize = Math.max(MIN_SIZE, Integer.highestOneBit(Math.max(1, maxSize - 1)) << 1);
+
+		final int classes = Integer.numberOfTrailingZeros(this.maxSize) - MIN_SHIFT + 1;
+		this.bytes = new Tier[classes];
+		this.chars = new Tier[classes];
+		this.direct = new Tier[classes];
+
+		for (int i = 0; i < classes; i++) {
+			final int size = MIN_SIZE << i;
+			final int local = size <= MAX_LOCAL_SIZE ? localCapacity : 0;
+			final int shared = (int) Math.min(MAX_SHARED_ENTRIES, sharedBytes / size);
+
+			this.bytes[i] = new Tier<byte[]>(local, shared);
+			this.chars[i] = new Tier<char[]>(local, shared);
+			this.direct[i] = new Tier<ByteBuffer>(local, shared);
+		}
+	}
+
+	@Override
+	public final byte[] acquireBytes(final int minimumSize) {
+		final int index = this.classOf(minimumSize);
+		if (index >= 0) {
+			final byte[] buffer = this.bytes[index].poll();
+			if (buffer != null) {
+				this.hits.increment();
+				return buffer;
+			}
+		}
+
+		this.misses.increment();
+		return new byte[index < 0 ? minimumSize : MIN_SIZE << index];
+	}
+
+	@Override
+	public final void releaseBytes(final byte[] buffer) {
+		final int index = this.exactClassOf(buffer.length);
+		if (index < 0 || !this.bytes[index].offer(buffer))
+			this.discarded.increment();
+	}
+
+	@Override
+	public final char[] acquireChars(final int minimumSize) {
+		final int index = this.classOf(minimumSize);
+		if (index >= 0) {
+			final char[] buffer = this.chars[index].poll();
+			if (buffer != null) {
+				this.hits.increment();
+				return buffer;
+			}
+		}
+
+		this.misses.increment();
+		return new char[index < 0 ? minimumSize : MIN_SIZE << index];
+	}
+
+	@Override
+	public final void releaseChars(final char[] buffer) {
+		final int index = this.exactClassOf(buffer.length);
+		if (index < 0 || !this.chars[index].offer(buffer))
+			this.discarded.increment();
+	}
+
+	@Override
+	public final ByteBuffer acquireDirect(final int minimumSize) {
+		final int index = this.classOf(minimumSize);
+		if (index >= 0) {
+			final ByteBuffer buffer = this.direct[index].poll();
+			if (buffer != null) {
+				this.hits.increment();
+				buffer.clear();
+				return buffer;
+			}
+		}
+
+		this.misses.increment();
+		return ByteBuffer.allocateDirect(index < 0 ? minimumSize : MIN_SIZE << index);
+	}
+
+	@Override
+	public final void releaseDirect(final ByteBuffer buffer) {
+		final int index = buffer.isDirect() ? this.exactClassOf(buffer.capacity()) : -1;
+		if (index < 0 || !this.direct[index].offer(buffer))
+			this.discarded.increment();
+	}
+
+	/**
+	 * @return The number of requests served from a cache.
+	 */
+	public final long getHits() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * @return The number of requests no cached buffer was available for, each
+	 *         of them allocated a new buffer.
+	 */
+	public final long getMisses() {
+		return this.misses.sum();
+	}
+
+	/**
+	 * @return The number of released buffers which were not kept.
+	 */
+	public final long getDiscarded() {
+		return this.discarded.sum();
+	}
+
+	public final int getMaxSize() {
+		return this.maxSize;
+	}
+
+	@Override
+	public String toString() {
+		return "hits=" + this.getHits() + " misses=" + this.getMisses() + " discarded=" + this.getDiscarded();
+	}
+
+	/**
+	 * @return The smallest class holding <code>size</code> or -1.
+	 */
+	private final int classOf(final int size) {
+		if (size <= MIN_SIZE)
+			return 0;
+		if (size > this.maxSize)
+			return -1;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	/**
+	 * @return The class of exactly <code>size</code> or -1.
+	 */
+	private final int exactClassOf(final int size) {
+		if (size < MIN_SIZE || size > this.maxSize || Integer.bitCount(size) != 1)
+			return -1;
+		return Integer.numberOfTrailingZeros(size) - MIN_SHIFT;
+	}
+
+	private static final class Tier<T> {
+
+		private final int localCapacity;
+
+		private final ThreadLocal<Object[]> local;
+
+		private final RingBuffer<T> shared;
+
+		Tier(final int localCapacity, final int sharedCapacity) {
+			this.localCapacity = localCapacity;
+			this.local = localCapacity > 0 ? new ThreadLocal<Object[]>() : null;
+			this.shared = sharedCapacity > 0 ? new RingBuffer<T>(sharedCapacity) : null;
+		}
+
+		@SuppressWarnings("unchecked")
+		final T poll() {
+			if (this.local != null) {
+				final Object[] cache = this.local.get();
+				if (cache != null) {
+					for (int i = 0; i < cache.length; i++) {
+						if (cache[i] != null) {
+							final Object buffer = cache[i];
+							cache[i] = null;
+							return (T) buffer;
+						}
+					}
+				}
+			}
+			return this.shared == null ? null : this.shared.poll();
+		}
+
+		final boolean offer(final T buffer) {
+			if (this.local != null) {
+				Object[] cache = this.local.get();
+				if (cache == null) {
+					cache = new Object[this.localCapacity];
+					this.local.set(cache);
+				}
+				for (int i = 0; i < cache.length; i++) {
+					if (cache[i] == null) {
+						cache[i] = buffer;
+						return true;
+					}
+				}
+			}
+			return this.shared != null && this.shared.offer(buffer);
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.streams;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An append-only byte buffer which moves to a temporary file once it grows
+ * beyond a threshold, and can be read at any position.
+ * <p>
+ * Up to the threshold the bytes live in an array from
+ * {@link StreamUtil#getBufferPool()}. Beyond it they are written to a
+ * temporary file which is deleted on {@link #release()}, and read back at
+ * their position. The file is never memory-mapped: a mapping would keep the
+ * disk blocks of the deleted file until it is garbage collected. Not
+ * thread-safe.
+ *
+ * @author Daniel Manzke
+ */
+public final class SpillBuffer {
+
+	private static final int INITIAL_SIZE = 8192;
+
+	private final int threshold;
+
+	private final File directory;
+
+	private byte[] memory;
+
+	private FileChannel channel;
+
+	private long size;
+
+	private boolean complete;
+
+	/**
+	 * @param threshold
+	 *            The number of bytes to keep in memory.
+	 * @param directory
+	 *            Where to create the file, <code>null</code> for the default
+	 *            temporary directory.
+	 */
+	public SpillBuffer(final int threshold, final File directory) {
+		this.threshold = Math.max(0, threshold);
+		this.directory = directory;
+	}
+
+	public final void append(final byte[] b, final int off, final int len) throws IOException {
+		if (this.complete)
+			throw new IllegalStateException("Buffer is complete");
+		if (len == 0)
+			return;
+
+		if (this.channel == null) {
+			final long required = this.size + len;
+			if (required <= this.threshold) {
+				System.arraycopy(b, off, this.memory((int) required), (int) this.size, len);
+				this.size = required;
+				return;
+			}
+			this.spill();
+		}
+
+		final ByteBuffer source = ByteBuffer.wrap(b, off, len);
+		long position = this.size;
+		while (source.hasRemaining())
+			position += this.channel.write(source, position);
+		this.size = position;
+	}
+
+	/**
+	 * Marks the end of the data, nothing can be appended afterwards.
+	 */
+	public final void complete() {
+		this.complete = true;
+	}
+
+	/**
+	 * @return The number of bytes read, -1 if the position is at the end.
+	 */
+	public final int read(final long position, final byte[] b, final int off, final int len) throws IOException {
+		if (position >= this.size)
+			return -1;
+
+		final int n = (int) Math.min(len, this.size - position);
+		if (this.channel == null) {
+			System.arraycopy(this.memory, (int) position, b, off, n);
+		} else {
+			final ByteBuffer target = ByteBuffer.wrap(b, off, n);
+			long at = position;
+			while (target.hasRemaining()) {
+				final int read = this.channel.read(target, at);
+				if (read < 0)
+					break;
+				at += read;
+			}
+			return (int) (at - position);
+		}
+		return n;
+	}
+
+	public final long size() {
+		return this.size;
+	}
+
+	public final boolean isComplete() {
+		return this.complete;
+	}
+
+	public final boolean isSpilled() {
+		return this.channel != null;
+	}
+
+	/**
+	 * Returns the memory to the pool and deletes the file. The buffer must
+	 * not be used afterwards.
+	 */
+	public final void release() {
+		if (this.memory != null) {
+			StreamUtil.getBufferPool().releaseBytes(this.memory);
+			this.memory = null;
+		}
+		if (this.channel != null) {
+			try {
+				this.channel.close();
+			} catch (IOException e) {
+				// the file is deleted on close, there is nothing left to do
+			}
+			this.channel = null;
+		}
+		this.size = 0;
+	}
+
+	private final byte[] memory(final int required) {
+		if (this.memory == null) {
+			this.memory = StreamUtil.getBufferPool().acquireBytes(Math.min(this.threshold, Math.max(required, INITIAL_SIZE)));
+		} else if (this.memory.length < required) {
+			final byte[] grown = StreamUtil.getBufferPool().acquireBytes(
+					Math.min(this.threshold, Math.max(required, this.memory.length << 1)));
+			System.arraycopy(this.memory, 0, grown, 0, (int) this.size);
+			StreamUtil.getBufferPool().releaseBytes(this.memory);
+			this.memory = grown;
+		}
+		return this.memory;
+	}
+
+	private final void spill() throws IOException {
+		final Path file = this.directory == null ? Files.createTempFile("spill-", ".tmp")
+				: Files.createTempFile(this.directory.toPath(), "spill-", ".tmp");
+		try {
+			this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+					StandardOpenOption.DELETE_ON_CLOSE);
+		} catch (IOException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+
+		if (this.size > 0) {
+			final ByteBuffer source = ByteBuffer.wrap(this.memory, 0, (int) this.size);
+			while (source.hasRemaining())
+				this.channel.write(source);
+		}
+		if (this.memory != null) {
+			StreamUtil.getBufferPool().releaseBytes(this.memory);
+			this.memory = null;
+		}
+	}
+}
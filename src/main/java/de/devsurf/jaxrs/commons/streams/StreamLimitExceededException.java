@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.streams;
+
+import java.io.IOException;
+
+/**
+ * Thrown if a stream holds more data than the caller is willing to accept.
+ *
+ * @author Daniel Manzke
+ */
+public class StreamLimitExceededException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long limit;
+
+	public StreamLimitExceededException(final long limit) {
+		super("Stream exceeds the limit of " + limit + " bytes");
+		this.limit = limit;
+	}
+
+	/**
+	 * @return The maximum number of bytes which were allowed.
+	 */
+	public final long getLimit() {
+		return this.limit;
+	}
+}
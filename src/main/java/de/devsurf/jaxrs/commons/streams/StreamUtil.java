@@ -15,43 +15,76 @@
  */
 package de.devsurf.jaxrs.commons.streams;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class StreamUtil {
+    /**
+     * The buffer size used by methods which do not take one.
+     */
     public static int BUFFER_SIZE = 65536;
 
+    private static final int MIN_CHUNK_SIZE = 8192;
+
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * The most a length hint from the caller may allocate before any data has
+     * arrived. Larger hints start with a chunk of this size and grow.
+     */
+    private static final int MAX_HINTED_SIZE = 65536;
+
+    private static volatile BufferPool bufferPool = new SizeClassedBufferPool();
+
+    /**
+     * @return The pool all methods of this package borrow their buffers from.
+     */
+    public static BufferPool getBufferPool() {
+	return bufferPool;
+    }
+
+    /**
+     * Replaces the pool, e.g. with a differently sized
+     * {@link SizeClassedBufferPool}.
+     */
+    public static void setBufferPool(BufferPool pool) {
+	if (pool == null)
+	    throw new NullPointerException("pool");
+	bufferPool = pool;
+    }
+
+    /**
+     * Copies <code>in</code> to <code>out</code> and flushes <code>out</code>.
+     * A file copied to a file is transferred by the operating system,
+     * everything else is copied through one reusable buffer of
+     * <code>bufferSize</code> bytes.
+     * 
+     * @see ChannelUtil#transfer(InputStream, OutputStream, int)
+     */
     public static void copyInToOut(InputStream in, OutputStream out, int bufferSize,
 	    boolean forceClose) throws IOException {
-	BufferedInputStream bis = new BufferedInputStream(in, bufferSize);
-	BufferedOutputStream bos = new BufferedOutputStream(out, bufferSize);
-
 	try {
-	    byte[] buffer = new byte[bufferSize];
-	    for (;;) {
-		int len = bis.read(buffer);
-		if (len < 0)
-		    break;
-		bos.write(buffer, 0, len);
-	    }
-	    bos.flush();
+	    ChannelUtil.transfer(in, out, bufferSize);
+	    out.flush();
 	} finally {
 	    if (forceClose) {
 		try {
-		    bis.close();
+		    in.close();
 		} catch (Exception e) {
 		    // ignore
 		}
 		try {
-		    bos.close();
+		    out.close();
 		} catch (Exception e) {
 		    // ignore
 		}
@@ -61,27 +94,26 @@ public class StreamUtil {
 
     public static void copyInToOut(Reader in, Writer out, int bufferSize, boolean forceClose)
 	    throws IOException {
-	BufferedWriter writer = new BufferedWriter(out, bufferSize);
-	BufferedReader reader = new BufferedReader(in, bufferSize);
-
+	BufferPool pool = bufferPool;
+	char[] buffer = pool.acquireChars(bufferSize);
 	try {
-	    char[] buffer = new char[bufferSize];
 	    for (;;) {
-		int len = reader.read(buffer);
+		int len = in.read(buffer);
 		if (len < 0)
 		    break;
-		writer.write(buffer, 0, len);
+		out.write(buffer, 0, len);
 	    }
-	    writer.flush();
+	    out.flush();
 	} finally {
+	    pool.releaseChars(buffer);
 	    if (forceClose) {
 		try {
-		    reader.close();
+		    in.close();
 		} catch (Exception e) {
 		    // ignore
 		}
 		try {
-		    writer.close();
+		    out.close();
 		} catch (Exception e) {
 		    // ignore
 		}
@@ -100,57 +132,244 @@ public class StreamUtil {
 
     public static byte[] readBytes(InputStream in, int bufferSize, boolean forceClose)
 	    throws Exception {
-	ByteArrayOutputStream baos = new ByteArrayOutputStream(bufferSize);
-
-	copyInToOut(in, baos, bufferSize, forceClose);
-	return baos.toByteArray();
+	return readBytes(in, -1, -1, forceClose);
     }
 
     public static byte[] readBytes(InputStream in, boolean forceClose) throws Exception {
-	InputStream is = new BufferedInputStream(in, BUFFER_SIZE);
-
-	ByteArrayOutputStream baos = new ByteArrayOutputStream(BUFFER_SIZE);
-	BufferedOutputStream bos = new BufferedOutputStream(baos, BUFFER_SIZE);
+	return readBytes(in, -1, -1, forceClose);
+    }
 
+    /**
+     * Reads the whole stream into one array, copying every byte as few times
+     * as possible.
+     * <p>
+     * If the length is known because the stream is a file or byte array, the
+     * array is allocated once and filled directly. A length which was only
+     * passed in (e.g. the Content-Length of a request) is trusted the same way
+     * up to 64 KiB. Otherwise the data is read into a list of growing chunks,
+     * which are assembled once at the end, so a client announcing a large body
+     * cannot make us allocate it before sending it.
+     * 
+     * @param lengthHint
+     *            The expected number of bytes or -1 if unknown. A wrong hint
+     *            costs one extra copy, but never loses data.
+     * @param maxSize
+     *            The maximum number of bytes to accept or -1 for no limit.
+     * @throws StreamLimitExceededException
+     *             If the stream holds more than <code>maxSize</code> bytes.
+     */
+    public static byte[] readBytes(InputStream in, long lengthHint, int maxSize, boolean forceClose)
+	    throws IOException {
 	try {
-	    byte[] buffer = new byte[BUFFER_SIZE];
-	    for (;;) {
-		int len = is.read(buffer);
-		if (len < 0)
-		    break;
-		bos.write(buffer, 0, len);
+	    long known = knownLength(in);
+	    long expected = known >= 0 ? known : lengthHint;
+	    long limit = maxSize < 0 ? Integer.MAX_VALUE - 8 : maxSize;
+	    if (expected > limit)
+		throw new StreamLimitExceededException(limit);
+
+	    if (known < 0 && expected > MAX_HINTED_SIZE)
+		return readChunks(in, null, -1, MAX_HINTED_SIZE, limit);
+
+	    if (expected >= 0) {
+		byte[] data = new byte[(int) expected];
+		int count = fill(in, data, data.length);
+		if (count < data.length)
+		    return Arrays.copyOf(data, count);
+
+		int next = in.read();
+		if (next < 0)
+		    return data;
+
+		// the hint was too small, go on with chunks
+		return readChunks(in, data, next, 0, limit);
 	    }
-	    bos.flush();
+
+	    return readChunks(in, null, -1, 0, limit);
 	} finally {
 	    if (forceClose) {
 		try {
-		    is.close();
-		} catch (Exception e) {
-		    // ignore
-		}
-		try {
-		    bos.close();
+		    in.close();
 		} catch (Exception e) {
 		    // ignore
 		}
 	    }
 	}
+    }
+
+    /**
+     * Reads the rest of the stream into chunks of growing size.
+     * 
+     * @param first
+     *            Data which was already read completely or <code>null</code>.
+     * @param next
+     *            A byte which was already read after <code>first</code> or -1.
+     * @param initial
+     *            The size of the first chunk, if larger than what is available.
+     */
+    private static byte[] readChunks(InputStream in, byte[] first, int next, int initial,
+	    long limit) throws IOException {
+	List<byte[]> chunks = new ArrayList<byte[]>();
+	long total = 0;
+	if (first != null) {
+	    chunks.add(first);
+	    total = first.length;
+	}
+
+	int size = Math.max(MIN_CHUNK_SIZE,
+		Math.min(MAX_CHUNK_SIZE, Math.max(initial, in.available())));
+	byte[] chunk = new byte[size];
+	int count = 0;
+	if (next >= 0)
+	    chunk[count++] = (byte) next;
+
+	for (;;) {
+	    if (count == chunk.length) {
+		chunks.add(chunk);
+		total += count;
+		size = Math.min(MAX_CHUNK_SIZE, size << 1);
+		chunk = new byte[size];
+		count = 0;
+	    }
+
+	    int len = in.read(chunk, count, chunk.length - count);
+	    if (len < 0)
+		break;
+	    count += len;
+	    if (total + count > limit)
+		throw new StreamLimitExceededException(limit);
+	}
+	total += count;
 
-	return baos.toByteArray();
+	if (chunks.isEmpty())
+	    return count == chunk.length ? chunk : Arrays.copyOf(chunk, count);
+
+	byte[] data = new byte[(int) total];
+	int offset = 0;
+	for (byte[] full : chunks) {
+	    System.arraycopy(full, 0, data, offset, full.length);
+	    offset += full.length;
+	}
+	System.arraycopy(chunk, 0, data, offset, count);
+	return data;
     }
 
+    /**
+     * Compares both streams block-wise and closes them. If the lengths of both
+     * are known up front (files, byte arrays), different lengths are reported
+     * without reading anything.
+     * 
+     * @return <code>true</code> if both streams contain the same bytes.
+     */
     public static boolean compare(InputStream content1, InputStream content2) throws IOException {
-	// read and compare bytes pair-wise
-	InputStream i1 = new BufferedInputStream(content1);
-	InputStream i2 = new BufferedInputStream(content2);
-	int b1, b2;
-	do {
-	    b1 = i1.read();
-	    b2 = i2.read();
-	} while (b1 == b2 && b1 != -1);
-	i1.close();
-	i2.close();
-	// true only if end of file is reached
-	return b1 == -1;
+	try {
+	    long length1 = knownLength(content1);
+	    long length2 = knownLength(content2);
+	    if (length1 >= 0 && length2 >= 0 && length1 != length2)
+		return false;
+
+	    return mismatch(content1, content2, false) < 0;
+	} finally {
+	    content1.close();
+	    content2.close();
+	}
+    }
+
+    /**
+     * @see #mismatch(InputStream, InputStream, boolean)
+     */
+    public static long mismatch(InputStream content1, InputStream content2) throws IOException {
+	return mismatch(content1, content2, false);
+    }
+
+    /**
+     * Compares both streams block-wise, without closing them.
+     * 
+     * @param map
+     *            Whether two file streams should be compared through
+     *            memory-mapped windows instead of reading them.
+     * @return The offset of the first byte which differs, the length of the
+     *         shorter stream if it is a prefix of the other one, or -1 if both
+     *         are equal.
+     */
+    public static long mismatch(InputStream content1, InputStream content2, boolean map)
+	    throws IOException {
+	FileChannel channel1 = fileChannel(content1);
+	FileChannel channel2 = fileChannel(content2);
+	if (channel1 != null && channel2 != null)
+	    return ChannelUtil.mismatch(channel1, channel2, map);
+
+	BufferPool pool = bufferPool;
+	byte[] b1 = pool.acquireBytes(BUFFER_SIZE);
+	byte[] b2 = pool.acquireBytes(BUFFER_SIZE);
+	try {
+	    int block = Math.min(b1.length, b2.length);
+	    long offset = 0;
+	    for (;;) {
+		int len1 = fill(content1, b1, block);
+		int len2 = fill(content2, b2, block);
+		int mismatch = Arrays.mismatch(b1, 0, len1, b2, 0, len2);
+		if (mismatch >= 0)
+		    return offset + mismatch;
+		// equal up to here, done if end of file is reached
+		if (len1 < block)
+		    return -1;
+		offset += len1;
+	    }
+	} finally {
+	    pool.releaseBytes(b1);
+	    pool.releaseBytes(b2);
+	}
+    }
+
+    /**
+     * @see #mismatch(InputStream, InputStream, boolean)
+     */
+    public static long mismatch(File file1, File file2, boolean map) throws IOException {
+	FileInputStream in1 = new FileInputStream(file1);
+	try {
+	    FileInputStream in2 = new FileInputStream(file2);
+	    try {
+		return ChannelUtil.mismatch(in1.getChannel(), in2.getChannel(), map);
+	    } finally {
+		in2.close();
+	    }
+	} finally {
+	    in1.close();
+	}
+    }
+
+    /**
+     * @return The number of bytes left in the stream or -1 if unknown.
+     */
+    private static long knownLength(InputStream in) throws IOException {
+	if (in instanceof ByteArrayInputStream)
+	    return in.available();
+
+	FileChannel channel = fileChannel(in);
+	return channel == null ? -1 : channel.size() - channel.position();
+    }
+
+    private static FileChannel fileChannel(InputStream in) {
+	if (!(in instanceof FileInputStream))
+	    return null;
+
+	FileChannel channel = ((FileInputStream) in).getChannel();
+	return ChannelUtil.hasRemaining(channel) ? channel : null;
+    }
+
+    /**
+     * Reads until <code>length</code> bytes are read or the stream ends.
+     * 
+     * @return The number of bytes read.
+     */
+    private static int fill(InputStream in, byte[] buffer, int length) throws IOException {
+	int count = 0;
+	while (count < length) {
+	    int len = in.read(buffer, count, length - count);
+	    if (len < 0)
+		break;
+	    count += len;
+	}
+	return count;
     }
 }
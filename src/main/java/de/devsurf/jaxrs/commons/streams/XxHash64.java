@@ -0,0 +1,184 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.streams;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * The 64 bit xxHash, computed incrementally.
+ * <p>
+ * xxHash is a fast non-cryptographic hash; it tells changed content apart,
+ * but must not be used where an attacker could profit from collisions. Input
+ * is consumed in stripes of 32 bytes; the rest of a stripe is kept until more
+ * input arrives, so the result does not depend on how the input is split.
+ * Instances are not thread-safe.
+ *
+ * @author Daniel Manzke
+ */
+public final class XxHash64 implements Checksum {
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private final long seed;
+
+	private final byte[] stripe = new byte[32];
+
+	private int stripeLength;
+
+	private long length;
+
+	private long v1;
+
+	private long v2;
+
+	private long v3;
+
+	private long v4;
+
+	public XxHash64() {
+		this(0);
+	}
+
+	public XxHash64(final long seed) {
+		this.seed = seed;
+		this.reset();
+	}
+
+	@Override
+	public final void update(final int b) {
+		this.stripe[this.stripeLength++] = (byte) b;
+		this.length++;
+		if (this.stripeLength == 32) {
+			this.consume(this.stripe, 0);
+			this.stripeLength = 0;
+		}
+	}
+
+	@Override
+	public final void update(final byte[] b, int off, int len) {
+		this.length += len;
+
+		if (this.stripeLength > 0) {
+			final int n = Math.min(len, 32 - this.stripeLength);
+			System.arraycopy(b, off, this.stripe, this.stripeLength, n);
+			this.stripeLength += n;
+			off += n;
+			len -= n;
+			if (this.stripeLength < 32)
+				return;
+
+			this.consume(this.stripe, 0);
+			this.stripeLength = 0;
+		}
+
+		final int end = off + len - 32;
+		while (off <= end) {
+			this.consume(b, off);
+			off += 32;
+		}
+
+		final int rest = end + 32 - off;
+		if (rest > 0) {
+			System.arraycopy(b, off, this.stripe, 0, rest);
+			this.stripeLength = rest;
+		}
+	}
+
+	@Override
+	public final long getValue() {
+		long hash;
+		if (this.length >= 32) {
+			hash = Long.rotateLeft(this.v1, 1) + Long.rotateLeft(this.v2, 7) + Long.rotateLeft(this.v3, 12)
+					+ Long.rotateLeft(this.v4, 18);
+			hash = merge(hash, this.v1);
+			hash = merge(hash, this.v2);
+			hash = merge(hash, this.v3);
+			hash = merge(hash, this.v4);
+		} else {
+			hash = this.seed + PRIME5;
+		}
+		hash += this.length;
+
+		int i = 0;
+		for (; i + 8 <= this.stripeLength; i += 8) {
+			hash ^= round(0, (long) LONG.get(this.stripe, i));
+			hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+		}
+		if (i + 4 <= this.stripeLength) {
+			hash ^= ((int) INT.get(this.stripe, i) & 0xFFFFFFFFL) * PRIME1;
+			hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+			i += 4;
+		}
+		for (; i < this.stripeLength; i++) {
+			hash ^= (this.stripe[i] & 0xFF) * PRIME5;
+			hash = Long.rotateLeft(hash, 11) * PRIME1;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= PRIME2;
+		hash ^= hash >>> 29;
+		hash *= PRIME3;
+		hash ^= hash >>> 32;
+		return hash;
+	}
+
+	@Override
+	public final void reset() {
+		this.v1 = this.seed + PRIME1 + PRIME2;
+		this.v2 = this.seed + PRIME2;
+		this.v3 = this.seed;
+		this.v4 = this.seed - PRIME1;
+		this.stripeLength = 0;
+		this.length = 0;
+	}
+
+	/**
+	 * @return The number of bytes hashed since the last reset.
+	 */
+	public final long getLength() {
+		return this.length;
+	}
+
+	private final void consume(final byte[] b, final int off) {
+		this.v1 = round(this.v1, (long) LONG.get(b, off));
+		this.v2 = round(this.v2, (long) LONG.get(b, off + 8));
+		this.v3 = round(this.v3, (long) LONG.get(b, off + 16));
+		this.v4 = round(this.v4, (long) LONG.get(b, off + 24));
+	}
+
+	private static final long round(final long accumulator, final long input) {
+		return Long.rotateLeft(accumulator + input * PRIME2, 31) * PRIME1;
+	}
+
+	private static final long merge(final long hash, final long accumulator) {
+		return (hash ^ round(0, accumulator)) * PRIME1 + PRIME4;
+	}
+}
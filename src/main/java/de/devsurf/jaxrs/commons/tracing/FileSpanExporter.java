@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.tracing;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import de.devsurf.jaxrs.commons.logging.LogBuffer;
+
+/**
+ * Appends spans to a file, one JSON object per line with
+ * <code>traceId</code>, <code>spanId</code>, <code>parentSpanId</code>,
+ * <code>name</code>, <code>start</code> (nanoseconds since the epoch),
+ * <code>durationNanos</code> and <code>error</code>. The file is flushed
+ * after every batch.
+ *
+ * @author Daniel Manzke
+ */
+public final class FileSpanExporter implements SpanExporter {
+
+	private final OutputStream out;
+
+	private final LogBuffer buffer = new LogBuffer();
+
+	public FileSpanExporter(final File file) throws IOException {
+		this.out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+	}
+
+	@Override
+	public final void export(final List<Span> spans) throws IOException {
+		for (int i = 0; i < spans.size(); i++) {
+			this.buffer.reset();
+			SpanJson.encode(spans.get(i), this.buffer);
+			this.buffer.append('\n');
+			this.buffer.writeTo(this.out);
+		}
+		this.out.flush();
+	}
+
+	@Override
+	public final void close() throws IOException {
+		this.out.close();
+	}
+}
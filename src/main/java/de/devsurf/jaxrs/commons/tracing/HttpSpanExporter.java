@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.tracing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+
+import de.devsurf.jaxrs.commons.logging.LogBuffer;
+
+/**
+ * Posts every batch of spans as a JSON array to a collector, e.g. a sidecar
+ * or agent on the local host. Each element has the fields written by the
+ * {@link FileSpanExporter}.
+ * <p>
+ * A batch the collector does not accept with a 2xx status is dropped; there
+ * are no retries, so a slow or missing collector never holds up the
+ * {@link Tracer}.
+ *
+ * @author Daniel Manzke
+ */
+public final class HttpSpanExporter implements SpanExporter {
+
+	public static final int DEFAULT_TIMEOUT = 2000;
+
+	private final URL url;
+
+	private final int timeout;
+
+	private final LogBuffer buffer = new LogBuffer(64 * 1024);
+
+	private final byte[] discard = new byte[1024];
+
+	public HttpSpanExporter(final URL url) {
+		this(url, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * @param timeout
+	 *            The connect and read timeout in milliseconds.
+	 */
+	public HttpSpanExporter(final URL url, final int timeout) {
+		this.url = url;
+		this.timeout = timeout;
+	}
+
+	@Override
+	public final void export(final List<Span> spans) throws IOException {
+		if (spans.isEmpty())
+			return;
+
+		this.buffer.reset();
+		this.buffer.append('[');
+		for (int i = 0; i < spans.size(); i++) {
+			if (i > 0)
+				this.buffer.append(',');
+			SpanJson.encode(spans.get(i), this.buffer);
+		}
+		this.buffer.append(']');
+
+		final HttpURLConnection connection = (HttpURLConnection) this.url.openConnection();
+		try {
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setConnectTimeout(this.timeout);
+			connection.setReadTimeout(this.timeout);
+			connection.setRequestProperty("Content-Type", "application/json");
+			connection.setFixedLengthStreamingMode(this.buffer.size());
+
+			final OutputStream out = connection.getOutputStream();
+			try {
+				this.buffer.writeTo(out);
+			} finally {
+				out.close();
+			}
+
+			final int status = connection.getResponseCode();
+			if (status < 200 || status >= 300)
+				throw new IOException("Collector " + this.url + " answered " + status);
+
+			// drain the answer, so the connection can be kept alive
+			final InputStream in = connection.getInputStream();
+			try {
+				while (in.read(this.discard) >= 0) {
+					// discard
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			connection.disconnect();
+			throw e;
+		}
+	}
+
+	@Override
+	public final void close() {
+		// nothing to release, connections are pooled by the JDK
+	}
+}
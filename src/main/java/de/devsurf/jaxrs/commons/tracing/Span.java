@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.tracing;
+
+/**
+ * A timed operation within a trace, e.g. one stage of the filter chain.
+ * <p>
+ * A span is started by {@link Tracer#start(String, TraceContext)} and ended
+ * once, by the thread which started it or the one completing an asynchronous
+ * request. Ending hands it to the buffer of that thread; afterwards it is only
+ * read by the exporter.
+ *
+ * @author Daniel Manzke
+ */
+public final class Span {
+
+	private final Tracer tracer;
+
+	private final TraceContext context;
+
+	private final long parentSpanId;
+
+	private final String name;
+
+	private final long start;
+
+	private long duration = -1;
+
+	private boolean error;
+
+	Span(final Tracer tracer, final TraceContext context, final long parentSpanId, final String name) {
+		this.tracer = tracer;
+		this.context = context;
+		this.parentSpanId = parentSpanId;
+		this.name = name;
+		this.start = System.nanoTime();
+	}
+
+	/**
+	 * Stops the clock and queues the span for export. Further calls are
+	 * ignored.
+	 */
+	public final void end() {
+		if (this.duration >= 0)
+			return;
+
+		this.duration = System.nanoTime() - this.start;
+		this.tracer.record(this);
+	}
+
+	/**
+	 * Marks the operation as failed.
+	 */
+	public final void setError(final boolean error) {
+		this.error = error;
+	}
+
+	public final boolean isError() {
+		return this.error;
+	}
+
+	/**
+	 * @return The context to propagate to operations within this span.
+	 */
+	public final TraceContext getContext() {
+		return this.context;
+	}
+
+	/**
+	 * @return The id of the enclosing span or <code>null</code> for the root of
+	 *         a trace.
+	 */
+	public final String getParentSpanId() {
+		return this.parentSpanId == 0 ? null : TraceContext.hex(this.parentSpanId);
+	}
+
+	public final String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return The start in nanoseconds since the epoch.
+	 */
+	public final long getStartEpochNanos() {
+		return this.tracer.toEpochNanos(this.start);
+	}
+
+	/**
+	 * @return The duration in nanoseconds or -1 while the span is running.
+	 */
+	public final long getDuration() {
+		return this.duration;
+	}
+}
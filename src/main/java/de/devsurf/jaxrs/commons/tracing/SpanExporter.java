@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.tracing;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Ships batches of ended {@link Span}s, e.g. to a file or a collector.
+ * <p>
+ * An exporter is only called by the exporter thread of its {@link Tracer}. The
+ * list is reused for the next batch and must not be kept.
+ *
+ * @see FileSpanExporter
+ * @see HttpSpanExporter
+ *
+ * @author Daniel Manzke
+ */
+public interface SpanExporter {
+
+	/**
+	 * @throws IOException
+	 *             If the spans could not be written, they are counted as
+	 *             dropped.
+	 */
+	void export(List<Span> spans) throws IOException;
+
+	/**
+	 * Releases the target, called once after the last batch.
+	 */
+	void close() throws IOException;
+}
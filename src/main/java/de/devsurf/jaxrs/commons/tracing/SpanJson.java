@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.tracing;
+
+import java.nio.charset.StandardCharsets;
+
+import de.devsurf.jaxrs.commons.logging.LogBuffer;
+
+/**
+ * Writes a span as JSON object:
+ *
+ * <pre>
+ * {"traceId":"4bf92f3577b34da6a3ce929d0e0e4736","spanId":"00f067aa0ba902b7","parentSpanId":"b7ad6b7169203331",
+ *  "name":"auth","start":1272715200123456789,"durationNanos":52341,"error":true}
+ * </pre>
+ *
+ * <code>parentSpanId</code> is left out for roots, <code>error</code> unless
+ * it is set.
+ *
+ * @author Daniel Manzke
+ */
+final class SpanJson {
+
+	private static final byte[] TRACE_ID = "{\"traceId\":\"".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] SPAN_ID = "\",\"spanId\":\"".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] PARENT_SPAN_ID = "\",\"parentSpanId\":\"".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] NAME = "\",\"name\":\"".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] START = "\",\"start\":".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] DURATION = ",\"durationNanos\":".getBytes(StandardCharsets.UTF_8);
+
+	private static final byte[] ERROR = ",\"error\":true".getBytes(StandardCharsets.UTF_8);
+
+	private SpanJson() {
+	}
+
+	static void encode(final Span span, final LogBuffer buffer) {
+		final TraceContext context = span.getContext();
+		buffer.append(TRACE_ID).appendUtf8(context.getTraceId());
+		buffer.append(SPAN_ID).appendUtf8(context.getSpanId());
+
+		final String parentSpanId = span.getParentSpanId();
+		if (parentSpanId != null)
+			buffer.append(PARENT_SPAN_ID).appendUtf8(parentSpanId);
+
+		buffer.append(NAME).appendJson(span.getName());
+		buffer.append(START).append(span.getStartEpochNanos());
+		buffer.append(DURATION).append(span.getDuration());
+		if (span.isError())
+			buffer.append(ERROR);
+		buffer.append('}');
+	}
+}
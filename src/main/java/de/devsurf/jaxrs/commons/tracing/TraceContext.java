@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.tracing;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The identity of a span as propagated by the W3C Trace Context header
+ * {@value #HEADER}:
+ *
+ * <pre>
+ * 00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01
+ * </pre>
+ *
+ * A 128 bit trace id shared by all spans of a request, the 64 bit id of the
+ * span and the flags, of which only <code>sampled</code> is interpreted.
+ * Contexts are immutable; the hexadecimal forms are created on first use.
+ *
+ * @author Daniel Manzke
+ */
+public final class TraceContext {
+
+	public static final String HEADER = "traceparent";
+
+	/**
+	 * The request attribute holding the context of the innermost active span.
+	 */
+	public static final String ATTRIBUTE = "de.devsurf.jaxrs.commons.tracing.TraceContext";
+
+	private static final int SAMPLED = 0x01;
+
+	private static final int LENGTH = 55;
+
+	private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+	private final long traceIdHigh;
+
+	private final long traceIdLow;
+
+	private final long spanId;
+
+	private final int flags;
+
+	private String traceId;
+
+	private String traceparent;
+
+	private TraceContext(final long traceIdHigh, final long traceIdLow, final long spanId, final int flags) {
+		this.traceIdHigh = traceIdHigh;
+		this.traceIdLow = traceIdLow;
+		this.spanId = spanId;
+		this.flags = flags;
+	}
+
+	/**
+	 * Starts a new trace.
+	 */
+	public static TraceContext create(final boolean sampled) {
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		long high;
+		long low;
+		do {
+			high = random.nextLong();
+			low = random.nextLong();
+		} while (high == 0 && low == 0);
+
+		return new TraceContext(high, low, newSpanId(), sampled ? SAMPLED : 0);
+	}
+
+	/**
+	 * @return The context of the caller or <code>null</code> if the header is
+	 *         missing or invalid.
+	 */
+	public static TraceContext parse(final String header) {
+		if (header == null || header.length() < LENGTH)
+			return null;
+
+		// 00 has exactly four fields, later versions may append more
+		final int version = parseHex(header, 0, 2);
+		if (version < 0 || version == 0xff || (version == 0 ? header.length() != LENGTH : header.length() > LENGTH
+				&& header.charAt(LENGTH) != '-'))
+			return null;
+
+		if (header.charAt(2) != '-' || header.charAt(35) != '-' || header.charAt(52) != '-')
+			return null;
+
+		final int flags = parseHex(header, 53, 2);
+		if (flags < 0 || !isHex(header, 3, 32) || !isHex(header, 36, 16))
+			return null;
+
+		final long high = parseLong(header, 3);
+		final long low = parseLong(header, 19);
+		final long spanId = parseLong(header, 36);
+		if ((high == 0 && low == 0) || spanId == 0)
+			return null;
+
+		return new TraceContext(high, low, spanId, flags);
+	}
+
+	/**
+	 * @return A context of the same trace with a new span id.
+	 */
+	public final TraceContext child() {
+		return new TraceContext(this.traceIdHigh, this.traceIdLow, newSpanId(), this.flags);
+	}
+
+	/**
+	 * @return The trace id as 32 hexadecimal digits.
+	 */
+	public final String getTraceId() {
+		String traceId = this.traceId;
+		if (traceId == null) {
+			final char[] chars = new char[32];
+			hex(this.traceIdHigh, chars, 0);
+			hex(this.traceIdLow, chars, 16);
+			this.traceId = traceId = new String(chars);
+		}
+		return traceId;
+	}
+
+	/**
+	 * @return The span id as 16 hexadecimal digits.
+	 */
+	public final String getSpanId() {
+		return hex(this.spanId);
+	}
+
+	public final boolean isSampled() {
+		return (this.flags & SAMPLED) != 0;
+	}
+
+	/**
+	 * @return The value of the {@value #HEADER} header for calls made on behalf
+	 *         of this span.
+	 */
+	public final String toTraceparent() {
+		String traceparent = this.traceparent;
+		if (traceparent == null) {
+			final char[] chars = new char[LENGTH];
+			chars[0] = '0';
+			chars[1] = '0';
+			chars[2] = '-';
+			hex(this.traceIdHigh, chars, 3);
+			hex(this.traceIdLow, chars, 19);
+			chars[35] = '-';
+			hex(this.spanId, chars, 36);
+			chars[52] = '-';
+			chars[53] = DIGITS[(this.flags >> 4) & 0xF];
+			chars[54] = DIGITS[this.flags & 0xF];
+			this.traceparent = traceparent = new String(chars);
+		}
+		return traceparent;
+	}
+
+	@Override
+	public String toString() {
+		return this.toTraceparent();
+	}
+
+	final long spanId() {
+		return this.spanId;
+	}
+
+	static String hex(final long value) {
+		final char[] chars = new char[16];
+		hex(value, chars, 0);
+		return new String(chars);
+	}
+
+	private static long newSpanId() {
+		long spanId;
+		do {
+			spanId = ThreadLocalRandom.current().nextLong();
+		} while (spanId == 0);
+		return spanId;
+	}
+
+	private static void hex(final long value, final char[] chars, final int offset) {
+		for (int i = 15; i >= 0; i--)
+			chars[offset + 15 - i] = DIGITS[(int) (value >>> (i << 2)) & 0xF];
+	}
+
+	private static boolean isHex(final String s, final int offset, final int length) {
+		for (int i = offset; i < offset + length; i++)
+			if (digit(s.charAt(i)) < 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return The value of the digits or -1 if they are not lower case hex.
+	 */
+	private static int parseHex(final String s, final int offset, final int length) {
+		int value = 0;
+		for (int i = offset; i < offset + length; i++) {
+			final int digit = digit(s.charAt(i));
+			if (digit < 0)
+				return -1;
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	private static long parseLong(final String s, final int offset) {
+		long value = 0;
+		for (int i = offset; i < offset + 16; i++)
+			value = (value << 4) | digit(s.charAt(i));
+		return value;
+	}
+
+	private static int digit(final char c) {
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		return -1;
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.tracing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import de.devsurf.jaxrs.commons.concurrent.RingBuffer;
+
+/**
+ * Starts {@link Span}s and exports the ended ones in batches from a single
+ * background thread.
+ * <p>
+ * Ended spans go to one of a fixed number of bounded {@link RingBuffer}s,
+ * picked by the id of the request thread, so ending a span rarely contends
+ * with other request threads and never takes a lock. The buffers belong to
+ * the tracer, not to the threads of the container, so nothing stays behind
+ * on them once the tracer is closed. The exporter thread collects all
+ * buffers once per flush interval and hands them to the {@link SpanExporter}
+ * in batches. Spans which do not fit into their buffer are dropped, as are
+ * batches the exporter fails on.
+ *
+ * @author Daniel Manzke
+ */
+public final class Tracer {
+
+	/**
+	 * The servlet context attribute holding the tracer shared by the filters
+	 * of an application.
+	 */
+	public static final String ATTRIBUTE = "de.devsurf.jaxrs.commons.tracing.Tracer";
+
+	private final SpanExporter exporter;
+
+	private final int batchSize;
+
+	private final long flushInterval;
+
+	private final long epochOffset;
+
+	private final RingBuffer<Span>[] buffers;
+
+	private final int mask;
+
+	private final Thread thread;
+
+	private final AtomicLong exported = new AtomicLong();
+
+	private final AtomicLong dropped = new AtomicLong();
+
+	private volatile boolean running = true;
+
+	/**
+	 * @param bufferCapacity
+	 *            The number of ended spans each buffer may hold. There are
+	 *            twice as many buffers as processors, rounded up to a power
+	 *            of two.
+	 * @param batchSize
+	 *            The maximum number of spans per export.
+	 * @param flushInterval
+	 *            How long the exporter thread waits between two collections.
+	 */
+	@SuppressWarnings("unchecked")
+	public Tracer(final SpanExporter exporter, final int bufferCapacity, final int batchSize, final long flushInterval,
+			final TimeUnit unit) {
+		this.exporter = exporter;
+		final int stripes = Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+		this.buffers = new RingBuffer[stripes];
+		for (int i = 0; i < stripes; i++)
+			this.buffers[i] = new RingBuffer<Span>(bufferCapacity);
+		this.mask = stripes - 1;
+		this.batchSize = Math.max(1, batchSize);
+		this.flushInterval = unit.toNanos(flushInterval);
+		this.epochOffset = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - System.nanoTime();
+
+		this.thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Tracer.this.export();
+			}
+		}, "trace-exporter");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * @param parent
+	 *            The context of the enclosing span, e.g. parsed from the
+	 *            request, or <code>null</code> to start a new trace.
+	 */
+	public final Span start(final String name, final TraceContext parent) {
+		if (parent == null)
+			return new Span(this, TraceContext.create(true), 0, name);
+		return new Span(this, parent.child(), parent.spanId(), name);
+	}
+
+	/**
+	 * @return The number of spans handed to the exporter.
+	 */
+	public final long getExported() {
+		return this.exported.get();
+	}
+
+	/**
+	 * @return The number of spans discarded because a buffer was full, the
+	 *         tracer was closed or the export failed.
+	 */
+	public final long getDropped() {
+		return this.dropped.get();
+	}
+
+	/**
+	 * Stops accepting spans, exports everything still buffered and closes the
+	 * exporter.
+	 */
+	public final void close() {
+		this.running = false;
+		LockSupport.unpark(this.thread);
+
+		boolean interrupted = false;
+		for (;;) {
+			try {
+				this.thread.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+
+		try {
+			this.exporter.close();
+		} catch (IOException e) {
+			// ignore
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	final void record(final Span span) {
+		if (!this.running || !this.buffer().offer(span))
+			this.dropped.incrementAndGet();
+	}
+
+	@SuppressWarnings("deprecation")
+	private final RingBuffer<Span> buffer() {
+		// Fibonacci hashing spreads the sequential ids of pool threads
+		final long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		return this.buffers[(int) (id >>> 32) & this.mask];
+	}
+
+	final long toEpochNanos(final long nanoTime) {
+		return nanoTime + this.epochOffset;
+	}
+
+	private final void export() {
+		final List<Span> batch = new ArrayList<Span>(this.batchSize);
+
+		for (;;) {
+			final boolean stopping = !this.running;
+
+			for (final RingBuffer<Span> buffer : this.buffers) {
+				Span span;
+				while ((span = buffer.poll()) != null) {
+					batch.add(span);
+					if (batch.size() == this.batchSize)
+						this.flush(batch);
+				}
+			}
+			this.flush(batch);
+
+			if (stopping)
+				break;
+
+			LockSupport.parkNanos(this, this.flushInterval);
+		}
+	}
+
+	private final void flush(final List<Span> batch) {
+		if (batch.isEmpty())
+			return;
+
+		try {
+			this.exporter.export(batch);
+			this.exported.addAndGet(batch.size());
+		} catch (IOException | RuntimeException e) {
+			this.dropped.addAndGet(batch.size());
+		}
+		batch.clear();
+	}
+}
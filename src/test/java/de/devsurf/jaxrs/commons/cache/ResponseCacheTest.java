@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author Daniel Manzke
+ */
+public class ResponseCacheTest {
+
+	private static final int PAGE_SIZE = 16;
+
+	private static final long TTL = TimeUnit.MINUTES.toNanos(1);
+
+	@Test
+	public void storesAndServesResponse() throws IOException {
+		final ResponseCache cache = new ResponseCache(64 * PAGE_SIZE, PAGE_SIZE);
+		final byte[] body = "a body spanning more than one page".getBytes(StandardCharsets.UTF_8);
+
+		assertTrue(cache.put("key", 200, "text/plain", new String[] { "ETag", "\"1\"" }, body, body.length, TTL));
+
+		final CachedResponse response = cache.get("key");
+		assertNotNull(response);
+		try {
+			assertEquals(200, response.getStatus());
+			assertEquals("text/plain", response.getContentType());
+			assertEquals(1, response.getHeaderCount());
+			assertEquals("ETag", response.getHeaderName(0));
+			assertArrayEquals(body, body(response));
+		} finally {
+			response.release();
+		}
+		assertEquals(1, cache.getHits());
+	}
+
+	@Test
+	public void replacesResponseWithSameKey() throws IOException {
+		final ResponseCache cache = new ResponseCache(64 * PAGE_SIZE, PAGE_SIZE);
+		put(cache, "key", "old");
+		put(cache, "key", "new");
+
+		assertEquals(1, cache.size());
+		final CachedResponse response = cache.get("key");
+		try {
+			assertArrayEquals(bytes("new"), body(response));
+		} finally {
+			response.release();
+		}
+		assertEquals(PAGE_SIZE, cache.getWeightedSize());
+	}
+
+	@Test
+	public void rejectsResponseLargerThanCache() {
+		final ResponseCache cache = new ResponseCache(4 * PAGE_SIZE, PAGE_SIZE);
+		final byte[] body = new byte[5 * PAGE_SIZE];
+
+		assertFalse(cache.put("key", 200, null, new String[0], body, body.length, TTL));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void expiredResponseIsMiss() {
+		final ResponseCache cache = new ResponseCache(4 * PAGE_SIZE, PAGE_SIZE);
+		final byte[] body = bytes("gone");
+		assertTrue(cache.put("key", 200, null, new String[0], body, body.length, 0));
+
+		assertNull(cache.get("key"));
+		assertEquals(1, cache.getMisses());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void staysWithinBudget() {
+		final ResponseCache cache = new ResponseCache(8 * PAGE_SIZE, PAGE_SIZE);
+		for (int i = 0; i < 100; i++)
+			put(cache, "key" + i, "value" + i);
+
+		assertTrue(cache.getWeightedSize() <= cache.getMaximum());
+		assertTrue(cache.size() <= 8);
+		assertTrue(cache.getEvictions() >= 92);
+	}
+
+	@Test
+	public void frequentlyReadResponseSurvivesScan() {
+		final ResponseCache cache = new ResponseCache(128 * PAGE_SIZE, PAGE_SIZE);
+		put(cache, "popular", "popular");
+		for (int i = 0; i < 50; i++)
+			cache.get("popular").release();
+
+		for (int i = 0; i < 400; i++)
+			put(cache, "scan" + i, "scan" + i);
+
+		final CachedResponse popular = cache.get("popular");
+		assertNotNull(popular);
+		popular.release();
+	}
+
+	@Test
+	public void putDoesNotEvictMoreThanItNeedsWhileResponsesAreRead() {
+		final ResponseCache cache = new ResponseCache(4 * PAGE_SIZE, PAGE_SIZE);
+		final List<CachedResponse> readers = new ArrayList<CachedResponse>();
+		for (int i = 0; i < 4; i++) {
+			put(cache, "key" + i, "value" + i);
+			readers.add(cache.get("key" + i));
+		}
+
+		// the evicted response is still being read, its page is not free yet
+		assertFalse(cache.put("new", 200, null, new String[0], bytes("new"), 3, TTL));
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.getEvictions());
+
+		for (final CachedResponse reader : readers)
+			reader.release();
+
+		assertTrue(cache.put("new", 200, null, new String[0], bytes("new"), 3, TTL));
+		assertEquals(4, cache.size());
+		assertEquals(1, cache.getEvictions());
+	}
+
+	@Test
+	public void evictedPagesAreFreedWhenLastReaderReleases() throws IOException {
+		final ResponseCache cache = new ResponseCache(PAGE_SIZE, PAGE_SIZE);
+		put(cache, "first", "first");
+		final CachedResponse reader = cache.get("first");
+
+		cache.invalidate("first");
+		assertFalse(cache.put("second", 200, null, new String[0], bytes("second"), 6, TTL));
+
+		// the pages are still intact for the reader
+		assertArrayEquals(bytes("first"), body(reader));
+		reader.release();
+
+		assertTrue(cache.put("second", 200, null, new String[0], bytes("second"), 6, TTL));
+	}
+
+	private static void put(final ResponseCache cache, final String key, final String value) {
+		final byte[] body = bytes(value);
+		assertTrue(cache.put(key, 200, null, new String[0], body, body.length, TTL));
+	}
+
+	private static byte[] body(final CachedResponse response) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		response.writeBody(out);
+		return out.toByteArray();
+	}
+
+	private static byte[] bytes(final String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+}
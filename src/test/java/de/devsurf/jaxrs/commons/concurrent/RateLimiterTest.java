@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author Daniel Manzke
+ */
+public class RateLimiterTest {
+
+	/**
+	 * One token per hour, nothing is refilled while a test runs.
+	 */
+	private static final double SLOW = 1.0 / 3600;
+
+	@Test
+	public void grantsBurstThenRejects() {
+		final RateLimiter limiter = new RateLimiter(SLOW, 3, 100);
+
+		final long first = limiter.tryAcquire("client");
+		assertTrue(first > 0);
+		assertEquals(2, limiter.getRemaining(first));
+
+		final long second = limiter.tryAcquire("client");
+		assertTrue(second > 0);
+		assertEquals(1, limiter.getRemaining(second));
+
+		final long third = limiter.tryAcquire("client");
+		assertTrue(third > 0);
+		assertEquals(0, limiter.getRemaining(third));
+
+		final long rejected = limiter.tryAcquire("client");
+		assertTrue(rejected < 0);
+		assertEquals(0, limiter.getRemaining(rejected));
+		assertEquals(1, limiter.getRejected());
+	}
+
+	@Test
+	public void rejectionTellsWhenTheNextTokenIsAvailable() {
+		final RateLimiter limiter = new RateLimiter(SLOW, 1, 100);
+
+		assertTrue(limiter.tryAcquire("client") > 0);
+		final long wait = -limiter.tryAcquire("client");
+		assertTrue(wait > TimeUnit.MINUTES.toNanos(59));
+		assertTrue(wait <= TimeUnit.HOURS.toNanos(1));
+	}
+
+	@Test
+	public void fullBucketReportsRefillTime() {
+		final RateLimiter limiter = new RateLimiter(SLOW, 2, 100);
+
+		final long acquired = limiter.tryAcquire("client");
+		assertTrue(acquired > TimeUnit.MINUTES.toNanos(59));
+		assertTrue(acquired <= TimeUnit.HOURS.toNanos(1));
+	}
+
+	@Test
+	public void keysHaveSeparateBuckets() {
+		final RateLimiter limiter = new RateLimiter(SLOW, 1, 100);
+
+		assertTrue(limiter.tryAcquire("a") > 0);
+		assertTrue(limiter.tryAcquire("a") < 0);
+		assertTrue(limiter.tryAcquire("b") > 0);
+		assertEquals(2, limiter.size());
+	}
+
+	@Test
+	public void refillsOverTime() throws InterruptedException {
+		final RateLimiter limiter = new RateLimiter(20, 1, 100);
+
+		assertTrue(limiter.tryAcquire("client") > 0);
+		assertTrue(limiter.tryAcquire("client") < 0);
+
+		Thread.sleep(60);
+		assertTrue(limiter.tryAcquire("client") > 0);
+	}
+
+	@Test
+	public void boundsTheNumberOfBuckets() {
+		final RateLimiter limiter = new RateLimiter(SLOW, 1, 1024);
+
+		for (int i = 0; i < 10000; i++)
+			limiter.tryAcquire("client-" + i);
+		assertTrue(limiter.size() <= 1024);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNonPositiveRate() {
+		new RateLimiter(0, 1, 100);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsEmptyBurst() {
+		new RateLimiter(1, 0, 100);
+	}
+}
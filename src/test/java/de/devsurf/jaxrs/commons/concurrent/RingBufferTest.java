@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+/**
+ * @author Daniel Manzke
+ */
+public class RingBufferTest {
+
+	private static final int THREADS = 4;
+
+	private static final int PER_PRODUCER = 100000;
+
+	@Test
+	public void roundsCapacityToPowerOfTwo() {
+		assertEquals(1, new RingBuffer<Object>(1).capacity());
+		assertEquals(2, new RingBuffer<Object>(2).capacity());
+		assertEquals(4, new RingBuffer<Object>(3).capacity());
+		assertEquals(8, new RingBuffer<Object>(5).capacity());
+		assertEquals(1024, new RingBuffer<Object>(1024).capacity());
+	}
+
+	@Test
+	public void pollsInOfferOrder() {
+		final RingBuffer<Integer> buffer = new RingBuffer<Integer>(4);
+		assertTrue(buffer.isEmpty());
+		assertNull(buffer.poll());
+
+		for (int i = 0; i < 4; i++)
+			assertTrue(buffer.offer(Integer.valueOf(i)));
+		assertEquals(4, buffer.size());
+		assertFalse(buffer.offer(Integer.valueOf(4)));
+
+		for (int i = 0; i < 4; i++)
+			assertEquals(Integer.valueOf(i), buffer.poll());
+		assertNull(buffer.poll());
+		assertTrue(buffer.isEmpty());
+		assertEquals(0, buffer.size());
+	}
+
+	@Test
+	public void reusesSlotsAfterWrapping() {
+		final RingBuffer<Integer> buffer = new RingBuffer<Integer>(4);
+
+		// every slot cycles through many sequence numbers
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(buffer.offer(Integer.valueOf(i)));
+			assertTrue(buffer.offer(Integer.valueOf(-i)));
+			assertEquals(Integer.valueOf(i), buffer.poll());
+			assertEquals(Integer.valueOf(-i), buffer.poll());
+		}
+		assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	public void fillsAgainAfterDraining() {
+		final RingBuffer<Integer> buffer = new RingBuffer<Integer>(2);
+
+		for (int round = 0; round < 3; round++) {
+			assertTrue(buffer.offer(Integer.valueOf(round)));
+			assertTrue(buffer.offer(Integer.valueOf(round + 1)));
+			assertFalse(buffer.offer(Integer.valueOf(round + 2)));
+			assertEquals(Integer.valueOf(round), buffer.poll());
+			assertEquals(Integer.valueOf(round + 1), buffer.poll());
+			assertNull(buffer.poll());
+		}
+	}
+
+	@Test
+	public void drainsUpToLimit() {
+		final RingBuffer<Integer> buffer = new RingBuffer<Integer>(8);
+		for (int i = 0; i < 5; i++)
+			buffer.offer(Integer.valueOf(i));
+
+		final Integer[] target = new Integer[8];
+		assertEquals(3, buffer.drainTo(target, 3));
+		assertEquals(Integer.valueOf(0), target[0]);
+		assertEquals(Integer.valueOf(2), target[2]);
+		assertNull(target[3]);
+
+		assertEquals(2, buffer.drainTo(target, 8));
+		assertEquals(Integer.valueOf(3), target[0]);
+		assertEquals(Integer.valueOf(4), target[1]);
+		assertEquals(0, buffer.drainTo(target, 8));
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void rejectsNull() {
+		new RingBuffer<Object>(4).offer(null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsEmptyCapacity() {
+		new RingBuffer<Object>(0);
+	}
+
+	@Test
+	public void neitherLosesNorDuplicatesUnderContention() throws InterruptedException {
+		final RingBuffer<Integer> buffer = new RingBuffer<Integer>(64);
+		final int total = THREADS * PER_PRODUCER;
+		final AtomicIntegerArray seen = new AtomicIntegerArray(total);
+		final AtomicInteger consumed = new AtomicInteger();
+		final AtomicInteger disorder = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final Thread[] threads = new Thread[2 * THREADS];
+
+		for (int p = 0; p < THREADS; p++) {
+			final int producer = p;
+			threads[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					await(start);
+					for (int i = 0; i < PER_PRODUCER; i++) {
+						final Integer element = Integer.valueOf(producer * PER_PRODUCER + i);
+						while (!buffer.offer(element))
+							Thread.yield();
+					}
+				}
+			});
+		}
+		for (int c = 0; c < THREADS; c++) {
+			threads[THREADS + c] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					await(start);
+					// elements of one producer must arrive in order
+					final int[] last = new int[THREADS];
+					Arrays.fill(last, -1);
+					while (consumed.get() < total) {
+						final Integer element = buffer.poll();
+						if (element == null) {
+							Thread.yield();
+							continue;
+						}
+						final int value = element.intValue();
+						final int producer = value / PER_PRODUCER;
+						if (value <= last[producer])
+							disorder.incrementAndGet();
+						last[producer] = value;
+						seen.incrementAndGet(value);
+						consumed.incrementAndGet();
+					}
+				}
+			});
+		}
+
+		for (final Thread thread : threads)
+			thread.start();
+		start.countDown();
+		for (final Thread thread : threads)
+			thread.join(TimeUnit.SECONDS.toMillis(30));
+
+		assertEquals(total, consumed.get());
+		assertEquals(0, disorder.get());
+		for (int i = 0; i < total; i++)
+			assertEquals(1, seen.get(i));
+		assertTrue(buffer.isEmpty());
+	}
+
+	private static void await(final CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
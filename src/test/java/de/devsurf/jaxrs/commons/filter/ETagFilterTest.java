@@ -0,0 +1,306 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.filter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+/**
+ * @author Daniel Manzke
+ */
+public class ETagFilterTest {
+
+	private static final String BODY = "{\"id\":1,\"name\":\"resource\"}";
+
+	@Test
+	public void answersFromCacheBeforeChainRuns() throws Exception {
+		final ETagFilter filter = cachingFilter();
+		final CountingChain chain = new CountingChain(null);
+
+		final String etag = get(filter, chain, null).getHeader("ETag");
+		assertNotNull(etag);
+
+		final Response response = get(filter, chain, etag);
+		assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.status);
+		assertEquals(1, chain.runs);
+	}
+
+	@Test
+	public void cachesBehindCompressionFilter() throws Exception {
+		final ETagFilter filter = cachingFilter();
+		final CompressionFilter compression = new CompressionFilter();
+		compression.init(config(Collections.<String, String> emptyMap()));
+		try {
+			final CountingChain chain = new CountingChain(null);
+			final FilterChain tagged = chain(filter, chain);
+
+			final Response first = get(compression, tagged, null);
+			assertEquals("Accept-Encoding", first.getHeader("Vary"));
+			final String etag = first.getHeader("ETag");
+			assertNotNull(etag);
+
+			final Response second = get(compression, tagged, etag);
+			assertEquals(HttpServletResponse.SC_NOT_MODIFIED, second.status);
+			assertEquals(1, chain.runs);
+		} finally {
+			compression.destroy();
+		}
+	}
+
+	@Test
+	public void cachesInFrontOfCompressionFilter() throws Exception {
+		final ETagFilter filter = cachingFilter();
+		final CompressionFilter compression = new CompressionFilter();
+		compression.init(config(Collections.<String, String> emptyMap()));
+		try {
+			final CountingChain chain = new CountingChain(null);
+			final FilterChain compressed = chain(compression, chain);
+
+			final String etag = get(filter, compressed, null).getHeader("ETag");
+			assertNotNull(etag);
+
+			final Response second = get(filter, compressed, etag);
+			assertEquals(HttpServletResponse.SC_NOT_MODIFIED, second.status);
+			assertEquals(1, chain.runs);
+		} finally {
+			compression.destroy();
+		}
+	}
+
+	@Test
+	public void doesNotCacheResponseVaryingOnOtherHeaders() throws Exception {
+		final ETagFilter filter = cachingFilter();
+		final CountingChain chain = new CountingChain("Accept-Language");
+
+		final String etag = get(filter, chain, null).getHeader("ETag");
+		get(filter, chain, etag);
+		assertEquals(2, chain.runs);
+	}
+
+	@Test
+	public void unsafeMethodForgetsEtag() throws Exception {
+		final ETagFilter filter = cachingFilter();
+		final CountingChain chain = new CountingChain(null);
+
+		final String etag = get(filter, chain, null).getHeader("ETag");
+		filter.doFilter(request("PUT", null), new Response().proxy(), chain);
+		get(filter, chain, etag);
+		assertEquals(3, chain.runs);
+	}
+
+	@Test
+	public void variesIgnoresAcceptEncoding() {
+		assertFalse(ETagFilter.varies(null));
+		assertFalse(ETagFilter.varies(Arrays.asList("Accept-Encoding", " accept-encoding ")));
+		assertTrue(ETagFilter.varies(Arrays.asList("Accept-Encoding, Accept-Language")));
+		assertTrue(ETagFilter.varies(Arrays.asList("*")));
+	}
+
+	private static ETagFilter cachingFilter() throws ServletException {
+		final Map<String, String> parameters = new HashMap<String, String>();
+		parameters.put(ETagFilter.PARAM_CACHE_TTL, "60");
+		final ETagFilter filter = new ETagFilter();
+		filter.init(config(parameters));
+		return filter;
+	}
+
+	private static Response get(final Filter filter, final FilterChain chain, final String ifNoneMatch) throws Exception {
+		final Response response = new Response();
+		filter.doFilter(request("GET", ifNoneMatch), response.proxy(), chain);
+		return response;
+	}
+
+	private static FilterChain chain(final Filter filter, final FilterChain next) {
+		return new FilterChain() {
+			@Override
+			public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException,
+					ServletException {
+				filter.doFilter(request, response, next);
+			}
+		};
+	}
+
+	private static FilterConfig config(final Map<String, String> parameters) {
+		return (FilterConfig) Proxy.newProxyInstance(ETagFilterTest.class.getClassLoader(),
+				new Class<?>[] { FilterConfig.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(final Object proxy, final Method method, final Object[] args) {
+						if (method.getName().equals("getInitParameter"))
+							return parameters.get(args[0]);
+						if (method.getName().equals("getInitParameterNames"))
+							return Collections.enumeration(parameters.keySet());
+						return null;
+					}
+				});
+	}
+
+	private static HttpServletRequest request(final String method, final String ifNoneMatch) {
+		final Map<String, String> headers = new HashMap<String, String>();
+		headers.put("accept-encoding", "gzip");
+		if (ifNoneMatch != null)
+			headers.put("if-none-match", ifNoneMatch);
+
+		return (HttpServletRequest) Proxy.newProxyInstance(ETagFilterTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(final Object proxy, final Method m, final Object[] args) {
+						final String name = m.getName();
+						if (name.equals("getMethod"))
+							return method;
+						if (name.equals("getRequestURI"))
+							return "/resources/1";
+						if (name.equals("getHeader"))
+							return headers.get(((String) args[0]).toLowerCase());
+						return defaultValue(m.getReturnType());
+					}
+				});
+	}
+
+	private static Object defaultValue(final Class<?> type) {
+		if (type == boolean.class)
+			return Boolean.FALSE;
+		if (type == int.class)
+			return Integer.valueOf(0);
+		if (type == long.class)
+			return Long.valueOf(0);
+		return null;
+	}
+
+	/**
+	 * Runs the resource: writes {@link #BODY} and optionally varies on a
+	 * request header.
+	 */
+	private static final class CountingChain implements FilterChain {
+
+		private final String vary;
+
+		private int runs;
+
+		CountingChain(final String vary) {
+			this.vary = vary;
+		}
+
+		@Override
+		public void doFilter(final ServletRequest request, final ServletResponse response) throws IOException {
+			this.runs++;
+			if (this.vary != null)
+				((HttpServletResponse) response).addHeader("Vary", this.vary);
+			response.setContentType("application/json");
+			response.getOutputStream().write(BODY.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Records status, headers and body written to a response.
+	 */
+	private static final class Response implements InvocationHandler {
+
+		private final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		private int status = HttpServletResponse.SC_OK;
+
+		final HttpServletResponse proxy() {
+			return (HttpServletResponse) Proxy.newProxyInstance(ETagFilterTest.class.getClassLoader(),
+					new Class<?>[] { HttpServletResponse.class }, this);
+		}
+
+		final String getHeader(final String name) {
+			final List<String> values = this.headers.get(name.toLowerCase());
+			return values == null ? null : values.get(0);
+		}
+
+		@Override
+		public Object invoke(final Object proxy, final Method method, final Object[] args) {
+			final String name = method.getName();
+			if (name.equals("setStatus")) {
+				this.status = ((Integer) args[0]).intValue();
+			} else if (name.equals("getStatus")) {
+				return Integer.valueOf(this.status);
+			} else if (name.equals("setHeader") || name.equals("setIntHeader") || name.equals("setDateHeader")) {
+				this.headers.put(((String) args[0]).toLowerCase(), new ArrayList<String>(Arrays.asList(String.valueOf(args[1]))));
+			} else if (name.equals("addHeader") || name.equals("addIntHeader") || name.equals("addDateHeader")) {
+				final String key = ((String) args[0]).toLowerCase();
+				if (!this.headers.containsKey(key))
+					this.headers.put(key, new ArrayList<String>());
+				this.headers.get(key).add(String.valueOf(args[1]));
+			} else if (name.equals("getHeader")) {
+				return this.getHeader((String) args[0]);
+			} else if (name.equals("getHeaders")) {
+				final List<String> values = this.headers.get(((String) args[0]).toLowerCase());
+				return values == null ? Collections.<String> emptyList() : values;
+			} else if (name.equals("containsHeader")) {
+				return Boolean.valueOf(this.headers.containsKey(((String) args[0]).toLowerCase()));
+			} else if (name.equals("setContentType")) {
+				this.headers.put("content-type", new ArrayList<String>(Arrays.asList((String) args[0])));
+			} else if (name.equals("getContentType")) {
+				return this.getHeader("Content-Type");
+			} else if (name.equals("getCharacterEncoding")) {
+				return "UTF-8";
+			} else if (name.equals("getOutputStream")) {
+				return new ServletOutputStream() {
+					@Override
+					public void write(final int b) {
+						Response.this.body.write(b);
+					}
+
+					@Override
+					public boolean isReady() {
+						return true;
+					}
+
+					@Override
+					public void setWriteListener(final WriteListener listener) {
+						// blocking only
+					}
+				};
+			} else {
+				return defaultValue(method.getReturnType());
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2010 Daniel Manzke <daniel.manzke@googlemail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.devsurf.jaxrs.commons.streams;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author Daniel Manzke
+ */
+public class ByteRangeTest {
+
+	private static final long LENGTH = 1000;
+
+	private static final int MAX_RANGES = 4;
+
+	@Test
+	public void parsesSingleRange() {
+		assertEquals(ranges(new ByteRange(0, 99)), ByteRange.parse("bytes=0-99", LENGTH, MAX_RANGES));
+	}
+
+	@Test
+	public void clampsLastToLength() {
+		assertEquals(ranges(new ByteRange(900, 999)), ByteRange.parse("bytes=900-5000", LENGTH, MAX_RANGES));
+	}
+
+	@Test
+	public void parsesOpenRange() {
+		assertEquals(ranges(new ByteRange(500, 999)), ByteRange.parse("bytes=500-", LENGTH, MAX_RANGES));
+	}
+
+	@Test
+	public void parsesSuffixRange() {
+		assertEquals(ranges(new ByteRange(900, 999)), ByteRange.parse("bytes=-100", LENGTH, MAX_RANGES));
+	}
+
+	@Test
+	public void suffixLongerThanResourceCoversAll() {
+		assertEquals(ranges(new ByteRange(0, 999)), ByteRange.parse("bytes=-5000", LENGTH, MAX_RANGES));
+	}
+
+	@Test
+	public void mergesOverlappingAndAdjacentRanges() {
+		assertEquals(ranges(new ByteRange(0, 199)), ByteRange.parse("bytes=0-99,50-149,150-199", LENGTH, MAX_RANGES));
+	}
+
+	@Test
+	public void sortsAndKeepsDisjointRanges() {
+		assertEquals(ranges(new ByteRange(0, 9), new ByteRange(100, 109), new ByteRange(900, 999)),
+				ByteRange.parse("bytes=-100, 100-109, 0-9", LENGTH, MAX_RANGES));
+	}
+
+	@Test
+	public void capsRangesAfterMerging() {
+		assertNull(ByteRange.parse("bytes=0-0,2-2,4-4,6-6,8-8", LENGTH, MAX_RANGES));
+		assertEquals(ranges(new ByteRange(0, 8)), ByteRange.parse("bytes=0-0,1-1,2-2,3-3,4-8", LENGTH, MAX_RANGES));
+	}
+
+	@Test
+	public void unsatisfiableRangesYieldEmptyList() {
+		final List<ByteRange> ranges = ByteRange.parse("bytes=1000-1099,-0", LENGTH, MAX_RANGES);
+		assertEquals(0, ranges.size());
+	}
+
+	@Test
+	public void dropsUnsatisfiableRangesOfAMix() {
+		assertEquals(ranges(new ByteRange(0, 9)), ByteRange.parse("bytes=2000-,0-9", LENGTH, MAX_RANGES));
+	}
+
+	@Test
+	public void ignoresMalformedHeaders() {
+		assertNull(ByteRange.parse(null, LENGTH, MAX_RANGES));
+		assertNull(ByteRange.parse("items=0-9", LENGTH, MAX_RANGES));
+		assertNull(ByteRange.parse("bytes=", LENGTH, MAX_RANGES));
+		assertNull(ByteRange.parse("bytes=10", LENGTH, MAX_RANGES));
+		assertNull(ByteRange.parse("bytes=9-0", LENGTH, MAX_RANGES));
+		assertNull(ByteRange.parse("bytes=a-9", LENGTH, MAX_RANGES));
+		assertNull(ByteRange.parse("bytes=+1-9", LENGTH, MAX_RANGES));
+	}
+
+	@Test
+	public void unitIsCaseInsensitive() {
+		assertEquals(ranges(new ByteRange(0, 9)), ByteRange.parse("Bytes=0-9", LENGTH, MAX_RANGES));
+	}
+
+	@Test
+	public void formatsContentRange() {
+		final ByteRange range = new ByteRange(10, 19);
+		assertEquals(10, range.getLength());
+		assertEquals("bytes 10-19/1000", range.toContentRange(LENGTH));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsInvalidRange() {
+		new ByteRange(10, 9);
+	}
+
+	private static List<ByteRange> ranges(final ByteRange... ranges) {
+		return Arrays.asList(ranges);
+	}
+}